@@ -0,0 +1,101 @@
+package co.blustor.gatekeepersdk.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import co.blustor.gatekeepersdk.data.CommandLineAssembler;
+
+/**
+ * Assembly of a command channel line from packet payloads, against the two-pass scan with a
+ * copy of the line per payload that {@code GKMultiplexer} used before
+ * {@link CommandLineAssembler}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandLineAssemblerBenchmark {
+    private static final byte CARRIAGE_RETURN = 13;
+    private static final byte LINE_FEED = 10;
+
+    @Param({"32", "2048"})
+    public int lineLength;
+
+    @Param({"16", "512"})
+    public int payloadSize;
+
+    private byte[][] mPayloads;
+    private final CommandLineAssembler mAssembler = new CommandLineAssembler();
+
+    @Setup
+    public void setUp() {
+        StringBuilder line = new StringBuilder("213 ");
+        while (line.length() < lineLength) {
+            line.append('x');
+        }
+        byte[] data = (line + "\r\n").getBytes();
+        int count = (data.length + payloadSize - 1) / payloadSize;
+        mPayloads = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            mPayloads[i] = Arrays.copyOfRange(data, i * payloadSize, Math.min(data.length, (i + 1) * payloadSize));
+        }
+    }
+
+    @Benchmark
+    public byte[] assemble() {
+        mAssembler.reset();
+        for (byte[] payload : mPayloads) {
+            if (mAssembler.append(payload, payload.length)) {
+                break;
+            }
+        }
+        return mAssembler.takeLine();
+    }
+
+    @Benchmark
+    public byte[] twoPassScan() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int i = 0;
+        while (!containsCRLF(mPayloads[i])) {
+            copyUntilCRLF(mPayloads[i], bytes);
+            i++;
+        }
+        copyUntilCRLF(mPayloads[i], bytes);
+        return bytes.toByteArray();
+    }
+
+    private static boolean containsCRLF(byte[] payload) {
+        for (int i = 0; i < payload.length - 1; i++) {
+            if (payload[i] == CARRIAGE_RETURN && payload[i + 1] == LINE_FEED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] copyUntilCRLF(byte[] data, ByteArrayOutputStream bytes) {
+        for (int i = 0; i < data.length; i++) {
+            byte a = data[i];
+            if (a == CARRIAGE_RETURN && i < data.length - 1 && data[i + 1] == LINE_FEED) {
+                break;
+            }
+            bytes.write(a);
+        }
+        return bytes.toByteArray();
+    }
+}
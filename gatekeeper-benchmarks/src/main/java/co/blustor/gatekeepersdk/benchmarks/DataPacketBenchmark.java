@@ -0,0 +1,74 @@
+package co.blustor.gatekeepersdk.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import co.blustor.gatekeepersdk.data.DataPacket;
+import co.blustor.gatekeepersdk.data.GKMultiplexer;
+
+/**
+ * Framing and unframing of a single packet.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataPacketBenchmark {
+    @Param({"16", "512"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean checksum;
+
+    private byte[] mPayload;
+    private ByteArrayInputStream mPacketStream;
+    private DataPacket.Encoder mEncoder;
+    private DataPacket.Decoder mDecoder;
+
+    @Setup
+    public void setUp() {
+        mPayload = new byte[payloadSize];
+        mPacketStream = new ByteArrayInputStream(DataPacket.Builder.toPacketBytes(mPayload, GKMultiplexer.DATA_CHANNEL, checksum));
+        mEncoder = new DataPacket.Encoder(GKMultiplexer.MAXIMUM_PAYLOAD_SIZE);
+        mEncoder.setChecksumEnabled(checksum);
+        mDecoder = new DataPacket.Decoder(GKMultiplexer.MAXIMUM_PAYLOAD_SIZE);
+        mDecoder.setChecksumEnabled(checksum);
+    }
+
+    @Benchmark
+    public byte[] toPacketBytes() {
+        return DataPacket.Builder.toPacketBytes(mPayload, GKMultiplexer.DATA_CHANNEL, checksum);
+    }
+
+    @Benchmark
+    public int encode() {
+        return mEncoder.encode(mPayload, 0, mPayload.length, GKMultiplexer.DATA_CHANNEL);
+    }
+
+    @Benchmark
+    public DataPacket build() throws IOException {
+        mPacketStream.reset();
+        return DataPacket.Builder.build(mPacketStream, checksum);
+    }
+
+    @Benchmark
+    public DataPacket decode() throws IOException {
+        mPacketStream.reset();
+        return mDecoder.decode(mPacketStream);
+    }
+}
@@ -0,0 +1,116 @@
+package co.blustor.gatekeepersdk.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import co.blustor.gatekeepersdk.devices.GKCard.DataStream;
+import co.blustor.gatekeepersdk.devices.GKCard.Response;
+import co.blustor.gatekeepersdk.emulator.GKCardEmulator;
+import co.blustor.gatekeepersdk.emulator.GKEmulatedCard;
+
+/**
+ * End-to-end transfers between a {@code GKBluetoothCard} and the card emulator over an
+ * unshaped link, which measures the SDK's per-transfer overhead.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EmulatedCardBenchmark {
+    private static final String FILE_PATH = "/data/file";
+
+    @Param({"65536"})
+    public int fileSize;
+
+    private final byte[] mReadBuffer = new byte[4096];
+    private File mDataCacheDir;
+    private GKEmulatedCard mCard;
+
+    @Setup
+    public void setUp() throws IOException {
+        File marker = File.createTempFile("benchmark", "tmp");
+        mDataCacheDir = marker.getParentFile();
+        marker.delete();
+        GKCardEmulator emulator = new GKCardEmulator();
+        emulator.putFile(FILE_PATH, new byte[fileSize]);
+        for (int i = 0; i < 100; i++) {
+            emulator.putFile("/data/entry" + i, new byte[i]);
+        }
+        mCard = new GKEmulatedCard(emulator, mDataCacheDir);
+        mCard.connect();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mCard.disconnect();
+    }
+
+    @Benchmark
+    public Response get() throws IOException {
+        Response response = mCard.get(FILE_PATH);
+        response.getDataFile().delete();
+        return response;
+    }
+
+    @Benchmark
+    public Response getToChannel() throws IOException {
+        return mCard.get(FILE_PATH, new DiscardChannel());
+    }
+
+    @Benchmark
+    public Response getStream() throws IOException {
+        DataStream stream = mCard.getStream(FILE_PATH);
+        drain(stream);
+        return stream.getResponse();
+    }
+
+    @Benchmark
+    public Response list() throws IOException {
+        Response response = mCard.list("/data");
+        response.getDataFile().delete();
+        return response;
+    }
+
+    private void drain(InputStream inputStream) throws IOException {
+        while (inputStream.read(mReadBuffer) != -1) {
+            // discard
+        }
+    }
+
+    private static class DiscardChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer buffer) {
+            int count = buffer.remaining();
+            buffer.position(buffer.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package co.blustor.gatekeepersdk.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import co.blustor.gatekeepersdk.data.GKFile;
+import co.blustor.gatekeepersdk.devices.GKCard.Response;
+import co.blustor.gatekeepersdk.services.GKFileActions;
+import co.blustor.gatekeepersdk.utils.GKFileUtils;
+
+/**
+ * Parsing of large LIST outputs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileListingBenchmark {
+    @Param({"1000"})
+    public int entries;
+
+    private String[] mLines;
+    private File mListingFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mLines = new String[entries];
+        StringBuilder listing = new StringBuilder();
+        for (int i = 0; i < entries; i++) {
+            String type = i % 10 == 0 ? "drwxr-xr-x" : "-rw-r--r--";
+            mLines[i] = type + " 1 root root " + (i * 37) + " Jan 1 2016 file" + i + ".dat";
+            listing.append(mLines[i]).append("\r\n");
+        }
+        mListingFile = File.createTempFile("benchmark", "tmp");
+        FileOutputStream outputStream = new FileOutputStream(mListingFile);
+        try {
+            outputStream.write(listing.toString().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mListingFile.delete();
+    }
+
+    @Benchmark
+    public void parseFile(Blackhole blackhole) {
+        for (String line : mLines) {
+            blackhole.consume(GKFileUtils.parseFile(line));
+        }
+    }
+
+    @Benchmark
+    public List<GKFile> listFilesResult() {
+        Response response = new Response(226, "Transfer complete", mListingFile);
+        return new GKFileActions.ListFilesResult(response, "/data").getFiles();
+    }
+}
@@ -0,0 +1,93 @@
+package co.blustor.gatekeepersdk.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import co.blustor.gatekeepersdk.data.FlushPolicy;
+import co.blustor.gatekeepersdk.data.PayloadSizer;
+import co.blustor.gatekeepersdk.data.UploadPacer;
+import co.blustor.gatekeepersdk.devices.GKCard.Response;
+import co.blustor.gatekeepersdk.emulator.GKCardEmulator;
+import co.blustor.gatekeepersdk.emulator.GKEmulatedCard;
+
+/**
+ * Uploads to the card emulator with packets written one at a time or gathered into larger
+ * writes. Each write to the emulated link costs {@code writeOverheadMicros}, standing in for
+ * the system call a write to a Bluetooth socket makes. The {@code writes} counter totals the
+ * writes made in each iteration; a {@code bufferSize} of {@code 0} writes every packet alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FlushPolicyBenchmark {
+    private static final String FILE_PATH = "/data/upload";
+
+    @Param({"0", "4096", "8192", "32768"})
+    public int bufferSize;
+
+    @Param({"0", "20"})
+    public long writeOverheadMicros;
+
+    @Param({"65536"})
+    public int fileSize;
+
+    private byte[] mData;
+    private GKEmulatedCard mCard;
+
+    @Setup
+    public void setUp() throws IOException {
+        mData = new byte[fileSize];
+        GKCardEmulator emulator = new GKCardEmulator();
+        emulator.setPacketOverheadMicros(writeOverheadMicros);
+        emulator.setUploadIdleTimeoutMillis(5);
+        mCard = new GKEmulatedCard(emulator, null);
+        mCard.setUploadPacer(new UploadPacer.NoDelay());
+        mCard.setPayloadSizer(new PayloadSizer.Fixed(512));
+        mCard.setFlushPolicy(bufferSize > 0 ? new FlushPolicy.Coalescing(bufferSize) : new FlushPolicy.Immediate());
+        mCard.connect();
+        mCard.createPath("/data");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mCard.disconnect();
+    }
+
+    @Benchmark
+    public Response put(WriteCounters counters) throws IOException {
+        long writesBefore = mCard.getConnection().getUplink().getPacketCount();
+        Response response = mCard.put(FILE_PATH, new ByteArrayInputStream(mData));
+        counters.writes += mCard.getConnection().getUplink().getPacketCount() - writesBefore;
+        return response;
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class WriteCounters {
+        public long writes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            writes = 0;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package co.blustor.gatekeepersdk.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import co.blustor.gatekeepersdk.data.DataPacket;
+import co.blustor.gatekeepersdk.data.GKMultiplexer;
+import co.blustor.gatekeepersdk.data.UploadPacer;
+
+/**
+ * Whole transfers through {@code GKMultiplexer}, replayed from memory so that only the SDK's
+ * own work is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GKMultiplexerBenchmark {
+    @Benchmark
+    public byte[] readDataChannelToFile(TransferState state) throws IOException {
+        state.mDownload.reset();
+        return state.mDownloadMultiplexer.readDataChannelToFile(state.mDataFile);
+    }
+
+    @Benchmark
+    public byte[] readDataChannel(TransferState state) throws IOException {
+        state.mDownload.reset();
+        return state.mDownloadMultiplexer.readDataChannel(new DiscardChannel());
+    }
+
+    @Benchmark
+    public void writeToDataChannel(TransferState state) throws IOException, InterruptedException {
+        state.mUpload.reset();
+        state.mUploadMultiplexer.writeToDataChannel(state.mUpload);
+    }
+
+    @Benchmark
+    public byte[] readCommandChannelLine(CommandLineState state) throws IOException {
+        state.mCommandLine.reset();
+        return state.mMultiplexer.readCommandChannelLine();
+    }
+
+    @State(Scope.Thread)
+    public static class TransferState {
+        @Param({"65536"})
+        public int transferSize;
+
+        private ByteArrayInputStream mDownload;
+        private ByteArrayInputStream mUpload;
+        private GKMultiplexer mDownloadMultiplexer;
+        private GKMultiplexer mUploadMultiplexer;
+        private File mDataFile;
+
+        @Setup
+        public void setUp() throws IOException {
+            ByteArrayOutputStream download = new ByteArrayOutputStream();
+            writePackets(download, new byte[transferSize], GKMultiplexer.DATA_CHANNEL);
+            writePackets(download, "226 Transfer complete\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+            mDownload = new ByteArrayInputStream(download.toByteArray());
+            mDownloadMultiplexer = new GKMultiplexer(mDownload, new DiscardOutputStream());
+
+            mUpload = new ByteArrayInputStream(new byte[transferSize]);
+            mUploadMultiplexer = new GKMultiplexer(new ByteArrayInputStream(new byte[0]), new DiscardOutputStream());
+            mUploadMultiplexer.setUploadPacer(new UploadPacer.NoDelay());
+
+            mDataFile = File.createTempFile("benchmark", "tmp");
+        }
+
+        @TearDown
+        public void tearDown() {
+            mDataFile.delete();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CommandLineState {
+        @Param({"32", "2048"})
+        public int lineLength;
+
+        private ByteArrayInputStream mCommandLine;
+        private GKMultiplexer mMultiplexer;
+
+        @Setup
+        public void setUp() throws IOException {
+            StringBuilder line = new StringBuilder("213 ");
+            while (line.length() < lineLength) {
+                line.append('x');
+            }
+            ByteArrayOutputStream commandLine = new ByteArrayOutputStream();
+            writePackets(commandLine, (line + "\r\n").getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+            mCommandLine = new ByteArrayInputStream(commandLine.toByteArray());
+            mMultiplexer = new GKMultiplexer(mCommandLine, new DiscardOutputStream());
+        }
+    }
+
+    private static void writePackets(OutputStream outputStream, byte[] data, int channel) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(GKMultiplexer.MAXIMUM_PAYLOAD_SIZE, data.length - offset);
+            byte[] payload = new byte[length];
+            System.arraycopy(data, offset, payload, 0, length);
+            outputStream.write(DataPacket.Builder.toPacketBytes(payload, channel));
+            offset += length;
+        }
+    }
+
+    private static class DiscardOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private static class DiscardChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer buffer) {
+            int count = buffer.remaining();
+            buffer.position(buffer.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package co.blustor.gatekeepersdk.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import co.blustor.gatekeepersdk.data.FlushPolicy;
+import co.blustor.gatekeepersdk.data.PayloadSizer;
+import co.blustor.gatekeepersdk.devices.GKCard.Response;
+import co.blustor.gatekeepersdk.emulator.GKCardEmulator;
+import co.blustor.gatekeepersdk.emulator.GKEmulatedCard;
+
+/**
+ * Uploads over a link shaped like a noisy Bluetooth RFCOMM connection, comparing fixed
+ * payload sizes with the adaptive search. A {@code payloadSize} of {@code 0} uses
+ * {@link PayloadSizer.Adaptive}. Every packet is written on its own with
+ * {@link FlushPolicy.Immediate}, so the link sees the payload size being measured rather
+ * than the size of gathered writes; {@link FlushPolicyBenchmark} measures gathering.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PayloadSizeBenchmark {
+    private static final String FILE_PATH = "/data/upload";
+
+    @Param({"128", "256", "512", "1024", "4096", "0"})
+    public int payloadSize;
+
+    @Param({"0", "0.00002"})
+    public double bitErrorRate;
+
+    @Param({"65536"})
+    public int fileSize;
+
+    private byte[] mData;
+    private GKEmulatedCard mCard;
+
+    @Setup
+    public void setUp() throws IOException {
+        mData = new byte[fileSize];
+        new Random(1).nextBytes(mData);
+        GKCardEmulator emulator = new GKCardEmulator();
+        emulator.setRandom(new Random(1));
+        emulator.setBytesPerSecond(256 * 1024);
+        emulator.setPacketOverheadMicros(500);
+        emulator.setBitErrorRate(bitErrorRate);
+        emulator.setMaximumPayloadSize(4096);
+        emulator.setUploadIdleTimeoutMillis(50);
+        mCard = new GKEmulatedCard(emulator, null);
+        mCard.setRequestedPayloadSize(4096);
+        mCard.setFlushPolicy(new FlushPolicy.Immediate());
+        if (payloadSize > 0) {
+            mCard.setPayloadSizer(new PayloadSizer.Fixed(payloadSize));
+        } else {
+            mCard.setPayloadSizer(new PayloadSizer.Adaptive());
+        }
+        mCard.connect();
+        mCard.createPath("/data");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mCard.disconnect();
+    }
+
+    @Benchmark
+    public Response put() throws IOException {
+        return mCard.put(FILE_PATH, new ByteArrayInputStream(mData));
+    }
+}
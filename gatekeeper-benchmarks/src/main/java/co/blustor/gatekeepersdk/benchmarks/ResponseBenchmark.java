@@ -0,0 +1,55 @@
+package co.blustor.gatekeepersdk.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import co.blustor.gatekeepersdk.devices.GKCard.Response;
+
+/**
+ * Parsing of command channel responses, against the regular expression split the
+ * {@code Response} constructor used before.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+    private final byte[] mCommandData = "226 Transfer complete".getBytes();
+
+    @Benchmark
+    public Response parse() {
+        return new Response(mCommandData);
+    }
+
+    @Benchmark
+    public int parseStatus() {
+        return new Response(mCommandData).getStatus();
+    }
+
+    @Benchmark
+    public String parseStatusMessage() {
+        return new Response(mCommandData).getStatusMessage();
+    }
+
+    @Benchmark
+    public int splitStatus() {
+        return Integer.parseInt(new String(mCommandData).split("\\s", 2)[0]);
+    }
+
+    @Benchmark
+    public String splitStatusMessage() {
+        String[] split = new String(mCommandData).split("\\s", 2);
+        return Integer.parseInt(split[0]) + " " + split[1];
+    }
+}
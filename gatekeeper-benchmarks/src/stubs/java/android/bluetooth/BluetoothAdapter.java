@@ -0,0 +1,38 @@
+package android.bluetooth;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Stands in for the platform class; benchmarks only reach Bluetooth through the emulator.
+ */
+public final class BluetoothAdapter {
+    public static final String ACTION_STATE_CHANGED = "android.bluetooth.adapter.action.STATE_CHANGED";
+
+    private BluetoothAdapter() {
+    }
+
+    public static BluetoothAdapter getDefaultAdapter() {
+        return null;
+    }
+
+    public boolean isEnabled() {
+        return false;
+    }
+
+    public boolean enable() {
+        return false;
+    }
+
+    public boolean disable() {
+        return false;
+    }
+
+    public Set<BluetoothDevice> getBondedDevices() {
+        return Collections.emptySet();
+    }
+
+    public BluetoothDevice getRemoteDevice(String address) {
+        throw new IllegalArgumentException(address + " is not a valid Bluetooth address");
+    }
+}
@@ -0,0 +1,38 @@
+package android.bluetooth;
+
+import android.os.Parcelable;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Stands in for the platform class; benchmarks only reach Bluetooth through the emulator.
+ */
+public final class BluetoothDevice implements Parcelable {
+    public static final String ACTION_BOND_STATE_CHANGED = "android.bluetooth.device.action.BOND_STATE_CHANGED";
+    public static final String ACTION_NAME_CHANGED = "android.bluetooth.device.action.NAME_CHANGED";
+    public static final String EXTRA_DEVICE = "android.bluetooth.device.extra.DEVICE";
+    public static final String EXTRA_BOND_STATE = "android.bluetooth.device.extra.BOND_STATE";
+    public static final int BOND_NONE = 10;
+    public static final int BOND_BONDING = 11;
+    public static final int BOND_BONDED = 12;
+
+    private BluetoothDevice() {
+    }
+
+    public String getName() {
+        return null;
+    }
+
+    public String getAddress() {
+        return null;
+    }
+
+    public int getBondState() {
+        return BOND_NONE;
+    }
+
+    public BluetoothSocket createRfcommSocketToServiceRecord(UUID uuid) throws IOException {
+        throw new IOException("Bluetooth is not available");
+    }
+}
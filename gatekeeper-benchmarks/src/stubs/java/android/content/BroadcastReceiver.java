@@ -0,0 +1,8 @@
+package android.content;
+
+/**
+ * Stands in for the platform class; benchmarks only reach Bluetooth through the emulator.
+ */
+public abstract class BroadcastReceiver {
+    public abstract void onReceive(Context context, Intent intent);
+}
@@ -0,0 +1,17 @@
+package android.content;
+
+/**
+ * Stands in for the platform class; benchmarks only reach Bluetooth through the emulator.
+ */
+public abstract class Context {
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        return null;
+    }
+
+    public void unregisterReceiver(BroadcastReceiver receiver) {
+    }
+}
@@ -0,0 +1,20 @@
+package android.content;
+
+import android.os.Parcelable;
+
+/**
+ * Stands in for the platform class; benchmarks only reach Bluetooth through the emulator.
+ */
+public class Intent {
+    public String getAction() {
+        return null;
+    }
+
+    public <T extends Parcelable> T getParcelableExtra(String name) {
+        return null;
+    }
+
+    public int getIntExtra(String name, int defaultValue) {
+        return defaultValue;
+    }
+}
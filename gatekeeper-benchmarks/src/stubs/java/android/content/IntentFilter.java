@@ -0,0 +1,9 @@
+package android.content;
+
+/**
+ * Stands in for the platform class; benchmarks only reach Bluetooth through the emulator.
+ */
+public class IntentFilter {
+    public void addAction(String action) {
+    }
+}
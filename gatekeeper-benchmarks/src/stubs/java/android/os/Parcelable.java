@@ -0,0 +1,7 @@
+package android.os;
+
+/**
+ * Stands in for the platform class; benchmarks only reach Bluetooth through the emulator.
+ */
+public interface Parcelable {
+}
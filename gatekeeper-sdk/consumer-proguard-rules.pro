@@ -0,0 +1,13 @@
+##------------------- Begin GateKeeperSDK consumer proguard config -------
+
+# Applied to apps that use the SDK. When the app's release build runs the ProGuard
+# optimizer (proguard-android-optimize.txt), calls to the SDK's verbose, debug and info
+# logging are removed, along with the message text built only for them. Warnings and
+# errors are kept.
+-assumenosideeffects class co.blustor.gatekeepersdk.utils.GKLog {
+    public static void v(...);
+    public static void d(...);
+    public static void i(...);
+}
+
+##------------------- End GateKeeperSDK consumer proguard config ---------
@@ -0,0 +1,89 @@
+package co.blustor.gatekeepersdk.data;
+
+import java.util.Arrays;
+
+/**
+ * CommandLineAssembler gathers a command channel line from the payloads of consecutive
+ * packets in a single pass, remembering a carriage return at the end of one payload in case
+ * the line feed that ends the line starts the next. Bytes following the line in the same
+ * payload are discarded. Intended for internal use only.
+ *
+ * @since 0.21.0
+ */
+public class CommandLineAssembler {
+    private static final byte CARRIAGE_RETURN = 13;
+    private static final byte LINE_FEED = 10;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private byte[] mLine = new byte[INITIAL_CAPACITY];
+    private int mLength;
+    private boolean mPendingCarriageReturn;
+
+    /**
+     * Add the next payload to the line.
+     *
+     * @param payload the buffer holding the payload
+     * @param length  the number of payload bytes in {@code payload}
+     * @return whether the payload completed the line, which {@link #takeLine()} then returns
+     */
+    public boolean append(byte[] payload, int length) {
+        if (mPendingCarriageReturn && length > 0) {
+            mPendingCarriageReturn = false;
+            if (payload[0] == LINE_FEED) {
+                return true;
+            }
+            add(CARRIAGE_RETURN);
+        }
+        for (int i = 0; i < length; i++) {
+            if (payload[i] != CARRIAGE_RETURN) {
+                continue;
+            }
+            if (i + 1 == length) {
+                addAll(payload, i);
+                mPendingCarriageReturn = true;
+                return false;
+            }
+            if (payload[i + 1] == LINE_FEED) {
+                addAll(payload, i);
+                return true;
+            }
+        }
+        addAll(payload, length);
+        return false;
+    }
+
+    /**
+     * @return the line without its terminating CRLF, after which the assembler is ready for
+     * the next line
+     */
+    public byte[] takeLine() {
+        byte[] line = Arrays.copyOf(mLine, mLength);
+        reset();
+        return line;
+    }
+
+    /**
+     * Discard the partial line.
+     */
+    public void reset() {
+        mLength = 0;
+        mPendingCarriageReturn = false;
+    }
+
+    private void add(byte b) {
+        ensureCapacity(mLength + 1);
+        mLine[mLength++] = b;
+    }
+
+    private void addAll(byte[] data, int length) {
+        ensureCapacity(mLength + length);
+        System.arraycopy(data, 0, mLine, mLength, length);
+        mLength += length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mLine.length) {
+            mLine = Arrays.copyOf(mLine, Math.max(capacity, mLine.length * 2));
+        }
+    }
+}
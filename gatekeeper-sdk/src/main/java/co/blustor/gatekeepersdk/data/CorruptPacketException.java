@@ -0,0 +1,28 @@
+package co.blustor.gatekeepersdk.data;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a packet's checksum does not match its contents. The packet has been read in
+ * full, but a corrupted header may have misplaced its end, so the connection should not be
+ * trusted for further packets.
+ *
+ * @since 0.21.0
+ */
+public class CorruptPacketException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int mChannel;
+
+    public CorruptPacketException(int channel, int expectedChecksum, int actualChecksum) {
+        super(String.format("Corrupt packet on channel %d: checksum %04x, expected %04x", channel, actualChecksum, expectedChecksum));
+        mChannel = channel;
+    }
+
+    /**
+     * @return the channel named in the corrupt packet's header
+     */
+    public int getChannel() {
+        return mChannel;
+    }
+}
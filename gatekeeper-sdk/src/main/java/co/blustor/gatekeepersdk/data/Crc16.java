@@ -0,0 +1,43 @@
+package co.blustor.gatekeepersdk.data;
+
+/**
+ * CRC-16/CCITT-FALSE (polynomial {@code 0x1021}, initial value {@code 0xFFFF}), computed a
+ * byte at a time from a lookup table.
+ */
+final class Crc16 {
+    private static final int POLYNOMIAL = 0x1021;
+    private static final int INITIAL_VALUE = 0xFFFF;
+    private static final char[] TABLE = createTable();
+
+    private Crc16() {
+    }
+
+    static int compute(byte[] data, int offset, int length) {
+        return update(INITIAL_VALUE, data, offset, length);
+    }
+
+    /**
+     * Continue a checksum over further bytes, for data that is not contiguous.
+     */
+    static int update(int crc, byte[] data, int offset, int length) {
+        char[] table = TABLE;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            crc = (crc << 8) ^ table[((crc >>> 8) ^ data[i]) & 0xFF];
+        }
+        crc &= 0xFFFF;
+        return crc;
+    }
+
+    private static char[] createTable() {
+        char[] table = new char[256];
+        for (int i = 0; i < table.length; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+            }
+            table[i] = (char) crc;
+        }
+        return table;
+    }
+}
@@ -1,71 +1,119 @@
 package co.blustor.gatekeepersdk.data;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 
 public class DataPacket {
     public static final int HEADER_SIZE = 3;
     public static final int CHECKSUM_SIZE = 2;
+    public static final int MAXIMUM_PACKET_SIZE = 0xFFFF;
+    public static final int MAXIMUM_PAYLOAD_SIZE = MAXIMUM_PACKET_SIZE - (HEADER_SIZE + CHECKSUM_SIZE);
 
     public static final byte MOST_SIGNIFICANT_BIT = 0x00;
     public static final byte LEAST_SIGNIFICANT_BIT = 0x00;
 
     private byte[] mPayload;
+    private int mPayloadLength;
     private int mChannel;
 
     public DataPacket(byte[] payload, int channel) {
-        mPayload = payload;
-        mChannel = channel;
+        this(payload, payload.length, channel);
+    }
+
+    DataPacket(byte[] payloadBuffer, int payloadLength, int channel) {
+        set(payloadBuffer, payloadLength, channel);
     }
 
+    /**
+     * Retrieve a copy of the payload sized to fit. Hot paths should prefer
+     * {@link #getPayloadBuffer()} and {@link #getPayloadLength()}, which do not allocate.
+     *
+     * @return the payload bytes of this packet
+     */
     public byte[] getPayload() {
+        return Arrays.copyOf(mPayload, mPayloadLength);
+    }
+
+    /**
+     * Retrieve the buffer backing the payload. Only the first {@link #getPayloadLength()}
+     * bytes are part of this packet, and packets produced by a {@link Decoder} share the
+     * buffer with the next packet it decodes.
+     *
+     * @return the buffer holding the payload, starting at index 0
+     * @since 0.21.0
+     */
+    public byte[] getPayloadBuffer() {
         return mPayload;
     }
 
+    /**
+     * @return the number of payload bytes in {@link #getPayloadBuffer()}
+     * @since 0.21.0
+     */
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+
     public int getChannel() {
         return mChannel;
     }
 
+    void set(byte[] payloadBuffer, int payloadLength, int channel) {
+        mPayload = payloadBuffer;
+        mPayloadLength = payloadLength;
+        mChannel = channel;
+    }
+
     public static class Builder {
         public static DataPacket build(InputStream inputStream) throws IOException {
+            return build(inputStream, false);
+        }
+
+        /**
+         * Read a packet from {@code inputStream}.
+         *
+         * @param inputStream    the stream to read from
+         * @param verifyChecksum whether to check the packet's CRC-16, as sent once checksums
+         *                       have been negotiated with the card
+         * @return the packet
+         * @throws CorruptPacketException when {@code verifyChecksum} is set and the checksum
+         *                                does not match
+         * @throws IOException            when the stream ends mid-packet or the packet header
+         *                                is invalid
+         * @since 0.21.0
+         */
+        public static DataPacket build(InputStream inputStream, boolean verifyChecksum) throws IOException {
             byte[] header = readHeader(inputStream);
             int packetSize = getPacketSize(header);
             int channel = getPacketChannel(header);
             byte[] payload = readPayload(inputStream, packetSize);
             byte[] checksum = readChecksum(inputStream);
+            if (verifyChecksum) {
+                verifyChecksum(header, payload, payload.length, checksum);
+            }
 
             return new DataPacket(payload, channel);
         }
 
         public static byte[] toPacketBytes(byte[] data, int channel) {
-            int packetSize = data.length + 5;
-            byte channelByte = getChannelByte(channel);
-            byte msb = getMSB(packetSize);
-            byte lsb = getLSB(packetSize);
-
-            byte[] packet = new byte[data.length + 5];
-            packet[0] = channelByte;
-            packet[1] = msb;
-            packet[2] = lsb;
-            for (int i = 0; i < data.length; i++) {
-                packet[i + 3] = data[i];
-            }
-
-            packet[packet.length - 2] = DataPacket.MOST_SIGNIFICANT_BIT;
-            packet[packet.length - 1] = DataPacket.LEAST_SIGNIFICANT_BIT;
-            return packet;
-        }
-
-        private static int getPacketSize(byte[] header) {
-            byte packetSizeMSB = header[1];
-            byte packetSizeLSB = header[2];
-            int packetSize = (int) packetSizeMSB << 8;
-            packetSize += (int) packetSizeLSB & 0xFF;
-            return packetSize;
+            return toPacketBytes(data, channel, false);
         }
 
-        private static int getPacketChannel(byte[] header) {
-            return (int) header[0];
+        /**
+         * @param data     the payload
+         * @param channel  the channel the packet is sent on
+         * @param checksum whether to fill in the CRC-16; without it both checksum bytes are
+         *                 {@code 0}, as older firmware expects
+         * @return the framed packet
+         * @since 0.21.0
+         */
+        public static byte[] toPacketBytes(byte[] data, int channel, boolean checksum) {
+            byte[] packet = new byte[data.length + HEADER_SIZE + CHECKSUM_SIZE];
+            writePacket(packet, 0, data, 0, data.length, channel, checksum);
+            return packet;
         }
 
         private static byte[] readHeader(InputStream inputStream) throws IOException {
@@ -73,8 +121,7 @@ public class DataPacket {
         }
 
         private static byte[] readPayload(InputStream inputStream, int packetSize) throws IOException {
-            int payloadsize = packetSize - (DataPacket.HEADER_SIZE + DataPacket.CHECKSUM_SIZE);
-            return fillByteArrayFromStream(inputStream, payloadsize);
+            return fillByteArrayFromStream(inputStream, getPayloadSize(packetSize));
         }
 
         private static byte[] readChecksum(InputStream inputStream) throws IOException {
@@ -83,27 +130,275 @@ public class DataPacket {
 
         private static byte[] fillByteArrayFromStream(InputStream inputStream, int length) throws IOException {
             byte[] data = new byte[length];
-            int totalBytesRead = 0;
-            int bytesRead = 0;
-            while (totalBytesRead < length && bytesRead != -1) {
-                bytesRead = inputStream.read(data, totalBytesRead, length - totalBytesRead);
-                if (bytesRead != -1) {
-                    totalBytesRead += bytesRead;
+            readFully(inputStream, data, length);
+            return data;
+        }
+    }
+
+    /**
+     * Encoder frames payloads into a single reusable packet buffer. An {@code Encoder} is
+     * not thread safe; each writer should own one.
+     *
+     * @since 0.21.0
+     */
+    public static class Encoder {
+        private byte[] mBuffer;
+        private int mBufferAllocations;
+        private volatile boolean mChecksumEnabled;
+
+        /**
+         * @param maximumPayloadSize the payload size the packet buffer is initially sized for
+         */
+        public Encoder(int maximumPayloadSize) {
+            allocate(maximumPayloadSize);
+        }
+
+        /**
+         * Frame {@code length} bytes of {@code data} into the packet buffer.
+         *
+         * @param data    the buffer holding the payload
+         * @param offset  the index of the first payload byte in {@code data}
+         * @param length  the number of payload bytes
+         * @param channel the channel the packet is sent on
+         * @return the number of bytes of {@link #getBuffer()} that make up the packet
+         */
+        public int encode(byte[] data, int offset, int length, int channel) {
+            if (length > MAXIMUM_PAYLOAD_SIZE) {
+                throw new IllegalArgumentException("Payload of " + length + " bytes does not fit in a packet");
+            }
+            if (mBuffer.length < length + HEADER_SIZE + CHECKSUM_SIZE) {
+                allocate(length);
+            }
+            return writePacket(mBuffer, 0, data, offset, length, channel, mChecksumEnabled);
+        }
+
+        /**
+         * Frame {@code length} bytes of {@code data} into a buffer owned by the caller, for
+         * gathering several packets before writing them out together.
+         *
+         * @param data         the buffer holding the payload
+         * @param offset       the index of the first payload byte in {@code data}
+         * @param length       the number of payload bytes
+         * @param channel      the channel the packet is sent on
+         * @param packet       the buffer to frame the packet into
+         * @param packetOffset the index in {@code packet} to start the packet at
+         * @return the number of bytes of {@code packet} that make up the packet
+         * @throws IndexOutOfBoundsException when the packet does not fit in {@code packet}
+         */
+        public int encode(byte[] data, int offset, int length, int channel, byte[] packet, int packetOffset) {
+            if (packetOffset + length + HEADER_SIZE + CHECKSUM_SIZE > packet.length) {
+                throw new IndexOutOfBoundsException("Packet of " + length + " payload bytes does not fit at " + packetOffset);
+            }
+            return writePacket(packet, packetOffset, data, offset, length, channel, mChecksumEnabled);
+        }
+
+        /**
+         * Frame {@code length} bytes of {@code data} and write the packet to {@code outputStream}.
+         *
+         * @param outputStream the stream to write the packet to
+         * @param data         the buffer holding the payload
+         * @param offset       the index of the first payload byte in {@code data}
+         * @param length       the number of payload bytes
+         * @param channel      the channel the packet is sent on
+         * @throws IOException when writing to {@code outputStream} fails
+         */
+        public void write(OutputStream outputStream, byte[] data, int offset, int length, int channel) throws IOException {
+            int packetLength = encode(data, offset, length, channel);
+            outputStream.write(mBuffer, 0, packetLength);
+        }
+
+        /**
+         * Fill in the CRC-16 of each packet. Only enable checksums once the card has agreed
+         * to them, as older firmware expects both checksum bytes to be {@code 0}.
+         *
+         * @param enabled whether to fill in the checksum
+         */
+        public void setChecksumEnabled(boolean enabled) {
+            mChecksumEnabled = enabled;
+        }
+
+        /**
+         * @return whether packets carry a CRC-16
+         */
+        public boolean isChecksumEnabled() {
+            return mChecksumEnabled;
+        }
+
+        /**
+         * @return the packet buffer filled by the most recent {@link #encode}
+         */
+        public byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        /**
+         * @return the number of times the packet buffer has been allocated
+         */
+        public int getBufferAllocations() {
+            return mBufferAllocations;
+        }
+
+        private void allocate(int payloadSize) {
+            mBuffer = new byte[payloadSize + HEADER_SIZE + CHECKSUM_SIZE];
+            mBufferAllocations++;
+        }
+    }
+
+    /**
+     * Decoder reads packets into a reusable payload buffer. The {@code DataPacket} it returns
+     * is the same instance on every call and is only valid until the next call to
+     * {@link #decode(InputStream)}. A {@code Decoder} is not thread safe; each reader should
+     * own one.
+     *
+     * @since 0.21.0
+     */
+    public static class Decoder {
+        private final byte[] mHeader = new byte[HEADER_SIZE];
+        private final byte[] mChecksum = new byte[CHECKSUM_SIZE];
+        private final DataPacket mPacket;
+        private byte[] mPayloadBuffer;
+        private int mBufferAllocations;
+        private volatile boolean mChecksumEnabled;
+        private volatile long mCorruptPacketCount;
+
+        /**
+         * @param maximumPayloadSize the payload size the payload buffer is initially sized for
+         */
+        public Decoder(int maximumPayloadSize) {
+            allocate(maximumPayloadSize);
+            mPacket = new DataPacket(mPayloadBuffer, 0, 0);
+        }
+
+        /**
+         * Read the next packet from {@code inputStream}.
+         *
+         * @param inputStream the stream to read from
+         * @return the decoded packet, backed by this decoder's payload buffer
+         * @throws CorruptPacketException when checksums are enabled and the packet's checksum
+         *                                does not match
+         * @throws IOException            when the stream ends mid-packet or the packet header
+         *                                is invalid
+         */
+        public DataPacket decode(InputStream inputStream) throws IOException {
+            readFully(inputStream, mHeader, HEADER_SIZE);
+            int payloadSize = getPayloadSize(getPacketSize(mHeader));
+            if (mPayloadBuffer.length < payloadSize) {
+                allocate(payloadSize);
+            }
+            readFully(inputStream, mPayloadBuffer, payloadSize);
+            readFully(inputStream, mChecksum, CHECKSUM_SIZE);
+            if (mChecksumEnabled) {
+                try {
+                    verifyChecksum(mHeader, mPayloadBuffer, payloadSize, mChecksum);
+                } catch (CorruptPacketException e) {
+                    mCorruptPacketCount++;
+                    throw e;
                 }
             }
-            return data;
+            mPacket.set(mPayloadBuffer, payloadSize, getPacketChannel(mHeader));
+            return mPacket;
+        }
+
+        /**
+         * Verify the CRC-16 of each packet. Only enable checksums once the card has agreed to
+         * them, as older firmware sends {@code 0} in both checksum bytes.
+         *
+         * @param enabled whether to verify the checksum
+         */
+        public void setChecksumEnabled(boolean enabled) {
+            mChecksumEnabled = enabled;
+        }
+
+        /**
+         * @return whether packets are expected to carry a CRC-16
+         */
+        public boolean isChecksumEnabled() {
+            return mChecksumEnabled;
         }
 
-        private static byte getChannelByte(int channel) {
-            return (byte) (channel & 0xff);
+        /**
+         * @return the number of packets whose checksum did not match
+         */
+        public long getCorruptPacketCount() {
+            return mCorruptPacketCount;
         }
 
-        private static byte getMSB(int size) {
-            return (byte) (size >> 8);
+        /**
+         * @return the number of times the payload buffer has been allocated
+         */
+        public int getBufferAllocations() {
+            return mBufferAllocations;
         }
 
-        private static byte getLSB(int size) {
-            return (byte) (size & 0xff);
+        private void allocate(int payloadSize) {
+            mPayloadBuffer = new byte[payloadSize];
+            mBufferAllocations++;
         }
     }
+
+    private static int writePacket(byte[] packet, int packetOffset, byte[] data, int offset, int length, int channel, boolean checksum) {
+        int packetSize = length + HEADER_SIZE + CHECKSUM_SIZE;
+        int end = packetOffset + packetSize;
+        packet[packetOffset] = getChannelByte(channel);
+        packet[packetOffset + 1] = getMSB(packetSize);
+        packet[packetOffset + 2] = getLSB(packetSize);
+        System.arraycopy(data, offset, packet, packetOffset + HEADER_SIZE, length);
+        if (checksum) {
+            // the checksum covers the header too, so a corrupted size or channel is caught
+            int crc = Crc16.compute(packet, packetOffset, packetSize - CHECKSUM_SIZE);
+            packet[end - 2] = getMSB(crc);
+            packet[end - 1] = getLSB(crc);
+        } else {
+            packet[end - 2] = DataPacket.MOST_SIGNIFICANT_BIT;
+            packet[end - 1] = DataPacket.LEAST_SIGNIFICANT_BIT;
+        }
+        return packetSize;
+    }
+
+    private static void verifyChecksum(byte[] header, byte[] payload, int payloadLength, byte[] checksum) throws CorruptPacketException {
+        int crc = Crc16.update(Crc16.compute(header, 0, HEADER_SIZE), payload, 0, payloadLength);
+        int expected = ((checksum[0] & 0xFF) << 8) | (checksum[1] & 0xFF);
+        if (crc != expected) {
+            throw new CorruptPacketException(getPacketChannel(header), expected, crc);
+        }
+    }
+
+    private static void readFully(InputStream inputStream, byte[] data, int length) throws IOException {
+        int totalBytesRead = 0;
+        while (totalBytesRead < length) {
+            int bytesRead = inputStream.read(data, totalBytesRead, length - totalBytesRead);
+            if (bytesRead == -1) {
+                throw new EOFException("Stream ended after " + totalBytesRead + " of " + length + " bytes");
+            }
+            totalBytesRead += bytesRead;
+        }
+    }
+
+    private static int getPacketSize(byte[] header) {
+        return ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+    }
+
+    private static int getPayloadSize(int packetSize) throws IOException {
+        int payloadSize = packetSize - (HEADER_SIZE + CHECKSUM_SIZE);
+        if (payloadSize < 0) {
+            throw new IOException("Invalid packet size: " + packetSize);
+        }
+        return payloadSize;
+    }
+
+    private static int getPacketChannel(byte[] header) {
+        return (int) header[0];
+    }
+
+    private static byte getChannelByte(int channel) {
+        return (byte) (channel & 0xff);
+    }
+
+    private static byte getMSB(int size) {
+        return (byte) (size >> 8);
+    }
+
+    private static byte getLSB(int size) {
+        return (byte) (size & 0xff);
+    }
 }
@@ -0,0 +1,249 @@
+package co.blustor.gatekeepersdk.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+import co.blustor.gatekeepersdk.utils.GKLog;
+
+/**
+ * DuplexReader decodes packets on its own thread as soon as they arrive and sorts them into a
+ * queue of command channel lines and a queue of data channel bytes, so the card is never held
+ * up by a caller that is busy writing an upload. Both queues are bounded: the line queue holds
+ * {@link #COMMAND_QUEUE_CAPACITY} lines and the data queue keeps {@link SpillQueue#DEFAULT_MEMORY_SIZE}
+ * bytes in memory before spilling to disk. When a queue is full the thread stops reading until
+ * there is room, leaving the card to wait on the Bluetooth link rather than filling the heap.
+ * <p>
+ * Each line records how much of the data channel arrived before it, so a download still ends
+ * at the response that follows it. Packets on any other channel are dropped. Intended for
+ * internal use only; {@link GKMultiplexer} owns one per connection in full-duplex mode.
+ */
+class DuplexReader implements Runnable {
+    public static final String TAG = DuplexReader.class.getCanonicalName();
+    static final int COMMAND_QUEUE_CAPACITY = 16;
+
+    private final InputStream mInputStream;
+    private final DataPacket.Decoder mDecoder;
+    private final GKConnectionStatistics mStatistics;
+    private final CommandLineAssembler mLineAssembler = new CommandLineAssembler();
+    private final SpillQueue mData;
+    private final ArrayDeque<CommandLine> mCommandLines = new ArrayDeque<>();
+    private final Object mLock = new Object();
+    private final Thread mThread;
+    // the data channel offsets of the bytes queued and taken so far
+    private long mDataQueued;
+    private long mDataTaken;
+    private IOException mFailure;
+    private boolean mStopped;
+
+    DuplexReader(InputStream inputStream, DataPacket.Decoder decoder, GKConnectionStatistics statistics, File spillDirectory) {
+        this(inputStream, decoder, statistics, new SpillQueue(spillDirectory));
+    }
+
+    DuplexReader(InputStream inputStream, DataPacket.Decoder decoder, GKConnectionStatistics statistics, SpillQueue data) {
+        mInputStream = inputStream;
+        mDecoder = decoder;
+        mStatistics = statistics;
+        mData = data;
+        mThread = new Thread(this, "GKMultiplexer reader");
+        mThread.setDaemon(true);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                DataPacket packet = mDecoder.decode(mInputStream);
+                mStatistics.onPacketReceived(packet.getPayloadLength());
+                if (packet.getChannel() == GKMultiplexer.COMMAND_CHANNEL) {
+                    if (mLineAssembler.append(packet.getPayloadBuffer(), packet.getPayloadLength())) {
+                        queueCommandLine(mLineAssembler.takeLine());
+                    }
+                } else if (packet.getChannel() == GKMultiplexer.DATA_CHANNEL) {
+                    queueData(packet.getPayloadBuffer(), packet.getPayloadLength());
+                } else {
+                    GKLog.w(TAG, "Dropping a packet on channel " + packet.getChannel());
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException("Reader interrupted"));
+        }
+    }
+
+    /**
+     * Take the next command channel line, discarding any data channel bytes that arrived
+     * before it and have not been read.
+     *
+     * @throws IOException when the connection failed before another line arrived
+     */
+    byte[] takeCommandLine() throws IOException {
+        synchronized (mLock) {
+            try {
+                while (mCommandLines.isEmpty()) {
+                    throwIfFailed();
+                    mLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a command response");
+            }
+            CommandLine line = mCommandLines.removeFirst();
+            mDataTaken += mData.skip(line.mDataOffset - mDataTaken);
+            closeDataIfDrained();
+            mLock.notifyAll();
+            return line.mLine;
+        }
+    }
+
+    /**
+     * Read data channel bytes that arrived before the next command channel line.
+     *
+     * @return the number of bytes read, or {@code -1} once the next line is due
+     * @throws IOException when the connection failed before another byte or line arrived
+     */
+    int readData(byte[] buffer, int offset, int length) throws IOException {
+        synchronized (mLock) {
+            try {
+                while (mDataTaken == mDataQueued && mCommandLines.isEmpty()) {
+                    throwIfFailed();
+                    mLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for data");
+            }
+            long end = mCommandLines.isEmpty() ? mDataQueued : mCommandLines.peekFirst().mDataOffset;
+            if (mDataTaken == end) {
+                return -1;
+            }
+            int count = mData.read(buffer, offset, (int) Math.min(length, end - mDataTaken));
+            mDataTaken += count;
+            closeDataIfDrained();
+            mLock.notifyAll();
+            return count;
+        }
+    }
+
+    /**
+     * @return the number of data channel bytes that can be read without waiting
+     */
+    int availableData() {
+        synchronized (mLock) {
+            long end = mCommandLines.isEmpty() ? mDataQueued : mCommandLines.peekFirst().mDataOffset;
+            return (int) Math.min(Integer.MAX_VALUE, end - mDataTaken);
+        }
+    }
+
+    /**
+     * @return whether a command channel line is waiting to be taken
+     */
+    boolean hasCommandLine() {
+        synchronized (mLock) {
+            return !mCommandLines.isEmpty();
+        }
+    }
+
+    /**
+     * @return the number of data channel bytes spilled to disk so far
+     */
+    long getSpilledBytes() {
+        synchronized (mLock) {
+            return mData.getSpilledBytes();
+        }
+    }
+
+    /**
+     * Stop queueing packets and discard the queues. The thread ends once the input stream is
+     * closed.
+     */
+    void stop() {
+        synchronized (mLock) {
+            mStopped = true;
+            mCommandLines.clear();
+            closeData();
+            mLock.notifyAll();
+        }
+    }
+
+    private void queueCommandLine(byte[] line) throws InterruptedException, IOException {
+        synchronized (mLock) {
+            while (!mStopped && mCommandLines.size() >= COMMAND_QUEUE_CAPACITY) {
+                mLock.wait();
+            }
+            throwIfStopped();
+            mCommandLines.addLast(new CommandLine(line, mDataQueued));
+            mLock.notifyAll();
+        }
+    }
+
+    private void queueData(byte[] data, int length) throws InterruptedException, IOException {
+        synchronized (mLock) {
+            while (!mStopped && !mData.offer(data, 0, length)) {
+                mLock.wait();
+            }
+            throwIfStopped();
+            mDataQueued += length;
+            mLock.notifyAll();
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (mLock) {
+            if (!mStopped) {
+                GKLog.getFlightRecorder().record(TAG, "read failed", e);
+                GKLog.e(TAG, "Exception occurred while reading a DataPacket", e);
+                mStatistics.onError();
+            }
+            mFailure = e;
+            closeDataIfDrained();
+            mLock.notifyAll();
+        }
+    }
+
+    // No data arrives once reading has failed, so the queue is closed, deleting its spill
+    // file, as soon as the data already queued has been taken.
+    private void closeDataIfDrained() {
+        if (mFailure != null && mDataTaken == mDataQueued) {
+            closeData();
+        }
+    }
+
+    private void closeData() {
+        try {
+            mData.close();
+        } catch (IOException e) {
+            GKLog.e(TAG, "Exception occurred discarding the data queue", e);
+        }
+    }
+
+    private void throwIfStopped() throws IOException {
+        if (mStopped) {
+            throw new IOException("Reader stopped");
+        }
+    }
+
+    private void throwIfFailed() throws IOException {
+        throwIfStopped();
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    private static class CommandLine {
+        private final byte[] mLine;
+        private final long mDataOffset;
+
+        private CommandLine(byte[] line, long dataOffset) {
+            mLine = line;
+            mDataOffset = dataOffset;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package co.blustor.gatekeepersdk.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * EntropyEstimator decides from the first bytes of a file whether compressing it is worth
+ * the time. Images, archives, video and encrypted files are already as dense as DEFLATE can
+ * make them, and their bytes are spread almost evenly over all 256 values; text and most
+ * documents are not. Intended for internal use only.
+ *
+ * @since 0.21.0
+ */
+public class EntropyEstimator {
+    /**
+     * The number of bytes sampled from the start of a file.
+     */
+    public static final int SAMPLE_SIZE = 4096;
+    /**
+     * Samples with at least this many bits of entropy per byte are not compressed. A sample
+     * of {@link #SAMPLE_SIZE} random bytes measures about 7.95.
+     */
+    public static final double INCOMPRESSIBLE_BITS_PER_BYTE = 7.5;
+
+    private EntropyEstimator() {
+    }
+
+    /**
+     * @return the Shannon entropy of the bytes, from {@code 0} to {@code 8} bits per byte
+     */
+    public static double bitsPerByte(byte[] data, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (int i = offset; i < offset + length; i++) {
+            counts[data[i] & 0xFF]++;
+        }
+        double bits = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                bits -= p * Math.log(p);
+            }
+        }
+        return bits / Math.log(2);
+    }
+
+    /**
+     * Sample the start of {@code inputStream} and put it back.
+     *
+     * @param inputStream a stream that supports {@link InputStream#mark(int)}
+     * @return whether the sample is likely to compress
+     * @throws IOException when reading {@code inputStream} fails
+     */
+    public static boolean isCompressible(InputStream inputStream) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        inputStream.mark(SAMPLE_SIZE);
+        int length = 0;
+        try {
+            int count;
+            while (length < SAMPLE_SIZE && (count = inputStream.read(sample, length, SAMPLE_SIZE - length)) != -1) {
+                length += count;
+            }
+        } finally {
+            inputStream.reset();
+        }
+        return bitsPerByte(sample, 0, length) < INCOMPRESSIBLE_BITS_PER_BYTE;
+    }
+}
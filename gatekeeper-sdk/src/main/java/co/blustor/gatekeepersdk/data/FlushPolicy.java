@@ -0,0 +1,76 @@
+package co.blustor.gatekeepersdk.data;
+
+/**
+ * A FlushPolicy decides when {@link GKMultiplexer} hands the packets it has framed to the
+ * output stream. Every write to a Bluetooth socket stream is a system call, so gathering
+ * packets and writing them together saves a call per packet. Whatever the policy, packets are
+ * always written before the {@code GKMultiplexer} waits for the card to respond. Intended for
+ * internal use only.
+ *
+ * @since 0.21.0
+ */
+public interface FlushPolicy {
+    /**
+     * @return the size of the buffer packets are gathered in, or {@code 0} to write each
+     * packet as soon as it is framed. Packets that do not fit in the buffer are written alone.
+     */
+    int getBufferSize();
+
+    /**
+     * Called after a packet has been added to the buffer.
+     *
+     * @param channel       the channel the packet is sent on
+     * @param bufferedBytes the number of bytes in the buffer, including the packet
+     * @return whether to write the buffer to the output stream now
+     */
+    boolean shouldFlush(int channel, int bufferedBytes);
+
+    /**
+     * Write every packet as soon as it is framed.
+     */
+    class Immediate implements FlushPolicy {
+        @Override
+        public int getBufferSize() {
+            return 0;
+        }
+
+        @Override
+        public boolean shouldFlush(int channel, int bufferedBytes) {
+            return true;
+        }
+    }
+
+    /**
+     * Gather data channel packets until the buffer is full, and write command channel packets
+     * right away along with any data gathered before them.
+     */
+    class Coalescing implements FlushPolicy {
+        public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+        private final int mBufferSize;
+
+        public Coalescing() {
+            this(DEFAULT_BUFFER_SIZE);
+        }
+
+        /**
+         * @param bufferSize the size of the buffer packets are gathered in
+         */
+        public Coalescing(int bufferSize) {
+            if (bufferSize <= 0) {
+                throw new IllegalArgumentException("Buffer size must be positive");
+            }
+            mBufferSize = bufferSize;
+        }
+
+        @Override
+        public int getBufferSize() {
+            return mBufferSize;
+        }
+
+        @Override
+        public boolean shouldFlush(int channel, int bufferedBytes) {
+            return channel == GKMultiplexer.COMMAND_CHANNEL || bufferedBytes >= mBufferSize;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package co.blustor.gatekeepersdk.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GKConnectionStatistics counts the traffic over a single connection to a GateKeeper Card.
+ * Each counter is only ever increased by the thread sending or the thread receiving packets,
+ * so the transfer never waits on another writer, and reading a counter never holds up the
+ * transfer. Counters may be read from any thread, as often as needed, and keep their final
+ * values once the connection has closed.
+ *
+ * @since 0.21.0
+ */
+public class GKConnectionStatistics {
+    private final AtomicLong mPacketsSent = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mPacketsReceived = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mCommandsSent = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+
+    /**
+     * Intended for internal use only.
+     *
+     * @param payloadLength the number of payload bytes in the packet
+     */
+    public void onPacketSent(int payloadLength) {
+        mPacketsSent.incrementAndGet();
+        mBytesSent.addAndGet(payloadLength);
+    }
+
+    /**
+     * Intended for internal use only.
+     *
+     * @param payloadLength the number of payload bytes in the packet
+     */
+    public void onPacketReceived(int payloadLength) {
+        mPacketsReceived.incrementAndGet();
+        mBytesReceived.addAndGet(payloadLength);
+    }
+
+    /**
+     * Intended for internal use only.
+     */
+    public void onCommandSent() {
+        mCommandsSent.incrementAndGet();
+    }
+
+    /**
+     * Intended for internal use only.
+     */
+    public void onError() {
+        mErrorCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of packets sent to the card
+     * @since 0.21.0
+     */
+    public long getPacketsSent() {
+        return mPacketsSent.get();
+    }
+
+    /**
+     * @return the number of payload bytes sent to the card, on every channel
+     * @since 0.21.0
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /**
+     * @return the number of packets received from the card
+     * @since 0.21.0
+     */
+    public long getPacketsReceived() {
+        return mPacketsReceived.get();
+    }
+
+    /**
+     * @return the number of payload bytes received from the card, on every channel
+     * @since 0.21.0
+     */
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    /**
+     * @return the number of commands sent to the card
+     * @since 0.21.0
+     */
+    public long getCommandsSent() {
+        return mCommandsSent.get();
+    }
+
+    /**
+     * @return the number of reads and writes that failed, including packets received with a
+     * checksum that did not match
+     * @since 0.21.0
+     */
+    public long getErrorCount() {
+        return mErrorCount.get();
+    }
+}
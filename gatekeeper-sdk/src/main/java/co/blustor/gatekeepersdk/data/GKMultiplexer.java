@@ -1,74 +1,342 @@
 package co.blustor.gatekeepersdk.data;
 
-import android.util.Log;
-
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+
+import co.blustor.gatekeepersdk.utils.GKLog;
 
 /**
  * Intended for internal use only.
  */
 public class GKMultiplexer {
     public static final String TAG = GKMultiplexer.class.getCanonicalName();
+    /**
+     * The payload size every GateKeeper Card accepts. Larger payloads are only sent once
+     * {@link #setMaximumPayloadSize(int)} has been given a size negotiated with the card.
+     */
     public static final int MAXIMUM_PAYLOAD_SIZE = 512;
     public static final int COMMAND_CHANNEL = 1;
     public static final int DATA_CHANNEL = 2;
+    /**
+     * The compression level at which the data channel is sent as is.
+     */
+    public static final int COMPRESSION_OFF = -1;
+    private static final int COMPRESSION_BUFFER_SIZE = 8192;
 
-    private static final byte CARRIAGE_RETURN = 13;
-    private static final byte LINE_FEED = 10;
-    private static final int UPLOAD_DELAY_MILLIS = 1;
-    
-    private long CURRENT_DATA_TRANSFER_FILE_SIZE=0;
+    // written only by the thread making the transfer, and read from any thread
+    private volatile long mCurrentDataTransferSize;
 
-    private InputStream mInputStream;
+    private PacketInputBuffer mInputStream;
     private OutputStream mOutputStream;
+    private final DataPacket.Encoder mEncoder = new DataPacket.Encoder(MAXIMUM_PAYLOAD_SIZE);
+    private final DataPacket.Decoder mDecoder = new DataPacket.Decoder(MAXIMUM_PAYLOAD_SIZE);
+    private UploadPacer mUploadPacer = new UploadPacer.Adaptive();
+    private PayloadSizer mPayloadSizer = new PayloadSizer.Adaptive();
+    private final PacketOutputBuffer mOutputBuffer;
+    private final CommandLineAssembler mLineAssembler = new CommandLineAssembler();
+    private volatile int mMaximumPayloadSize = MAXIMUM_PAYLOAD_SIZE;
+    private volatile DuplexReader mReader;
+    private final GKConnectionStatistics mStatistics = new GKConnectionStatistics();
+    private byte[] mQueuedDataBuffer;
+    private volatile int mCompressionLevel = COMPRESSION_OFF;
+    private byte[] mInflateBuffer;
 
     public GKMultiplexer(InputStream inputStream, OutputStream outputStream) {
-        mInputStream = inputStream;
+        mInputStream = new PacketInputBuffer(inputStream);
         mOutputStream = outputStream;
+        mOutputBuffer = new PacketOutputBuffer(outputStream, mEncoder, new FlushPolicy.Coalescing());
     }
 
     public void writeToCommandChannel(byte[] data) throws IOException {
-        write(data, COMMAND_CHANNEL);
+        mStatistics.onCommandSent();
+        write(data, 0, data.length, COMMAND_CHANNEL);
     }
 
     public void writeToDataChannel(byte[] data) throws IOException {
-        write(data, DATA_CHANNEL);
+        write(data, 0, data.length, DATA_CHANNEL);
+        flush();
     }
 
     public void writeToDataChannel(InputStream inputStream) throws IOException, InterruptedException {
+        writeToDataChannel(inputStream, null);
+    }
+
+    /**
+     * Write {@code inputStream} to the data channel, reporting each packet to {@code progress}.
+     *
+     * @param inputStream the data to upload
+     * @param progress    the {@code GKTransferProgress} of the upload, or {@code null}
+     * @throws IOException          when connection to the card is disrupted or reading
+     *                              {@code inputStream} fails
+     * @throws InterruptedException when interrupted while pacing the upload
+     * @since 0.21.0
+     */
+    public void writeToDataChannel(InputStream inputStream, GKTransferProgress progress) throws IOException, InterruptedException {
         int bytesRead;
-        byte[] buffer = new byte[MAXIMUM_PAYLOAD_SIZE];
-        CURRENT_DATA_TRANSFER_FILE_SIZE = 0;
+        int maximumPayloadSize = mMaximumPayloadSize;
+        byte[] buffer = new byte[maximumPayloadSize];
+        mCurrentDataTransferSize = 0;
         int COUNTER=0;
+        UploadPacer pacer = mUploadPacer;
+        PayloadSizer sizer = mPayloadSizer;
+        int compressionLevel = mCompressionLevel;
+        CountingInputStream source = null;
+        Deflater deflater = null;
+        InputStream payloads = inputStream;
+        if (compressionLevel != COMPRESSION_OFF) {
+            source = new CountingInputStream(inputStream);
+            deflater = new Deflater(compressionLevel);
+            payloads = new DeflaterInputStream(source, deflater, COMPRESSION_BUFFER_SIZE);
+        }
+        long sourceBytes = 0;
+        // the card's reply stays pending until it is read, so only its arrival is congestion
+        boolean congested = false;
+        // payload bytes framed since the output buffer last wrote to the output stream
+        int unwrittenBytes = 0;
+        pacer.onTransferStarted();
+        sizer.onTransferStarted();
         try {
             do {
-                bytesRead = inputStream.read(buffer, 0, buffer.length);
+                int payloadSize = Math.max(1, Math.min(maximumPayloadSize, sizer.getPayloadSize(maximumPayloadSize)));
+                bytesRead = payloads.read(buffer, 0, payloadSize);
                 if (bytesRead == -1) {
                     continue;
                 }
-                CURRENT_DATA_TRANSFER_FILE_SIZE+=buffer.length;
                 COUNTER+=1;
-                if (bytesRead < buffer.length) {
-                    writeToDataChannel(Arrays.copyOf(buffer, bytesRead));
-                } else {
-                    writeToDataChannel(buffer);
+                long writeCount = mOutputBuffer.getWriteCount();
+                long writeNanos = mOutputBuffer.getWriteNanos();
+                write(buffer, 0, bytesRead, DATA_CHANNEL);
+                unwrittenBytes += bytesRead;
+                int fileBytes = bytesRead;
+                if (source != null) {
+                    fileBytes = (int) (source.getCount() - sourceBytes);
+                    sourceBytes = source.getCount();
+                }
+                onTransferred(fileBytes, bytesRead, progress);
+                // pace and size by the writes that reach the link, not the packets gathered
+                // in memory before them
+                if (mOutputBuffer.getWriteCount() != writeCount) {
+                    writeNanos = mOutputBuffer.getWriteNanos() - writeNanos;
+                    pacer.onPacketWritten(unwrittenBytes, writeNanos);
+                    sizer.onPacketWritten(unwrittenBytes, writeNanos);
+                    unwrittenBytes = 0;
                 }
-                if (COUNTER%50 == 0) { Log.d(TAG, "CURRENT_DATA_TRANSFER_FILE_SIZE = " + CURRENT_DATA_TRANSFER_FILE_SIZE); }
-                Thread.sleep(UPLOAD_DELAY_MILLIS);
+                boolean pendingInput = hasPendingInput();
+                if (pendingInput && !congested) {
+                    pacer.onCongestion();
+                }
+                congested = pendingInput;
+                if (COUNTER%50 == 0) { GKLog.d(TAG, "CURRENT_DATA_TRANSFER_FILE_SIZE = ", mCurrentDataTransferSize); }
             } while (bytesRead != -1);
+            flush();
+            if (progress != null) {
+                progress.onTransferFinished();
+            }
         } finally {
-            CURRENT_DATA_TRANSFER_FILE_SIZE = 0;
+            mCurrentDataTransferSize = 0;
+            if (deflater != null) {
+                GKLog.getFlightRecorder().record(TAG, "deflated", deflater.getBytesRead(), deflater.getBytesWritten());
+                if (GKLog.isLoggable(GKLog.INFO)) {
+                    GKLog.i(TAG, "Deflated " + deflater.getBytesRead() + " bytes to " + deflater.getBytesWritten());
+                }
+                deflater.end();
+            }
         }
     }
 
+    /**
+     * Compress the data channel of subsequent transfers with DEFLATE (RFC 1951, wrapped as in
+     * RFC 1950), as agreed with the card. Uploads are deflated as they are read and downloads
+     * inflated as they arrive, so neither is held in memory. Transfer sizes and progress count
+     * the bytes of the file; {@link GKTransferProgress} also reports the bytes on the link.
+     * {@link #openDataChannelStream()} always reads the data channel as is. Defaults to
+     * {@link #COMPRESSION_OFF}.
+     *
+     * @param level the {@link Deflater} level from {@code 0} to {@code 9}, or
+     *              {@code COMPRESSION_OFF}
+     * @since 0.21.0
+     */
+    public void setCompressionLevel(int level) {
+        if (level < COMPRESSION_OFF || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be from " + COMPRESSION_OFF + " to " + Deflater.BEST_COMPRESSION);
+        }
+        mCompressionLevel = level;
+    }
+
+    /**
+     * @return the compression level of the data channel, or {@link #COMPRESSION_OFF}
+     * @since 0.21.0
+     */
+    public int getCompressionLevel() {
+        return mCompressionLevel;
+    }
+
+    /**
+     * Assign the strategy used to pace packets in {@link #writeToDataChannel(InputStream)}.
+     * Defaults to {@link UploadPacer.Adaptive}.
+     *
+     * @param uploadPacer the {@code UploadPacer} to use for subsequent uploads
+     * @since 0.21.0
+     */
+    public void setUploadPacer(UploadPacer uploadPacer) {
+        mUploadPacer = uploadPacer;
+    }
+
+    /**
+     * Assign the strategy used to size packets in {@link #writeToDataChannel(InputStream)}.
+     * Defaults to {@link PayloadSizer.Adaptive}.
+     *
+     * @param payloadSizer the {@code PayloadSizer} to use for subsequent uploads
+     * @since 0.21.0
+     */
+    public void setPayloadSizer(PayloadSizer payloadSizer) {
+        mPayloadSizer = payloadSizer;
+    }
+
+    /**
+     * Assign the largest data channel payload the card has agreed to accept. Defaults to
+     * {@link #MAXIMUM_PAYLOAD_SIZE}.
+     *
+     * @param maximumPayloadSize the negotiated payload size, at most
+     *                           {@link DataPacket#MAXIMUM_PAYLOAD_SIZE}
+     * @since 0.21.0
+     */
+    public void setMaximumPayloadSize(int maximumPayloadSize) {
+        if (maximumPayloadSize <= 0 || maximumPayloadSize > DataPacket.MAXIMUM_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Payload size must be from 1 to " + DataPacket.MAXIMUM_PAYLOAD_SIZE);
+        }
+        mMaximumPayloadSize = maximumPayloadSize;
+    }
+
+    /**
+     * @return the largest data channel payload sent to the card
+     * @since 0.21.0
+     */
+    public int getMaximumPayloadSize() {
+        return mMaximumPayloadSize;
+    }
+
+    /**
+     * Assign the policy deciding when framed packets are written to the output stream.
+     * Defaults to {@link FlushPolicy.Coalescing}.
+     *
+     * @param flushPolicy the {@code FlushPolicy} to use for subsequent packets
+     * @since 0.21.0
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        mOutputBuffer.setFlushPolicy(flushPolicy);
+    }
+
+    /**
+     * @return the number of writes made to the output stream, each one a system call on a
+     * Bluetooth socket
+     * @since 0.21.0
+     */
+    public long getOutputWriteCount() {
+        return mOutputBuffer.getWriteCount();
+    }
+
+    /**
+     * @return the number of reads made from the input stream, each one a system call on a
+     * Bluetooth socket
+     * @since 0.21.0
+     */
+    public long getInputReadCount() {
+        return mInputStream.getReadCount();
+    }
+
+    /**
+     * Send and verify a CRC-16 in every packet. Only enable checksums once the card has agreed
+     * to them, as older firmware sends and expects {@code 0} in both checksum bytes.
+     *
+     * @param enabled whether packets carry a checksum
+     * @since 0.21.0
+     */
+    public void setChecksumEnabled(boolean enabled) {
+        mEncoder.setChecksumEnabled(enabled);
+        mDecoder.setChecksumEnabled(enabled);
+    }
+
+    /**
+     * @return whether packets carry a checksum
+     * @since 0.21.0
+     */
+    public boolean isChecksumEnabled() {
+        return mDecoder.isChecksumEnabled();
+    }
+
+    /**
+     * @return the traffic counters of this connection, which may be read from any thread
+     * @since 0.21.0
+     */
+    public GKConnectionStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /**
+     * @return the number of packets received over this connection whose checksum did not match
+     * @since 0.21.0
+     */
+    public long getCorruptPacketCount() {
+        return mDecoder.getCorruptPacketCount();
+    }
+
+    /**
+     * Read packets on a dedicated thread from now on, queueing command channel lines and data
+     * channel bytes as they arrive instead of when a caller asks for them. Responses the card
+     * sends during an upload, such as a request to slow down, are then seen while the upload is
+     * still being written. Data beyond what the reader keeps in memory is spilled to a file in
+     * {@code spillDirectory}; without one, the reader stops taking packets from the card until
+     * the data has been read. Call before any response is expected; the reader stops at
+     * {@link #cleanup()}.
+     *
+     * @param spillDirectory the directory to spill queued data to, or {@code null} to keep
+     *                       queued data in memory only
+     * @since 0.21.0
+     */
+    public void startFullDuplex(File spillDirectory) {
+        if (mReader != null) {
+            throw new IllegalStateException("Full-duplex mode has already started");
+        }
+        DuplexReader reader = new DuplexReader(mInputStream, mDecoder, mStatistics, spillDirectory);
+        mReader = reader;
+        reader.start();
+    }
+
+    /**
+     * @return whether packets are read on a dedicated thread
+     * @since 0.21.0
+     */
+    public boolean isFullDuplex() {
+        return mReader != null;
+    }
+
+    /**
+     * @return the number of data channel bytes spilled to disk in full-duplex mode
+     * @since 0.21.0
+     */
+    public long getSpilledByteCount() {
+        DuplexReader reader = mReader;
+        return reader == null ? 0 : reader.getSpilledBytes();
+    }
+
     public byte[] readCommandChannelLine() throws IOException {
-        DataPacket packet = DataPacket.Builder.build(mInputStream);
+        flush();
+        DuplexReader reader = mReader;
+        if (reader != null) {
+            return reader.takeCommandLine();
+        }
+        DataPacket packet = decode();
         return readCommandLine(packet);
     }
 
@@ -81,80 +349,404 @@ public class GKMultiplexer {
      * @throws IOException when connection to the card is disrupted or writing data to a file fails
      */
     public byte[] readDataChannelToFile(File dataFile) throws IOException {
-        FileOutputStream fileOutputStream = null;
+        return readDataChannelToFile(dataFile, null);
+    }
+
+    /**
+     * Read from the data channel and write it to the specified file, reporting each packet to
+     * {@code progress}.
+     *
+     * @param dataFile the {@code File} to write the data channel to
+     * @param progress the {@code GKTransferProgress} of the download, or {@code null}
+     * @return the data read from the command channel following data transfer
+     * @throws IOException when connection to the card is disrupted or writing data to a file fails
+     * @since 0.21.0
+     */
+    public byte[] readDataChannelToFile(File dataFile, GKTransferProgress progress) throws IOException {
+        FileOutputStream fileOutputStream = new FileOutputStream(dataFile);
+        try {
+            return readDataChannel(fileOutputStream.getChannel(), progress);
+        } finally {
+            fileOutputStream.close();
+        }
+    }
+
+    /**
+     * Read from the data channel and write it to the specified channel as each packet arrives.
+     * Once a response is read from the command channel, we are done reading data and can return
+     * the command response
+     *
+     * @param channel the {@code WritableByteChannel} to write the data channel to
+     * @return the data read from the command channel following data transfer
+     * @throws IOException when connection to the card is disrupted or writing to {@code channel} fails
+     * @since 0.21.0
+     */
+    public byte[] readDataChannel(WritableByteChannel channel) throws IOException {
+        return readDataChannel(channel, null);
+    }
+
+    /**
+     * Read from the data channel and write it to the specified channel as each packet arrives,
+     * reporting each packet to {@code progress}.
+     *
+     * @param channel  the {@code WritableByteChannel} to write the data channel to
+     * @param progress the {@code GKTransferProgress} of the download, or {@code null}
+     * @return the data read from the command channel following data transfer
+     * @throws IOException when connection to the card is disrupted or writing to {@code channel} fails
+     * @since 0.21.0
+     */
+    public byte[] readDataChannel(WritableByteChannel channel, GKTransferProgress progress) throws IOException {
+        Inflater inflater = mCompressionLevel == COMPRESSION_OFF ? null : new Inflater();
         try {
-            fileOutputStream = new FileOutputStream(dataFile);
-            DataPacket packet = DataPacket.Builder.build(mInputStream);
+            flush();
+            DuplexReader reader = mReader;
+            if (reader != null) {
+                return readQueuedDataChannel(reader, channel, inflater, progress);
+            }
+            DataPacket packet = decode();
+            ByteBuffer payload = ByteBuffer.wrap(packet.getPayloadBuffer());
 
-            CURRENT_DATA_TRANSFER_FILE_SIZE = 0;
+            mCurrentDataTransferSize = 0;
             int COUNTER=0;
             while (DATA_CHANNEL == packet.getChannel()) {
-                byte[] payload = packet.getPayload();
+                int payloadLength = packet.getPayloadLength();
                 COUNTER+=1;
-                CURRENT_DATA_TRANSFER_FILE_SIZE+=payload.length;
-                if (COUNTER%50 == 0) { Log.d(TAG, "CURRENT_DATA_TRANSFER_FILE_SIZE = " + CURRENT_DATA_TRANSFER_FILE_SIZE); }
-                fileOutputStream.write(payload);
-                packet = DataPacket.Builder.build(mInputStream);
+                if (inflater != null) {
+                    onTransferred(inflate(inflater, packet.getPayloadBuffer(), payloadLength, channel), payloadLength, progress);
+                } else {
+                    onTransferred(payloadLength, payloadLength, progress);
+                    if (payload.array() != packet.getPayloadBuffer()) {
+                        payload = ByteBuffer.wrap(packet.getPayloadBuffer());
+                    }
+                    payload.limit(payloadLength).position(0);
+                    while (payload.hasRemaining()) {
+                        channel.write(payload);
+                    }
+                }
+                if (COUNTER%50 == 0) { GKLog.d(TAG, "CURRENT_DATA_TRANSFER_FILE_SIZE = ", mCurrentDataTransferSize); }
+                packet = decode();
             }
 
-            return readCommandLine(packet);
+            byte[] commandLine = readCommandLine(packet);
+            if (progress != null) {
+                progress.onTransferFinished();
+            }
+            return commandLine;
         } catch (IOException e) {
-            Log.e(TAG, "Exception occurred while buffering a DataPacket", e);
+            GKLog.e(TAG, "Exception occurred while buffering a DataPacket", e);
             cleanup();
             throw e;
         } finally {
-            if (fileOutputStream != null) {
-                fileOutputStream.close();
+            mCurrentDataTransferSize = 0;
+            if (inflater != null) {
+                GKLog.getFlightRecorder().record(TAG, "inflated", inflater.getBytesRead(), inflater.getBytesWritten());
+                if (GKLog.isLoggable(GKLog.INFO)) {
+                    GKLog.i(TAG, "Inflated " + inflater.getBytesRead() + " bytes to " + inflater.getBytesWritten());
+                }
+                inflater.end();
             }
-            CURRENT_DATA_TRANSFER_FILE_SIZE = 0;
         }
     }
 
+    /**
+     * Open a stream over the data channel. Reading the stream returns payload bytes as packets
+     * arrive; the stream ends when a response is read from the command channel, which is then
+     * available from {@link DataChannelInputStream#getCommandData()}. No other reads may be
+     * made through this {@code GKMultiplexer} until the stream has ended or been closed.
+     *
+     * @return the {@code DataChannelInputStream} for the pending data transfer
+     * @since 0.21.0
+     */
+    public DataChannelInputStream openDataChannelStream() {
+        return new DataChannelInputStream();
+    }
+
     public void cleanup() {
+        DuplexReader reader = mReader;
+        if (reader != null) {
+            reader.stop();
+        }
         try {
             mInputStream.close();
             mOutputStream.close();
         } catch (IOException e) {
-            Log.e(TAG, "Exception occurred during cleanup", e);
+            GKLog.e(TAG, "Exception occurred during cleanup", e);
         }
     }
 
     public long getCurrentDataTransferSize() {
-        return CURRENT_DATA_TRANSFER_FILE_SIZE;
+        return mCurrentDataTransferSize;
     }
 
-    private byte[] readCommandLine(DataPacket packet) throws IOException {
-        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        while (!containsCRLF(packet.getPayload())) {
-            copyUntilCRLF(packet.getPayload(), bytes);
-            packet = DataPacket.Builder.build(mInputStream);
+    /**
+     * DataChannelInputStream reads the data channel of a single transfer.
+     *
+     * @since 0.21.0
+     */
+    public class DataChannelInputStream extends InputStream {
+        private DataPacket mPacket;
+        private int mPosition;
+        private byte[] mCommandData;
+        private boolean mStarted;
+
+        private DataChannelInputStream() {
+            mCurrentDataTransferSize = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            DuplexReader reader = mReader;
+            if (reader != null) {
+                byte[] one = new byte[1];
+                int count;
+                do {
+                    count = readQueued(reader, one, 0, 1);
+                } while (count == 0);
+                return count == -1 ? -1 : one[0] & 0xFF;
+            }
+            if (!nextPayload()) {
+                return -1;
+            }
+            return mPacket.getPayloadBuffer()[mPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            DuplexReader reader = mReader;
+            if (reader != null) {
+                return readQueued(reader, buffer, offset, length);
+            }
+            if (!nextPayload()) {
+                return -1;
+            }
+            int count = Math.min(length, mPacket.getPayloadLength() - mPosition);
+            System.arraycopy(mPacket.getPayloadBuffer(), mPosition, buffer, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            DuplexReader reader = mReader;
+            if (reader != null) {
+                return mCommandData == null && mStarted ? reader.availableData() : 0;
+            }
+            if (mCommandData != null || mPacket == null) {
+                return 0;
+            }
+            return mPacket.getPayloadLength() - mPosition;
         }
-        copyUntilCRLF(packet.getPayload(), bytes);
-        return bytes.toByteArray();
-    }
 
-    private boolean containsCRLF(byte[] payload) {
-        for (int i = 0; i < payload.length - 1; i++) {
-            if (payload[i] == CARRIAGE_RETURN && payload[i + 1] == LINE_FEED) {
+        /**
+         * Discard the rest of the data channel so that the command response can be read.
+         *
+         * @throws IOException when connection to the card is disrupted
+         */
+        @Override
+        public void close() throws IOException {
+            DuplexReader reader = mReader;
+            if (reader != null) {
+                byte[] discard = new byte[PacketInputBuffer.DEFAULT_BUFFER_SIZE];
+                while (readQueued(reader, discard, 0, discard.length) != -1) {
+                    // the data is not wanted; read on to the command response
+                }
+                return;
+            }
+            while (nextPayload()) {
+                mPosition = mPacket.getPayloadLength();
+            }
+        }
+
+        /**
+         * @return the data read from the command channel following the data transfer, or
+         * {@code null} if the stream has not ended yet
+         */
+        public byte[] getCommandData() {
+            return mCommandData;
+        }
+
+        private int readQueued(DuplexReader reader, byte[] buffer, int offset, int length) throws IOException {
+            if (mCommandData != null) {
+                return -1;
+            }
+            try {
+                if (!mStarted) {
+                    flush();
+                    mStarted = true;
+                }
+                int count = reader.readData(buffer, offset, length);
+                if (count == -1) {
+                    mCommandData = reader.takeCommandLine();
+                    mCurrentDataTransferSize = 0;
+                    return -1;
+                }
+                mCurrentDataTransferSize += count;
+                return count;
+            } catch (IOException e) {
+                GKLog.e(TAG, "Exception occurred while streaming queued data", e);
+                cleanup();
+                throw e;
+            }
+        }
+
+        private boolean nextPayload() throws IOException {
+            if (mCommandData != null) {
+                return false;
+            }
+            try {
+                if (mPacket == null) {
+                    flush();
+                }
+                while (mPacket == null || mPosition == mPacket.getPayloadLength()) {
+                    mPacket = decode();
+                    mPosition = 0;
+                    if (DATA_CHANNEL != mPacket.getChannel()) {
+                        mCommandData = readCommandLine(mPacket);
+                        mCurrentDataTransferSize = 0;
+                        return false;
+                    }
+                    mCurrentDataTransferSize += mPacket.getPayloadLength();
+                }
                 return true;
+            } catch (IOException e) {
+                GKLog.e(TAG, "Exception occurred while streaming a DataPacket", e);
+                cleanup();
+                throw e;
             }
         }
-        return false;
     }
 
-    private byte[] copyUntilCRLF(byte[] data, ByteArrayOutputStream bytes) throws IOException {
-        for (int i = 0; i < data.length; i++) {
-            byte a = data[i];
-            if (a == CARRIAGE_RETURN && i < data.length - 1 && data[i + 1] == LINE_FEED) {
-                break;
+    private byte[] readQueuedDataChannel(DuplexReader reader, WritableByteChannel channel, Inflater inflater, GKTransferProgress progress) throws IOException {
+        if (mQueuedDataBuffer == null) {
+            mQueuedDataBuffer = new byte[PacketInputBuffer.DEFAULT_BUFFER_SIZE];
+        }
+        ByteBuffer data = ByteBuffer.wrap(mQueuedDataBuffer);
+        mCurrentDataTransferSize = 0;
+        int count;
+        while ((count = reader.readData(mQueuedDataBuffer, 0, mQueuedDataBuffer.length)) != -1) {
+            if (inflater != null) {
+                onTransferred(inflate(inflater, mQueuedDataBuffer, count, channel), count, progress);
+            } else {
+                onTransferred(count, count, progress);
+                data.limit(count).position(0);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        }
+        byte[] commandLine = reader.takeCommandLine();
+        if (progress != null) {
+            progress.onTransferFinished();
+        }
+        return commandLine;
+    }
+
+    // fileBytes and linkBytes differ when the data channel is compressed
+    private void onTransferred(int fileBytes, int linkBytes, GKTransferProgress progress) {
+        mCurrentDataTransferSize += fileBytes;
+        if (progress != null) {
+            progress.onBytesTransferred(fileBytes, linkBytes);
+        }
+    }
+
+    private int inflate(Inflater inflater, byte[] data, int length, WritableByteChannel channel) throws IOException {
+        if (mInflateBuffer == null) {
+            mInflateBuffer = new byte[COMPRESSION_BUFFER_SIZE];
+        }
+        inflater.setInput(data, 0, length);
+        int total = 0;
+        try {
+            int count;
+            while ((count = inflater.inflate(mInflateBuffer)) > 0) {
+                ByteBuffer inflated = ByteBuffer.wrap(mInflateBuffer, 0, count);
+                while (inflated.hasRemaining()) {
+                    channel.write(inflated);
+                }
+                total += count;
             }
-            bytes.write(a);
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed data channel is corrupt", e);
+        }
+        return total;
+    }
+
+    private boolean hasPendingInput() throws IOException {
+        DuplexReader reader = mReader;
+        if (reader != null) {
+            return reader.hasCommandLine();
+        }
+        return mInputStream.available() > 0;
+    }
+
+    private byte[] readCommandLine(DataPacket packet) throws IOException {
+        mLineAssembler.reset();
+        while (!mLineAssembler.append(packet.getPayloadBuffer(), packet.getPayloadLength())) {
+            packet = decode();
+        }
+        return mLineAssembler.takeLine();
+    }
+
+    private DataPacket decode() throws IOException {
+        DataPacket packet;
+        try {
+            packet = mDecoder.decode(mInputStream);
+        } catch (IOException e) {
+            mStatistics.onError();
+            throw e;
+        }
+        mStatistics.onPacketReceived(packet.getPayloadLength());
+        return packet;
+    }
+
+    private void write(byte[] data, int offset, int length, int channel) throws IOException {
+        try {
+            mOutputBuffer.write(data, offset, length, channel);
+        } catch (IOException e) {
+            mStatistics.onError();
+            throw e;
+        }
+        mStatistics.onPacketSent(length);
+    }
+
+    private void flush() throws IOException {
+        try {
+            mOutputBuffer.flush();
+        } catch (IOException e) {
+            mStatistics.onError();
+            throw e;
         }
-        return bytes.toByteArray();
     }
 
-    private void write(byte[] data, int channel) throws IOException {
-        byte[] packetBytes = DataPacket.Builder.toPacketBytes(data, channel);
-        mOutputStream.write(packetBytes);
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        private CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                mCount += count;
+            }
+            return count;
+        }
+
+        private long getCount() {
+            return mCount;
+        }
     }
 }
@@ -0,0 +1,231 @@
+package co.blustor.gatekeepersdk.data;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GKTransferProgress follows a single upload or download, reporting to its {@link Listener}
+ * at most once per interval so that the transfer itself is not slowed down. The listener is
+ * called on the thread making the transfer, and always once more when the transfer ends.
+ * Values may be read from any thread and reflect the latest report.
+ *
+ * @since 0.21.0
+ */
+public class GKTransferProgress {
+    /**
+     * The interval between reports when none is given.
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = 250;
+    // the weight of the latest sample in the smoothed throughput
+    private static final double SMOOTHING = 0.3;
+
+    private final long mTotalBytes;
+    private final long mIntervalNanos;
+    private final Listener mListener;
+    private long mBytes;
+    private long mLinkBytes;
+    private long mStartBytes;
+    private long mStartNanos;
+    private long mLastReportBytes;
+    private long mLastReportNanos;
+    private volatile long mReportedBytes;
+    private volatile long mReportedLinkBytes;
+    private volatile long mElapsedNanos;
+    private volatile double mBytesPerSecond;
+    private volatile double mSmoothedBytesPerSecond;
+    private volatile long mMillisRemaining = -1;
+    private volatile boolean mFinished;
+
+    /**
+     * @param totalBytes the size of the file being transferred, such as
+     *                   {@link GKFile#getFileSize()}, or {@code -1} if it is not known
+     * @param listener   the {@code Listener} to report to
+     */
+    public GKTransferProgress(long totalBytes, Listener listener) {
+        this(totalBytes, DEFAULT_INTERVAL_MILLIS, listener);
+    }
+
+    /**
+     * @param totalBytes     the size of the file being transferred, such as
+     *                       {@link GKFile#getFileSize()}, or {@code -1} if it is not known
+     * @param intervalMillis the least time between reports, or {@code 0} to report every packet
+     * @param listener       the {@code Listener} to report to
+     */
+    public GKTransferProgress(long totalBytes, long intervalMillis, Listener listener) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("Interval must not be negative");
+        }
+        mTotalBytes = totalBytes;
+        mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        mListener = listener;
+    }
+
+    /**
+     * Intended for internal use only.
+     *
+     * @param offset the number of bytes transferred before, when a transfer is resumed
+     */
+    public void onTransferStarted(long offset) {
+        mBytes = offset;
+        mStartBytes = offset;
+        mStartNanos = System.nanoTime();
+        mLastReportBytes = offset;
+        mLastReportNanos = mStartNanos;
+        mReportedBytes = offset;
+        mLinkBytes = 0;
+        mReportedLinkBytes = 0;
+        mElapsedNanos = 0;
+        mFinished = false;
+    }
+
+    /**
+     * Intended for internal use only.
+     *
+     * @param count the number of bytes just transferred
+     */
+    public void onBytesTransferred(int count) {
+        onBytesTransferred(count, count);
+    }
+
+    /**
+     * Intended for internal use only.
+     *
+     * @param count     the number of bytes of the file just transferred
+     * @param linkCount the number of bytes they took on the link, once compressed
+     */
+    public void onBytesTransferred(int count, int linkCount) {
+        mBytes += count;
+        mLinkBytes += linkCount;
+        long now = System.nanoTime();
+        if (now - mLastReportNanos >= mIntervalNanos) {
+            report(now);
+        }
+    }
+
+    /**
+     * Intended for internal use only.
+     */
+    public void onTransferFinished() {
+        mFinished = true;
+        report(System.nanoTime());
+    }
+
+    /**
+     * @return the number of bytes transferred, including any skipped by resuming
+     * @since 0.21.0
+     */
+    public long getBytesTransferred() {
+        return mReportedBytes;
+    }
+
+    /**
+     * @return the size of the file being transferred, or {@code -1} if it is not known
+     * @since 0.21.0
+     */
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @return the number of bytes sent over the link since the transfer started, which is
+     * fewer than were transferred when the data channel is compressed
+     * @since 0.21.0
+     */
+    public long getLinkBytesTransferred() {
+        return mReportedLinkBytes;
+    }
+
+    /**
+     * @return the number of bytes transferred for each byte sent over the link, {@code 1} when
+     * the data channel is not compressed
+     * @since 0.21.0
+     */
+    public double getCompressionRatio() {
+        long linkBytes = mReportedLinkBytes;
+        return linkBytes == 0 ? 1 : (double) (mReportedBytes - mStartBytes) / linkBytes;
+    }
+
+    /**
+     * @return how much longer the transfer would have taken had the link carried every byte
+     * of the file at the throughput it achieved, negative if compression made the data larger
+     * @since 0.21.0
+     */
+    public long getEstimatedMillisSaved() {
+        return (long) (TimeUnit.NANOSECONDS.toMillis(mElapsedNanos) * (getCompressionRatio() - 1));
+    }
+
+    /**
+     * @return the throughput since the previous report
+     * @since 0.21.0
+     */
+    public double getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * @return the throughput averaged over recent reports, weighting later ones more
+     * @since 0.21.0
+     */
+    public double getSmoothedBytesPerSecond() {
+        return mSmoothedBytesPerSecond;
+    }
+
+    /**
+     * @return the estimated time until the transfer ends at the smoothed throughput, or
+     * {@code -1} if the size of the file is not known or nothing has been transferred yet
+     * @since 0.21.0
+     */
+    public long getEstimatedMillisRemaining() {
+        return mMillisRemaining;
+    }
+
+    /**
+     * @return whether the transfer has ended
+     * @since 0.21.0
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    private void report(long now) {
+        long elapsedNanos = now - mLastReportNanos;
+        // a final report made just after the last one says nothing about throughput
+        if (elapsedNanos > 0 && (mBytes != mLastReportBytes || elapsedNanos >= mIntervalNanos)) {
+            double bytesPerSecond = (mBytes - mLastReportBytes) * 1e9 / elapsedNanos;
+            mSmoothedBytesPerSecond = mSmoothedBytesPerSecond == 0
+                    ? bytesPerSecond
+                    : SMOOTHING * bytesPerSecond + (1 - SMOOTHING) * mSmoothedBytesPerSecond;
+            mBytesPerSecond = bytesPerSecond;
+        }
+        mLastReportBytes = mBytes;
+        mLastReportNanos = now;
+        mElapsedNanos = now - mStartNanos;
+        mReportedBytes = mBytes;
+        mReportedLinkBytes = mLinkBytes;
+        if (mFinished) {
+            mMillisRemaining = 0;
+        } else if (mTotalBytes >= 0 && mSmoothedBytesPerSecond > 0) {
+            mMillisRemaining = (long) (Math.max(0, mTotalBytes - mBytes) * 1000 / mSmoothedBytesPerSecond);
+        } else {
+            mMillisRemaining = -1;
+        }
+        if (mListener != null) {
+            mListener.onProgress(this);
+        }
+    }
+
+    /**
+     * A Listener is told how a transfer is progressing.
+     *
+     * @since 0.21.0
+     */
+    public interface Listener {
+        /**
+         * Called at most once per interval while data is transferred, and once when the
+         * transfer ends.
+         *
+         * @param progress the {@code GKTransferProgress} of the transfer
+         * @since 0.21.0
+         */
+        void onProgress(GKTransferProgress progress);
+    }
+}
@@ -0,0 +1,76 @@
+package co.blustor.gatekeepersdk.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GKTransferStatistics counts the work done moving file data to and from a GateKeeper Card.
+ * Counters only ever increase and may be read from any thread.
+ *
+ * @since 0.21.0
+ */
+public class GKTransferStatistics {
+    private final AtomicLong mResumedDownloadCount = new AtomicLong();
+    private final AtomicLong mResumedDownloadBytes = new AtomicLong();
+    private final AtomicLong mCorruptPacketCount = new AtomicLong();
+    private final AtomicLong mRetriedTransferCount = new AtomicLong();
+
+    /**
+     * Intended for internal use only.
+     *
+     * @param resumedBytes the number of bytes that were already downloaded before the
+     *                     download was resumed
+     */
+    public void onDownloadResumed(long resumedBytes) {
+        mResumedDownloadCount.incrementAndGet();
+        mResumedDownloadBytes.addAndGet(resumedBytes);
+    }
+
+    /**
+     * @return the number of downloads that continued from a partial download
+     * @since 0.21.0
+     */
+    public long getResumedDownloadCount() {
+        return mResumedDownloadCount.get();
+    }
+
+    /**
+     * @return the number of bytes that did not have to be downloaded again because a
+     * download was resumed
+     * @since 0.21.0
+     */
+    public long getResumedDownloadBytes() {
+        return mResumedDownloadBytes.get();
+    }
+
+    /**
+     * Intended for internal use only.
+     *
+     * @param count the number of corrupt packets received over a connection
+     */
+    public void onCorruptPackets(long count) {
+        mCorruptPacketCount.addAndGet(count);
+    }
+
+    /**
+     * Intended for internal use only.
+     */
+    public void onTransferRetried() {
+        mRetriedTransferCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of packets received with a checksum that did not match
+     * @since 0.21.0
+     */
+    public long getCorruptPacketCount() {
+        return mCorruptPacketCount.get();
+    }
+
+    /**
+     * @return the number of transfers repeated because a corrupt packet was received
+     * @since 0.21.0
+     */
+    public long getRetriedTransferCount() {
+        return mRetriedTransferCount.get();
+    }
+}
@@ -0,0 +1,91 @@
+package co.blustor.gatekeepersdk.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * PacketInputBuffer reads ahead from the input stream in bulk, so that decoding the header,
+ * payload and checksum of a packet, and of the packets queued behind it, is served from memory
+ * instead of by a blocking read each. Each read asks for as much as the buffer can hold but
+ * never waits for more than the underlying stream has ready, so a reader is not held up
+ * waiting for data the card has not sent. Not thread safe; {@link GKMultiplexer} owns one per
+ * connection.
+ */
+class PacketInputBuffer extends InputStream {
+    static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private final InputStream mInputStream;
+    // unread bytes are mBuffer[mPosition, mLimit); the buffer is refilled from the start once empty
+    private final byte[] mBuffer;
+    private int mPosition;
+    private int mLimit;
+    private long mReadCount;
+
+    PacketInputBuffer(InputStream inputStream) {
+        this(inputStream, DEFAULT_BUFFER_SIZE);
+    }
+
+    PacketInputBuffer(InputStream inputStream, int bufferSize) {
+        mInputStream = inputStream;
+        mBuffer = new byte[bufferSize];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mPosition == mLimit && fill() == -1) {
+            return -1;
+        }
+        return mBuffer[mPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        int buffered = mLimit - mPosition;
+        if (buffered == 0) {
+            if (length >= mBuffer.length) {
+                // a read this large gains nothing from passing through the buffer
+                mReadCount++;
+                return mInputStream.read(buffer, offset, length);
+            }
+            if (fill() == -1) {
+                return -1;
+            }
+            buffered = mLimit - mPosition;
+        }
+        int count = Math.min(buffered, length);
+        System.arraycopy(mBuffer, mPosition, buffer, offset, count);
+        mPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (mLimit - mPosition) + mInputStream.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInputStream.close();
+    }
+
+    /**
+     * @return the number of reads made from the underlying stream
+     */
+    long getReadCount() {
+        return mReadCount;
+    }
+
+    private int fill() throws IOException {
+        mPosition = 0;
+        mLimit = 0;
+        mReadCount++;
+        int count = mInputStream.read(mBuffer, 0, mBuffer.length);
+        if (count > 0) {
+            mLimit = count;
+        }
+        return count;
+    }
+}
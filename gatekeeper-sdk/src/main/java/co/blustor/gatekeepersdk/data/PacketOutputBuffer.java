@@ -0,0 +1,80 @@
+package co.blustor.gatekeepersdk.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * PacketOutputBuffer frames packets straight into one buffer and writes the buffer to the
+ * output stream when its {@link FlushPolicy} says to. Not thread safe; {@link GKMultiplexer}
+ * owns one per connection.
+ */
+class PacketOutputBuffer {
+    private final OutputStream mOutputStream;
+    private final DataPacket.Encoder mEncoder;
+    private volatile FlushPolicy mFlushPolicy;
+    private byte[] mBuffer = new byte[0];
+    private int mCount;
+    private long mWriteCount;
+    private long mWriteNanos;
+
+    PacketOutputBuffer(OutputStream outputStream, DataPacket.Encoder encoder, FlushPolicy flushPolicy) {
+        mOutputStream = outputStream;
+        mEncoder = encoder;
+        mFlushPolicy = flushPolicy;
+    }
+
+    void setFlushPolicy(FlushPolicy flushPolicy) {
+        mFlushPolicy = flushPolicy;
+    }
+
+    void write(byte[] data, int offset, int length, int channel) throws IOException {
+        FlushPolicy policy = mFlushPolicy;
+        if (mCount == 0 && mBuffer.length != policy.getBufferSize()) {
+            mBuffer = new byte[policy.getBufferSize()];
+        }
+        int packetLength = length + DataPacket.HEADER_SIZE + DataPacket.CHECKSUM_SIZE;
+        if (packetLength > mBuffer.length) {
+            flush();
+            long writeStart = System.nanoTime();
+            mWriteCount++;
+            try {
+                mEncoder.write(mOutputStream, data, offset, length, channel);
+            } finally {
+                mWriteNanos += System.nanoTime() - writeStart;
+            }
+            return;
+        }
+        if (mCount + packetLength > mBuffer.length) {
+            flush();
+        }
+        mCount += mEncoder.encode(data, offset, length, channel, mBuffer, mCount);
+        if (policy.shouldFlush(channel, mCount)) {
+            flush();
+        }
+    }
+
+    void flush() throws IOException {
+        if (mCount == 0) {
+            return;
+        }
+        int count = mCount;
+        // drop the packets even if the write fails, as the connection is then unusable
+        mCount = 0;
+        mWriteCount++;
+        long writeStart = System.nanoTime();
+        try {
+            mOutputStream.write(mBuffer, 0, count);
+        } finally {
+            mWriteNanos += System.nanoTime() - writeStart;
+        }
+    }
+
+    long getWriteCount() {
+        return mWriteCount;
+    }
+
+    // the total time spent blocked in writes to the output stream
+    long getWriteNanos() {
+        return mWriteNanos;
+    }
+}
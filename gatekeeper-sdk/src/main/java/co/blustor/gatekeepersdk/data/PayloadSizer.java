@@ -0,0 +1,149 @@
+package co.blustor.gatekeepersdk.data;
+
+/**
+ * A PayloadSizer decides how many bytes {@link GKMultiplexer} puts in each data channel
+ * packet while uploading. Intended for internal use only.
+ *
+ * @since 0.21.0
+ */
+public interface PayloadSizer {
+    /**
+     * The smallest payload size a {@code PayloadSizer} chooses on its own.
+     */
+    int MINIMUM_PAYLOAD_SIZE = 64;
+
+    /**
+     * Choose the payload size of the next packet.
+     *
+     * @param maximumPayloadSize the largest payload the card has agreed to accept
+     * @return the number of payload bytes to send, from {@code 1} to {@code maximumPayloadSize}
+     */
+    int getPayloadSize(int maximumPayloadSize);
+
+    /**
+     * Called before the first packet of an upload is written, so the time between uploads is
+     * not taken for time spent writing.
+     */
+    void onTransferStarted();
+
+    /**
+     * Called after data channel packets have been written to the output stream. When the
+     * {@link FlushPolicy} gathers packets, this is called once for each write of the gathered
+     * packets rather than once for each packet.
+     *
+     * @param bytes      the number of payload bytes written
+     * @param writeNanos how long the output stream blocked while writing them
+     */
+    void onPacketWritten(int bytes, long writeNanos);
+
+    /**
+     * Send every packet with the same payload size, or the card's maximum if it is smaller.
+     */
+    class Fixed implements PayloadSizer {
+        private final int mPayloadSize;
+
+        /**
+         * @param payloadSize the payload size of every packet
+         */
+        public Fixed(int payloadSize) {
+            if (payloadSize <= 0 || payloadSize > DataPacket.MAXIMUM_PAYLOAD_SIZE) {
+                throw new IllegalArgumentException("Payload size must be from 1 to " + DataPacket.MAXIMUM_PAYLOAD_SIZE);
+            }
+            mPayloadSize = payloadSize;
+        }
+
+        @Override
+        public int getPayloadSize(int maximumPayloadSize) {
+            return Math.min(mPayloadSize, maximumPayloadSize);
+        }
+
+        @Override
+        public void onTransferStarted() {
+        }
+
+        @Override
+        public void onPacketWritten(int bytes, long writeNanos) {
+        }
+    }
+
+    /**
+     * Search for the payload size with the best upload throughput, doubling or halving the
+     * size after each sample of 16 packets' worth of data and reversing direction when
+     * throughput drops. A sample is measured in bytes written and the time spent uploading
+     * them, so it does not depend on how packets are gathered into writes, and it carries over
+     * from one upload to the next so that small uploads adapt too.
+     * <p>
+     * Larger packets spend less of the link on framing, but a corrupted packet is retransmitted
+     * in full by the link layer, so on a noisy link a lost packet costs more the larger it is.
+     * Both effects show up in measured throughput, which is what the search follows. A card
+     * that falls behind is left to the {@link UploadPacer}.
+     */
+    class Adaptive implements PayloadSizer {
+        private static final int SAMPLE_PACKETS = 16;
+        private static final double TOLERANCE = 0.05;
+
+        private int mPayloadSize;
+        private int mMaximumPayloadSize = DataPacket.MAXIMUM_PAYLOAD_SIZE;
+        private boolean mGrowing = true;
+        private double mLastThroughput;
+        private long mSampleBytes;
+        private long mSampleNanos;
+        private long mLastWriteNanos;
+
+        public Adaptive() {
+            this(GKMultiplexer.MAXIMUM_PAYLOAD_SIZE);
+        }
+
+        /**
+         * @param initialPayloadSize the payload size to start the search from
+         */
+        public Adaptive(int initialPayloadSize) {
+            if (initialPayloadSize <= 0 || initialPayloadSize > DataPacket.MAXIMUM_PAYLOAD_SIZE) {
+                throw new IllegalArgumentException("Payload size must be from 1 to " + DataPacket.MAXIMUM_PAYLOAD_SIZE);
+            }
+            mPayloadSize = initialPayloadSize;
+        }
+
+        @Override
+        public synchronized int getPayloadSize(int maximumPayloadSize) {
+            mMaximumPayloadSize = maximumPayloadSize;
+            return Math.min(mPayloadSize, maximumPayloadSize);
+        }
+
+        @Override
+        public synchronized void onTransferStarted() {
+            mLastWriteNanos = System.nanoTime();
+        }
+
+        @Override
+        public synchronized void onPacketWritten(int bytes, long writeNanos) {
+            long now = System.nanoTime();
+            mSampleNanos += now - mLastWriteNanos;
+            mLastWriteNanos = now;
+            mSampleBytes += bytes;
+            if (mSampleBytes < (long) SAMPLE_PACKETS * mPayloadSize) {
+                return;
+            }
+            double throughput = (double) mSampleBytes / Math.max(1, mSampleNanos);
+            if (mLastThroughput > 0 && throughput < mLastThroughput * (1 - TOLERANCE)) {
+                mGrowing = !mGrowing;
+            }
+            mLastThroughput = throughput;
+            resize(mGrowing ? mPayloadSize * 2 : mPayloadSize / 2);
+            mSampleBytes = 0;
+            mSampleNanos = 0;
+        }
+
+        /**
+         * @return the payload size the search is currently at
+         */
+        public synchronized int getCurrentPayloadSize() {
+            return mPayloadSize;
+        }
+
+        private void resize(int payloadSize) {
+            int limit = Math.max(MINIMUM_PAYLOAD_SIZE, mMaximumPayloadSize);
+            mPayloadSize = Math.max(MINIMUM_PAYLOAD_SIZE, Math.min(limit, payloadSize));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package co.blustor.gatekeepersdk.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * SpillQueue holds bytes in first-in, first-out order in a fixed ring buffer, and once the
+ * ring is full appends them to a temporary file in the spill directory instead. Reads drain
+ * the ring before the file, and no bytes go back into the ring until the file is drained, so
+ * order is kept. Without a spill directory the queue refuses bytes it has no room for. Not
+ * thread safe; {@link DuplexReader} guards its queue with its own lock.
+ */
+class SpillQueue {
+    static final int DEFAULT_MEMORY_SIZE = 64 * 1024;
+
+    private final File mSpillDirectory;
+    // unread bytes in memory are mRing[mHead, mHead + mSize), wrapping around the end
+    private final byte[] mRing;
+    private int mHead;
+    private int mSize;
+    private File mSpillFile;
+    private RandomAccessFile mSpill;
+    private long mSpillReadPosition;
+    private long mSpillWritePosition;
+    private long mSpilledBytes;
+
+    /**
+     * @param spillDirectory the directory to spill to, or {@code null} to keep to memory
+     */
+    SpillQueue(File spillDirectory) {
+        this(spillDirectory, DEFAULT_MEMORY_SIZE);
+    }
+
+    SpillQueue(File spillDirectory, int memorySize) {
+        mSpillDirectory = spillDirectory;
+        mRing = new byte[memorySize];
+    }
+
+    /**
+     * Add bytes to the end of the queue.
+     *
+     * @return {@code false} if memory is full and there is no spill directory, in which case
+     * none of the bytes were added
+     * @throws IOException when the spill file cannot be written
+     */
+    boolean offer(byte[] data, int offset, int length) throws IOException {
+        if (mSpillReadPosition == mSpillWritePosition && mSize + length <= mRing.length) {
+            int tail = (mHead + mSize) % mRing.length;
+            int first = Math.min(length, mRing.length - tail);
+            System.arraycopy(data, offset, mRing, tail, first);
+            System.arraycopy(data, offset + first, mRing, 0, length - first);
+            mSize += length;
+            return true;
+        }
+        if (mSpillDirectory == null) {
+            return false;
+        }
+        if (mSpill == null) {
+            mSpillFile = File.createTempFile("duplex", "spill", mSpillDirectory);
+            mSpill = new RandomAccessFile(mSpillFile, "rw");
+        }
+        mSpill.seek(mSpillWritePosition);
+        mSpill.write(data, offset, length);
+        mSpillWritePosition += length;
+        mSpilledBytes += length;
+        return true;
+    }
+
+    /**
+     * Remove bytes from the front of the queue.
+     *
+     * @return the number of bytes read, {@code 0} if the queue is empty
+     * @throws IOException when the spill file cannot be read
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException {
+        if (mSize > 0) {
+            int count = Math.min(length, mSize);
+            int first = Math.min(count, mRing.length - mHead);
+            System.arraycopy(mRing, mHead, buffer, offset, first);
+            System.arraycopy(mRing, 0, buffer, offset + first, count - first);
+            mHead = (mHead + count) % mRing.length;
+            mSize -= count;
+            return count;
+        }
+        int count = (int) Math.min(length, mSpillWritePosition - mSpillReadPosition);
+        if (count == 0) {
+            return 0;
+        }
+        mSpill.seek(mSpillReadPosition);
+        mSpill.readFully(buffer, offset, count);
+        mSpillReadPosition += count;
+        if (mSpillReadPosition == mSpillWritePosition) {
+            mSpillReadPosition = 0;
+            mSpillWritePosition = 0;
+            mSpill.setLength(0);
+        }
+        return count;
+    }
+
+    /**
+     * Discard up to {@code length} bytes from the front of the queue.
+     *
+     * @return the number of bytes discarded
+     * @throws IOException when the spill file cannot be read
+     */
+    long skip(long length) throws IOException {
+        long skipped = 0;
+        byte[] buffer = new byte[(int) Math.min(length, 8192)];
+        while (skipped < length) {
+            int count = read(buffer, 0, (int) Math.min(buffer.length, length - skipped));
+            if (count == 0) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    /**
+     * @return the number of bytes in the queue
+     */
+    long size() {
+        return mSize + mSpillWritePosition - mSpillReadPosition;
+    }
+
+    /**
+     * @return the number of bytes ever written to the spill file
+     */
+    long getSpilledBytes() {
+        return mSpilledBytes;
+    }
+
+    /**
+     * Discard the queue and delete its spill file.
+     */
+    void close() throws IOException {
+        mHead = 0;
+        mSize = 0;
+        mSpillReadPosition = 0;
+        mSpillWritePosition = 0;
+        if (mSpill != null) {
+            try {
+                mSpill.close();
+            } finally {
+                mSpill = null;
+                mSpillFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package co.blustor.gatekeepersdk.data;
+
+/**
+ * An UploadPacer decides how long {@link GKMultiplexer} waits between data channel packets
+ * while uploading. Intended for internal use only.
+ *
+ * @since 0.21.0
+ */
+public interface UploadPacer {
+    /**
+     * Called before the first packet of an upload is written.
+     */
+    void onTransferStarted();
+
+    /**
+     * Called after data channel packets have been written to the output stream. When the
+     * {@link FlushPolicy} gathers packets, this is called once for each write of the gathered
+     * packets rather than once for each packet.
+     *
+     * @param bytes      the number of payload bytes written
+     * @param writeNanos how long the output stream blocked while writing them
+     * @throws InterruptedException when the upload thread is interrupted while waiting
+     */
+    void onPacketWritten(int bytes, long writeNanos) throws InterruptedException;
+
+    /**
+     * Called when the card sends data while an upload is still in progress, which it only
+     * does to report that it is falling behind or has rejected the upload. Called once when
+     * the data arrives, and not again until it has been read and more arrives.
+     *
+     * @throws InterruptedException when the upload thread is interrupted while waiting
+     */
+    void onCongestion() throws InterruptedException;
+
+    /**
+     * Write packets as fast as the output stream accepts them.
+     */
+    class NoDelay implements UploadPacer {
+        @Override
+        public void onTransferStarted() {
+        }
+
+        @Override
+        public void onPacketWritten(int bytes, long writeNanos) {
+        }
+
+        @Override
+        public void onCongestion() {
+        }
+    }
+
+    /**
+     * Sleep for a fixed time after every write to the output stream. This is how uploads were
+     * paced before {@code UploadPacer} existed, and remains available for firmware that depends
+     * on it. Use it with {@link FlushPolicy.Immediate} to sleep after every packet.
+     */
+    class FixedDelay implements UploadPacer {
+        private final long mDelayMillis;
+
+        /**
+         * @param delayMillis the time to sleep after every packet
+         */
+        public FixedDelay(long delayMillis) {
+            mDelayMillis = delayMillis;
+        }
+
+        @Override
+        public void onTransferStarted() {
+        }
+
+        @Override
+        public void onPacketWritten(int bytes, long writeNanos) throws InterruptedException {
+            Thread.sleep(mDelayMillis);
+        }
+
+        @Override
+        public void onCongestion() {
+        }
+    }
+
+    /**
+     * Limit uploads to a fixed number of bytes per second, allowing short bursts of up to
+     * {@code burstBytes} above that rate.
+     */
+    class TokenBucket implements UploadPacer {
+        private static final long NANOS_PER_SECOND = 1000000000L;
+        private static final long NANOS_PER_MILLI = 1000000L;
+
+        private final long mBytesPerSecond;
+        private final long mBurstBytes;
+        private long mTokens;
+        private long mLastRefillNanos;
+
+        /**
+         * @param bytesPerSecond the sustained upload rate
+         */
+        public TokenBucket(long bytesPerSecond) {
+            this(bytesPerSecond, GKMultiplexer.MAXIMUM_PAYLOAD_SIZE * 8);
+        }
+
+        /**
+         * @param bytesPerSecond the sustained upload rate
+         * @param burstBytes     the number of bytes that may be sent back-to-back when idle
+         */
+        public TokenBucket(long bytesPerSecond, long burstBytes) {
+            if (bytesPerSecond <= 0 || burstBytes <= 0) {
+                throw new IllegalArgumentException("Rate and burst must be positive");
+            }
+            mBytesPerSecond = bytesPerSecond;
+            mBurstBytes = burstBytes;
+        }
+
+        @Override
+        public void onTransferStarted() {
+            mTokens = mBurstBytes;
+            mLastRefillNanos = System.nanoTime();
+        }
+
+        @Override
+        public void onPacketWritten(int bytes, long writeNanos) throws InterruptedException {
+            refill();
+            mTokens -= bytes;
+            if (mTokens < 0) {
+                long waitNanos = -mTokens * NANOS_PER_SECOND / mBytesPerSecond;
+                Thread.sleep(waitNanos / NANOS_PER_MILLI, (int) (waitNanos % NANOS_PER_MILLI));
+            }
+        }
+
+        @Override
+        public void onCongestion() {
+        }
+
+        /**
+         * @return the sustained upload rate
+         */
+        public long getBytesPerSecond() {
+            return mBytesPerSecond;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            long earned = (now - mLastRefillNanos) * mBytesPerSecond / NANOS_PER_SECOND;
+            if (earned > 0) {
+                mTokens = Math.min(mBurstBytes, mTokens + earned);
+                mLastRefillNanos = now;
+            }
+        }
+    }
+
+    /**
+     * Write without delay until the output stream blocks or the card signals congestion,
+     * then back off exponentially and recover as writes complete promptly again.
+     */
+    class Adaptive implements UploadPacer {
+        private static final long DEFAULT_BLOCKED_NANOS = 20000000L;
+        private static final long INITIAL_BACKOFF_MILLIS = 1;
+        private static final long MAXIMUM_BACKOFF_MILLIS = 64;
+
+        private final long mBlockedNanos;
+        private long mBackoffMillis;
+        private int mBackoffCount;
+
+        public Adaptive() {
+            this(DEFAULT_BLOCKED_NANOS);
+        }
+
+        /**
+         * @param blockedNanos the write duration above which the output stream counts as blocked
+         */
+        public Adaptive(long blockedNanos) {
+            mBlockedNanos = blockedNanos;
+        }
+
+        @Override
+        public void onTransferStarted() {
+            mBackoffMillis = 0;
+        }
+
+        @Override
+        public void onPacketWritten(int bytes, long writeNanos) throws InterruptedException {
+            if (writeNanos > mBlockedNanos) {
+                backOff();
+            } else if (mBackoffMillis > 0) {
+                mBackoffMillis /= 2;
+                if (mBackoffMillis > 0) {
+                    Thread.sleep(mBackoffMillis);
+                }
+            }
+        }
+
+        @Override
+        public void onCongestion() throws InterruptedException {
+            backOff();
+        }
+
+        /**
+         * @return the delay currently applied after each packet
+         */
+        public long getBackoffMillis() {
+            return mBackoffMillis;
+        }
+
+        /**
+         * @return the number of times this pacer has backed off
+         */
+        public int getBackoffCount() {
+            return mBackoffCount;
+        }
+
+        private void backOff() throws InterruptedException {
+            mBackoffCount++;
+            mBackoffMillis = Math.min(MAXIMUM_BACKOFF_MILLIS, Math.max(INITIAL_BACKOFF_MILLIS, mBackoffMillis * 2));
+            Thread.sleep(mBackoffMillis);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package co.blustor.gatekeepersdk.devices;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.blustor.gatekeepersdk.devices.GKCard.Response;
+import co.blustor.gatekeepersdk.utils.GKLog;
+
+/**
+ * GKAsyncCard runs actions against a {@code GKCard} on a dedicated I/O thread, so callers
+ * never block waiting for the GateKeeper Card. Actions run one at a time, in the order they
+ * were submitted.
+ */
+public class GKAsyncCard {
+    public static final String TAG = GKAsyncCard.class.getCanonicalName();
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final GKCard mCard;
+    private final Executor mCallbackExecutor;
+    private final ExecutorService mExecutor;
+    private final Gate mGate;
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+
+    /**
+     * Create a {@code GKAsyncCard} that delivers callbacks on its I/O thread.
+     *
+     * @param card the {@code GKCard} to run actions against
+     * @since 0.21.0
+     */
+    public GKAsyncCard(GKCard card) {
+        this(card, null);
+    }
+
+    /**
+     * Create a {@code GKAsyncCard} that delivers callbacks through {@code callbackExecutor},
+     * for example one that posts to the main thread.
+     *
+     * @param card             the {@code GKCard} to run actions against
+     * @param callbackExecutor the {@code Executor} used to deliver callbacks, or {@code null}
+     *                         to deliver them on the I/O thread
+     * @since 0.21.0
+     */
+    public GKAsyncCard(GKCard card, Executor callbackExecutor) {
+        this(card, callbackExecutor, null);
+    }
+
+    GKAsyncCard(GKCard card, Executor callbackExecutor, Gate gate) {
+        mCard = card;
+        mCallbackExecutor = callbackExecutor;
+        mGate = gate;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GKAsyncCard-" + THREAD_COUNT.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return the {@code GKCard} actions are run against
+     * @since 0.21.0
+     */
+    public GKCard getCard() {
+        return mCard;
+    }
+
+    /**
+     * Queue an {@code Action} to run on the I/O thread.
+     *
+     * @param action the {@code Action} to run
+     * @param <T>    the type of result produced by the action
+     * @return a {@code Future} for the result of the action
+     * @throws RejectedExecutionException when this {@code GKAsyncCard} has been shut down
+     * @since 0.21.0
+     */
+    public <T> Future<T> submit(Action<T> action) {
+        return submit(action, null);
+    }
+
+    /**
+     * Queue an {@code Action} to run on the I/O thread and report its outcome to
+     * {@code callback}. Callbacks are not invoked for cancelled actions.
+     *
+     * @param action   the {@code Action} to run
+     * @param callback the {@code Callback} to notify, or {@code null}
+     * @param <T>      the type of result produced by the action
+     * @return a {@code Future} for the result of the action
+     * @throws RejectedExecutionException when this {@code GKAsyncCard} has been shut down
+     * @since 0.21.0
+     */
+    public <T> Future<T> submit(Action<T> action, Callback<? super T> callback) {
+        ActionTask<T> task = new ActionTask<>(action, callback);
+        mQueueDepth.incrementAndGet();
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            mQueueDepth.decrementAndGet();
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * Queue a {@link GKCard#list(String)} action.
+     *
+     * @param cardPath the path used in the action
+     * @param callback the {@code Callback} to notify, or {@code null}
+     * @return a {@code Future} for the {@code Response} of the action
+     * @since 0.21.0
+     */
+    public Future<Response> list(final String cardPath, Callback<? super Response> callback) {
+        return submit(new Action<Response>() {
+            @Override
+            public Response run(GKCard card) throws IOException {
+                return card.list(cardPath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Queue a {@link GKCard#get(String)} action.
+     *
+     * @param cardPath the path used in the action
+     * @param callback the {@code Callback} to notify, or {@code null}
+     * @return a {@code Future} for the {@code Response} of the action
+     * @since 0.21.0
+     */
+    public Future<Response> get(final String cardPath, Callback<? super Response> callback) {
+        return submit(new Action<Response>() {
+            @Override
+            public Response run(GKCard card) throws IOException {
+                return card.get(cardPath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Queue a {@link GKCard#get(String, File)} action.
+     *
+     * @param cardPath  the path used in the action
+     * @param localFile the local file used to store the response data
+     * @param callback  the {@code Callback} to notify, or {@code null}
+     * @return a {@code Future} for the {@code Response} of the action
+     * @since 0.21.0
+     */
+    public Future<Response> get(final String cardPath, final File localFile, Callback<? super Response> callback) {
+        return submit(new Action<Response>() {
+            @Override
+            public Response run(GKCard card) throws IOException {
+                return card.get(cardPath, localFile);
+            }
+        }, callback);
+    }
+
+    /**
+     * Queue a {@link GKCard#put(String, InputStream)} action.
+     *
+     * @param cardPath    the path used in the action
+     * @param inputStream a stream with data used in the action
+     * @param callback    the {@code Callback} to notify, or {@code null}
+     * @return a {@code Future} for the {@code Response} of the action
+     * @since 0.21.0
+     */
+    public Future<Response> put(final String cardPath, final InputStream inputStream, Callback<? super Response> callback) {
+        return submit(new Action<Response>() {
+            @Override
+            public Response run(GKCard card) throws IOException {
+                return card.put(cardPath, inputStream);
+            }
+        }, callback);
+    }
+
+    /**
+     * Queue a {@link GKCard#rename(String, String)} action.
+     *
+     * @param fromCardPath the name to change from
+     * @param toCardPath   the name to change to
+     * @param callback     the {@code Callback} to notify, or {@code null}
+     * @return a {@code Future} for the {@code Response} of the action
+     * @since 0.21.0
+     */
+    public Future<Response> rename(final String fromCardPath, final String toCardPath, Callback<? super Response> callback) {
+        return submit(new Action<Response>() {
+            @Override
+            public Response run(GKCard card) throws IOException {
+                return card.rename(fromCardPath, toCardPath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Queue a {@link GKCard#delete(String)} action.
+     *
+     * @param cardPath the path used in the action
+     * @param callback the {@code Callback} to notify, or {@code null}
+     * @return a {@code Future} for the {@code Response} of the action
+     * @since 0.21.0
+     */
+    public Future<Response> delete(final String cardPath, Callback<? super Response> callback) {
+        return submit(new Action<Response>() {
+            @Override
+            public Response run(GKCard card) throws IOException {
+                return card.delete(cardPath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Queue a {@link GKCard#createPath(String)} action.
+     *
+     * @param cardPath the path used in the action
+     * @param callback the {@code Callback} to notify, or {@code null}
+     * @return a {@code Future} for the {@code Response} of the action
+     * @since 0.21.0
+     */
+    public Future<Response> createPath(final String cardPath, Callback<? super Response> callback) {
+        return submit(new Action<Response>() {
+            @Override
+            public Response run(GKCard card) throws IOException {
+                return card.createPath(cardPath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Queue a {@link GKCard#deletePath(String)} action.
+     *
+     * @param cardPath the path used in the action
+     * @param callback the {@code Callback} to notify, or {@code null}
+     * @return a {@code Future} for the {@code Response} of the action
+     * @since 0.21.0
+     */
+    public Future<Response> deletePath(final String cardPath, Callback<? super Response> callback) {
+        return submit(new Action<Response>() {
+            @Override
+            public Response run(GKCard card) throws IOException {
+                return card.deletePath(cardPath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Queue a {@link GKCard#finalize(String)} action.
+     *
+     * @param cardPath the path used in the action
+     * @param callback the {@code Callback} to notify, or {@code null}
+     * @return a {@code Future} for the {@code Response} of the action
+     * @since 0.21.0
+     */
+    public Future<Response> finalize(final String cardPath, Callback<? super Response> callback) {
+        return submit(new Action<Response>() {
+            @Override
+            public Response run(GKCard card) throws IOException {
+                return card.finalize(cardPath);
+            }
+        }, callback);
+    }
+
+    /**
+     * Retrieve the number of actions that have been submitted and have not completed, including
+     * the action currently running.
+     *
+     * @return the number of outstanding actions
+     * @since 0.21.0
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * Stop accepting actions. Actions that have already been submitted still run.
+     *
+     * @since 0.21.0
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Stop accepting actions and cancel every action that has not started yet. The running
+     * action is interrupted, which aborts uploads between packets.
+     *
+     * @since 0.21.0
+     */
+    public void shutdownNow() {
+        List<Runnable> pending = mExecutor.shutdownNow();
+        for (Runnable runnable : pending) {
+            ((Future<?>) runnable).cancel(false);
+        }
+    }
+
+    /**
+     * An Action is a unit of work run against the {@code GKCard} on the I/O thread. An action
+     * may issue several commands; no other action runs until it returns.
+     *
+     * @param <T> the type of result produced by the action
+     */
+    public interface Action<T> {
+        /**
+         * @param card the {@code GKCard} to run against
+         * @return the result of the action
+         * @throws IOException when communication with the GateKeeper Card has been disrupted.
+         */
+        T run(GKCard card) throws IOException;
+    }
+
+    /**
+     * A Callback is notified when an action completes.
+     *
+     * @param <T> the type of result produced by the action
+     */
+    public interface Callback<T> {
+        /**
+         * @param result the result of the action
+         */
+        void onSuccess(T result);
+
+        /**
+         * @param e the exception thrown by the action
+         */
+        void onFailure(Exception e);
+    }
+
+    // Every action passes through the gate, if there is one, on the I/O thread. GKCardRegistry
+    // uses it to share turns between cards.
+    interface Gate {
+        void enter(GKCard card) throws InterruptedException;
+
+        void exit(GKCard card, boolean succeeded);
+    }
+
+    // Called once the action has finished running, before its Future completes, so that
+    // getQueueDepth() is accurate as soon as get() returns. Cancelled actions are dequeued
+    // from done() instead.
+    private void dequeue(AtomicBoolean dequeued) {
+        if (dequeued.compareAndSet(false, true)) {
+            mQueueDepth.decrementAndGet();
+        }
+    }
+
+    private class ActionTask<T> extends FutureTask<T> {
+        private final Callback<? super T> mCallback;
+        private final AtomicBoolean mDequeued;
+
+        ActionTask(final Action<T> action, Callback<? super T> callback) {
+            this(action, callback, new AtomicBoolean());
+        }
+
+        private ActionTask(final Action<T> action, Callback<? super T> callback, final AtomicBoolean dequeued) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    try {
+                        if (mGate == null) {
+                            return action.run(mCard);
+                        }
+                        mGate.enter(mCard);
+                        boolean succeeded = false;
+                        try {
+                            T result = action.run(mCard);
+                            succeeded = true;
+                            return result;
+                        } finally {
+                            mGate.exit(mCard, succeeded);
+                        }
+                    } finally {
+                        dequeue(dequeued);
+                    }
+                }
+            });
+            mCallback = callback;
+            mDequeued = dequeued;
+        }
+
+        @Override
+        protected void done() {
+            dequeue(mDequeued);
+            if (mCallback == null || isCancelled()) {
+                return;
+            }
+            Runnable delivery = new Runnable() {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            };
+            if (mCallbackExecutor == null) {
+                delivery.run();
+            } else {
+                mCallbackExecutor.execute(delivery);
+            }
+        }
+
+        private void deliver() {
+            T result;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    mCallback.onFailure((Exception) cause);
+                } else {
+                    GKLog.e(TAG, "Action failed", cause);
+                    mCallback.onFailure(e);
+                }
+                return;
+            } catch (InterruptedException | CancellationException e) {
+                return;
+            }
+            mCallback.onSuccess(result);
+        }
+    }
+}
@@ -1,28 +1,52 @@
 package co.blustor.gatekeepersdk.devices;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Log;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import co.blustor.gatekeepersdk.data.CorruptPacketException;
+import co.blustor.gatekeepersdk.data.DataPacket;
+import co.blustor.gatekeepersdk.data.EntropyEstimator;
+import co.blustor.gatekeepersdk.data.GKFile;
+import co.blustor.gatekeepersdk.data.FlushPolicy;
+import co.blustor.gatekeepersdk.data.GKConnectionStatistics;
 import co.blustor.gatekeepersdk.data.GKMultiplexer;
+import co.blustor.gatekeepersdk.data.PayloadSizer;
+import co.blustor.gatekeepersdk.data.GKTransferProgress;
+import co.blustor.gatekeepersdk.data.GKTransferStatistics;
+import co.blustor.gatekeepersdk.data.UploadPacer;
+import co.blustor.gatekeepersdk.utils.GKFileUtils;
+import co.blustor.gatekeepersdk.utils.GKLog;
 import co.blustor.gatekeepersdk.utils.GKStringUtils;
 
 public class GKBluetoothCard implements GKCard {
@@ -39,17 +63,94 @@ public class GKBluetoothCard implements GKCard {
     private static final String SRFT = "SRFT";
     private static final String RNFR = "RNFR";
     private static final String RNTO = "RNTO";
+    private static final String NOOP = "NOOP";
+    private static final String REST = "REST";
+    private static final String OPTS = "OPTS";
+    private static final String MODE = "MODE";
+    private static final String PACKET_SIZE_OPTION = "PKT";
+    private static final String CHECKSUM_OPTION = "CRC16";
+    private static final String COMPRESSED_MODE = "Z";
+    private static final String STREAM_MODE = "S";
+
+    /**
+     * The number of times a read is repeated after receiving a corrupt packet.
+     */
+    private static final int MAXIMUM_CORRUPTION_RETRIES = 3;
+
+    /**
+     * Status returned by firmware that does not accept a command while it is still
+     * processing the previous one.
+     */
+    private static final int BAD_SEQUENCE_STATUS = 503;
+
+    /**
+     * Status returned when a download does not have the size the card listed.
+     */
+    private static final int INCOMPLETE_STATUS = 451;
+
+    /**
+     * Delivers {@code Monitor} callbacks for every card that has not been given an executor.
+     */
+    private static final ExecutorService MONITOR_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "GKBluetoothCard monitors");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private final String mCardName;
+    private GKBluetoothDeviceCache mDeviceCache;
     private File mDataCacheDir;
     private GKMultiplexer mMultiplexer;
-    private List<Monitor> mCardMonitors = new ArrayList<>();
+    private UploadPacer mUploadPacer = new UploadPacer.Adaptive();
+    private PayloadSizer mPayloadSizer = new PayloadSizer.Adaptive();
+    private FlushPolicy mFlushPolicy = new FlushPolicy.Coalescing();
+    private final CopyOnWriteArrayList<Monitor> mCardMonitors = new CopyOnWriteArrayList<>();
 
-    private GKCard.ConnectionState mConnectionState = GKCard.ConnectionState.DISCONNECTED;
+    private volatile GKCard.ConnectionState mConnectionState = GKCard.ConnectionState.DISCONNECTED;
+    // states waiting to be delivered to monitors; also guards changes to mConnectionState
+    private final ArrayDeque<ConnectionState> mPendingStates = new ArrayDeque<>();
+    private ConnectionState mDeliveredState = GKCard.ConnectionState.DISCONNECTED;
+    private boolean mDelivering;
+    private volatile Executor mMonitorExecutor = MONITOR_EXECUTOR;
+    private final Runnable mStateDelivery = new Runnable() {
+        @Override
+        public void run() {
+            deliverStates();
+        }
+    };
     private BluetoothSocket mBluetoothSocket;
     private final GKBluetoothUtil GKBluetoothUtil = new GKBluetoothUtil();
 
-    private Boolean isActive = false;
+    private final Semaphore mCommandPermit = new Semaphore(1, true);
+    // the thread whose action holds the permit; a DataStream holds it until closed
+    private volatile Thread mCommandOwner;
+    private volatile Boolean isActive = false;
+    private volatile boolean mPipeliningEnabled = true;
+    private volatile int mRequestedPayloadSize = DataPacket.MAXIMUM_PAYLOAD_SIZE;
+    private volatile boolean mPayloadSizeNegotiable = true;
+    private volatile boolean mChecksumRequested = true;
+    private volatile boolean mChecksumNegotiable = true;
+    private volatile boolean mFullDuplexEnabled;
+    private volatile int mRequestedCompressionLevel = GKMultiplexer.COMPRESSION_OFF;
+    private volatile boolean mCompressionNegotiable = true;
+    private volatile boolean mCompressionNegotiated;
+
+    private final GKTransferStatistics mTransferStatistics = new GKTransferStatistics();
+    private volatile GKConnectionStatistics mConnectionStatistics = new GKConnectionStatistics();
+    private final AtomicLong mConnectCount = new AtomicLong();
+    private final AtomicLong mTotalConnectNanos = new AtomicLong();
+    private volatile long mLastConnectNanos;
+
+    private final Object mIdleMonitorLock = new Object();
+    private ScheduledExecutorService mIdleMonitor;
+    private ScheduledFuture<?> mIdleCheck;
+    private volatile long mIdleTimeoutMillis;
+    private volatile long mKeepAliveIntervalMillis;
+    private volatile long mLastCommandNanos;
+    private volatile long mLastTrafficNanos;
 
     /**
      * Create a {@code GKBluetoothCard} to connect with the GateKeeper Card having the
@@ -60,72 +161,242 @@ public class GKBluetoothCard implements GKCard {
      *                     Ex: context.getExternalCacheDir()
      */
     public GKBluetoothCard(String cardName, File dataCacheDir) {
+        this(cardName, dataCacheDir, null);
+    }
+
+    /**
+     * Create a {@code GKBluetoothCard} to connect with the GateKeeper Card having the
+     * given name, resolving the card through the given {@code GKBluetoothDeviceCache}.
+     *
+     * @param cardName     the Bluetooth pairing name of the GateKeeper Card
+     * @param dataCacheDir a {@code File} that contains the location to create temporary files to store response data.
+     *                     Ex: context.getExternalCacheDir()
+     * @param deviceCache  the {@code GKBluetoothDeviceCache} used to find the card, or {@code null} to use
+     *                     {@link GKBluetoothDeviceCache#getInstance()}
+     * @since 0.21.0
+     */
+    public GKBluetoothCard(String cardName, File dataCacheDir, GKBluetoothDeviceCache deviceCache) {
         mCardName = cardName;
         mDataCacheDir = dataCacheDir;
+        mDeviceCache = deviceCache;
     }
 
     @Override
     public Response list(String cardPath) throws IOException {
-        Log.d(TAG, "list(): cardPath = " + cardPath);
+        GKLog.d(TAG, "list(): cardPath = ", cardPath);
         cardPath = globularPath(cardPath);
-        return get(LIST, cardPath);
+        return get(LIST, cardPath, null);
     }
 
     @Override
     public Response get(String cardPath) throws IOException {
-        Log.d(TAG, "get(): cardPath = " + cardPath);
-        return get(RETR, cardPath);
+        GKLog.d(TAG, "get(): cardPath = ", cardPath);
+        return get(RETR, cardPath, null);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When a data cache directory was given, the data is kept there as it arrives. If the
+     * connection is lost, the next {@code get} of the same path continues where this one
+     * stopped instead of starting over. The file's listing is kept with the data, and a
+     * download only continues while the card still lists the file with the same size and
+     * date.
+     */
     @Override
     public Response get(String cardPath, File localFile) throws IOException {
-        Log.d(TAG, "get(): cardPath = " + cardPath + ", localFile = " + localFile);
-        Response response = get(RETR, cardPath);
+        return get(cardPath, localFile, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A resumed download reports the bytes downloaded before as already transferred.
+     */
+    @Override
+    public Response get(String cardPath, File localFile, GKTransferProgress progress) throws IOException {
+        if (GKLog.isLoggable(GKLog.DEBUG)) {
+            GKLog.d(TAG, "get(): cardPath = " + cardPath + ", localFile = " + localFile);
+        }
+        if (mDataCacheDir == null) {
+            Response response = get(RETR, cardPath, progress);
+            copyResponseDataToLocalFile(response, localFile);
+            return response;
+        }
+
+        File partialFile = getPartialDownloadFile(cardPath);
+        String listing = prepareResume(cardPath, partialFile);
+        Response response = null;
+        for (int retries = 0; response == null; retries++) {
+            try {
+                response = resumeToPartialFile(cardPath, partialFile, progress);
+            } catch (CorruptPacketException e) {
+                // only verified packets reach the partial file, so continue from its end
+                if (retries == MAXIMUM_CORRUPTION_RETRIES) {
+                    throw e;
+                }
+                GKLog.getFlightRecorder().record(TAG, "corrupt packet", cardPath, partialFile.length());
+                GKLog.w(TAG, "get(): corrupt packet, resuming " + cardPath + " at " + partialFile.length() + " bytes", e);
+                mTransferStatistics.onTransferRetried();
+            }
+        }
+        if (response instanceof AbortResponse) {
+            return response;
+        }
+        if (response.getStatus() == 226 && listing != null) {
+            long listedSize = GKFileUtils.parseFile(listing).getFileSize();
+            if (partialFile.length() != listedSize) {
+                response = new Response(INCOMPLETE_STATUS, "Downloaded " + partialFile.length() + " of " + listedSize + " bytes");
+            }
+        }
+        if (response.getStatus() != 226) {
+            discardPartialDownload(cardPath);
+            return response;
+        }
+        response.setDataFile(partialFile);
         copyResponseDataToLocalFile(response, localFile);
+        discardPartialDownload(cardPath);
         return response;
     }
 
     @Override
-    public Response put(String cardPath, InputStream inputStream) throws IOException {
-        Log.d(TAG, "put(): cardPath = " + cardPath + ", inputStream");
-        isActive = true;
+    public Response get(String cardPath, WritableByteChannel channel) throws IOException {
+        if (GKLog.isLoggable(GKLog.DEBUG)) {
+            GKLog.d(TAG, "get(): cardPath = " + cardPath + ", channel");
+        }
+        return retrieve(cardPath, channel, -1, null);
+    }
+
+    @Override
+    public Response get(String cardPath, WritableByteChannel channel, long offset) throws IOException {
+        if (GKLog.isLoggable(GKLog.DEBUG)) {
+            GKLog.d(TAG, "get(): cardPath = " + cardPath + ", channel, offset = " + offset);
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative");
+        }
+        return retrieve(cardPath, channel, offset, null);
+    }
+
+    // An offset of -1 retrieves the file from the start without sending a restart offset.
+    private Response retrieve(String cardPath, WritableByteChannel channel, long offset, GKTransferProgress progress) throws IOException {
+        beginCommand();
         try {
             connect();
             onConnectionChanged(ConnectionState.TRANSFERRING);
-            sendCommand(STOR, cardPath);
+            selectTransferMode(true);
+            if (offset >= 0) {
+                sendCommand(REST, String.valueOf(offset));
+                Response restResponse = getCommandResponse();
+                if (restResponse.getStatus() != 350) {
+                    onConnectionChanged(ConnectionState.CONNECTED);
+                    return new RestartRejectedResponse(restResponse);
+                }
+            }
+            sendCommand(RETR, cardPath);
             Response commandResponse = getCommandResponse();
             if (commandResponse.getStatus() != 150) {
                 onConnectionChanged(ConnectionState.CONNECTED);
                 return commandResponse;
             }
-            mMultiplexer.writeToDataChannel(inputStream);
-            Response dataResponse = getCommandResponse();
+
+            if (progress != null) {
+                progress.onTransferStarted(Math.max(0, offset));
+            }
+            Response dataResponse = new Response(mMultiplexer.readDataChannel(channel, progress));
+            logResponse(dataResponse);
             onConnectionChanged(ConnectionState.CONNECTED);
             return dataResponse;
         } catch (InterruptedException e) {
-            logCommandInterruption(STOR, cardPath, e);
+            logCommandInterruption(RETR, cardPath, e);
             onConnectionChanged(ConnectionState.CONNECTED);
             return new AbortResponse();
         } catch (IOException e) {
             disconnect();
             throw e;
         } finally {
-            isActive = false;
+            endCommand();
         }
     }
 
     @Override
-    public Response rename(String fromCardPath, String toCardPath) throws IOException {
-        Response fromResponse = call(RNFR, fromCardPath);
-        if (fromResponse.getStatus() != 350) {
+    public DataStream getStream(String cardPath) throws IOException {
+        GKLog.d(TAG, "getStream(): cardPath = ", cardPath);
+        beginCommand();
+        boolean streaming = false;
+        try {
+            connect();
+            onConnectionChanged(ConnectionState.TRANSFERRING);
+            selectTransferMode(false);
+            sendCommand(RETR, cardPath);
+            Response commandResponse = getCommandResponse();
+            if (commandResponse.getStatus() != 150) {
+                onConnectionChanged(ConnectionState.CONNECTED);
+                return new CardDataStream(null, commandResponse);
+            }
+            streaming = true;
+            return new CardDataStream(mMultiplexer.openDataChannelStream(), null);
+        } catch (InterruptedException e) {
+            logCommandInterruption(RETR, cardPath, e);
             onConnectionChanged(ConnectionState.CONNECTED);
-            return fromResponse;
+            return new CardDataStream(null, new AbortResponse());
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        } finally {
+            if (!streaming) {
+                endCommand();
+            }
+        }
+    }
+
+    @Override
+    public Response put(String cardPath, InputStream inputStream) throws IOException {
+        if (GKLog.isLoggable(GKLog.DEBUG)) {
+            GKLog.d(TAG, "put(): cardPath = " + cardPath + ", inputStream");
+        }
+        return store(cardPath, inputStream, -1, null);
+    }
+
+    @Override
+    public Response put(String cardPath, InputStream inputStream, GKTransferProgress progress) throws IOException {
+        if (GKLog.isLoggable(GKLog.DEBUG)) {
+            GKLog.d(TAG, "put(): cardPath = " + cardPath + ", inputStream, progress");
+        }
+        return store(cardPath, inputStream, -1, progress);
+    }
+
+    @Override
+    public Response put(String cardPath, InputStream inputStream, long offset) throws IOException {
+        if (GKLog.isLoggable(GKLog.DEBUG)) {
+            GKLog.d(TAG, "put(): cardPath = " + cardPath + ", inputStream, offset = " + offset);
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative");
+        }
+        return store(cardPath, inputStream, offset, null);
+    }
+
+    @Override
+    public Response rename(String fromCardPath, String toCardPath) throws IOException {
+        discardPartialDownload(fromCardPath);
+        discardPartialDownload(toCardPath);
+        beginCommand();
+        try {
+            Response fromResponse = execute(RNFR, fromCardPath);
+            if (fromResponse.getStatus() != 350) {
+                onConnectionChanged(ConnectionState.CONNECTED);
+                return fromResponse;
+            }
+            return execute(RNTO, toCardPath);
+        } finally {
+            endCommand();
         }
-        return call(RNTO, toCardPath);
     }
 
     @Override
     public Response delete(String cardPath) throws IOException {
+        discardPartialDownload(cardPath);
         return call(DELE, cardPath);
     }
 
@@ -145,41 +416,112 @@ public class GKBluetoothCard implements GKCard {
         return call(SRFT, timestamp + " " + cardPath);
     }
 
+    @Override
+    public List<Response> batch(List<Command> commands) throws IOException {
+        GKLog.d(TAG, "batch(): commands = ", commands.size());
+        List<Response> responses = new ArrayList<>(commands.size());
+        beginCommand();
+        try {
+            if (!mPipeliningEnabled) {
+                for (Command command : commands) {
+                    responses.add(execute(getMethod(command), command.getCardPath()));
+                }
+                return responses;
+            }
+
+            connect();
+            onConnectionChanged(ConnectionState.TRANSFERRING);
+            for (Command command : commands) {
+                sendCommand(getMethod(command), command.getCardPath());
+            }
+            for (int i = 0; i < commands.size(); i++) {
+                responses.add(getCommandResponse());
+            }
+            for (int i = 0; i < commands.size(); i++) {
+                if (responses.get(i).getStatus() == BAD_SEQUENCE_STATUS) {
+                    GKLog.i(TAG, "batch(): card rejected pipelined commands, falling back to serial mode");
+                    mPipeliningEnabled = false;
+                    Command command = commands.get(i);
+                    responses.set(i, execute(getMethod(command), command.getCardPath()));
+                }
+            }
+            onConnectionChanged(ConnectionState.CONNECTED);
+            return responses;
+        } catch (InterruptedException e) {
+            GKLog.e(TAG, "batch interrupted", e);
+            onConnectionChanged(ConnectionState.CONNECTED);
+            while (responses.size() < commands.size()) {
+                responses.add(new AbortResponse());
+            }
+            return responses;
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        } finally {
+            endCommand();
+        }
+    }
+
+    /**
+     * Enable or disable pipelining of {@code batch} commands. Pipelining is disabled
+     * automatically if the card rejects a pipelined command.
+     *
+     * @param enabled {@code true} to send batched commands back-to-back
+     * @since 0.21.0
+     */
+    public void setPipeliningEnabled(boolean enabled) {
+        mPipeliningEnabled = enabled;
+    }
+
+    /**
+     * @return whether {@code batch} commands are sent back-to-back
+     * @since 0.21.0
+     */
+    public boolean isPipeliningEnabled() {
+        return mPipeliningEnabled;
+    }
+
     @Override
     public void connect() throws IOException {
-        Log.d(TAG, "connect()");
+        GKLog.d(TAG, "connect()");
         if (isDisconnected()) {
             disconnect();
             onConnectionChanged(ConnectionState.CONNECTING);
-            BluetoothDevice bluetoothDevice = findBluetoothDevice();
-            if (bluetoothDevice == null) {
-                return;
-            }
             try {
-
-                mBluetoothSocket = bluetoothDevice.createRfcommSocketToServiceRecord(BLUETOOTH_SPP_UUID);
+                long connectStart = System.nanoTime();
+                GKMultiplexer multiplexer = openConnection();
+                if (multiplexer == null) {
+                    return;
+                }
+                long connectNanos = System.nanoTime() - connectStart;
+                mLastConnectNanos = connectNanos;
+                mTotalConnectNanos.addAndGet(connectNanos);
+                mConnectCount.incrementAndGet();
+                GKLog.getFlightRecorder().record(TAG, "connected", mCardName, TimeUnit.NANOSECONDS.toMillis(connectNanos));
+                GKLog.i(TAG, "connect(): connected in " + TimeUnit.NANOSECONDS.toMillis(connectNanos) + "ms");
+                multiplexer.setUploadPacer(mUploadPacer);
+                multiplexer.setPayloadSizer(mPayloadSizer);
+                multiplexer.setFlushPolicy(mFlushPolicy);
+                mConnectionStatistics = multiplexer.getStatistics();
+                if (mFullDuplexEnabled) {
+                    multiplexer.startFullDuplex(mDataCacheDir);
+                }
+                mMultiplexer = multiplexer;
+                mCompressionNegotiated = false;
                 try {
-                    mBluetoothSocket.connect();
-                } catch (Exception e1) {
-                    Log.e(TAG, e1.getMessage());
-                    try {
-/*
-                        Log.d(TAG, "Recycle bluetooth adaptor");
-                        GKBluetoothUtil.cycleBluetoothAdaptor();
-*/
-                        Log.d(TAG, "Attempt to connect again");
-                        mBluetoothSocket.connect();
-                    } catch (Exception e2) {
-                        Log.e(TAG, e2.getMessage());
-                        throw e2;
-                    }
+                    negotiatePayloadSize();
+                    negotiateChecksum();
+                    negotiateCompression();
+                } catch (IOException e) {
+                    disconnect();
+                    throw e;
                 }
-                Log.d(TAG, "Get input and output streams");
-                InputStream inputStream = mBluetoothSocket.getInputStream();
-                OutputStream outputStream = mBluetoothSocket.getOutputStream();
-                mMultiplexer = new GKMultiplexer(inputStream, outputStream);
+                mLastCommandNanos = System.nanoTime();
+                mLastTrafficNanos = mLastCommandNanos;
                 onConnectionChanged(ConnectionState.CONNECTED);
+                startIdleMonitor();
             } catch (IOException e) {
+                GKLog.getFlightRecorder().record(TAG, "connect failed", e);
                 mMultiplexer = null;
                 onConnectionChanged(ConnectionState.DISCONNECTED);
                 throw e;
@@ -189,81 +531,133 @@ public class GKBluetoothCard implements GKCard {
 
     @Override
     public void disconnect() throws IOException {
-        Log.d(TAG, "disconnect()");
-        onConnectionChanged(ConnectionState.DISCONNECTING);
-        if (mMultiplexer != null) {
-            try {
-                mMultiplexer.cleanup();
-            } finally {
-                mMultiplexer = null;
-            }
+        GKLog.d(TAG, "disconnect()");
+        stopIdleMonitor();
+        GKMultiplexer multiplexer = mMultiplexer;
+        if (multiplexer != null) {
+            // a corrupt packet always ends the connection, so this counts every one
+            mTransferStatistics.onCorruptPackets(multiplexer.getCorruptPacketCount());
         }
-        if (mBluetoothSocket != null) {
-            mBluetoothSocket.close();
+        // DISCONNECTING clears mMultiplexer, so clean up the one captured above
+        onConnectionChanged(ConnectionState.DISCONNECTING);
+        if (multiplexer != null) {
+            multiplexer.cleanup();
         }
+        closeConnection();
         onConnectionChanged(ConnectionState.DISCONNECTED);
     }
 
     @Override
     public ConnectionState getConnectionState() {
-        Log.d(TAG, "getConnectionState()");
-        synchronized (mCardMonitors) {
-            return mConnectionState;
-        }
+        return mConnectionState;
     }
 
+    /**
+     * Monitors are called on the monitor executor, never on the thread that changed the
+     * state, so a slow monitor cannot hold up a transfer. States reach monitors in order, but
+     * while monitors are behind, a run of {@code TRANSFERRING} and {@code CONNECTED} states
+     * is delivered as its last state only, and not at all when that is the state monitors
+     * were last given.
+     */
     @Override
     public void onConnectionChanged(ConnectionState state) {
-        Log.d(TAG, "onConnectionChanged()");
-        synchronized (mCardMonitors) {
+        boolean startDelivery;
+        synchronized (mPendingStates) {
             if (mConnectionState.equals(state)) {
                 return;
             }
+            GKLog.getFlightRecorder().record(TAG, "state", state);
+            GKLog.d(TAG, "onConnectionChanged(): ", state);
             mConnectionState = state;
             if (state.equals(ConnectionState.DISCONNECTING) || state.equals(ConnectionState.DISCONNECTED)) {
                 mMultiplexer = null;
             }
-            for (Monitor monitor : mCardMonitors) {
-                monitor.onStateChanged(state);
-            }
+            startDelivery = queueState(state);
         }
+        if (startDelivery) {
+            startDelivery();
+        }
+    }
+
+    /**
+     * Set the {@code Executor} that {@code Monitor}s are called on. By default they are called
+     * on a background thread shared by every {@code GKBluetoothCard}; pass an {@code Executor}
+     * that posts to the main thread to update the UI directly. Monitors of one card are never
+     * called concurrently.
+     *
+     * @param executor the {@code Executor} to call monitors on, or {@code null} to use the
+     *                 shared background thread
+     * @since 0.21.0
+     */
+    public void setMonitorExecutor(Executor executor) {
+        mMonitorExecutor = executor == null ? MONITOR_EXECUTOR : executor;
     }
 
     @Override
     public void addMonitor(Monitor monitor) {
-        synchronized (mCardMonitors) {
-            if (!mCardMonitors.contains(monitor)) {
-                mCardMonitors.add(monitor);
-            }
-        }
-    }    @Override
-         public String findDeviceAddress() {
+        mCardMonitors.addIfAbsent(monitor);
+    }
 
-        Log.d(TAG, "findDeviceAddress()");
-        BluetoothAdapter adapter = getBluetoothAdapter();
-        String address = "";
+    @Override
+    public String findDeviceAddress() {
+        GKLog.d(TAG, "findDeviceAddress()");
+        BluetoothDevice device = getDeviceCache().getDevice(mCardName);
+        return device == null ? "" : device.getAddress();
+    }
 
-        if (!adapter.isEnabled()) {
-            return address;
-        }
+    @Override
+    public void removeMonitor(Monitor monitor) {
+        mCardMonitors.remove(monitor);
+    }
 
-        Set<BluetoothDevice> pairedDevices = adapter.getBondedDevices();
-        for (BluetoothDevice device : pairedDevices) {
-            Log.d(TAG, "findBluetoothDevice(): device.getName() = " + device.getName());
-            Log.d(TAG, "findBluetoothDevice(): device.getAddress() = " + device.getAddress());
-            if (device.getName().equals(mCardName)) {
-                return device.getAddress();
+    // Called holding mPendingStates. Returns whether a delivery needs to be started.
+    private boolean queueState(ConnectionState state) {
+        ConnectionState last = mPendingStates.peekLast();
+        if (last != null && isBusyState(last) && isBusyState(state)) {
+            mPendingStates.removeLast();
+            ConnectionState previous = mPendingStates.isEmpty() ? mDeliveredState : mPendingStates.peekLast();
+            if (previous.equals(state)) {
+                return false;
             }
         }
+        mPendingStates.addLast(state);
+        if (mDelivering) {
+            return false;
+        }
+        mDelivering = true;
+        return true;
+    }
 
-        return address;
+    private boolean isBusyState(ConnectionState state) {
+        return state.equals(ConnectionState.CONNECTED) || state.equals(ConnectionState.TRANSFERRING);
     }
 
-    @Override
-    public void removeMonitor(Monitor monitor) {
-        synchronized (mCardMonitors) {
-            if (mCardMonitors.contains(monitor)) {
-                mCardMonitors.remove(monitor);
+    private void startDelivery() {
+        try {
+            mMonitorExecutor.execute(mStateDelivery);
+        } catch (RejectedExecutionException e) {
+            GKLog.w(TAG, "Monitor executor rejected the delivery; calling monitors directly", e);
+            deliverStates();
+        }
+    }
+
+    private void deliverStates() {
+        while (true) {
+            ConnectionState state;
+            synchronized (mPendingStates) {
+                state = mPendingStates.pollFirst();
+                if (state == null) {
+                    mDelivering = false;
+                    return;
+                }
+                mDeliveredState = state;
+            }
+            for (Monitor monitor : mCardMonitors) {
+                try {
+                    monitor.onStateChanged(state);
+                } catch (RuntimeException e) {
+                    GKLog.e(TAG, "Monitor failed handling " + state, e);
+                }
             }
         }
     }
@@ -275,107 +669,838 @@ public class GKBluetoothCard implements GKCard {
     }
 
     @Override
-    public long getCurrentDataTransferSize() { return mMultiplexer.getCurrentDataTransferSize(); }
-
-    private boolean isDisconnected() {
-        return mMultiplexer == null || mBluetoothSocket == null || !mBluetoothSocket.isConnected();
+    public long getCurrentDataTransferSize() {
+        GKMultiplexer multiplexer = mMultiplexer;
+        return multiplexer == null ? 0 : multiplexer.getCurrentDataTransferSize();
     }
 
-    private Response get(String method, String cardPath) throws IOException {
-        Log.d(TAG, "get(): method = " + method + ", cardPath = " + cardPath);
-        isActive = true;
-        try {
-            File dataFile = createDataFile();
-            connect();
-            onConnectionChanged(ConnectionState.TRANSFERRING);
-            sendCommand(method, cardPath);
-            Response commandResponse = getCommandResponse();
-            if (commandResponse.getStatus() != 150) {
-                onConnectionChanged(ConnectionState.CONNECTED);
-                return commandResponse;
-            }
-
-            Response dataResponse = new Response(mMultiplexer.readDataChannelToFile(dataFile), dataFile);
-            Log.i(TAG, "Card Response: '" + dataResponse.getStatusMessage() + "'");
-            onConnectionChanged(ConnectionState.CONNECTED);
-            return dataResponse;
-        } catch (InterruptedException e) {
-            logCommandInterruption(method, cardPath, e);
-            onConnectionChanged(ConnectionState.CONNECTED);
-            return new AbortResponse();
-        } catch (IOException e) {
-            disconnect();
-            throw e;
-        } finally {
-            isActive = false;
+    /**
+     * Assign the strategy used to pace uploads to the GateKeeper Card.
+     *
+     * @param uploadPacer the {@code UploadPacer} used by {@code put} actions
+     * @since 0.21.0
+     */
+    public void setUploadPacer(UploadPacer uploadPacer) {
+        mUploadPacer = uploadPacer;
+        GKMultiplexer multiplexer = mMultiplexer;
+        if (multiplexer != null) {
+            multiplexer.setUploadPacer(uploadPacer);
         }
     }
 
-    private void copyResponseDataToLocalFile(Response response, File localFile) throws IOException {
-        Log.d(TAG, "copyResponseDataToLocalFile()");
-        File tempDataFile = response.getDataFile();
-        FileChannel src = null;
-        FileChannel dest = null;
-        try {
-            Log.d(TAG, "copyResponseDataToLocalFile(): tempDataFile " + tempDataFile);
-            Log.d(TAG, "copyResponseDataToLocalFile(): localFile " + localFile);
-            src = new FileInputStream(tempDataFile).getChannel();
-            dest = new FileOutputStream(localFile).getChannel();
-            dest.transferFrom(src, 0, src.size());
-        } finally {
-            response.setDataFile(localFile);
-            if (src != null) {
-                src.close();
-            }
-            if (dest != null) {
-                dest.close();
-            }
+    /**
+     * Assign the strategy used to size data channel packets in {@code put} actions.
+     *
+     * @param payloadSizer the {@code PayloadSizer} used by {@code put} actions
+     * @since 0.21.0
+     */
+    public void setPayloadSizer(PayloadSizer payloadSizer) {
+        mPayloadSizer = payloadSizer;
+        GKMultiplexer multiplexer = mMultiplexer;
+        if (multiplexer != null) {
+            multiplexer.setPayloadSizer(payloadSizer);
         }
     }
 
-    private File createDataFile() throws IOException {
-        Log.d(TAG, "createDataFile()");
-        return File.createTempFile("data", "tmp", mDataCacheDir);
+    /**
+     * Assign the policy deciding when packets are written to the Bluetooth socket.
+     *
+     * @param flushPolicy the {@code FlushPolicy} used for every packet sent to the card
+     * @since 0.21.0
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        mFlushPolicy = flushPolicy;
+        GKMultiplexer multiplexer = mMultiplexer;
+        if (multiplexer != null) {
+            multiplexer.setFlushPolicy(flushPolicy);
+        }
     }
 
-    private Response call(String method, String cardPath) throws IOException {
-        Log.d(TAG, "call(): method = " + method + ", cardPath = " + cardPath);
-        isActive = true;
-        try {
-            connect();
-            onConnectionChanged(ConnectionState.TRANSFERRING);
-            sendCommand(method, cardPath);
-            Response commandResponse = getCommandResponse();
-            onConnectionChanged(ConnectionState.CONNECTED);
-            return commandResponse;
-        } catch (InterruptedException e) {
-            logCommandInterruption(method, cardPath, e);
-            onConnectionChanged(ConnectionState.CONNECTED);
-            return new AbortResponse();
-        } catch (IOException e) {
-            disconnect();
-            throw e;
-        } finally {
-            isActive = false;
+    /**
+     * Assign the largest data channel payload to ask the card for when connecting. Cards
+     * that cannot negotiate a size, and any request of {@link GKMultiplexer#MAXIMUM_PAYLOAD_SIZE}
+     * or less, use {@code GKMultiplexer.MAXIMUM_PAYLOAD_SIZE}. Takes effect on the next
+     * connection.
+     *
+     * @param payloadSize the payload size to request, at most {@link DataPacket#MAXIMUM_PAYLOAD_SIZE}
+     * @since 0.21.0
+     */
+    public void setRequestedPayloadSize(int payloadSize) {
+        if (payloadSize <= 0 || payloadSize > DataPacket.MAXIMUM_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Payload size must be from 1 to " + DataPacket.MAXIMUM_PAYLOAD_SIZE);
         }
+        mRequestedPayloadSize = payloadSize;
     }
 
-    private void sendCommand(String method, String argument) throws IOException {
-        Log.d(TAG, "sendCommand(): method = " + method + ", argument = " + argument);
-        checkMultiplexer();
-        String cmd = buildCommandString(method, argument);
-        Log.i(TAG, "sendCommand(): Sending Command: '" + cmd.trim() + "'");
-        byte[] bytes = getCommandBytes(cmd);
-        mMultiplexer.writeToCommandChannel(bytes);
+    /**
+     * @return the largest data channel payload the card accepts on the current connection,
+     * or {@link GKMultiplexer#MAXIMUM_PAYLOAD_SIZE} when not connected
+     * @since 0.21.0
+     */
+    public int getMaximumPayloadSize() {
+        GKMultiplexer multiplexer = mMultiplexer;
+        return multiplexer == null ? GKMultiplexer.MAXIMUM_PAYLOAD_SIZE : multiplexer.getMaximumPayloadSize();
     }
 
-    private Response getCommandResponse() throws IOException, InterruptedException {
+    /**
+     * Ask the card to protect every packet with a CRC-16 when connecting. Corrupt downloads
+     * and listings are then read again rather than returned, and the card rejects corrupt
+     * uploads with status 426. Cards that cannot negotiate checksums send packets without
+     * them. Enabled by default; takes effect on the next connection.
+     *
+     * @param enabled whether to ask for checksums
+     * @since 0.21.0
+     */
+    public void setChecksumEnabled(boolean enabled) {
+        mChecksumRequested = enabled;
+    }
+
+    /**
+     * @return whether packets on the current connection carry a CRC-16
+     * @since 0.21.0
+     */
+    public boolean isChecksumActive() {
+        GKMultiplexer multiplexer = mMultiplexer;
+        return multiplexer != null && multiplexer.isChecksumEnabled();
+    }
+
+    /**
+     * Ask the card to compress the data channel with DEFLATE at the given level when
+     * connecting. Downloads and listings are then compressed, as are uploads unless a sample
+     * from the start of the file shows it is already compressed, such as an image or an
+     * archive. {@link GKTransferProgress} reports the compression ratio and the time saved for
+     * each transfer. Streams from {@link #getStream(String)} are never compressed, and cards
+     * that cannot negotiate compression send the data channel as is. Disabled by default;
+     * takes effect on the next connection.
+     *
+     * @param level the level from {@code 0}, fastest, to {@code 9}, smallest, or
+     *              {@link GKMultiplexer#COMPRESSION_OFF} to disable compression
+     * @since 0.21.0
+     */
+    public void setCompressionLevel(int level) {
+        if (level < GKMultiplexer.COMPRESSION_OFF || level > 9) {
+            throw new IllegalArgumentException("Compression level must be from " + GKMultiplexer.COMPRESSION_OFF + " to 9");
+        }
+        mRequestedCompressionLevel = level;
+    }
+
+    /**
+     * @return whether the card agreed to compress the data channel on the current connection
+     * @since 0.21.0
+     */
+    public boolean isCompressionActive() {
+        return mMultiplexer != null && mCompressionNegotiated;
+    }
+
+    /**
+     * @return the number of corrupt packets received over the current connection
+     * @since 0.21.0
+     */
+    public long getCorruptPacketCount() {
+        GKMultiplexer multiplexer = mMultiplexer;
+        return multiplexer == null ? 0 : multiplexer.getCorruptPacketCount();
+    }
+
+    /**
+     * Read from the card on a dedicated thread, so that responses sent while an upload is being
+     * written are seen straight away and the card is never left waiting on a full socket.
+     * Downloaded data that is not read in time is queued in memory and then spilled to the
+     * data cache directory. Disabled by default; takes effect on the next connection.
+     *
+     * @param enabled whether to read from the card on a dedicated thread
+     * @see GKMultiplexer#startFullDuplex(File)
+     * @since 0.21.0
+     */
+    public void setFullDuplexEnabled(boolean enabled) {
+        mFullDuplexEnabled = enabled;
+    }
+
+    /**
+     * @return whether the current connection reads from the card on a dedicated thread
+     * @since 0.21.0
+     */
+    public boolean isFullDuplexActive() {
+        GKMultiplexer multiplexer = mMultiplexer;
+        return multiplexer != null && multiplexer.isFullDuplex();
+    }
+
+    /**
+     * Close the connection once no command has been issued for the given time, so that an
+     * idle card can power down its radio. The next command reconnects.
+     *
+     * @param idleTimeoutMillis the idle time after which to disconnect, or {@code 0} to stay
+     *                          connected
+     * @since 0.21.0
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        restartIdleMonitor();
+    }
+
+    /**
+     * Probe an idle connection with a {@code NOOP} command at the given interval. A probe that
+     * fails closes the connection and reconnects right away, so the next command does not find
+     * a dead socket.
+     *
+     * @param keepAliveIntervalMillis the idle time between probes, or {@code 0} to not probe
+     * @since 0.21.0
+     */
+    public void setKeepAliveInterval(long keepAliveIntervalMillis) {
+        mKeepAliveIntervalMillis = keepAliveIntervalMillis;
+        restartIdleMonitor();
+    }
+
+    /**
+     * @return the {@code GKTransferStatistics} for transfers made through this card
+     * @since 0.21.0
+     */
+    public GKTransferStatistics getTransferStatistics() {
+        return mTransferStatistics;
+    }
+
+    /**
+     * @return the {@code GKConnectionStatistics} of the current connection, or of the last
+     * one once disconnected. Each connection starts a new {@code GKConnectionStatistics}.
+     * @since 0.21.0
+     */
+    public GKConnectionStatistics getConnectionStatistics() {
+        return mConnectionStatistics;
+    }
+
+    /**
+     * @return the number of connections established
+     * @since 0.21.0
+     */
+    public long getConnectCount() {
+        return mConnectCount.get();
+    }
+
+    /**
+     * @return the time taken to establish the most recent connection, in nanoseconds
+     * @since 0.21.0
+     */
+    public long getLastConnectNanos() {
+        return mLastConnectNanos;
+    }
+
+    /**
+     * @return the time taken to establish every connection so far, in nanoseconds
+     * @since 0.21.0
+     */
+    public long getTotalConnectNanos() {
+        return mTotalConnectNanos.get();
+    }
+
+    /**
+     * Open the RFCOMM connection to the GateKeeper Card.
+     *
+     * @return a {@code GKMultiplexer} over the new connection, or {@code null} when the card
+     * cannot be reached and the {@code ConnectionState} has been updated to say why
+     * @throws IOException when the connection cannot be established
+     */
+    protected GKMultiplexer openConnection() throws IOException {
+        BluetoothDevice bluetoothDevice = findBluetoothDevice();
+        if (bluetoothDevice == null) {
+            return null;
+        }
+
+        mBluetoothSocket = bluetoothDevice.createRfcommSocketToServiceRecord(BLUETOOTH_SPP_UUID);
+        try {
+            mBluetoothSocket.connect();
+        } catch (Exception e1) {
+            GKLog.e(TAG, e1.getMessage());
+            try {
+/*
+                GKLog.d(TAG, "Recycle bluetooth adaptor");
+                GKBluetoothUtil.cycleBluetoothAdaptor();
+*/
+                GKLog.d(TAG, "Attempt to connect again");
+                mBluetoothSocket.connect();
+            } catch (Exception e2) {
+                GKLog.e(TAG, e2.getMessage());
+                // the card may have been unpaired or paired again, so search on the next attempt
+                getDeviceCache().invalidate(mCardName);
+                throw e2;
+            }
+        }
+        GKLog.d(TAG, "Get input and output streams");
+        InputStream inputStream = mBluetoothSocket.getInputStream();
+        OutputStream outputStream = mBluetoothSocket.getOutputStream();
+        return new GKMultiplexer(inputStream, outputStream);
+    }
+
+    /**
+     * @return whether the connection opened by {@link #openConnection()} is still open
+     */
+    protected boolean isConnectionOpen() {
+        return mBluetoothSocket != null && mBluetoothSocket.isConnected();
+    }
+
+    /**
+     * Close the connection opened by {@link #openConnection()}.
+     *
+     * @throws IOException when closing the connection fails
+     */
+    protected void closeConnection() throws IOException {
+        if (mBluetoothSocket != null) {
+            mBluetoothSocket.close();
+        }
+    }
+
+    private boolean isDisconnected() {
+        return mMultiplexer == null || !isConnectionOpen();
+    }
+
+    // Reads do not change the card, so one spoiled by a corrupt packet is simply made again
+    // over a new connection.
+    private Response get(String method, String cardPath, GKTransferProgress progress) throws IOException {
+        for (int retries = 0; ; retries++) {
+            try {
+                return getOnce(method, cardPath, progress);
+            } catch (CorruptPacketException e) {
+                if (retries == MAXIMUM_CORRUPTION_RETRIES) {
+                    throw e;
+                }
+                GKLog.getFlightRecorder().record(TAG, "corrupt packet", cardPath);
+                GKLog.w(TAG, "get(): corrupt packet, retrying " + method + " " + cardPath, e);
+                mTransferStatistics.onTransferRetried();
+            }
+        }
+    }
+
+    private Response getOnce(String method, String cardPath, GKTransferProgress progress) throws IOException {
+        if (GKLog.isLoggable(GKLog.DEBUG)) {
+            GKLog.d(TAG, "get(): method = " + method + ", cardPath = " + cardPath);
+        }
+        beginCommand();
+        try {
+            File dataFile = createDataFile();
+            connect();
+            onConnectionChanged(ConnectionState.TRANSFERRING);
+            selectTransferMode(true);
+            sendCommand(method, cardPath);
+            Response commandResponse = getCommandResponse();
+            if (commandResponse.getStatus() != 150) {
+                onConnectionChanged(ConnectionState.CONNECTED);
+                dataFile.delete();
+                return commandResponse;
+            }
+
+            if (progress != null) {
+                progress.onTransferStarted(0);
+            }
+            Response dataResponse = new Response(mMultiplexer.readDataChannelToFile(dataFile, progress), dataFile);
+            logResponse(dataResponse);
+            onConnectionChanged(ConnectionState.CONNECTED);
+            return dataResponse;
+        } catch (InterruptedException e) {
+            logCommandInterruption(method, cardPath, e);
+            onConnectionChanged(ConnectionState.CONNECTED);
+            return new AbortResponse();
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        } finally {
+            endCommand();
+        }
+    }
+
+    // An offset of -1 stores the file from the start without sending a restart offset.
+    private Response store(String cardPath, InputStream inputStream, long offset, GKTransferProgress progress) throws IOException {
+        discardPartialDownload(cardPath);
+        beginCommand();
+        try {
+            connect();
+            onConnectionChanged(ConnectionState.TRANSFERRING);
+            boolean compress = false;
+            if (mCompressionNegotiated) {
+                if (!inputStream.markSupported()) {
+                    inputStream = new BufferedInputStream(inputStream, EntropyEstimator.SAMPLE_SIZE);
+                }
+                compress = EntropyEstimator.isCompressible(inputStream);
+            }
+            selectTransferMode(compress);
+            if (offset >= 0) {
+                sendCommand(REST, String.valueOf(offset));
+                Response restResponse = getCommandResponse();
+                if (restResponse.getStatus() != 350) {
+                    onConnectionChanged(ConnectionState.CONNECTED);
+                    return restResponse;
+                }
+            }
+            sendCommand(STOR, cardPath);
+            Response commandResponse = getCommandResponse();
+            if (commandResponse.getStatus() != 150) {
+                onConnectionChanged(ConnectionState.CONNECTED);
+                return commandResponse;
+            }
+            if (progress != null) {
+                progress.onTransferStarted(Math.max(0, offset));
+            }
+            mMultiplexer.writeToDataChannel(inputStream, progress);
+            Response dataResponse = getCommandResponse();
+            onConnectionChanged(ConnectionState.CONNECTED);
+            return dataResponse;
+        } catch (InterruptedException e) {
+            logCommandInterruption(STOR, cardPath, e);
+            onConnectionChanged(ConnectionState.CONNECTED);
+            return new AbortResponse();
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        } finally {
+            endCommand();
+        }
+    }
+
+    private Response resumeToPartialFile(String cardPath, File partialFile, GKTransferProgress progress) throws IOException {
+        long offset = partialFile.length();
+        Response response = retrieveToPartialFile(cardPath, partialFile, offset, progress);
+        if (response instanceof RestartRejectedResponse) {
+            GKLog.i(TAG, "get(): card cannot resume " + cardPath + " at " + offset + " bytes, starting over");
+            response = retrieveToPartialFile(cardPath, partialFile, 0, progress);
+        } else if (offset > 0 && response.getStatus() == 226) {
+            mTransferStatistics.onDownloadResumed(offset);
+        }
+        return response;
+    }
+
+    private Response retrieveToPartialFile(String cardPath, File partialFile, long offset, GKTransferProgress progress) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(partialFile, offset > 0);
+        try {
+            return retrieve(cardPath, outputStream.getChannel(), offset > 0 ? offset : -1, progress);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    // Partial downloads are named after the card and path they belong to, so the next get of
+    // the same path finds them, even after the app has restarted.
+    private File getPartialDownloadFile(String cardPath) {
+        return new File(mDataCacheDir, getPartialDownloadName(cardPath) + ".part");
+    }
+
+    // The card's listing of the file a partial download was started from.
+    private File getPartialListingFile(String cardPath) {
+        return new File(mDataCacheDir, getPartialDownloadName(cardPath) + ".listing");
+    }
+
+    private String getPartialDownloadName(String cardPath) {
+        byte[] key = (mCardName + "\n" + cardPath).getBytes(StandardCharsets.UTF_8);
+        return "download-" + UUID.nameUUIDFromBytes(key);
+    }
+
+    // Discards the partial download unless the card lists the file as it was when the
+    // download started, and remembers the current listing. Returns that listing, or null
+    // when the card does not list the file.
+    private String prepareResume(String cardPath, File partialFile) throws IOException {
+        String listing = getFileListing(cardPath);
+        File listingFile = getPartialListingFile(cardPath);
+        String partialListing = listingFile.exists() ? GKFileUtils.readFile(listingFile).trim() : null;
+        if (partialFile.length() > 0 && (listing == null || !listing.equals(partialListing))) {
+            GKLog.i(TAG, "get(): " + cardPath + " changed since the partial download, starting over");
+            partialFile.delete();
+        }
+        if (listing == null) {
+            listingFile.delete();
+        } else if (!listing.equals(partialListing)) {
+            FileOutputStream outputStream = new FileOutputStream(listingFile);
+            try {
+                outputStream.write(listing.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                outputStream.close();
+            }
+        }
+        return listing;
+    }
+
+    // Returns the line listing the file at cardPath in its directory, or null if there is none.
+    private String getFileListing(String cardPath) throws IOException {
+        int index = cardPath.lastIndexOf('/');
+        String parentPath = index > 0 ? cardPath.substring(0, index) : "/";
+        String name = cardPath.substring(index + 1);
+        Response response = list(parentPath);
+        try {
+            if (response.getStatus() != 226) {
+                return null;
+            }
+            for (String line : response.readDataFile().split("\r?\n")) {
+                GKFile file = GKFileUtils.parseFile(line);
+                if (file != null && file.getType() == GKFile.Type.FILE && file.getName().equals(name)) {
+                    return line.trim();
+                }
+            }
+            return null;
+        } finally {
+            if (response.getDataFile() != null) {
+                response.getDataFile().delete();
+            }
+        }
+    }
+
+    // A file changed through this card must not be resumed from data downloaded before.
+    private void discardPartialDownload(String cardPath) {
+        if (mDataCacheDir != null) {
+            getPartialDownloadFile(cardPath).delete();
+            getPartialListingFile(cardPath).delete();
+        }
+    }
+
+    private void copyResponseDataToLocalFile(Response response, File localFile) throws IOException {
+        GKLog.d(TAG, "copyResponseDataToLocalFile()");
+        File tempDataFile = response.getDataFile();
+        FileChannel src = null;
+        FileChannel dest = null;
+        try {
+            GKLog.d(TAG, "copyResponseDataToLocalFile(): tempDataFile ", tempDataFile);
+            GKLog.d(TAG, "copyResponseDataToLocalFile(): localFile ", localFile);
+            src = new FileInputStream(tempDataFile).getChannel();
+            dest = new FileOutputStream(localFile).getChannel();
+            dest.transferFrom(src, 0, src.size());
+        } finally {
+            response.setDataFile(localFile);
+            if (src != null) {
+                src.close();
+            }
+            if (dest != null) {
+                dest.close();
+            }
+        }
+    }
+
+    private String getMethod(Command command) {
+        switch (command.getAction()) {
+            case DELETE:
+                return DELE;
+            case CREATE_PATH:
+                return MKD;
+            case DELETE_PATH:
+                return RMD;
+            default:
+                throw new IllegalArgumentException("Unsupported batch action: " + command.getAction());
+        }
+    }
+
+    private File createDataFile() throws IOException {
+        GKLog.d(TAG, "createDataFile()");
+        return File.createTempFile("data", "tmp", mDataCacheDir);
+    }
+
+    private Response call(String method, String cardPath) throws IOException {
+        beginCommand();
+        try {
+            return execute(method, cardPath);
+        } finally {
+            endCommand();
+        }
+    }
+
+    private Response execute(String method, String cardPath) throws IOException {
+        if (GKLog.isLoggable(GKLog.DEBUG)) {
+            GKLog.d(TAG, "execute(): method = " + method + ", cardPath = " + cardPath);
+        }
+        try {
+            connect();
+            onConnectionChanged(ConnectionState.TRANSFERRING);
+            sendCommand(method, cardPath);
+            Response commandResponse = getCommandResponse();
+            onConnectionChanged(ConnectionState.CONNECTED);
+            return commandResponse;
+        } catch (InterruptedException e) {
+            logCommandInterruption(method, cardPath, e);
+            onConnectionChanged(ConnectionState.CONNECTED);
+            return new AbortResponse();
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    // Actions hold the permit from their first command to their last response, so commands
+    // from different threads never interleave on the multiplexer. The permit is not
+    // reentrant, so an action on the thread already holding it would wait for itself.
+    private void beginCommand() throws InterruptedIOException {
+        if (mCommandOwner == Thread.currentThread()) {
+            throw new IllegalStateException("This thread is already running an action on the card; close its DataStream first");
+        }
+        try {
+            mCommandPermit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the card");
+        }
+        mCommandOwner = Thread.currentThread();
+        isActive = true;
+    }
+
+    private void endCommand() {
+        mLastCommandNanos = System.nanoTime();
+        mLastTrafficNanos = mLastCommandNanos;
+        isActive = false;
+        mCommandOwner = null;
+        mCommandPermit.release();
+    }
+
+    private void startIdleMonitor() {
+        synchronized (mIdleMonitorLock) {
+            if (mIdleMonitor != null || (mIdleTimeoutMillis <= 0 && mKeepAliveIntervalMillis <= 0)) {
+                return;
+            }
+            mIdleMonitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "GKBluetoothCard-idle");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduleIdleCheck(getIdleCheckDelayMillis());
+        }
+    }
+
+    private void stopIdleMonitor() {
+        synchronized (mIdleMonitorLock) {
+            if (mIdleMonitor != null) {
+                mIdleCheck.cancel(false);
+                mIdleMonitor.shutdown();
+                mIdleMonitor = null;
+                mIdleCheck = null;
+            }
+        }
+    }
+
+    private void restartIdleMonitor() {
+        synchronized (mIdleMonitorLock) {
+            stopIdleMonitor();
+            if (mMultiplexer != null) {
+                startIdleMonitor();
+            }
+        }
+    }
+
+    private void scheduleIdleCheck(long delayMillis) {
+        synchronized (mIdleMonitorLock) {
+            if (mIdleMonitor == null) {
+                return;
+            }
+            mIdleCheck = mIdleMonitor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    checkIdleConnection();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Runs on the idle monitor thread. Commands hold the permit for their whole exchange, so
+    // a busy card is never probed; the check simply comes back later.
+    private void checkIdleConnection() {
+        if (!mCommandPermit.tryAcquire()) {
+            scheduleIdleCheck(getIdleCheckIntervalMillis());
+            return;
+        }
+        try {
+            if (isDisconnected()) {
+                return;
+            }
+            long now = System.nanoTime();
+            long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(mIdleTimeoutMillis);
+            long keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(mKeepAliveIntervalMillis);
+            if (idleTimeoutNanos > 0 && now - mLastCommandNanos >= idleTimeoutNanos) {
+                GKLog.i(TAG, "Connection idle for " + mIdleTimeoutMillis + "ms, disconnecting");
+                disconnect();
+                return;
+            }
+            if (keepAliveNanos > 0 && now - mLastTrafficNanos >= keepAliveNanos && !probeConnection()) {
+                return;
+            }
+            scheduleIdleCheck(getIdleCheckDelayMillis());
+        } catch (IOException e) {
+            GKLog.e(TAG, "Idle connection check failed", e);
+        } finally {
+            mCommandPermit.release();
+        }
+    }
+
+    // Returns false when the probe failed and the connection was replaced, along with the
+    // idle monitor watching it.
+    private boolean probeConnection() throws IOException {
+        try {
+            checkMultiplexer();
+            mMultiplexer.writeToCommandChannel(getCommandBytes(NOOP));
+            getCommandResponse();
+            mLastTrafficNanos = System.nanoTime();
+            return true;
+        } catch (IOException | InterruptedException e) {
+            // any response proves the link is alive, so only a broken link gets here
+            GKLog.getFlightRecorder().record(TAG, "keep-alive failed", e);
+            GKLog.w(TAG, "Keep-alive probe failed, reconnecting", e);
+            disconnect();
+            connect();
+            return false;
+        }
+    }
+
+    private long getIdleCheckDelayMillis() {
+        long now = System.nanoTime();
+        long delayNanos = Long.MAX_VALUE;
+        if (mIdleTimeoutMillis > 0) {
+            delayNanos = Math.min(delayNanos, mLastCommandNanos + TimeUnit.MILLISECONDS.toNanos(mIdleTimeoutMillis) - now);
+        }
+        if (mKeepAliveIntervalMillis > 0) {
+            delayNanos = Math.min(delayNanos, mLastTrafficNanos + TimeUnit.MILLISECONDS.toNanos(mKeepAliveIntervalMillis) - now);
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayNanos));
+    }
+
+    private long getIdleCheckIntervalMillis() {
+        if (mIdleTimeoutMillis > 0 && mKeepAliveIntervalMillis > 0) {
+            return Math.min(mIdleTimeoutMillis, mKeepAliveIntervalMillis);
+        }
+        return Math.max(mIdleTimeoutMillis, mKeepAliveIntervalMillis);
+    }
+
+    // Asks the card for larger packets with "OPTS PKT <size>". The card replies
+    // "200 PKT <size>" with the size it accepts; firmware that replies anything else keeps
+    // 512 bytes and is not asked again on later connections.
+    private void negotiatePayloadSize() throws IOException {
+        int requestedSize = mRequestedPayloadSize;
+        if (!mPayloadSizeNegotiable || requestedSize <= GKMultiplexer.MAXIMUM_PAYLOAD_SIZE) {
+            return;
+        }
+        try {
+            sendCommand(OPTS, PACKET_SIZE_OPTION + " " + requestedSize);
+            Response response = getCommandResponse();
+            int acceptedSize = parseOptionValue(response, PACKET_SIZE_OPTION);
+            if (acceptedSize <= 0) {
+                mPayloadSizeNegotiable = false;
+                GKLog.i(TAG, "negotiatePayloadSize(): card keeps " + GKMultiplexer.MAXIMUM_PAYLOAD_SIZE + " byte packets");
+                return;
+            }
+            int payloadSize = Math.min(requestedSize, acceptedSize);
+            GKLog.i(TAG, "negotiatePayloadSize(): using " + payloadSize + " byte packets");
+            mMultiplexer.setMaximumPayloadSize(payloadSize);
+        } catch (InterruptedException e) {
+            GKLog.e(TAG, "Payload size negotiation interrupted", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Asks the card for checksummed packets with "OPTS CRC16 ON". Both sides switch once the
+    // card has replied "200 CRC16 ON"; firmware that replies anything else keeps sending zeros
+    // and is not asked again on later connections.
+    private void negotiateChecksum() throws IOException {
+        if (!mChecksumRequested || !mChecksumNegotiable) {
+            return;
+        }
+        try {
+            sendCommand(OPTS, CHECKSUM_OPTION + " ON");
+            Response response = getCommandResponse();
+            String message = response.getMessage();
+            if (response.getStatus() != 200 || message == null || !message.trim().equalsIgnoreCase(CHECKSUM_OPTION + " ON")) {
+                mChecksumNegotiable = false;
+                GKLog.i(TAG, "negotiateChecksum(): card sends packets without checksums");
+                return;
+            }
+            mMultiplexer.setChecksumEnabled(true);
+        } catch (InterruptedException e) {
+            GKLog.e(TAG, "Checksum negotiation interrupted", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Asks the card whether it can compress the data channel with "OPTS MODE Z LEVEL <n>". The
+    // connection stays in stream mode until a transfer selects compressed mode; firmware without
+    // the option is not asked again.
+    private void negotiateCompression() throws IOException {
+        int level = mRequestedCompressionLevel;
+        if (level == GKMultiplexer.COMPRESSION_OFF || !mCompressionNegotiable) {
+            return;
+        }
+        try {
+            sendCommand(OPTS, MODE + " " + COMPRESSED_MODE + " LEVEL " + level);
+            Response response = getCommandResponse();
+            String message = response.getMessage();
+            if (response.getStatus() != 200 || message == null || !message.trim().toUpperCase().startsWith(MODE + " " + COMPRESSED_MODE)) {
+                if (response.isUnsupported()) {
+                    mCompressionNegotiable = false;
+                }
+                GKLog.i(TAG, "negotiateCompression(): card sends the data channel uncompressed");
+                return;
+            }
+            mCompressionNegotiated = true;
+        } catch (InterruptedException e) {
+            GKLog.e(TAG, "Compression negotiation interrupted", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Switches the card and the multiplexer to compressed mode ("MODE Z") or stream mode
+    // ("MODE S") for the next transfer, sending nothing when the mode is already right. A card
+    // that refuses compressed mode is left in stream mode for the rest of the connection.
+    private void selectTransferMode(boolean compress) throws IOException, InterruptedException {
+        int level = mRequestedCompressionLevel;
+        boolean compressed = compress && mCompressionNegotiated && level != GKMultiplexer.COMPRESSION_OFF;
+        if (compressed == (mMultiplexer.getCompressionLevel() != GKMultiplexer.COMPRESSION_OFF)) {
+            return;
+        }
+        sendCommand(MODE, compressed ? COMPRESSED_MODE : STREAM_MODE);
+        Response response = getCommandResponse();
+        if (response.getStatus() != 200) {
+            if (!compressed) {
+                throw new IOException("Card did not leave compressed mode: " + response.getStatusMessage());
+            }
+            GKLog.w(TAG, "selectTransferMode(): card refused compressed mode: " + response.getStatusMessage());
+            mCompressionNegotiated = false;
+            return;
+        }
+        mMultiplexer.setCompressionLevel(compressed ? level : GKMultiplexer.COMPRESSION_OFF);
+    }
+
+    // Returns the number following the option name in a "200 <option> <value>" response, or
+    // -1 when the card did not accept the option.
+    private int parseOptionValue(Response response, String option) {
+        String message = response.getMessage();
+        if (response.getStatus() != 200 || message == null) {
+            return -1;
+        }
+        String[] parts = message.trim().split(" ");
+        if (parts.length < 2 || !parts[0].equalsIgnoreCase(option)) {
+            return -1;
+        }
+        try {
+            return Math.min(Integer.parseInt(parts[1]), DataPacket.MAXIMUM_PAYLOAD_SIZE);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void sendCommand(String method, String argument) throws IOException {
+        checkMultiplexer();
+        String cmd = buildCommandString(method, argument);
+        GKLog.getFlightRecorder().record(TAG, method, argument);
+        if (GKLog.isLoggable(GKLog.DEBUG)) {
+            GKLog.d(TAG, "sendCommand(): Sending Command: '" + cmd.trim() + "'");
+        }
+        byte[] bytes = getCommandBytes(cmd);
+        mMultiplexer.writeToCommandChannel(bytes);
+    }
+
+    private Response getCommandResponse() throws IOException, InterruptedException {
         checkMultiplexer();
         Response response = new Response(mMultiplexer.readCommandChannelLine());
-        Log.i(TAG, "Card Response: '" + response.getStatusMessage() + "'");
+        logResponse(response);
         return response;
     }
 
+    // Records the response, leaving its message unparsed until the recorder is dumped.
+    private void logResponse(Response response) {
+        GKLog.getFlightRecorder().record(TAG, "response", null, response.getStatus());
+        if (GKLog.isLoggable(GKLog.DEBUG)) {
+            GKLog.d(TAG, "Card Response: '" + response.getStatusMessage() + "'");
+        }
+    }
+
     private byte[] getCommandBytes(String cmd) {
         return (cmd + "\r\n").getBytes(StandardCharsets.US_ASCII);
     }
@@ -401,36 +1526,127 @@ public class GKBluetoothCard implements GKCard {
 
     private void logCommandInterruption(String method, String cardPath, InterruptedException e) {
         String commandString = buildCommandString(method, cardPath);
-        Log.e(TAG, "'" + commandString + "' interrupted", e);
+        GKLog.e(TAG, "'" + commandString + "' interrupted", e);
     }
 
     @Nullable
     private BluetoothDevice findBluetoothDevice() {
-        Log.d(TAG, "findBluetoothDevice()");
-        BluetoothAdapter adapter = getBluetoothAdapter();
-        if (!adapter.isEnabled()) {
+        GKLog.d(TAG, "findBluetoothDevice()");
+        GKBluetoothDeviceCache deviceCache = getDeviceCache();
+        if (!deviceCache.getAdapter().isEnabled()) {
             onConnectionChanged(ConnectionState.BLUETOOTH_DISABLED);
             return null;
         }
-        Set<BluetoothDevice> pairedDevices = adapter.getBondedDevices();
-        for (BluetoothDevice device : pairedDevices) {
-            Log.d(TAG, "findBluetoothDevice(): device.getName() = " + device.getName());
-            Log.d(TAG, "findBluetoothDevice(): device.getAddress() = " + device.getAddress());
-            if (device.getName().equals(mCardName)) {
-                return device;
-            }
+        BluetoothDevice device = deviceCache.getDevice(mCardName);
+        if (device == null) {
+            onConnectionChanged(ConnectionState.CARD_NOT_PAIRED);
         }
-        onConnectionChanged(ConnectionState.CARD_NOT_PAIRED);
-        return null;
+        return device;
     }
 
     @NonNull
-    private BluetoothAdapter getBluetoothAdapter() {
-        Log.d(TAG, "getBluetoothAdapter()");
-        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-        if (adapter == null) {
-            throw new RuntimeException("Bluetooth is not available on this device");
+    private GKBluetoothDeviceCache getDeviceCache() {
+        if (mDeviceCache == null) {
+            mDeviceCache = GKBluetoothDeviceCache.getInstance();
+        }
+        return mDeviceCache;
+    }
+
+    // The card's reply when it would not restart a transfer at the requested offset.
+    private static class RestartRejectedResponse extends Response {
+        RestartRejectedResponse(Response response) {
+            super(response);
+        }
+    }
+
+    private class CardDataStream extends DataStream {
+        private final GKMultiplexer.DataChannelInputStream mDataStream;
+        private Response mResponse;
+        private boolean mFailed;
+
+        CardDataStream(GKMultiplexer.DataChannelInputStream dataStream, Response response) {
+            mDataStream = dataStream;
+            mResponse = response;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mResponse != null) {
+                return -1;
+            }
+            checkStream();
+            try {
+                int data = mDataStream.read();
+                if (data == -1) {
+                    finish();
+                }
+                return data;
+            } catch (IOException e) {
+                throw fail(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mResponse != null) {
+                return -1;
+            }
+            checkStream();
+            try {
+                int count = mDataStream.read(buffer, offset, length);
+                if (count == -1) {
+                    finish();
+                }
+                return count;
+            } catch (IOException e) {
+                throw fail(e);
+            }
+        }
+
+        @Override
+        public int available() {
+            return mResponse != null || mFailed ? 0 : mDataStream.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mResponse != null || mFailed) {
+                return;
+            }
+            try {
+                mDataStream.close();
+                finish();
+            } catch (IOException e) {
+                throw fail(e);
+            }
+        }
+
+        @Override
+        public Response getResponse() {
+            return mResponse;
+        }
+
+        private void checkStream() throws IOException {
+            if (mFailed) {
+                throw new IOException("Not Connected");
+            }
+        }
+
+        private void finish() {
+            mResponse = new Response(mDataStream.getCommandData());
+            logResponse(mResponse);
+            onConnectionChanged(ConnectionState.CONNECTED);
+            endCommand();
+        }
+
+        private IOException fail(IOException e) throws IOException {
+            mFailed = true;
+            try {
+                disconnect();
+            } finally {
+                endCommand();
+            }
+            return e;
         }
-        return adapter;
     }
 }
@@ -0,0 +1,243 @@
+package co.blustor.gatekeepersdk.devices;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import co.blustor.gatekeepersdk.utils.GKLog;
+
+/**
+ * GKBluetoothDeviceCache resolves GateKeeper Card names to paired {@code BluetoothDevice}s.
+ * Searching the bonded devices costs a Binder call per paired device, so each result is
+ * remembered until a bond state or name change broadcast says it may be stale.
+ * <p>
+ * Call {@link #register(Context)} to receive those broadcasts. Until then, a remembered
+ * device is checked to still be bonded each time it is used.
+ *
+ * @since 0.21.0
+ */
+public class GKBluetoothDeviceCache {
+    public static final String TAG = GKBluetoothDeviceCache.class.getCanonicalName();
+
+    private static GKBluetoothDeviceCache mInstance;
+
+    private final BluetoothAdapter mAdapter;
+    private final Map<String, BluetoothDevice> mDevices = new HashMap<>();
+    private final Map<String, String> mAddresses = new HashMap<>();
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onBroadcast(intent);
+        }
+    };
+    private boolean mRegistered;
+    private long mScanCount;
+
+    /**
+     * Create a {@code GKBluetoothDeviceCache} that resolves devices through the given adapter.
+     *
+     * @param adapter the {@code BluetoothAdapter} to search, or {@code null} when the device
+     *                has no Bluetooth
+     * @since 0.21.0
+     */
+    public GKBluetoothDeviceCache(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    /**
+     * Retrieve the {@code GKBluetoothDeviceCache} for the default adapter as a Singleton.
+     *
+     * @return the {@code GKBluetoothDeviceCache} Singleton
+     * @since 0.21.0
+     */
+    public static synchronized GKBluetoothDeviceCache getInstance() {
+        if (mInstance == null) {
+            mInstance = new GKBluetoothDeviceCache(BluetoothAdapter.getDefaultAdapter());
+        }
+        return mInstance;
+    }
+
+    /**
+     * @return the {@code BluetoothAdapter} devices are resolved through
+     * @throws RuntimeException when the device has no Bluetooth
+     * @since 0.21.0
+     */
+    @NonNull
+    public BluetoothAdapter getAdapter() {
+        if (mAdapter == null) {
+            throw new RuntimeException("Bluetooth is not available on this device");
+        }
+        return mAdapter;
+    }
+
+    /**
+     * Find the paired device with the given name.
+     *
+     * @param cardName the Bluetooth pairing name of the GateKeeper Card
+     * @return the paired {@code BluetoothDevice}, or {@code null} if Bluetooth is disabled or
+     * no paired device has that name
+     * @since 0.21.0
+     */
+    @Nullable
+    public synchronized BluetoothDevice getDevice(String cardName) {
+        BluetoothAdapter adapter = getAdapter();
+        if (!adapter.isEnabled()) {
+            return null;
+        }
+
+        BluetoothDevice device = mDevices.get(cardName);
+        if (device != null && (mRegistered || isBonded(device))) {
+            return device;
+        }
+        mDevices.remove(cardName);
+
+        String address = mAddresses.get(cardName);
+        if (address != null) {
+            device = getRemoteDevice(adapter, address);
+            if (device != null && isBonded(device)) {
+                GKLog.d(TAG, "getDevice(): resolved " + cardName + " by address");
+                mDevices.put(cardName, device);
+                return device;
+            }
+            mAddresses.remove(cardName);
+        }
+
+        mScanCount++;
+        Set<BluetoothDevice> pairedDevices = adapter.getBondedDevices();
+        for (BluetoothDevice pairedDevice : pairedDevices) {
+            GKLog.d(TAG, "getDevice(): device.getName() = ", pairedDevice.getName());
+            GKLog.d(TAG, "getDevice(): device.getAddress() = ", pairedDevice.getAddress());
+            if (cardName.equals(pairedDevice.getName())) {
+                mDevices.put(cardName, pairedDevice);
+                mAddresses.put(cardName, pairedDevice.getAddress());
+                return pairedDevice;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forget the device resolved for the given name, for example after connecting to it failed.
+     *
+     * @param cardName the Bluetooth pairing name of the GateKeeper Card
+     * @since 0.21.0
+     */
+    public synchronized void invalidate(String cardName) {
+        mDevices.remove(cardName);
+        mAddresses.remove(cardName);
+    }
+
+    /**
+     * Forget every resolved device.
+     *
+     * @since 0.21.0
+     */
+    public synchronized void invalidateAll() {
+        mDevices.clear();
+        mAddresses.clear();
+    }
+
+    /**
+     * Start listening for the broadcasts that invalidate resolved devices.
+     *
+     * @param context a valid Android {@code Context}
+     * @since 0.21.0
+     */
+    public synchronized void register(Context context) {
+        if (mRegistered) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        context.getApplicationContext().registerReceiver(mReceiver, filter);
+        mRegistered = true;
+    }
+
+    /**
+     * Stop listening for broadcasts. Resolved devices are checked again before each use.
+     *
+     * @param context the {@code Context} given to {@link #register(Context)}
+     * @since 0.21.0
+     */
+    public synchronized void unregister(Context context) {
+        if (!mRegistered) {
+            return;
+        }
+        context.getApplicationContext().unregisterReceiver(mReceiver);
+        mRegistered = false;
+    }
+
+    /**
+     * @return the number of times the bonded devices have been searched
+     * @since 0.21.0
+     */
+    public synchronized long getScanCount() {
+        return mScanCount;
+    }
+
+    /**
+     * @return the {@code BroadcastReceiver} registered by {@link #register(Context)}
+     */
+    BroadcastReceiver getReceiver() {
+        return mReceiver;
+    }
+
+    private synchronized void onBroadcast(Intent intent) {
+        String action = intent.getAction();
+        if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+            // device objects may not survive the adapter restarting, but addresses do
+            GKLog.d(TAG, "onBroadcast(): adapter state changed");
+            mDevices.clear();
+            return;
+        }
+        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if (device == null) {
+            return;
+        }
+        if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+            int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
+            if (bondState != BluetoothDevice.BOND_BONDED) {
+                forget(device.getAddress());
+            }
+        } else if (BluetoothDevice.ACTION_NAME_CHANGED.equals(action)) {
+            forget(device.getAddress());
+        }
+    }
+
+    private void forget(String address) {
+        GKLog.d(TAG, "forget(): ", address);
+        Iterator<Map.Entry<String, String>> entries = mAddresses.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            if (entry.getValue().equals(address)) {
+                mDevices.remove(entry.getKey());
+                entries.remove();
+            }
+        }
+    }
+
+    private boolean isBonded(BluetoothDevice device) {
+        return device.getBondState() == BluetoothDevice.BOND_BONDED;
+    }
+
+    @Nullable
+    private BluetoothDevice getRemoteDevice(BluetoothAdapter adapter, String address) {
+        try {
+            return adapter.getRemoteDevice(address);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
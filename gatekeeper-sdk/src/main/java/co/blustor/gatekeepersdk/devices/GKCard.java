@@ -1,12 +1,14 @@
 package co.blustor.gatekeepersdk.devices;
 
-import android.util.Log;
-
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
 
+import co.blustor.gatekeepersdk.data.GKTransferProgress;
 import co.blustor.gatekeepersdk.utils.GKFileUtils;
+import co.blustor.gatekeepersdk.utils.GKLog;
 
 /**
  * GKCard represents a client connection to a GateKeeper Card.
@@ -50,6 +52,60 @@ public interface GKCard {
      */
     Response get(String cardPath, File localFile) throws IOException;
 
+    /**
+     * Send a `get` action to the GateKeeper Card, reporting the progress of the download.
+     *
+     * @param cardPath  the path used in the action
+     * @param localFile the local file used to store the response data
+     * @param progress  the {@code GKTransferProgress} told of each part of the download
+     * @return a {@code Response} with information about the action
+     * @throws IOException when communication with the GateKeeper Card has been disrupted.
+     * @since 0.21.0
+     */
+    Response get(String cardPath, File localFile, GKTransferProgress progress) throws IOException;
+
+    /**
+     * Send a `get` action to the GateKeeper Card, writing the response data to {@code channel}
+     * as it arrives instead of storing it in a temporary file.
+     *
+     * @param cardPath the path used in the action
+     * @param channel  the {@code WritableByteChannel} the response data is written to
+     * @return a {@code Response} with information about the action
+     * @throws IOException when communication with the GateKeeper Card has been disrupted or
+     *                     writing to {@code channel} fails.
+     * @since 0.21.0
+     */
+    Response get(String cardPath, WritableByteChannel channel) throws IOException;
+
+    /**
+     * Send a `get` action to the GateKeeper Card that skips the first {@code offset} bytes of
+     * the file, writing the rest to {@code channel} as it arrives. Used to resume a download
+     * that was interrupted.
+     *
+     * @param cardPath the path used in the action
+     * @param channel  the {@code WritableByteChannel} the response data is written to
+     * @param offset   the number of bytes of the file to skip
+     * @return a {@code Response} with information about the action, which is the card's
+     * response to the restart offset if the card does not accept it
+     * @throws IOException when communication with the GateKeeper Card has been disrupted or
+     *                     writing to {@code channel} fails.
+     * @since 0.21.0
+     */
+    Response get(String cardPath, WritableByteChannel channel, long offset) throws IOException;
+
+    /**
+     * Send a `get` action to the GateKeeper Card and stream the response data as it arrives.
+     * The {@code GKCard} cannot be used for other actions until the returned {@code DataStream}
+     * has been read to the end or closed. Other threads wait for it; on the thread that opened
+     * the stream, actions throw {@code IllegalStateException} rather than waiting forever.
+     *
+     * @param cardPath the path used in the action
+     * @return a {@code DataStream} over the response data
+     * @throws IOException when communication with the GateKeeper Card has been disrupted.
+     * @since 0.21.0
+     */
+    DataStream getStream(String cardPath) throws IOException;
+
     /**
      * Send a `put` action to the GateKeeper Card.
      *
@@ -61,6 +117,33 @@ public interface GKCard {
      */
     Response put(String cardPath, InputStream inputStream) throws IOException;
 
+    /**
+     * Send a `put` action to the GateKeeper Card, reporting the progress of the upload.
+     *
+     * @param cardPath    the path used in the action
+     * @param inputStream a stream with data used in the action
+     * @param progress    the {@code GKTransferProgress} told of each part of the upload
+     * @return a {@code Response} with information about the action
+     * @throws IOException when communication with the GateKeeper Card has been disrupted.
+     * @since 0.21.0
+     */
+    Response put(String cardPath, InputStream inputStream, GKTransferProgress progress) throws IOException;
+
+    /**
+     * Send a `put` action to the GateKeeper Card that keeps the first {@code offset} bytes
+     * already stored at {@code cardPath} and writes the data after them. Used to resume an
+     * upload that was interrupted.
+     *
+     * @param cardPath    the path used in the action
+     * @param inputStream a stream with the data that follows {@code offset}
+     * @param offset      the number of bytes of the stored file to keep
+     * @return a {@code Response} with information about the action, which is the card's
+     * response to the restart offset if the card does not accept it
+     * @throws IOException when communication with the GateKeeper Card has been disrupted.
+     * @since 0.21.0
+     */
+    Response put(String cardPath, InputStream inputStream, long offset) throws IOException;
+
     /**
      * Send a `rename` action to the GateKeeper Card.
      *
@@ -112,6 +195,18 @@ public interface GKCard {
      */
     Response finalize(String cardPath) throws IOException;
 
+    /**
+     * Send several metadata actions to the GateKeeper Card. Where the card allows it, all of
+     * the commands are sent before any response is read, so the batch costs about one round
+     * trip instead of one per command.
+     *
+     * @param commands the {@code Command} objects to send, in order
+     * @return a {@code Response} for each command, in the same order as {@code commands}
+     * @throws IOException when communication with the GateKeeper Card has been disrupted.
+     * @since 0.21.0
+     */
+    List<Response> batch(List<Command> commands) throws IOException;
+
     /**
      * Open a connection with the GateKeeper Card.
      *
@@ -254,6 +349,10 @@ public interface GKCard {
          */
         protected File mDataFile;
 
+        // the status line a message is decoded from on first use, and where the message starts
+        private byte[] mCommandData;
+        private int mMessageOffset = -1;
+
         /**
          * Create a {@code Response} with the basic attributes of the given {@code Response}.
          *
@@ -303,18 +402,24 @@ public interface GKCard {
         }
 
         /**
-         * Create a {@code Response} with the given command and body data.
+         * Create a {@code Response} with the given command and body data. The status code is
+         * read from the leading digits of {@code commandData}; the message, which follows the
+         * first whitespace character, is only decoded when it is first asked for.
          *
          * @param commandData  the data containing the status code and message
          * @param bodyDataFile the {@code File} containing body data
+         * @throws NumberFormatException when {@code commandData} does not start with a status code
          * @since 0.16.0
          */
         public Response(byte[] commandData, File bodyDataFile) {
-            String responseString = new String(commandData);
-            String[] split = responseString.split("\\s", 2);
-            mStatus = Integer.parseInt(split[0]);
-            if (split.length > 1) {
-                mMessage = split[1];
+            int end = 0;
+            while (end < commandData.length && !isWhitespace(commandData[end])) {
+                end++;
+            }
+            mStatus = parseStatus(commandData, end);
+            if (end < commandData.length) {
+                mCommandData = commandData;
+                mMessageOffset = end + 1;
             }
             mDataFile = bodyDataFile;
         }
@@ -336,9 +441,25 @@ public interface GKCard {
          * @since 0.5.0
          */
         public String getMessage() {
+            if (mMessage == null && mCommandData != null) {
+                mMessage = new String(mCommandData, mMessageOffset, mCommandData.length - mMessageOffset);
+                mCommandData = null;
+            }
             return mMessage;
         }
 
+        /**
+         * Check whether the card refused the action because it does not implement it: the
+         * command is unknown (500 or 502), its arguments are not understood (501) or the
+         * option is not implemented for them (504).
+         *
+         * @return {@code true} if the status code means the action is unsupported
+         * @since 0.21.0
+         */
+        public boolean isUnsupported() {
+            return mStatus == 500 || mStatus == 501 || mStatus == 502 || mStatus == 504;
+        }
+
         /**
          * Retrieve the status message of the Response.
          *
@@ -346,7 +467,7 @@ public interface GKCard {
          * @since 0.5.0
          */
         public String getStatusMessage() {
-            return mStatus + " " + mMessage;
+            return mStatus + " " + getMessage();
         }
 
         /**
@@ -381,11 +502,130 @@ public interface GKCard {
                     return GKFileUtils.readFile(mDataFile);
                 }
             } catch (IOException e) {
-                Log.e(Response.class.getCanonicalName(), "Error reading data file", e);
+                GKLog.e(Response.class.getCanonicalName(), "Error reading data file", e);
             }
             return "";
         }
 
+        // Matches the characters of the regular expression \s.
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+        }
+
+        private static int parseStatus(byte[] commandData, int end) {
+            // status codes are short runs of digits; anything else is left to Integer.parseInt
+            if (end == 0 || end > 9) {
+                return Integer.parseInt(new String(commandData, 0, end));
+            }
+            int status = 0;
+            for (int i = 0; i < end; i++) {
+                int digit = commandData[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return Integer.parseInt(new String(commandData, 0, end));
+                }
+                status = status * 10 + digit;
+            }
+            return status;
+        }
+    }
+
+    /**
+     * A Command describes a metadata action that can be sent as part of a {@code batch}.
+     */
+    class Command {
+        /**
+         * The kind of action a {@code Command} performs.
+         */
+        public enum Action {
+            /**
+             * Equivalent to {@link GKCard#delete(String)}.
+             */
+            DELETE,
+
+            /**
+             * Equivalent to {@link GKCard#createPath(String)}.
+             */
+            CREATE_PATH,
+
+            /**
+             * Equivalent to {@link GKCard#deletePath(String)}.
+             */
+            DELETE_PATH
+        }
+
+        private final Action mAction;
+        private final String mCardPath;
+
+        /**
+         * Create a {@code Command} for the given action and path.
+         *
+         * @param action   the {@code Action} to perform
+         * @param cardPath the path used in the action
+         * @since 0.21.0
+         */
+        public Command(Action action, String cardPath) {
+            mAction = action;
+            mCardPath = cardPath;
+        }
+
+        /**
+         * @param cardPath the path used in the action
+         * @return a {@code Command} equivalent to {@link GKCard#delete(String)}
+         * @since 0.21.0
+         */
+        public static Command delete(String cardPath) {
+            return new Command(Action.DELETE, cardPath);
+        }
+
+        /**
+         * @param cardPath the path used in the action
+         * @return a {@code Command} equivalent to {@link GKCard#createPath(String)}
+         * @since 0.21.0
+         */
+        public static Command createPath(String cardPath) {
+            return new Command(Action.CREATE_PATH, cardPath);
+        }
+
+        /**
+         * @param cardPath the path used in the action
+         * @return a {@code Command} equivalent to {@link GKCard#deletePath(String)}
+         * @since 0.21.0
+         */
+        public static Command deletePath(String cardPath) {
+            return new Command(Action.DELETE_PATH, cardPath);
+        }
+
+        /**
+         * @return the {@code Action} of the command
+         * @since 0.21.0
+         */
+        public Action getAction() {
+            return mAction;
+        }
+
+        /**
+         * @return the path used in the action
+         * @since 0.21.0
+         */
+        public String getCardPath() {
+            return mCardPath;
+        }
+    }
+
+    /**
+     * A DataStream delivers the data of a `get` action as it is received from the
+     * GateKeeper Card.
+     */
+    abstract class DataStream extends InputStream {
+        /**
+         * Retrieve the {@code Response} that concluded the action. Closing the stream before
+         * it has been read to the end discards the remaining data.
+         *
+         * @return the concluding {@code Response}, or {@code null} if the stream has not been
+         * read to the end or closed yet
+         * @since 0.21.0
+         */
+        public abstract Response getResponse();
     }
 
     /**
@@ -0,0 +1,314 @@
+package co.blustor.gatekeepersdk.devices;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import co.blustor.gatekeepersdk.data.GKConnectionStatistics;
+import co.blustor.gatekeepersdk.utils.GKLog;
+
+/**
+ * GKCardRegistry keeps several GateKeeper Cards connected at once, for apps that serve more
+ * than one card. Each registered card gets its own {@link GKAsyncCard}, and so its own I/O
+ * thread, and cards run their actions in parallel.
+ * <p>
+ * A registry may limit how many actions run at once across all of its cards, for example to
+ * keep a single Bluetooth adapter from being shared too thinly. Actions then take turns in the
+ * order they became ready to run. As each card runs one action at a time, a card with a long
+ * queue takes one turn and then waits behind the other cards, so it cannot hold up the rest.
+ * <p>
+ * The registry also adds up the work done across its cards.
+ *
+ * @since 0.21.0
+ */
+public class GKCardRegistry {
+    public static final String TAG = GKCardRegistry.class.getCanonicalName();
+
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+    private final int mMaximumConcurrentActions;
+    private final Semaphore mTurns;
+    private final AtomicLong mCompletedActionCount = new AtomicLong();
+    private final AtomicLong mFailedActionCount = new AtomicLong();
+    private final AtomicLong mTotalWaitNanos = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    /**
+     * Create a {@code GKCardRegistry} that runs actions on every card at once.
+     *
+     * @since 0.21.0
+     */
+    public GKCardRegistry() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a {@code GKCardRegistry} that runs at most {@code maximumConcurrentActions}
+     * actions at once across all of its cards.
+     *
+     * @param maximumConcurrentActions the number of actions allowed to run at once
+     * @since 0.21.0
+     */
+    public GKCardRegistry(int maximumConcurrentActions) {
+        if (maximumConcurrentActions < 1) {
+            throw new IllegalArgumentException("At least one action must be allowed to run");
+        }
+        mMaximumConcurrentActions = maximumConcurrentActions;
+        mTurns = new Semaphore(maximumConcurrentActions, true);
+    }
+
+    /**
+     * Add a card to the registry, delivering callbacks on its I/O thread.
+     *
+     * @param name the name to find the card by, such as its Bluetooth pairing name
+     * @param card the {@code GKCard} to register
+     * @return the {@code GKAsyncCard} to queue actions for the card on
+     * @throws IllegalArgumentException when a card is already registered with {@code name}
+     * @since 0.21.0
+     */
+    public GKAsyncCard register(String name, GKCard card) {
+        return register(name, card, null);
+    }
+
+    /**
+     * Add a card to the registry, delivering callbacks through {@code callbackExecutor}.
+     *
+     * @param name             the name to find the card by, such as its Bluetooth pairing name
+     * @param card             the {@code GKCard} to register
+     * @param callbackExecutor the {@code Executor} used to deliver callbacks, or {@code null}
+     *                         to deliver them on the I/O thread of the card
+     * @return the {@code GKAsyncCard} to queue actions for the card on
+     * @throws IllegalArgumentException when a card is already registered with {@code name}
+     * @since 0.21.0
+     */
+    public GKAsyncCard register(String name, GKCard card, Executor callbackExecutor) {
+        synchronized (mEntries) {
+            if (mEntries.containsKey(name)) {
+                throw new IllegalArgumentException("A card is already registered as " + name);
+            }
+            Entry entry = new Entry();
+            entry.mAsyncCard = new GKAsyncCard(card, callbackExecutor, entry);
+            mEntries.put(name, entry);
+            return entry.mAsyncCard;
+        }
+    }
+
+    /**
+     * Remove a card from the registry. Actions already queued for the card still run, and the
+     * card is then disconnected.
+     *
+     * @param name the name the card was registered with
+     * @return {@code true} if a card was registered with {@code name}
+     * @since 0.21.0
+     */
+    public boolean unregister(String name) {
+        Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.remove(name);
+        }
+        if (entry == null) {
+            return false;
+        }
+        close(entry.mAsyncCard);
+        return true;
+    }
+
+    /**
+     * @param name the name the card was registered with
+     * @return the {@code GKAsyncCard} for the card, or {@code null} if no card is registered
+     * with {@code name}
+     * @since 0.21.0
+     */
+    public GKAsyncCard getCard(String name) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(name);
+            return entry == null ? null : entry.mAsyncCard;
+        }
+    }
+
+    /**
+     * @return the names of the registered cards, in the order they were registered
+     * @since 0.21.0
+     */
+    public List<String> getCardNames() {
+        synchronized (mEntries) {
+            return new ArrayList<>(mEntries.keySet());
+        }
+    }
+
+    /**
+     * @return the number of registered cards
+     * @since 0.21.0
+     */
+    public int getCardCount() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    /**
+     * Remove every card from the registry, as if each were unregistered.
+     *
+     * @since 0.21.0
+     */
+    public void shutdown() {
+        List<Entry> entries;
+        synchronized (mEntries) {
+            entries = new ArrayList<>(mEntries.values());
+            mEntries.clear();
+        }
+        for (Entry entry : entries) {
+            close(entry.mAsyncCard);
+        }
+    }
+
+    /**
+     * @return the number of actions allowed to run at once across all cards
+     * @since 0.21.0
+     */
+    public int getMaximumConcurrentActions() {
+        return mMaximumConcurrentActions;
+    }
+
+    /**
+     * @return the number of actions submitted to the registered cards that have not completed,
+     * including those running
+     * @since 0.21.0
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        synchronized (mEntries) {
+            for (Entry entry : mEntries.values()) {
+                depth += entry.mAsyncCard.getQueueDepth();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * @return the number of actions ready to run that are waiting for their turn
+     * @since 0.21.0
+     */
+    public int getWaitingActionCount() {
+        return mTurns.getQueueLength();
+    }
+
+    /**
+     * @return the number of actions that returned a result, across all cards
+     * @since 0.21.0
+     */
+    public long getCompletedActionCount() {
+        return mCompletedActionCount.get();
+    }
+
+    /**
+     * @return the number of actions that threw an exception, across all cards
+     * @since 0.21.0
+     */
+    public long getFailedActionCount() {
+        return mFailedActionCount.get();
+    }
+
+    /**
+     * @return the total time actions spent waiting for their turn once ready to run
+     * @since 0.21.0
+     */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mTotalWaitNanos.get());
+    }
+
+    /**
+     * @return the number of payload bytes sent by actions on {@link GKBluetoothCard}s, across
+     * all cards and connections
+     * @since 0.21.0
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /**
+     * @return the number of payload bytes received by actions on {@link GKBluetoothCard}s,
+     * across all cards and connections
+     * @since 0.21.0
+     */
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    private void close(GKAsyncCard asyncCard) {
+        asyncCard.submit(new GKAsyncCard.Action<Void>() {
+            @Override
+            public Void run(GKCard card) throws IOException {
+                card.disconnect();
+                return null;
+            }
+        }, new GKAsyncCard.Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                GKLog.e(TAG, "Exception occurred disconnecting an unregistered card", e);
+            }
+        });
+        asyncCard.shutdown();
+    }
+
+    // Takes turns for the actions of one card. The gate is only used from the I/O thread of
+    // the card, so the connection counters seen when the action started need no lock.
+    private class Entry implements GKAsyncCard.Gate {
+        private GKAsyncCard mAsyncCard;
+        private GKConnectionStatistics mStartStatistics;
+        private long mStartBytesSent;
+        private long mStartBytesReceived;
+
+        @Override
+        public void enter(GKCard card) throws InterruptedException {
+            long waitStart = System.nanoTime();
+            mTurns.acquire();
+            mTotalWaitNanos.addAndGet(System.nanoTime() - waitStart);
+            mStartStatistics = getConnectionStatistics(card);
+            if (mStartStatistics != null) {
+                mStartBytesSent = mStartStatistics.getBytesSent();
+                mStartBytesReceived = mStartStatistics.getBytesReceived();
+            }
+        }
+
+        @Override
+        public void exit(GKCard card, boolean succeeded) {
+            mTurns.release();
+            if (succeeded) {
+                mCompletedActionCount.incrementAndGet();
+            } else {
+                mFailedActionCount.incrementAndGet();
+            }
+            GKConnectionStatistics statistics = getConnectionStatistics(card);
+            if (statistics == null) {
+                return;
+            }
+            // the action may have reconnected, leaving the counters of the old connection behind
+            long bytesSent = statistics.getBytesSent();
+            long bytesReceived = statistics.getBytesReceived();
+            if (statistics == mStartStatistics) {
+                bytesSent -= mStartBytesSent;
+                bytesReceived -= mStartBytesReceived;
+            } else if (mStartStatistics != null) {
+                bytesSent += mStartStatistics.getBytesSent() - mStartBytesSent;
+                bytesReceived += mStartStatistics.getBytesReceived() - mStartBytesReceived;
+            }
+            mBytesSent.addAndGet(bytesSent);
+            mBytesReceived.addAndGet(bytesReceived);
+        }
+
+        private GKConnectionStatistics getConnectionStatistics(GKCard card) {
+            return card instanceof GKBluetoothCard ? ((GKBluetoothCard) card).getConnectionStatistics() : null;
+        }
+    }
+}
@@ -1,26 +1,40 @@
 package co.blustor.gatekeepersdk.services;
 
-import android.util.Log;
-
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import co.blustor.gatekeepersdk.data.GKFile;
+import co.blustor.gatekeepersdk.data.GKTransferProgress;
 import co.blustor.gatekeepersdk.devices.GKCard;
 import co.blustor.gatekeepersdk.devices.GKCard.Response;
 import co.blustor.gatekeepersdk.utils.GKFileUtils;
+import co.blustor.gatekeepersdk.utils.GKLog;
 
 /**
  * GKFileActions is a Service for handling file data with the GateKeeper Card.
  */
 public class GKFileActions {
     public static final String TAG = GKFileActions.class.getCanonicalName();
+    private static final int DEFAULT_UPLOAD_CHUNK_SIZE = 256 * 1024;
+    private static final int DEFAULT_UPLOAD_RETRY_LIMIT = 3;
+    private static final long DEFAULT_UPLOAD_RETRY_DELAY_MILLIS = 500;
+    private static final long MAXIMUM_UPLOAD_RETRY_DELAY_MILLIS = 8000;
+    private static final int INCOMPLETE_STATUS = 451;
+
     private final GKCard mCard;
+    private volatile int mUploadChunkSize = DEFAULT_UPLOAD_CHUNK_SIZE;
+    private volatile int mUploadRetryLimit = DEFAULT_UPLOAD_RETRY_LIMIT;
+    private volatile long mUploadRetryDelayMillis = DEFAULT_UPLOAD_RETRY_DELAY_MILLIS;
+    private volatile long mProgressIntervalMillis = GKTransferProgress.DEFAULT_INTERVAL_MILLIS;
+    private volatile ListingCache mListingCache;
 
     /**
      * Create a {@code GKFileActions} that communicates with {@code card}.
@@ -33,7 +47,9 @@ public class GKFileActions {
     }
 
     /**
-     * Retrieve a list of files stored at the given path on the GateKeeper Card.
+     * Retrieve a list of files stored at the given path on the GateKeeper Card. When a
+     * listing cache is set with {@link #setListingCache(int, long)}, a remembered listing of
+     * the path may be returned instead.
      *
      * @param cardPath the path at which to retrieve the list of files
      * @return the {@code ListFilesResult} of the action
@@ -41,8 +57,83 @@ public class GKFileActions {
      * @since 0.5.0
      */
     public ListFilesResult listFiles(String cardPath) throws IOException {
+        ListingCache cache = mListingCache;
+        if (cache == null) {
+            Response response = mCard.list(cardPath);
+            return new ListFilesResult(response, cardPath);
+        }
+        ListFilesResult cached = cache.get(cardPath);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = cache.getGeneration();
         Response response = mCard.list(cardPath);
-        return new ListFilesResult(response, cardPath);
+        ListFilesResult result = new ListFilesResult(response, cardPath);
+        if (result.getStatus() == Status.SUCCESS) {
+            cache.put(cardPath, result, generation);
+        }
+        return result;
+    }
+
+    /**
+     * Remember successful results of {@link #listFiles(String)}, so that listing the same
+     * path again does not ask the GateKeeper Card. The least recently used listing is
+     * discarded once {@code maximumEntries} are remembered, and each listing is discarded
+     * {@code timeToLiveMillis} after it was retrieved.
+     * <p>
+     * Putting, deleting or renaming a file, or making a directory, through this
+     * {@code GKFileActions} discards the listings it changes. Changes made any other way are
+     * only seen once the listing expires or {@link #invalidateListingCache()} is called.
+     * Remembered results are shared between callers and should not be modified.
+     * <p>
+     * Listings are not remembered by default. Setting the cache discards any listings already
+     * remembered and restarts the hit and miss counts.
+     *
+     * @param maximumEntries   the number of listings to remember, or {@code 0} to remember none
+     * @param timeToLiveMillis how long each listing is remembered
+     * @since 0.21.0
+     */
+    public void setListingCache(int maximumEntries, long timeToLiveMillis) {
+        if (maximumEntries < 0) {
+            throw new IllegalArgumentException("Maximum entries must not be negative");
+        }
+        if (timeToLiveMillis <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive");
+        }
+        mListingCache = maximumEntries == 0 ? null : new ListingCache(maximumEntries, timeToLiveMillis);
+    }
+
+    /**
+     * Discard every listing remembered by {@link #setListingCache(int, long)}, such as after
+     * the files on the GateKeeper Card were changed by another {@code GKFileActions}.
+     *
+     * @since 0.21.0
+     */
+    public void invalidateListingCache() {
+        ListingCache cache = mListingCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return the number of calls to {@link #listFiles(String)} answered from the listing
+     * cache
+     * @since 0.21.0
+     */
+    public long getListingCacheHitCount() {
+        ListingCache cache = mListingCache;
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    /**
+     * @return the number of calls to {@link #listFiles(String)} that asked the GateKeeper Card
+     * while the listing cache was set
+     * @since 0.21.0
+     */
+    public long getListingCacheMissCount() {
+        ListingCache cache = mListingCache;
+        return cache == null ? 0 : cache.getMissCount();
     }
 
     /**
@@ -59,6 +150,24 @@ public class GKFileActions {
         return new GetFileResult(response, localFile);
     }
 
+    /**
+     * Retrieve the given file from the GateKeeper Card, reporting progress to {@code listener}
+     * at most once per {@link #setProgressInterval(long)}. The estimated time remaining is
+     * measured against the size of {@code file}.
+     *
+     * @param file      a {@code GKFile} referencing the file to retrieve
+     * @param localFile a {@code File} to store retrieved file data
+     * @param listener  the {@code GKTransferProgress.Listener} told of the download's progress
+     * @return the {@code GetFileResult} of the action
+     * @throws IOException when communication with the GateKeeper Card has been disrupted.
+     * @since 0.21.0
+     */
+    public GetFileResult getFile(final GKFile file, File localFile, GKTransferProgress.Listener listener) throws IOException {
+        GKTransferProgress progress = new GKTransferProgress(file.getFileSize(), mProgressIntervalMillis, listener);
+        Response response = mCard.get(file.getCardPath(), localFile, progress);
+        return new GetFileResult(response, localFile);
+    }
+
     /**
      * Store the given data to the given path on the GateKeeper Card.
      *
@@ -69,14 +178,136 @@ public class GKFileActions {
      * @since 0.5.0
      */
     public PutFileResult putFile(InputStream localFile, String cardPath) throws IOException {
-        Log.d(TAG, "putFile(InputStream, cardPath");
-        Log.d(TAG, "putFile(): cardPath = " + cardPath);
-        Response response = mCard.put(cardPath, localFile);
-        if (response.getStatus() != 226) {
-            return new PutFileResult(response);
+        GKLog.d(TAG, "putFile(InputStream, cardPath");
+        GKLog.d(TAG, "putFile(): cardPath = ", cardPath);
+        try {
+            Response response = mCard.put(cardPath, localFile);
+            if (response.getStatus() != 226) {
+                return new PutFileResult(response);
+            }
+            Response finalize = mCard.finalize(cardPath);
+            return new PutFileResult(finalize);
+        } finally {
+            invalidateListing(cardPath);
+        }
+    }
+
+    /**
+     * Store the given data to the given path on the GateKeeper Card, reporting progress to
+     * {@code listener} at most once per {@link #setProgressInterval(long)}.
+     *
+     * @param localFile a stream with file data
+     * @param cardPath  the path at which to store the file data
+     * @param fileSize  the number of bytes in {@code localFile}, or {@code -1} if not known
+     * @param listener  the {@code GKTransferProgress.Listener} told of the upload's progress
+     * @return the {@code FileResult} of the action
+     * @throws IOException when communication with the GateKeeper Card has been disrupted.
+     * @since 0.21.0
+     */
+    public PutFileResult putFile(InputStream localFile, String cardPath, long fileSize, GKTransferProgress.Listener listener) throws IOException {
+        if (GKLog.isLoggable(GKLog.DEBUG)) {
+            GKLog.d(TAG, "putFile(): cardPath = " + cardPath + ", fileSize = " + fileSize);
+        }
+        GKTransferProgress progress = new GKTransferProgress(fileSize, mProgressIntervalMillis, listener);
+        try {
+            Response response = mCard.put(cardPath, localFile, progress);
+            if (response.getStatus() != 226) {
+                return new PutFileResult(response);
+            }
+            Response finalize = mCard.finalize(cardPath);
+            return new PutFileResult(finalize);
+        } finally {
+            invalidateListing(cardPath);
         }
-        Response finalize = mCard.finalize(cardPath);
-        return new PutFileResult(finalize);
+    }
+
+    /**
+     * Store the given data to the given path on the GateKeeper Card, resuming the upload
+     * where it stopped if the connection is lost.
+     * <p>
+     * The data is sent in chunks of {@link #setUploadChunkSize(int)} bytes, each of which is
+     * committed by the card before the next is read from {@code localFile}. After a failure
+     * the upload waits for {@link #setUploadRetryDelay(long)}, the card reconnects and the
+     * upload continues from the last committed chunk. Once every chunk is committed, the size
+     * of the stored file is checked before it is finalized.
+     * <p>
+     * Cards that cannot resume uploads receive the data in one piece, as with
+     * {@link #putFile(InputStream, String)}.
+     *
+     * @param localFile a stream with file data
+     * @param cardPath  the path at which to store the file data
+     * @return the {@code PutFileResult} of the action, with {@link Status#INCOMPLETE} if the
+     * stored file does not have the size that was sent
+     * @throws IOException when communication with the GateKeeper Card has been disrupted more
+     *                     times in a row than the retry limit allows.
+     * @since 0.21.0
+     */
+    public PutFileResult putFileResumable(InputStream localFile, String cardPath) throws IOException {
+        GKLog.d(TAG, "putFileResumable(): cardPath = ", cardPath);
+        try {
+            return putChunks(localFile, cardPath);
+        } finally {
+            invalidateListing(cardPath);
+        }
+    }
+
+    /**
+     * Assign the number of bytes {@link #putFileResumable(InputStream, String)} sends before
+     * waiting for the card to commit them. Larger chunks finish sooner; smaller chunks resend
+     * less after a failure. Defaults to 256 KiB.
+     *
+     * @param chunkSize the size of each chunk, in bytes
+     * @since 0.21.0
+     */
+    public void setUploadChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        mUploadChunkSize = chunkSize;
+    }
+
+    /**
+     * Assign the least time between progress reports of transfers given a
+     * {@code GKTransferProgress.Listener}. Defaults to
+     * {@link GKTransferProgress#DEFAULT_INTERVAL_MILLIS}.
+     *
+     * @param intervalMillis the least time between reports, or {@code 0} to report every packet
+     * @since 0.21.0
+     */
+    public void setProgressInterval(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("Interval must not be negative");
+        }
+        mProgressIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Assign the number of times in a row {@link #putFileResumable(InputStream, String)}
+     * resumes an upload without any chunk being committed. Defaults to 3.
+     *
+     * @param retryLimit the number of consecutive retries, or {@code 0} to never retry
+     * @since 0.21.0
+     */
+    public void setUploadRetryLimit(int retryLimit) {
+        if (retryLimit < 0) {
+            throw new IllegalArgumentException("Retry limit must not be negative");
+        }
+        mUploadRetryLimit = retryLimit;
+    }
+
+    /**
+     * Assign the time {@link #putFileResumable(InputStream, String)} waits before resuming an
+     * interrupted upload, so the card has a chance to come back before the next attempt. The
+     * wait doubles with each retry in a row, up to 8 seconds. Defaults to 500 milliseconds.
+     *
+     * @param delayMillis the wait before the first retry, or {@code 0} to retry right away
+     * @since 0.21.0
+     */
+    public void setUploadRetryDelay(long delayMillis) {
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException("Delay must not be negative");
+        }
+        mUploadRetryDelayMillis = delayMillis;
     }
 
     /**
@@ -90,7 +321,12 @@ public class GKFileActions {
      */
     public FileResult renameFile(GKFile file, String name) throws IOException {
         String newName = GKFileUtils.joinPath(file.getParentCardPath(), name);
-        return new FileResult(mCard.rename(file.getCardPath(), newName));
+        try {
+            return new FileResult(mCard.rename(file.getCardPath(), newName));
+        } finally {
+            invalidateListing(file.getCardPath());
+            invalidateListing(newName);
+        }
     }
 
     /**
@@ -103,10 +339,14 @@ public class GKFileActions {
      */
     public FileResult deleteFile(GKFile file) throws IOException {
         Response response;
-        if (file.getType() == GKFile.Type.FILE) {
-            response = mCard.delete(file.getCardPath());
-        } else {
-            response = mCard.deletePath(file.getCardPath());
+        try {
+            if (file.getType() == GKFile.Type.FILE) {
+                response = mCard.delete(file.getCardPath());
+            } else {
+                response = mCard.deletePath(file.getCardPath());
+            }
+        } finally {
+            invalidateListing(file.getCardPath());
         }
         return new FileResult(response);
     }
@@ -120,7 +360,12 @@ public class GKFileActions {
      * @since 0.5.0
      */
     public FileResult makeDirectory(String cardPath) throws IOException {
-        Response response = mCard.createPath(cardPath);
+        Response response;
+        try {
+            response = mCard.createPath(cardPath);
+        } finally {
+            invalidateListing(cardPath);
+        }
         return new FileResult(response);
     }
 
@@ -135,6 +380,110 @@ public class GKFileActions {
         return mCard.getCurrentDataTransferSize();
     }
 
+    private PutFileResult putChunks(InputStream localFile, String cardPath) throws IOException {
+        byte[] chunk = new byte[mUploadChunkSize];
+        int length = readChunk(localFile, chunk);
+        long committed = 0;
+        int failures = 0;
+        while (true) {
+            Response response;
+            try {
+                response = mCard.put(cardPath, new ByteArrayInputStream(chunk, 0, length), committed);
+            } catch (IOException e) {
+                failures++;
+                if (failures > mUploadRetryLimit) {
+                    throw e;
+                }
+                GKLog.w(TAG, "putFileResumable(): upload interrupted, resuming at " + committed + " bytes", e);
+                waitBeforeRetry(failures);
+                continue;
+            }
+            if (committed == 0 && response.isUnsupported()) {
+                GKLog.i(TAG, "putFileResumable(): card cannot resume uploads, sending in one piece");
+                InputStream remaining = new SequenceInputStream(new ByteArrayInputStream(chunk, 0, length), localFile);
+                return putFile(remaining, cardPath);
+            }
+            if (response.getStatus() != 226) {
+                return new PutFileResult(response);
+            }
+            committed += length;
+            failures = 0;
+            if (length < chunk.length) {
+                break;
+            }
+            length = readChunk(localFile, chunk);
+            if (length == 0) {
+                break;
+            }
+        }
+
+        Response verification = verifyFileSize(cardPath, committed);
+        if (verification != null) {
+            return new PutFileResult(verification);
+        }
+        Response finalize = mCard.finalize(cardPath);
+        return new PutFileResult(finalize);
+    }
+
+    private void invalidateListing(String cardPath) {
+        ListingCache cache = mListingCache;
+        if (cache != null && cardPath != null) {
+            cache.invalidate(cardPath);
+        }
+    }
+
+    private int readChunk(InputStream inputStream, byte[] chunk) throws IOException {
+        int length = 0;
+        while (length < chunk.length) {
+            int count = inputStream.read(chunk, length, chunk.length - length);
+            if (count == -1) {
+                break;
+            }
+            length += count;
+        }
+        return length;
+    }
+
+    private void waitBeforeRetry(int failures) throws InterruptedIOException {
+        long delayMillis = mUploadRetryDelayMillis;
+        for (int i = 1; i < failures && delayMillis < MAXIMUM_UPLOAD_RETRY_DELAY_MILLIS; i++) {
+            delayMillis *= 2;
+        }
+        delayMillis = Math.min(delayMillis, MAXIMUM_UPLOAD_RETRY_DELAY_MILLIS);
+        if (delayMillis == 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to resume the upload");
+        }
+    }
+
+    // Returns null when the file listed at cardPath has the expected size.
+    private Response verifyFileSize(String cardPath, long expectedSize) throws IOException {
+        String name = cardPath.substring(cardPath.lastIndexOf("/") + 1);
+        GKFile file = new GKFile(name, GKFile.Type.FILE);
+        file.setCardPath(cardPath);
+        String parentPath = file.getParentCardPath() == null ? "/" : file.getParentCardPath();
+        Response listResponse = mCard.list(parentPath);
+        if (listResponse.getStatus() != 226) {
+            return listResponse;
+        }
+        long storedSize = -1;
+        for (GKFile listed : new ListFilesResult(listResponse, parentPath).getFiles()) {
+            if (listed.getName().equals(name)) {
+                storedSize = listed.getFileSize();
+            }
+        }
+        if (storedSize != expectedSize) {
+            GKLog.e(TAG, "verifyFileSize(): " + cardPath + " has " + storedSize + " of " + expectedSize + " bytes");
+            return new Response(INCOMPLETE_STATUS, "Stored " + storedSize + " of " + expectedSize + " bytes");
+        }
+        return null;
+    }
+
     /**
      * Status is the named result of an action.
      */
@@ -159,6 +508,11 @@ public class GKFileActions {
          */
         FILE_ALREADY_EXISTS,
 
+        /**
+         * The data stored on the GateKeeper Card is not all of the data that was sent.
+         */
+        INCOMPLETE,
+
         /**
          * The GateKeeper Card API returned a result that GKCardSettings does
          * not understand.
@@ -224,6 +578,8 @@ public class GKFileActions {
                     return Status.SUCCESS;
                 case 257:
                     return Status.SUCCESS;
+                case 451:
+                    return Status.INCOMPLETE;
                 case 530:
                     return Status.UNAUTHORIZED;
                 case 550:
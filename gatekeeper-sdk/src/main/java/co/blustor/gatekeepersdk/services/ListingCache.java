@@ -0,0 +1,116 @@
+package co.blustor.gatekeepersdk.services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import co.blustor.gatekeepersdk.services.GKFileActions.ListFilesResult;
+
+/**
+ * ListingCache remembers the most recently used directory listings of a
+ * {@link GKFileActions}, each for a limited time. Listings are keyed by card path.
+ * <p>
+ * Every invalidation advances a generation, and a listing is only stored if no invalidation
+ * happened while it was being retrieved, so a listing made before a change cannot be stored
+ * after it.
+ */
+class ListingCache {
+    private final long mTimeToLiveNanos;
+    private final LinkedHashMap<String, Entry> mEntries;
+    private long mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+
+    ListingCache(final int maximumEntries, long timeToLiveMillis) {
+        mTimeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maximumEntries;
+            }
+        };
+    }
+
+    // Returns null, counting a miss, when no unexpired listing of cardPath is stored.
+    synchronized ListFilesResult get(String cardPath) {
+        String key = normalize(cardPath);
+        Entry entry = mEntries.get(key);
+        if (entry != null && System.nanoTime() - entry.mStoredNanos >= mTimeToLiveNanos) {
+            mEntries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return entry.mResult;
+    }
+
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    // Stores the listing unless the cache was invalidated since generation was read.
+    synchronized void put(String cardPath, ListFilesResult result, long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.mResult = result;
+        entry.mStoredNanos = System.nanoTime();
+        mEntries.put(normalize(cardPath), entry);
+    }
+
+    // Discards the listings that a change to cardPath makes stale: its parent's, its own and
+    // those of anything beneath it.
+    synchronized void invalidate(String cardPath) {
+        mGeneration++;
+        String key = normalize(cardPath);
+        mEntries.remove(parentOf(key));
+        String prefix = key.equals("/") ? key : key + "/";
+        Iterator<String> keys = mEntries.keySet().iterator();
+        while (keys.hasNext()) {
+            String stored = keys.next();
+            if (stored.equals(key) || stored.startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    private static String normalize(String cardPath) {
+        int end = cardPath.length();
+        while (end > 1 && cardPath.charAt(end - 1) == '/') {
+            end--;
+        }
+        return cardPath.substring(0, end);
+    }
+
+    private static String parentOf(String key) {
+        int index = key.lastIndexOf('/');
+        return index > 0 ? key.substring(0, index) : "/";
+    }
+
+    private static class Entry {
+        private ListFilesResult mResult;
+        private long mStoredNanos;
+    }
+}
@@ -0,0 +1,135 @@
+package co.blustor.gatekeepersdk.utils;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * GKFlightRecorder keeps the most recent protocol events in memory, such as the commands sent
+ * to a GateKeeper Card, its responses and connection changes. Recording an event copies a few
+ * references and numbers into a fixed ring and builds no text, so it is cheap enough for every
+ * command; text is only built by {@link #dump()}, typically after something has gone wrong.
+ * Safe to use from any thread.
+ *
+ * @since 0.21.0
+ */
+public class GKFlightRecorder {
+    /**
+     * The number of events kept by the recorder of {@link GKLog#getFlightRecorder()}.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+    private static final long NO_VALUE = Long.MIN_VALUE;
+
+    private final long[] mTimes;
+    private final String[] mTags;
+    private final String[] mEvents;
+    private final Object[] mDetails;
+    private final long[] mValues;
+    // the total number of events recorded; the next is written at mCount % capacity
+    private long mCount;
+
+    /**
+     * @param capacity the number of events to keep
+     * @since 0.21.0
+     */
+    public GKFlightRecorder(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mTimes = new long[capacity];
+        mTags = new String[capacity];
+        mEvents = new String[capacity];
+        mDetails = new Object[capacity];
+        mValues = new long[capacity];
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param tag    the tag of the class recording the event
+     * @param event  what happened, such as a command name
+     * @param detail what it happened to, such as a card path, or {@code null}; its
+     *               {@code toString()} is only called when dumping
+     * @since 0.21.0
+     */
+    public void record(String tag, String event, Object detail) {
+        record(tag, event, detail, NO_VALUE);
+    }
+
+    /**
+     * Record an event with a number, such as a status or a byte count.
+     *
+     * @param tag    the tag of the class recording the event
+     * @param event  what happened, such as a command name
+     * @param detail what it happened to, such as a card path, or {@code null}; its
+     *               {@code toString()} is only called when dumping
+     * @param value  the number that goes with the event
+     * @since 0.21.0
+     */
+    public synchronized void record(String tag, String event, Object detail, long value) {
+        int index = (int) (mCount % mTimes.length);
+        mTimes[index] = System.currentTimeMillis();
+        mTags[index] = tag;
+        mEvents[index] = event;
+        mDetails[index] = detail;
+        mValues[index] = value;
+        mCount++;
+    }
+
+    /**
+     * @return the events kept, oldest first, one line each
+     * @since 0.21.0
+     */
+    public synchronized List<String> dump() {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        int size = size();
+        List<String> lines = new ArrayList<>(size);
+        for (long i = mCount - size; i < mCount; i++) {
+            int index = (int) (i % mTimes.length);
+            StringBuilder line = new StringBuilder()
+                    .append(format.format(new Date(mTimes[index])))
+                    .append(' ').append(mTags[index])
+                    .append(' ').append(mEvents[index]);
+            if (mDetails[index] != null) {
+                line.append(' ').append(mDetails[index]);
+            }
+            if (mValues[index] != NO_VALUE) {
+                line.append(' ').append(mValues[index]);
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * @return the number of events kept
+     * @since 0.21.0
+     */
+    public synchronized int size() {
+        return (int) Math.min(mCount, mTimes.length);
+    }
+
+    /**
+     * @return the number of events ever recorded, including those no longer kept
+     * @since 0.21.0
+     */
+    public synchronized long getRecordedCount() {
+        return mCount;
+    }
+
+    /**
+     * Discard every event kept.
+     *
+     * @since 0.21.0
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mTimes.length; i++) {
+            mTags[i] = null;
+            mEvents[i] = null;
+            mDetails[i] = null;
+        }
+        mCount = 0;
+    }
+}
@@ -0,0 +1,252 @@
+package co.blustor.gatekeepersdk.utils;
+
+import android.util.Log;
+
+/**
+ * GKLog is the logging facade of the SDK. Messages below the current level are dropped
+ * before their text is built: call sites either pass the parts of a message separately, so
+ * they are only joined when the message is written, or check {@link #isLoggable(int)} first.
+ * Checking the level reads a single volatile field. The SDK's consumer ProGuard rules mark
+ * {@code v}, {@code d} and {@code i} with {@code -assumenosideeffects}, so release builds that
+ * run the ProGuard optimizer remove those calls altogether, whatever the level is set to.
+ * <p>
+ * Messages go to the {@link Logger}, which writes to logcat by default. The SDK also records
+ * protocol events in the {@link GKFlightRecorder} returned by {@link #getFlightRecorder()},
+ * whatever the level, so the events leading up to a failure can be dumped afterwards.
+ *
+ * @since 0.21.0
+ */
+public final class GKLog {
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    /**
+     * The level at which nothing is logged.
+     */
+    public static final int SILENT = Integer.MAX_VALUE;
+
+    private static final GKFlightRecorder FLIGHT_RECORDER = new GKFlightRecorder(GKFlightRecorder.DEFAULT_CAPACITY);
+
+    private static volatile int sLevel = INFO;
+    private static volatile Logger sLogger = new AndroidLogger();
+
+    private GKLog() {
+    }
+
+    /**
+     * Set the lowest level that is logged. Defaults to {@link #INFO}.
+     *
+     * @param level one of {@link #VERBOSE}, {@link #DEBUG}, {@link #INFO}, {@link #WARN},
+     *              {@link #ERROR} or {@link #SILENT}
+     * @since 0.21.0
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    /**
+     * @return the lowest level that is logged
+     * @since 0.21.0
+     */
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * @param level the level of a message
+     * @return whether messages at {@code level} are logged
+     * @since 0.21.0
+     */
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    /**
+     * Send messages to {@code logger} instead of logcat.
+     *
+     * @param logger the {@code Logger} to write to, or {@code null} to write to logcat
+     * @since 0.21.0
+     */
+    public static void setLogger(Logger logger) {
+        sLogger = logger == null ? new AndroidLogger() : logger;
+    }
+
+    /**
+     * @return the {@code GKFlightRecorder} that protocol events are recorded in
+     * @since 0.21.0
+     */
+    public static GKFlightRecorder getFlightRecorder() {
+        return FLIGHT_RECORDER;
+    }
+
+    /**
+     * Log {@code message} at {@link #VERBOSE}.
+     *
+     * @since 0.21.0
+     */
+    public static void v(String tag, String message) {
+        log(VERBOSE, tag, message, null);
+    }
+
+    /**
+     * Log {@code message} at {@link #DEBUG}.
+     *
+     * @since 0.21.0
+     */
+    public static void d(String tag, String message) {
+        log(DEBUG, tag, message, null);
+    }
+
+    /**
+     * Log {@code message} followed by {@code value} at {@link #DEBUG}, joining them only if
+     * the message is logged.
+     *
+     * @since 0.21.0
+     */
+    public static void d(String tag, String message, Object value) {
+        if (isLoggable(DEBUG)) {
+            sLogger.log(DEBUG, tag, message + value, null);
+        }
+    }
+
+    /**
+     * Log {@code message} followed by {@code value} at {@link #DEBUG}, without boxing
+     * {@code value} unless the message is logged.
+     *
+     * @since 0.21.0
+     */
+    public static void d(String tag, String message, long value) {
+        if (isLoggable(DEBUG)) {
+            sLogger.log(DEBUG, tag, message + value, null);
+        }
+    }
+
+    /**
+     * Log the text of {@code message} at {@link #DEBUG}, building it only if it is logged.
+     *
+     * @since 0.21.0
+     */
+    public static void d(String tag, Message message) {
+        if (isLoggable(DEBUG)) {
+            sLogger.log(DEBUG, tag, message.build(), null);
+        }
+    }
+
+    /**
+     * Log {@code message} at {@link #INFO}.
+     *
+     * @since 0.21.0
+     */
+    public static void i(String tag, String message) {
+        log(INFO, tag, message, null);
+    }
+
+    /**
+     * Log {@code message} followed by {@code value} at {@link #INFO}, joining them only if
+     * the message is logged.
+     *
+     * @since 0.21.0
+     */
+    public static void i(String tag, String message, Object value) {
+        if (isLoggable(INFO)) {
+            sLogger.log(INFO, tag, message + value, null);
+        }
+    }
+
+    /**
+     * Log {@code message} at {@link #WARN}.
+     *
+     * @since 0.21.0
+     */
+    public static void w(String tag, String message) {
+        log(WARN, tag, message, null);
+    }
+
+    /**
+     * Log {@code message} and {@code throwable} at {@link #WARN}.
+     *
+     * @since 0.21.0
+     */
+    public static void w(String tag, String message, Throwable throwable) {
+        log(WARN, tag, message, throwable);
+    }
+
+    /**
+     * Log {@code message} at {@link #ERROR}.
+     *
+     * @since 0.21.0
+     */
+    public static void e(String tag, String message) {
+        log(ERROR, tag, message, null);
+    }
+
+    /**
+     * Log {@code message} and {@code throwable} at {@link #ERROR}.
+     *
+     * @since 0.21.0
+     */
+    public static void e(String tag, String message, Throwable throwable) {
+        log(ERROR, tag, message, throwable);
+    }
+
+    private static void log(int level, String tag, String message, Throwable throwable) {
+        if (isLoggable(level)) {
+            sLogger.log(level, tag, message, throwable);
+        }
+    }
+
+    /**
+     * A Logger writes the messages that pass the level check.
+     *
+     * @since 0.21.0
+     */
+    public interface Logger {
+        /**
+         * @param level     the level of the message
+         * @param tag       the tag of the class logging the message
+         * @param message   the message
+         * @param throwable the {@code Throwable} the message is about, or {@code null}
+         * @since 0.21.0
+         */
+        void log(int level, String tag, String message, Throwable throwable);
+    }
+
+    /**
+     * A Message builds the text of a log message that is too costly to build when it is not
+     * logged. Keep the {@code Message} in a field where it is used often, so that no object
+     * is created either.
+     *
+     * @since 0.21.0
+     */
+    public interface Message {
+        /**
+         * @return the text of the message
+         * @since 0.21.0
+         */
+        String build();
+    }
+
+    private static class AndroidLogger implements Logger {
+        @Override
+        public void log(int level, String tag, String message, Throwable throwable) {
+            switch (level) {
+                case Log.VERBOSE:
+                    Log.v(tag, message, throwable);
+                    break;
+                case Log.DEBUG:
+                    Log.d(tag, message, throwable);
+                    break;
+                case Log.INFO:
+                    Log.i(tag, message, throwable);
+                    break;
+                case Log.WARN:
+                    Log.w(tag, message, throwable);
+                    break;
+                default:
+                    Log.e(tag, message, throwable);
+            }
+        }
+    }
+}
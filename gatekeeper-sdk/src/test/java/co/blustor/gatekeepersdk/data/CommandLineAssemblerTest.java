@@ -0,0 +1,72 @@
+package co.blustor.gatekeepersdk.data;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class CommandLineAssemblerTest {
+    private final CommandLineAssembler assembler = new CommandLineAssembler();
+
+    @Test
+    public void completesALineWithinOnePayload() {
+        boolean complete = assembler.append(bytes("226 Transfer complete\r\nignored"), 30);
+
+        assertThat(complete, is(true));
+        assertThat(new String(assembler.takeLine()), is(equalTo("226 Transfer complete")));
+    }
+
+    @Test
+    public void joinsALineSpreadOverSeveralPayloads() {
+        assertThat(assembler.append(bytes("226 Tran"), 8), is(false));
+        assertThat(assembler.append(bytes("sfer "), 5), is(false));
+        assertThat(assembler.append(bytes("complete\r\n"), 10), is(true));
+
+        assertThat(new String(assembler.takeLine()), is(equalTo("226 Transfer complete")));
+    }
+
+    @Test
+    public void findsACRLFSplitAcrossPayloads() {
+        assertThat(assembler.append(bytes("200 OK\r"), 7), is(false));
+        assertThat(assembler.append(bytes("\nignored"), 8), is(true));
+
+        assertThat(new String(assembler.takeLine()), is(equalTo("200 OK")));
+    }
+
+    @Test
+    public void keepsACarriageReturnThatIsNotFollowedByALineFeed() {
+        assertThat(assembler.append(bytes("a\r"), 2), is(false));
+        assertThat(assembler.append(bytes("b\rc\r\n"), 5), is(true));
+
+        assertThat(new String(assembler.takeLine()), is(equalTo("a\rb\rc")));
+    }
+
+    @Test
+    public void onlyReadsTheGivenLengthOfThePayload() {
+        assertThat(assembler.append(bytes("abc\r\n"), 3), is(false));
+        assertThat(assembler.append(bytes("\r\n"), 2), is(true));
+
+        assertThat(new String(assembler.takeLine()), is(equalTo("abc")));
+    }
+
+    @Test
+    public void growsForLongLinesAndStartsOverAfterEachLine() {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longLine.append((char) ('a' + i % 26));
+        }
+        String payload = longLine + "\r\n";
+        assembler.append(bytes(payload), payload.length());
+        byte[] first = assembler.takeLine();
+
+        assembler.append(bytes("next\r\n"), 6);
+
+        assertThat(new String(first), is(equalTo(longLine.toString())));
+        assertThat(new String(assembler.takeLine()), is(equalTo("next")));
+    }
+
+    private byte[] bytes(String text) {
+        return text.getBytes();
+    }
+}
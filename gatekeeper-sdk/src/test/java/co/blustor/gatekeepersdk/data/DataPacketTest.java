@@ -0,0 +1,221 @@
+package co.blustor.gatekeepersdk.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class DataPacketTest {
+    private static final int PACKET_COUNT = 1000;
+
+    @Test
+    public void toPacketBytesFramesTheDataWithHeaderAndChecksum() {
+        byte[] packet = DataPacket.Builder.toPacketBytes(new byte[]{'a', 'b'}, 2);
+
+        byte[] expected = {2, 0, 7, 'a', 'b', 0, 0};
+        assertThat(packet, is(equalTo(expected)));
+    }
+
+    @Test
+    public void encoderFramesASliceOfTheGivenBuffer() {
+        DataPacket.Encoder encoder = new DataPacket.Encoder(16);
+        byte[] data = {'x', 'a', 'b', 'y'};
+
+        int length = encoder.encode(data, 1, 2, 1);
+
+        byte[] expected = {1, 0, 7, 'a', 'b', 0, 0};
+        assertThat(Arrays.copyOf(encoder.getBuffer(), length), is(equalTo(expected)));
+    }
+
+    @Test
+    public void encoderReusesItsPacketBufferAcrossPackets() throws IOException {
+        DataPacket.Encoder encoder = new DataPacket.Encoder(512);
+        byte[] buffer = encoder.getBuffer();
+        byte[] data = new byte[512];
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            encoder.write(outputStream, data, 0, i % data.length, 2);
+        }
+
+        assertThat(encoder.getBuffer(), is(sameInstance(buffer)));
+        assertThat(encoder.getBufferAllocations(), is(1));
+    }
+
+    @Test
+    public void encoderGrowsOnceForOversizedPayloads() {
+        DataPacket.Encoder encoder = new DataPacket.Encoder(4);
+        byte[] data = new byte[64];
+
+        encoder.encode(data, 0, data.length, 2);
+        encoder.encode(data, 0, data.length, 2);
+
+        assertThat(encoder.getBufferAllocations(), is(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encoderRejectsPayloadsTheLengthFieldCannotDescribe() {
+        DataPacket.Encoder encoder = new DataPacket.Encoder(4);
+        byte[] data = new byte[DataPacket.MAXIMUM_PAYLOAD_SIZE + 1];
+
+        encoder.encode(data, 0, data.length, 2);
+    }
+
+    @Test
+    public void decoderReadsPacketsWrittenByTheEncoder() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataPacket.Encoder encoder = new DataPacket.Encoder(16);
+        encoder.write(outputStream, "hello".getBytes(), 0, 5, 2);
+        encoder.write(outputStream, "bye".getBytes(), 0, 3, 1);
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
+        DataPacket.Decoder decoder = new DataPacket.Decoder(16);
+
+        DataPacket first = decoder.decode(inputStream);
+        assertThat(first.getChannel(), is(2));
+        assertThat(first.getPayload(), is(equalTo("hello".getBytes())));
+
+        DataPacket second = decoder.decode(inputStream);
+        assertThat(second.getChannel(), is(1));
+        assertThat(second.getPayload(), is(equalTo("bye".getBytes())));
+    }
+
+    @Test
+    public void getPayloadReturnsACopyWhenThePayloadFillsTheBuffer() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataPacket.Encoder encoder = new DataPacket.Encoder(4);
+        encoder.write(outputStream, "abcd".getBytes(), 0, 4, 2);
+        encoder.write(outputStream, "wxyz".getBytes(), 0, 4, 2);
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
+        DataPacket.Decoder decoder = new DataPacket.Decoder(4);
+
+        byte[] first = decoder.decode(inputStream).getPayload();
+        decoder.decode(inputStream);
+
+        assertThat(first, is(equalTo("abcd".getBytes())));
+    }
+
+    @Test
+    public void decoderReusesThePacketAndPayloadBufferAcrossPackets() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataPacket.Encoder encoder = new DataPacket.Encoder(512);
+        byte[] data = new byte[512];
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            encoder.write(outputStream, data, 0, data.length, 2);
+        }
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
+        DataPacket.Decoder decoder = new DataPacket.Decoder(512);
+
+        DataPacket firstPacket = decoder.decode(inputStream);
+        byte[] payloadBuffer = firstPacket.getPayloadBuffer();
+        for (int i = 1; i < PACKET_COUNT; i++) {
+            DataPacket packet = decoder.decode(inputStream);
+            assertThat(packet, is(sameInstance(firstPacket)));
+            assertThat(packet.getPayloadBuffer(), is(sameInstance(payloadBuffer)));
+            assertThat(packet.getPayloadLength(), is(512));
+        }
+
+        assertThat(decoder.getBufferAllocations(), is(1));
+    }
+
+    @Test
+    public void decoderReadsPacketSizesAboveTheSignBitOfTheLengthField() throws IOException {
+        byte[] data = new byte[0x8000];
+        Arrays.fill(data, (byte) 'z');
+        byte[] packet = DataPacket.Builder.toPacketBytes(data, 2);
+        DataPacket.Decoder decoder = new DataPacket.Decoder(512);
+
+        DataPacket decoded = decoder.decode(new ByteArrayInputStream(packet));
+
+        assertThat(decoded.getPayload(), is(equalTo(data)));
+    }
+
+    @Test(expected = EOFException.class)
+    public void decoderThrowsWhenTheStreamEndsMidPacket() throws IOException {
+        byte[] packet = DataPacket.Builder.toPacketBytes("abc".getBytes(), 2);
+        DataPacket.Decoder decoder = new DataPacket.Decoder(16);
+
+        decoder.decode(new ByteArrayInputStream(Arrays.copyOf(packet, packet.length - 1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void decoderThrowsWhenThePacketSizeIsSmallerThanTheFraming() throws IOException {
+        byte[] packet = {2, 0, 3, 0, 0};
+        DataPacket.Decoder decoder = new DataPacket.Decoder(16);
+
+        decoder.decode(new ByteArrayInputStream(packet));
+    }
+
+    @Test
+    public void crc16MatchesTheCcittCheckValue() {
+        byte[] data = "123456789".getBytes();
+
+        assertThat(Crc16.compute(data, 0, data.length), is(0x29B1));
+    }
+
+    @Test
+    public void encoderFillsInTheChecksumOnceEnabled() {
+        DataPacket.Encoder encoder = new DataPacket.Encoder(16);
+        encoder.setChecksumEnabled(true);
+
+        int length = encoder.encode(new byte[]{'a', 'b'}, 0, 2, 2);
+
+        int crc = Crc16.compute(new byte[]{2, 0, 7, 'a', 'b'}, 0, 5);
+        byte[] expected = {2, 0, 7, 'a', 'b', (byte) (crc >> 8), (byte) crc};
+        assertThat(Arrays.copyOf(encoder.getBuffer(), length), is(equalTo(expected)));
+    }
+
+    @Test
+    public void decoderAcceptsPacketsWithAMatchingChecksum() throws IOException {
+        byte[] packet = DataPacket.Builder.toPacketBytes(new byte[]{'a', 'b'}, 2, true);
+        DataPacket.Decoder decoder = new DataPacket.Decoder(16);
+        decoder.setChecksumEnabled(true);
+
+        DataPacket decoded = decoder.decode(new ByteArrayInputStream(packet));
+
+        assertThat(decoded.getPayload(), is(equalTo(new byte[]{'a', 'b'})));
+        assertThat(decoder.getCorruptPacketCount(), is(0L));
+    }
+
+    @Test
+    public void decoderRejectsAndCountsCorruptPackets() throws IOException {
+        byte[] packet = DataPacket.Builder.toPacketBytes(new byte[]{'a', 'b'}, 2, true);
+        packet[DataPacket.HEADER_SIZE] ^= 0x01;
+        DataPacket.Decoder decoder = new DataPacket.Decoder(16);
+        decoder.setChecksumEnabled(true);
+
+        try {
+            decoder.decode(new ByteArrayInputStream(packet));
+            fail("Expected a CorruptPacketException");
+        } catch (CorruptPacketException e) {
+            assertThat(e.getChannel(), is(2));
+        }
+        assertThat(decoder.getCorruptPacketCount(), is(1L));
+    }
+
+    @Test
+    public void decoderIgnoresTheChecksumUntilEnabled() throws IOException {
+        byte[] packet = DataPacket.Builder.toPacketBytes(new byte[]{'a', 'b'}, 2);
+        DataPacket.Decoder decoder = new DataPacket.Decoder(16);
+
+        DataPacket decoded = decoder.decode(new ByteArrayInputStream(packet));
+
+        assertThat(decoded.getPayload(), is(equalTo(new byte[]{'a', 'b'})));
+    }
+
+    @Test(expected = CorruptPacketException.class)
+    public void builderVerifiesTheChecksumWhenAsked() throws IOException {
+        byte[] packet = DataPacket.Builder.toPacketBytes(new byte[]{'a', 'b'}, 2, true);
+        packet[0] = 1;
+
+        DataPacket.Builder.build(new ByteArrayInputStream(packet), true);
+    }
+}
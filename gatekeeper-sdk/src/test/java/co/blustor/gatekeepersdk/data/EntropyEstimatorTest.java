@@ -0,0 +1,65 @@
+package co.blustor.gatekeepersdk.data;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class EntropyEstimatorTest {
+    @Test
+    public void bitsPerByteIsZeroForASingleRepeatedByte() {
+        assertThat(EntropyEstimator.bitsPerByte(new byte[100], 0, 100), is(0.0));
+    }
+
+    @Test
+    public void bitsPerByteIsEightForEveryByteValueOnce() {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        assertThat(EntropyEstimator.bitsPerByte(data, 0, data.length), is(closeTo(8.0, 1e-9)));
+    }
+
+    @Test
+    public void textIsCompressible() throws IOException {
+        byte[] text = "The quick brown fox jumps over the lazy dog.\n".getBytes(StandardCharsets.US_ASCII);
+
+        assertThat(EntropyEstimator.isCompressible(new ByteArrayInputStream(text)), is(true));
+    }
+
+    @Test
+    public void randomBytesAreNotCompressible() throws IOException {
+        byte[] data = new byte[64 * 1024];
+        new Random(1).nextBytes(data);
+
+        assertThat(EntropyEstimator.isCompressible(new ByteArrayInputStream(data)), is(false));
+    }
+
+    @Test
+    public void isCompressiblePutsTheSampleBack() throws IOException {
+        byte[] data = new byte[EntropyEstimator.SAMPLE_SIZE * 2];
+        new Random(1).nextBytes(data);
+        InputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(data), 16);
+
+        EntropyEstimator.isCompressible(inputStream);
+        byte[] read = new byte[data.length];
+        int length = 0;
+        int count;
+        while ((count = inputStream.read(read, length, read.length - length)) > 0) {
+            length += count;
+        }
+
+        assertThat(length, is(data.length));
+        assertThat(read, is(equalTo(data)));
+    }
+}
@@ -1,22 +1,34 @@
 package co.blustor.gatekeepersdk.data;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.Channels;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import co.blustor.gatekeepersdk.utils.GKFileUtils;
 import co.blustor.gatekeepersdk.utils.TestFileUtil;
 
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.hamcrest.junit.MatcherAssert.assertThat;
 
 public class GKMultiplexerTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private ByteArrayOutputStream outputStream;
 
     @Before
@@ -137,6 +149,356 @@ public class GKMultiplexerTest {
         assertThat(commandData, is(equalTo((commandLine1 + commandLine2).getBytes())));
     }
 
+    @Test
+    public void readDataChannelWritesEachPacketToTheChannelAndReturnsTheCommandResponse() throws IOException {
+        String dataLine1 = "streamed ";
+        String dataLine2 = "straight through";
+        String commandLine = "226 Transfer Complete.";
+        byte[] dataResponse1 = DataPacket.Builder.toPacketBytes(dataLine1.getBytes(), GKMultiplexer.DATA_CHANNEL);
+        byte[] dataResponse2 = DataPacket.Builder.toPacketBytes(dataLine2.getBytes(), GKMultiplexer.DATA_CHANNEL);
+        byte[] commandResponse = DataPacket.Builder.toPacketBytes((commandLine + "\r\n").getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+
+        GKMultiplexer multiplexer = buildMultiplexer(concat(dataResponse1, concat(dataResponse2, commandResponse)));
+        byte[] commandData = multiplexer.readDataChannel(Channels.newChannel(destination));
+
+        assertThat(new String(destination.toByteArray()), is(equalTo(dataLine1 + dataLine2)));
+        assertThat(commandData, is(equalTo(commandLine.getBytes())));
+    }
+
+    @Test
+    public void dataChannelStreamReadsPayloadsAndThenExposesTheCommandResponse() throws IOException {
+        String dataLine1 = "first packet, ";
+        String dataLine2 = "second packet";
+        String commandLine = "226 Transfer Complete.";
+        byte[] dataResponse1 = DataPacket.Builder.toPacketBytes(dataLine1.getBytes(), GKMultiplexer.DATA_CHANNEL);
+        byte[] dataResponse2 = DataPacket.Builder.toPacketBytes(dataLine2.getBytes(), GKMultiplexer.DATA_CHANNEL);
+        byte[] commandResponse = DataPacket.Builder.toPacketBytes((commandLine + "\r\n").getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+
+        GKMultiplexer multiplexer = buildMultiplexer(concat(dataResponse1, concat(dataResponse2, commandResponse)));
+        GKMultiplexer.DataChannelInputStream stream = multiplexer.openDataChannelStream();
+
+        assertThat(stream.getCommandData(), is(nullValue()));
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        byte[] buffer = new byte[5];
+        int count;
+        while ((count = stream.read(buffer, 0, buffer.length)) != -1) {
+            destination.write(buffer, 0, count);
+        }
+
+        assertThat(new String(destination.toByteArray()), is(equalTo(dataLine1 + dataLine2)));
+        assertThat(stream.getCommandData(), is(equalTo(commandLine.getBytes())));
+    }
+
+    @Test
+    public void closingTheDataChannelStreamDiscardsTheRemainingData() throws IOException {
+        String commandLine = "226 Transfer Complete.";
+        byte[] dataResponse1 = DataPacket.Builder.toPacketBytes("unread".getBytes(), GKMultiplexer.DATA_CHANNEL);
+        byte[] dataResponse2 = DataPacket.Builder.toPacketBytes("also unread".getBytes(), GKMultiplexer.DATA_CHANNEL);
+        byte[] commandResponse = DataPacket.Builder.toPacketBytes((commandLine + "\r\n").getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+        byte[] nextResponse = DataPacket.Builder.toPacketBytes("250 Next.\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+        byte[] response = concat(concat(dataResponse1, dataResponse2), concat(commandResponse, nextResponse));
+
+        GKMultiplexer multiplexer = buildMultiplexer(response);
+        GKMultiplexer.DataChannelInputStream stream = multiplexer.openDataChannelStream();
+        stream.read();
+        stream.close();
+
+        assertThat(stream.getCommandData(), is(equalTo(commandLine.getBytes())));
+        assertThat(stream.read(), is(-1));
+        assertThat(multiplexer.readCommandChannelLine(), is(equalTo("250 Next.".getBytes())));
+    }
+
+    @Test
+    public void coalescingWritesTheSameBytesInFewerWrites() throws Exception {
+        byte[] input = new byte[64 * 1024];
+        new Random(1).nextBytes(input);
+        GKMultiplexer immediate = buildUploadMultiplexer(new FlushPolicy.Immediate());
+        immediate.writeToDataChannel(new ByteArrayInputStream(input));
+        byte[] immediateOutput = outputStream.toByteArray();
+        outputStream.reset();
+        GKMultiplexer coalescing = buildUploadMultiplexer(new FlushPolicy.Coalescing(8192));
+
+        coalescing.writeToDataChannel(new ByteArrayInputStream(input));
+
+        assertThat(outputStream.toByteArray(), is(equalTo(immediateOutput)));
+        assertThat(immediate.getOutputWriteCount(), is(128L));
+        // 15 packets of 517 bytes fit in each 8192 byte write
+        assertThat(coalescing.getOutputWriteCount(), is(9L));
+    }
+
+    @Test
+    public void commandPacketsAreWrittenWithTheDataGatheredBeforeThem() throws Exception {
+        GKMultiplexer multiplexer = buildUploadMultiplexer(new FlushPolicy.Coalescing(8192));
+        multiplexer.writeToDataChannel(new ByteArrayInputStream(new byte[100]));
+        long writesAfterUpload = multiplexer.getOutputWriteCount();
+
+        multiplexer.writeToCommandChannel("NOOP\r\n".getBytes());
+
+        assertThat(writesAfterUpload, is(1L));
+        assertThat(multiplexer.getOutputWriteCount(), is(2L));
+        assertThat(outputStream.toByteArray().length, is(105 + 11));
+    }
+
+    @Test
+    public void readDataChannelReadsManyPacketsAtOnce() throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        for (int i = 0; i < 64; i++) {
+            response.write(DataPacket.Builder.toPacketBytes(new byte[GKMultiplexer.MAXIMUM_PAYLOAD_SIZE], GKMultiplexer.DATA_CHANNEL));
+        }
+        response.write(DataPacket.Builder.toPacketBytes("226 Transfer complete\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL));
+        GKMultiplexer multiplexer = buildMultiplexer(response.toByteArray());
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        byte[] commandLine = multiplexer.readDataChannel(Channels.newChannel(data));
+
+        assertThat(new String(commandLine), is(equalTo("226 Transfer complete")));
+        assertThat(data.size(), is(64 * GKMultiplexer.MAXIMUM_PAYLOAD_SIZE));
+        // 33 KiB of packets in 16 KiB reads, where reading each part of each packet took 195
+        assertThat(multiplexer.getInputReadCount(), is(3L));
+    }
+
+    @Test
+    public void readCommandChannelLineFindsACRLFSplitBetweenPackets() throws IOException {
+        byte[] first = DataPacket.Builder.toPacketBytes("250 OK\r".getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+        byte[] second = DataPacket.Builder.toPacketBytes("\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+        byte[] next = DataPacket.Builder.toPacketBytes("226 Next\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+        GKMultiplexer multiplexer = buildMultiplexer(concat(concat(first, second), next));
+
+        assertThat(new String(multiplexer.readCommandChannelLine()), is(equalTo("250 OK")));
+        assertThat(new String(multiplexer.readCommandChannelLine()), is(equalTo("226 Next")));
+    }
+
+    @Test
+    public void fullDuplexReadsTheDataChannelUntilTheCommandResponse() throws IOException {
+        byte[] dataResponse1 = DataPacket.Builder.toPacketBytes("queued ".getBytes(), GKMultiplexer.DATA_CHANNEL);
+        byte[] dataResponse2 = DataPacket.Builder.toPacketBytes("by the reader".getBytes(), GKMultiplexer.DATA_CHANNEL);
+        byte[] commandResponse = DataPacket.Builder.toPacketBytes("226 Transfer Complete.\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+        byte[] nextResponse = DataPacket.Builder.toPacketBytes("250 Next.\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+        GKMultiplexer multiplexer = buildMultiplexer(concat(concat(dataResponse1, dataResponse2), concat(commandResponse, nextResponse)));
+        multiplexer.startFullDuplex(null);
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+
+        byte[] commandData = multiplexer.readDataChannel(Channels.newChannel(destination));
+
+        assertThat(multiplexer.isFullDuplex(), is(true));
+        assertThat(new String(destination.toByteArray()), is(equalTo("queued by the reader")));
+        assertThat(new String(commandData), is(equalTo("226 Transfer Complete.")));
+        assertThat(new String(multiplexer.readCommandChannelLine()), is(equalTo("250 Next.")));
+    }
+
+    @Test
+    public void fullDuplexCommandLinesSkipUnreadData() throws IOException {
+        byte[] dataResponse = DataPacket.Builder.toPacketBytes("never read".getBytes(), GKMultiplexer.DATA_CHANNEL);
+        byte[] commandResponse = DataPacket.Builder.toPacketBytes("226 Transfer Complete.\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+        byte[] nextData = DataPacket.Builder.toPacketBytes("read".getBytes(), GKMultiplexer.DATA_CHANNEL);
+        byte[] nextResponse = DataPacket.Builder.toPacketBytes("226 Next.\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+        GKMultiplexer multiplexer = buildMultiplexer(concat(concat(dataResponse, commandResponse), concat(nextData, nextResponse)));
+        multiplexer.startFullDuplex(null);
+
+        GKMultiplexer.DataChannelInputStream stream = multiplexer.openDataChannelStream();
+        stream.close();
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        byte[] commandData = multiplexer.readDataChannel(Channels.newChannel(destination));
+
+        assertThat(new String(stream.getCommandData()), is(equalTo("226 Transfer Complete.")));
+        assertThat(new String(destination.toByteArray()), is(equalTo("read")));
+        assertThat(new String(commandData), is(equalTo("226 Next.")));
+    }
+
+    @Test
+    public void fullDuplexSpillsDataThatIsNotReadInTime() throws Exception {
+        byte[] data = new byte[256 * GKMultiplexer.MAXIMUM_PAYLOAD_SIZE];
+        new Random(1).nextBytes(data);
+        GKMultiplexer multiplexer = buildMultiplexer(dataResponse(data));
+        multiplexer.startFullDuplex(temporaryFolder.getRoot());
+        long expectedSpill = data.length - SpillQueue.DEFAULT_MEMORY_SIZE;
+        for (int i = 0; i < 200 && multiplexer.getSpilledByteCount() < expectedSpill; i++) {
+            Thread.sleep(10);
+        }
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+
+        byte[] commandData = multiplexer.readDataChannel(Channels.newChannel(destination));
+
+        assertThat(multiplexer.getSpilledByteCount(), is(expectedSpill));
+        assertThat(destination.toByteArray(), is(equalTo(data)));
+        assertThat(new String(commandData), is(equalTo("226 Transfer complete")));
+        multiplexer.cleanup();
+        assertThat(temporaryFolder.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void fullDuplexDeletesTheSpillFileOnceDataIsReadAfterTheLinkFails() throws Exception {
+        byte[] data = new byte[256 * GKMultiplexer.MAXIMUM_PAYLOAD_SIZE];
+        new Random(3).nextBytes(data);
+        // the link ends after the response, failing the reader while data is still queued
+        GKMultiplexer multiplexer = buildMultiplexer(dataResponse(data));
+        multiplexer.startFullDuplex(temporaryFolder.getRoot());
+        long expectedSpill = data.length - SpillQueue.DEFAULT_MEMORY_SIZE;
+        for (int i = 0; i < 200 && multiplexer.getSpilledByteCount() < expectedSpill; i++) {
+            Thread.sleep(10);
+        }
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+
+        multiplexer.readDataChannel(Channels.newChannel(destination));
+        for (int i = 0; i < 200 && temporaryFolder.getRoot().list().length > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        assertThat(destination.toByteArray(), is(equalTo(data)));
+        assertThat(temporaryFolder.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void fullDuplexWithoutASpillDirectoryWaitsForDataToBeRead() throws IOException {
+        byte[] data = new byte[256 * GKMultiplexer.MAXIMUM_PAYLOAD_SIZE];
+        new Random(2).nextBytes(data);
+        GKMultiplexer multiplexer = buildMultiplexer(dataResponse(data));
+        multiplexer.startFullDuplex(null);
+
+        GKMultiplexer.DataChannelInputStream stream = multiplexer.openDataChannelStream();
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        int b;
+        while ((b = stream.read()) != -1) {
+            destination.write(b);
+        }
+
+        assertThat(destination.toByteArray(), is(equalTo(data)));
+        assertThat(multiplexer.getSpilledByteCount(), is(0L));
+        assertThat(new String(stream.getCommandData()), is(equalTo("226 Transfer complete")));
+    }
+
+    @Test
+    public void uploadProgressCountsTheBytesSentRatherThanThePacketBuffer() throws Exception {
+        GKMultiplexer multiplexer = buildUploadMultiplexer(new FlushPolicy.Immediate());
+        GKTransferProgress progress = new GKTransferProgress(513, 0, null);
+        progress.onTransferStarted(0);
+
+        multiplexer.writeToDataChannel(new ByteArrayInputStream(new byte[GKMultiplexer.MAXIMUM_PAYLOAD_SIZE + 1]), progress);
+
+        assertThat(progress.getBytesTransferred(), is(513L));
+        assertThat(progress.isFinished(), is(true));
+    }
+
+    @Test
+    public void statisticsCountPacketsAndCommands() throws Exception {
+        byte[] response = concat(
+                DataPacket.Builder.toPacketBytes("abc".getBytes(), GKMultiplexer.DATA_CHANNEL),
+                DataPacket.Builder.toPacketBytes("226 Done\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL));
+        GKMultiplexer multiplexer = buildMultiplexer(response);
+
+        multiplexer.writeToCommandChannel("RETR /file\r\n".getBytes());
+        multiplexer.readDataChannel(Channels.newChannel(new ByteArrayOutputStream()));
+        GKConnectionStatistics statistics = multiplexer.getStatistics();
+
+        assertThat(statistics.getCommandsSent(), is(1L));
+        assertThat(statistics.getPacketsSent(), is(1L));
+        assertThat(statistics.getBytesSent(), is(12L));
+        assertThat(statistics.getPacketsReceived(), is(2L));
+        assertThat(statistics.getBytesReceived(), is(13L));
+        assertThat(statistics.getErrorCount(), is(0L));
+    }
+
+    @Test
+    public void statisticsCountFailedReads() throws IOException {
+        GKMultiplexer multiplexer = buildMultiplexer(new byte[]{GKMultiplexer.COMMAND_CHANNEL, 0});
+
+        try {
+            multiplexer.readCommandChannelLine();
+        } catch (IOException e) {
+            // the stream ended mid-packet
+        }
+
+        assertThat(multiplexer.getStatistics().getErrorCount(), is(1L));
+    }
+
+    @Test
+    public void compressedUploadsAreDeflated() throws Exception {
+        byte[] data = new byte[8 * 1024];
+        Arrays.fill(data, (byte) 'a');
+        GKMultiplexer multiplexer = buildUploadMultiplexer(new FlushPolicy.Immediate());
+        multiplexer.setCompressionLevel(9);
+        GKTransferProgress progress = new GKTransferProgress(data.length, 0, null);
+        progress.onTransferStarted(0);
+
+        multiplexer.writeToDataChannel(new ByteArrayInputStream(data), progress);
+        byte[] sent = dataPayloads(outputStream.toByteArray());
+
+        assertThat(inflate(sent), is(equalTo(data)));
+        assertThat(progress.getBytesTransferred(), is((long) data.length));
+        assertThat(progress.getLinkBytesTransferred(), is((long) sent.length));
+        assertThat(progress.getCompressionRatio(), is(greaterThan(10.0)));
+    }
+
+    @Test
+    public void compressedDownloadsAreInflated() throws IOException {
+        byte[] data = new byte[8 * 1024];
+        Arrays.fill(data, (byte) 'a');
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] deflated = new byte[data.length];
+        deflated = Arrays.copyOf(deflated, deflater.deflate(deflated));
+        deflater.end();
+        GKMultiplexer multiplexer = buildMultiplexer(dataResponse(deflated));
+        multiplexer.setCompressionLevel(6);
+
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        byte[] commandData = multiplexer.readDataChannel(Channels.newChannel(destination));
+
+        assertThat(destination.toByteArray(), is(equalTo(data)));
+        assertThat(new String(commandData), is(equalTo("226 Transfer complete")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compressionLevelMustBeADeflaterLevel() {
+        buildMultiplexer(new byte[0]).setCompressionLevel(10);
+    }
+
+    private byte[] dataResponse(byte[] data) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        for (int offset = 0; offset < data.length; offset += GKMultiplexer.MAXIMUM_PAYLOAD_SIZE) {
+            byte[] payload = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + GKMultiplexer.MAXIMUM_PAYLOAD_SIZE));
+            response.write(DataPacket.Builder.toPacketBytes(payload, GKMultiplexer.DATA_CHANNEL));
+        }
+        response.write(DataPacket.Builder.toPacketBytes("226 Transfer complete\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL));
+        return response.toByteArray();
+    }
+
+    // the payloads of the data channel packets among the given packets
+    private byte[] dataPayloads(byte[] packets) {
+        ByteArrayOutputStream payloads = new ByteArrayOutputStream();
+        int offset = 0;
+        while (offset < packets.length) {
+            int packetSize = (packets[offset + 1] & 0xFF) << 8 | packets[offset + 2] & 0xFF;
+            if (packets[offset] == GKMultiplexer.DATA_CHANNEL) {
+                payloads.write(packets, offset + DataPacket.HEADER_SIZE, packetSize - DataPacket.HEADER_SIZE - DataPacket.CHECKSUM_SIZE);
+            }
+            offset += packetSize;
+        }
+        return payloads.toByteArray();
+    }
+
+    private byte[] inflate(byte[] deflated) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(deflated);
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!inflater.finished()) {
+            inflated.write(buffer, 0, inflater.inflate(buffer));
+        }
+        inflater.end();
+        return inflated.toByteArray();
+    }
+
+    private GKMultiplexer buildUploadMultiplexer(FlushPolicy flushPolicy) {
+        GKMultiplexer multiplexer = buildMultiplexer(new byte[0]);
+        multiplexer.setUploadPacer(new UploadPacer.NoDelay());
+        multiplexer.setPayloadSizer(new PayloadSizer.Fixed(GKMultiplexer.MAXIMUM_PAYLOAD_SIZE));
+        multiplexer.setFlushPolicy(flushPolicy);
+        return multiplexer;
+    }
+
     private GKMultiplexer buildMultiplexer(byte[] responseData) {
         return new GKMultiplexer(new ByteArrayInputStream(responseData), outputStream);
     }
@@ -0,0 +1,82 @@
+package co.blustor.gatekeepersdk.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class GKTransferProgressTest {
+    private final List<Long> reportedBytes = new ArrayList<>();
+    private final GKTransferProgress.Listener listener = new GKTransferProgress.Listener() {
+        @Override
+        public void onProgress(GKTransferProgress progress) {
+            reportedBytes.add(progress.getBytesTransferred());
+        }
+    };
+
+    @Test
+    public void reportsAreThrottledToTheInterval() {
+        GKTransferProgress progress = new GKTransferProgress(3000, 60000, listener);
+        progress.onTransferStarted(0);
+
+        for (int i = 0; i < 3; i++) {
+            progress.onBytesTransferred(1000);
+        }
+        progress.onTransferFinished();
+
+        assertThat(reportedBytes.size(), is(1));
+        assertThat(reportedBytes.get(0), is(3000L));
+        assertThat(progress.isFinished(), is(true));
+        assertThat(progress.getEstimatedMillisRemaining(), is(0L));
+    }
+
+    @Test
+    public void aZeroIntervalReportsEveryPacket() {
+        GKTransferProgress progress = new GKTransferProgress(3000, 0, listener);
+        progress.onTransferStarted(0);
+
+        progress.onBytesTransferred(1000);
+        progress.onBytesTransferred(1000);
+
+        assertThat(reportedBytes.size(), is(2));
+        assertThat(reportedBytes.get(1), is(2000L));
+        assertThat(progress.isFinished(), is(false));
+    }
+
+    @Test
+    public void estimatesTheTimeRemainingFromTheSmoothedThroughput() throws InterruptedException {
+        GKTransferProgress progress = new GKTransferProgress(100000, 0, listener);
+        progress.onTransferStarted(0);
+        Thread.sleep(5);
+
+        progress.onBytesTransferred(1000);
+
+        double expectedMillis = 99000 * 1000 / progress.getSmoothedBytesPerSecond();
+        assertThat(progress.getBytesPerSecond(), is(greaterThan(0.0)));
+        assertThat(progress.getEstimatedMillisRemaining(), is((long) expectedMillis));
+    }
+
+    @Test
+    public void theTimeRemainingIsUnknownWithoutTheFileSize() {
+        GKTransferProgress progress = new GKTransferProgress(-1, 0, listener);
+        progress.onTransferStarted(0);
+
+        progress.onBytesTransferred(1000);
+
+        assertThat(progress.getEstimatedMillisRemaining(), is(-1L));
+    }
+
+    @Test
+    public void aResumedTransferCountsTheBytesTransferredBefore() {
+        GKTransferProgress progress = new GKTransferProgress(3000, 0, listener);
+        progress.onTransferStarted(2000);
+
+        progress.onBytesTransferred(1000);
+
+        assertThat(progress.getBytesTransferred(), is(3000L));
+    }
+}
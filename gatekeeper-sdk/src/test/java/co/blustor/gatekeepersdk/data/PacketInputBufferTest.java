@@ -0,0 +1,94 @@
+package co.blustor.gatekeepersdk.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class PacketInputBufferTest {
+    @Test
+    public void decodesManyPacketsPerRead() throws IOException {
+        ByteArrayOutputStream packets = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            packets.write(DataPacket.Builder.toPacketBytes(new byte[]{(byte) i}, GKMultiplexer.DATA_CHANNEL));
+        }
+        PacketInputBuffer inputBuffer = new PacketInputBuffer(new ByteArrayInputStream(packets.toByteArray()));
+        DataPacket.Decoder decoder = new DataPacket.Decoder(16);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(decoder.decode(inputBuffer).getPayload(), is(equalTo(new byte[]{(byte) i})));
+        }
+
+        assertThat(inputBuffer.getReadCount(), is(1L));
+    }
+
+    @Test
+    public void neverWaitsForMoreThanTheStreamHasReady() throws IOException {
+        ChunkedInputStream chunks = new ChunkedInputStream();
+        chunks.add(DataPacket.Builder.toPacketBytes("226 Trans".getBytes(), GKMultiplexer.COMMAND_CHANNEL));
+        chunks.add(DataPacket.Builder.toPacketBytes("fer complete\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL));
+        GKMultiplexer multiplexer = new GKMultiplexer(chunks, new ByteArrayOutputStream());
+
+        byte[] line = multiplexer.readCommandChannelLine();
+
+        assertThat(new String(line), is(equalTo("226 Transfer complete")));
+        assertThat(multiplexer.getInputReadCount(), is(2L));
+    }
+
+    @Test
+    public void availableIncludesBufferedBytes() throws IOException {
+        PacketInputBuffer inputBuffer = new PacketInputBuffer(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+
+        inputBuffer.read();
+
+        assertThat(inputBuffer.available(), is(2));
+    }
+
+    @Test
+    public void largeReadsBypassTheBuffer() throws IOException {
+        byte[] data = new byte[64];
+        Arrays.fill(data, (byte) 7);
+        PacketInputBuffer inputBuffer = new PacketInputBuffer(new ByteArrayInputStream(data), 16);
+        byte[] target = new byte[64];
+
+        int count = inputBuffer.read(target, 0, target.length);
+
+        assertThat(count, is(64));
+        assertThat(target, is(equalTo(data)));
+        assertThat(inputBuffer.getReadCount(), is(1L));
+    }
+
+    // Returns one chunk per read, like a socket delivering packets as they arrive, and fails
+    // rather than blocking once it runs out.
+    private static class ChunkedInputStream extends InputStream {
+        private final Queue<byte[]> mChunks = new ArrayDeque<>();
+
+        void add(byte[] chunk) {
+            mChunks.add(chunk);
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            byte[] chunk = mChunks.remove();
+            if (chunk.length > length) {
+                throw new IllegalStateException("Chunk larger than the read");
+            }
+            System.arraycopy(chunk, 0, buffer, offset, chunk.length);
+            return chunk.length;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package co.blustor.gatekeepersdk.data;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class PayloadSizerTest {
+    private static final int SAMPLE_PACKETS = 16;
+
+    @Test
+    public void fixedNeverExceedsWhatTheCardAccepts() {
+        PayloadSizer.Fixed fixed = new PayloadSizer.Fixed(4096);
+
+        assertThat(fixed.getPayloadSize(8192), is(4096));
+        assertThat(fixed.getPayloadSize(512), is(512));
+    }
+
+    @Test
+    public void adaptiveGrowsWhileLargerPacketsAreFaster() throws Exception {
+        PayloadSizer.Adaptive adaptive = new PayloadSizer.Adaptive(512);
+        adaptive.onTransferStarted();
+
+        // every packet takes the same time, so larger packets carry more data per second
+        for (int sample = 0; sample < 4; sample++) {
+            writeSample(adaptive, 4096, 1);
+        }
+
+        assertThat(adaptive.getCurrentPayloadSize(), is(4096));
+        assertThat(adaptive.getPayloadSize(4096), is(4096));
+    }
+
+    @Test
+    public void adaptiveShrinksWhenLargerPacketsAreSlower() throws Exception {
+        PayloadSizer.Adaptive adaptive = new PayloadSizer.Adaptive(512);
+        adaptive.onTransferStarted();
+
+        // packets take time in proportion to the square of their size, as on a noisy link
+        writeSample(adaptive, 4096, 4);
+        assertThat(adaptive.getCurrentPayloadSize(), is(1024));
+        writeSample(adaptive, 4096, 16);
+        assertThat(adaptive.getCurrentPayloadSize(), is(512));
+        writeSample(adaptive, 4096, 4);
+
+        assertThat(adaptive.getCurrentPayloadSize(), is(256));
+    }
+
+    @Test
+    public void adaptiveSamplesAcrossUploads() throws Exception {
+        PayloadSizer.Adaptive adaptive = new PayloadSizer.Adaptive(512);
+
+        // each upload carries half a sample
+        for (int upload = 0; upload < 4; upload++) {
+            adaptive.onTransferStarted();
+            writePackets(adaptive, 4096, SAMPLE_PACKETS / 2, 1);
+        }
+
+        assertThat(adaptive.getCurrentPayloadSize(), is(2048));
+    }
+
+    @Test
+    public void adaptiveDoesNotCountTheTimeBetweenUploads() throws Exception {
+        PayloadSizer.Adaptive adaptive = new PayloadSizer.Adaptive(512);
+        adaptive.onTransferStarted();
+        writeSample(adaptive, 4096, 1);
+
+        writePackets(adaptive, 4096, SAMPLE_PACKETS / 2, 1);
+        Thread.sleep(100);
+        adaptive.onTransferStarted();
+        writePackets(adaptive, 4096, SAMPLE_PACKETS / 2, 1);
+
+        assertThat(adaptive.getCurrentPayloadSize(), is(2048));
+    }
+
+    @Test
+    public void adaptiveSamplesByBytesRatherThanWrites() throws Exception {
+        PayloadSizer.Adaptive adaptive = new PayloadSizer.Adaptive(512);
+        adaptive.onTransferStarted();
+
+        // a gathering flush policy writes a sample's worth of packets at once
+        Thread.sleep(SAMPLE_PACKETS);
+        adaptive.onPacketWritten(SAMPLE_PACKETS * 512, 0);
+
+        assertThat(adaptive.getCurrentPayloadSize(), is(1024));
+    }
+
+    private void writeSample(PayloadSizer sizer, int maximumPayloadSize, long packetMillis) throws InterruptedException {
+        writePackets(sizer, maximumPayloadSize, SAMPLE_PACKETS, packetMillis);
+    }
+
+    private void writePackets(PayloadSizer sizer, int maximumPayloadSize, int packets, long packetMillis) throws InterruptedException {
+        for (int i = 0; i < packets; i++) {
+            int size = sizer.getPayloadSize(maximumPayloadSize);
+            Thread.sleep(packetMillis);
+            sizer.onPacketWritten(size, 0);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package co.blustor.gatekeepersdk.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class SpillQueueTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readReturnsBytesInTheOrderTheyWereOffered() throws IOException {
+        SpillQueue queue = new SpillQueue(null, 8);
+
+        queue.offer(new byte[]{1, 2, 3, 4, 5, 6}, 0, 6);
+        assertThat(read(queue, 4), is(equalTo(new byte[]{1, 2, 3, 4})));
+        // wraps around the end of the ring
+        queue.offer(new byte[]{7, 8, 9, 10, 11}, 0, 5);
+
+        assertThat(queue.size(), is(7L));
+        assertThat(read(queue, 8), is(equalTo(new byte[]{5, 6, 7, 8, 9, 10, 11})));
+        assertThat(queue.size(), is(0L));
+    }
+
+    @Test
+    public void offerRefusesBytesBeyondMemoryWithoutASpillDirectory() throws IOException {
+        SpillQueue queue = new SpillQueue(null, 8);
+
+        assertThat(queue.offer(new byte[6], 0, 6), is(true));
+        assertThat(queue.offer(new byte[3], 0, 3), is(false));
+
+        assertThat(queue.size(), is(6L));
+        assertThat(queue.getSpilledBytes(), is(0L));
+    }
+
+    @Test
+    public void bytesBeyondMemorySpillToDiskAndKeepTheirOrder() throws IOException {
+        SpillQueue queue = new SpillQueue(temporaryFolder.getRoot(), 4);
+
+        queue.offer(new byte[]{1, 2, 3}, 0, 3);
+        queue.offer(new byte[]{4, 5}, 0, 2);
+        assertThat(read(queue, 2), is(equalTo(new byte[]{1, 2})));
+        // memory has room again, but the spilled bytes are still ahead of these
+        queue.offer(new byte[]{6}, 0, 1);
+
+        assertThat(queue.getSpilledBytes(), is(3L));
+        assertThat(read(queue, 8), is(equalTo(new byte[]{3})));
+        assertThat(read(queue, 8), is(equalTo(new byte[]{4, 5, 6})));
+    }
+
+    @Test
+    public void skipDiscardsBytesFromMemoryAndDisk() throws IOException {
+        SpillQueue queue = new SpillQueue(temporaryFolder.getRoot(), 4);
+        queue.offer(new byte[]{1, 2, 3, 4}, 0, 4);
+        queue.offer(new byte[]{5, 6, 7}, 0, 3);
+
+        assertThat(queue.skip(6), is(6L));
+
+        assertThat(read(queue, 8), is(equalTo(new byte[]{7})));
+    }
+
+    @Test
+    public void closeDeletesTheSpillFile() throws IOException {
+        SpillQueue queue = new SpillQueue(temporaryFolder.getRoot(), 4);
+        queue.offer(new byte[8], 0, 8);
+        assertThat(temporaryFolder.getRoot().list().length, is(1));
+
+        queue.close();
+
+        assertThat(temporaryFolder.getRoot().list().length, is(0));
+        assertThat(queue.size(), is(0L));
+    }
+
+    private byte[] read(SpillQueue queue, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int count = queue.read(buffer, 0, length);
+        return Arrays.copyOf(buffer, count);
+    }
+}
@@ -0,0 +1,211 @@
+package co.blustor.gatekeepersdk.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class UploadPacerTest {
+    private static final int UPLOAD_SIZE = 128 * 1024;
+    private static final long UNLIMITED = 0;
+
+    @Test
+    public void noDelayOutpacesTheLegacyFixedDelay() throws Exception {
+        double noDelay = measureThroughput(new UploadPacer.NoDelay(), UPLOAD_SIZE, UNLIMITED);
+        double fixedDelay = measureThroughput(new UploadPacer.FixedDelay(1), UPLOAD_SIZE, UNLIMITED);
+
+        assertThat(noDelay, is(greaterThan(fixedDelay * 2)));
+    }
+
+    @Test
+    public void tokenBucketHoldsUploadsNearTheConfiguredRate() throws Exception {
+        long bytesPerSecond = 256 * 1024;
+
+        double achieved = measureThroughput(new UploadPacer.TokenBucket(bytesPerSecond, 4096), UPLOAD_SIZE, UNLIMITED);
+
+        assertThat(achieved, is(lessThan(bytesPerSecond * 1.2)));
+        assertThat(achieved, is(greaterThan(bytesPerSecond * 0.5)));
+    }
+
+    @Test
+    public void adaptiveDoesNotDelayAnUncongestedLink() throws Exception {
+        UploadPacer.Adaptive adaptive = new UploadPacer.Adaptive();
+
+        double achieved = measureThroughput(adaptive, UPLOAD_SIZE, UNLIMITED);
+        double fixedDelay = measureThroughput(new UploadPacer.FixedDelay(1), UPLOAD_SIZE, UNLIMITED);
+
+        assertThat(achieved, is(greaterThan(fixedDelay * 2)));
+        assertThat(adaptive.getBackoffCount(), is(0));
+    }
+
+    @Test
+    public void adaptiveBacksOffWhenTheLinkBlocks() throws Exception {
+        UploadPacer.Adaptive adaptive = new UploadPacer.Adaptive(1000000L);
+
+        measureThroughput(adaptive, 32 * 1024, 64 * 1024);
+
+        assertThat(adaptive.getBackoffCount(), is(greaterThan(0)));
+    }
+
+    @Test
+    public void adaptiveBacksOffWhenTheCardSendsDataMidUpload() throws Exception {
+        UploadPacer.Adaptive adaptive = new UploadPacer.Adaptive();
+        byte[] cardData = DataPacket.Builder.toPacketBytes("451 Slow down\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+        GKMultiplexer multiplexer = new GKMultiplexer(new ByteArrayInputStream(cardData), new ByteArrayOutputStream());
+        multiplexer.setUploadPacer(adaptive);
+        multiplexer.setFlushPolicy(new FlushPolicy.Immediate());
+
+        multiplexer.writeToDataChannel(new ByteArrayInputStream(new byte[GKMultiplexer.MAXIMUM_PAYLOAD_SIZE * 2]));
+
+        assertThat(adaptive.getBackoffCount(), is(1));
+        assertThat(adaptive.getBackoffMillis(), is(0L));
+    }
+
+    @Test
+    public void adaptiveRecoversOnceTheCardDataIsRead() throws Exception {
+        UploadPacer.Adaptive adaptive = new UploadPacer.Adaptive();
+        byte[] cardData = DataPacket.Builder.toPacketBytes("451 Slow down\r\n".getBytes(), GKMultiplexer.COMMAND_CHANNEL);
+        final ByteArrayInputStream cardInput = new ByteArrayInputStream(cardData);
+        GKMultiplexer multiplexer = new GKMultiplexer(cardInput, new ByteArrayOutputStream());
+        multiplexer.setUploadPacer(adaptive);
+        multiplexer.setPayloadSizer(new PayloadSizer.Fixed(512));
+        multiplexer.setFlushPolicy(new FlushPolicy.Immediate());
+
+        // the card's reply is read while the fourth packet is being prepared
+        multiplexer.writeToDataChannel(new FilterInputStream(new ByteArrayInputStream(new byte[512 * 8])) {
+            private int mReads;
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (++mReads == 4) {
+                    cardInput.skip(cardInput.available());
+                }
+                return super.read(buffer, offset, length);
+            }
+        });
+
+        assertThat(adaptive.getBackoffCount(), is(1));
+        assertThat(adaptive.getBackoffMillis(), is(0L));
+    }
+
+    @Test
+    public void adaptiveRecoversOnceWritesCompletePromptly() throws Exception {
+        UploadPacer.Adaptive adaptive = new UploadPacer.Adaptive(1000L);
+        adaptive.onTransferStarted();
+
+        adaptive.onPacketWritten(512, 5000L);
+        adaptive.onPacketWritten(512, 5000L);
+        assertThat(adaptive.getBackoffMillis(), is(greaterThan(1L)));
+
+        for (int i = 0; i < 8; i++) {
+            adaptive.onPacketWritten(512, 0L);
+        }
+        assertThat(adaptive.getBackoffMillis(), is(0L));
+    }
+
+    @Test
+    public void pacerAndSizerSeeEachWriteOfGatheredPackets() throws Exception {
+        final List<Integer> pacedBytes = new ArrayList<>();
+        final List<Long> pacedNanos = new ArrayList<>();
+        final List<Integer> sizedBytes = new ArrayList<>();
+        OutputStream slowLink = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        GKMultiplexer multiplexer = new GKMultiplexer(new ByteArrayInputStream(new byte[0]), slowLink);
+        // eight 512-byte packets fill each buffer
+        multiplexer.setFlushPolicy(new FlushPolicy.Coalescing(4096));
+        multiplexer.setPayloadSizer(new PayloadSizer.Fixed(507) {
+            @Override
+            public void onPacketWritten(int bytes, long writeNanos) {
+                sizedBytes.add(bytes);
+            }
+        });
+        multiplexer.setUploadPacer(new UploadPacer.NoDelay() {
+            @Override
+            public void onPacketWritten(int bytes, long writeNanos) {
+                pacedBytes.add(bytes);
+                pacedNanos.add(writeNanos);
+            }
+        });
+
+        multiplexer.writeToDataChannel(new ByteArrayInputStream(new byte[507 * 16]));
+
+        assertThat(multiplexer.getOutputWriteCount(), is(2L));
+        assertThat(pacedBytes, is(equalTo(Arrays.asList(507 * 8, 507 * 8))));
+        assertThat(sizedBytes, is(equalTo(pacedBytes)));
+        for (long writeNanos : pacedNanos) {
+            assertThat(writeNanos, is(greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(5))));
+        }
+    }
+
+    /**
+     * Upload {@code size} bytes through a {@code GKMultiplexer} into a loopback link that a
+     * reader thread drains, and return the payload throughput in bytes per second.
+     */
+    private double measureThroughput(UploadPacer pacer, int size, final long linkBytesPerSecond) throws Exception {
+        // PipedOutputStream polls once a second for space, so only let the link fill up when
+        // the test wants writes to block.
+        int linkBufferSize = linkBytesPerSecond == UNLIMITED ? size * 2 : 4096;
+        final PipedInputStream linkInput = new PipedInputStream(linkBufferSize);
+        PipedOutputStream linkOutput = new PipedOutputStream(linkInput);
+        final AtomicLong received = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DataPacket.Decoder decoder = new DataPacket.Decoder(GKMultiplexer.MAXIMUM_PAYLOAD_SIZE);
+                try {
+                    while (true) {
+                        DataPacket packet = decoder.decode(linkInput);
+                        received.addAndGet(packet.getPayloadLength());
+                        if (linkBytesPerSecond != UNLIMITED) {
+                            Thread.sleep(packet.getPayloadLength() * 1000L / linkBytesPerSecond);
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // the upload finished and closed the link
+                }
+            }
+        });
+        reader.start();
+
+        GKMultiplexer multiplexer = new GKMultiplexer(new ByteArrayInputStream(new byte[0]), linkOutput);
+        multiplexer.setUploadPacer(pacer);
+        long start = System.nanoTime();
+        multiplexer.writeToDataChannel(new ByteArrayInputStream(new byte[size]));
+        linkOutput.close();
+        reader.join();
+        long elapsedNanos = System.nanoTime() - start;
+
+        assertThat(received.get(), is((long) size));
+        return size * 1e9 / elapsedNanos;
+    }
+}
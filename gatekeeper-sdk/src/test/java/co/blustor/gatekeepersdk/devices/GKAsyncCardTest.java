@@ -0,0 +1,193 @@
+package co.blustor.gatekeepersdk.devices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import co.blustor.gatekeepersdk.devices.GKCard.Response;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GKAsyncCardTest {
+    private GKCard card;
+    private GKAsyncCard asyncCard;
+
+    @Before
+    public void setUp() throws Exception {
+        card = mock(GKCard.class);
+        asyncCard = new GKAsyncCard(card);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        asyncCard.shutdownNow();
+    }
+
+    @Test
+    public void actionsRunOnTheIOThreadAndCompleteTheirFutures() throws Exception {
+        final AtomicReference<Thread> actionThread = new AtomicReference<>();
+        Response response = new Response(250, "Deleted.");
+        when(card.delete("/data/file")).thenAnswer(answerOnThread(actionThread, response));
+
+        Future<Response> future = asyncCard.delete("/data/file", null);
+
+        assertThat(future.get(1, TimeUnit.SECONDS), is(sameInstance(response)));
+        assertThat(actionThread.get(), is(not(sameInstance(Thread.currentThread()))));
+    }
+
+    @Test
+    public void actionsRunOneAtATimeInSubmissionOrder() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maximumRunning = new AtomicInteger();
+        final List<String> order = new ArrayList<>();
+        when(card.createPath(anyString())).thenAnswer(new Answer<Response>() {
+            @Override
+            public Response answer(InvocationOnMock invocation) throws Throwable {
+                int now = running.incrementAndGet();
+                maximumRunning.set(Math.max(maximumRunning.get(), now));
+                Thread.sleep(5);
+                synchronized (order) {
+                    order.add((String) invocation.getArguments()[0]);
+                }
+                running.decrementAndGet();
+                return new Response(257, "Created.");
+            }
+        });
+
+        List<Future<Response>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(asyncCard.createPath("/data/" + i, null));
+        }
+        for (Future<Response> future : futures) {
+            future.get(1, TimeUnit.SECONDS);
+        }
+
+        assertThat(maximumRunning.get(), is(1));
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            expected.add("/data/" + i);
+        }
+        assertThat(order, is(equalTo(expected)));
+    }
+
+    @Test
+    public void callbacksReceiveResultsAndFailures() throws Exception {
+        when(card.list("/data")).thenReturn(new Response(226, "Done."));
+        when(card.list("/missing")).thenThrow(new IOException("Not Connected"));
+        RecordingCallback success = new RecordingCallback();
+        RecordingCallback failure = new RecordingCallback();
+
+        asyncCard.list("/data", success);
+        asyncCard.list("/missing", failure);
+
+        assertThat(success.await().getStatus(), is(226));
+        failure.await();
+        assertThat(failure.mFailure.getMessage(), is(equalTo("Not Connected")));
+    }
+
+    @Test
+    public void queueDepthCountsPendingAndRunningActions() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(card.get("/blocking")).thenAnswer(new Answer<Response>() {
+            @Override
+            public Response answer(InvocationOnMock invocation) throws Throwable {
+                started.countDown();
+                release.await();
+                return new Response(226, "Done.");
+            }
+        });
+        when(card.get("/queued")).thenReturn(new Response(226, "Done."));
+
+        Future<Response> blocking = asyncCard.get("/blocking", null);
+        started.await(1, TimeUnit.SECONDS);
+        asyncCard.get("/queued", null);
+        Future<Response> last = asyncCard.get("/queued", null);
+
+        assertThat(asyncCard.getQueueDepth(), is(3));
+        release.countDown();
+        blocking.get(1, TimeUnit.SECONDS);
+        last.get(1, TimeUnit.SECONDS);
+        assertThat(asyncCard.getQueueDepth(), is(0));
+    }
+
+    @Test
+    public void cancelledActionsThatHaveNotStartedNeverReachTheCard() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(card.get("/blocking")).thenAnswer(new Answer<Response>() {
+            @Override
+            public Response answer(InvocationOnMock invocation) throws Throwable {
+                started.countDown();
+                release.await();
+                return new Response(226, "Done.");
+            }
+        });
+
+        Future<Response> blocking = asyncCard.get("/blocking", null);
+        started.await(1, TimeUnit.SECONDS);
+        RecordingCallback callback = new RecordingCallback();
+        Future<Response> cancelled = asyncCard.delete("/data/file", callback);
+        cancelled.cancel(false);
+        assertThat(asyncCard.getQueueDepth(), is(1));
+        release.countDown();
+        blocking.get(1, TimeUnit.SECONDS);
+        asyncCard.shutdown();
+
+        verify(card, never()).delete("/data/file");
+        assertThat(callback.mLatch.getCount(), is(1L));
+    }
+
+    private Answer<Response> answerOnThread(final AtomicReference<Thread> thread, final Response response) {
+        return new Answer<Response>() {
+            @Override
+            public Response answer(InvocationOnMock invocation) throws Throwable {
+                thread.set(Thread.currentThread());
+                return response;
+            }
+        };
+    }
+
+    private static class RecordingCallback implements GKAsyncCard.Callback<Response> {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private Response mResult;
+        private Exception mFailure;
+
+        @Override
+        public void onSuccess(Response result) {
+            mResult = result;
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            mFailure = e;
+            mLatch.countDown();
+        }
+
+        Response await() throws InterruptedException {
+            mLatch.await(1, TimeUnit.SECONDS);
+            return mResult;
+        }
+    }
+}
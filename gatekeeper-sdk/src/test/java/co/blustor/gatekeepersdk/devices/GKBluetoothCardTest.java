@@ -0,0 +1,426 @@
+package co.blustor.gatekeepersdk.devices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import co.blustor.gatekeepersdk.data.GKConnectionStatistics;
+import co.blustor.gatekeepersdk.data.GKMultiplexer;
+import co.blustor.gatekeepersdk.data.PayloadSizer;
+
+import co.blustor.gatekeepersdk.devices.GKCard.Command;
+import co.blustor.gatekeepersdk.devices.GKCard.Response;
+import co.blustor.gatekeepersdk.emulator.GKCardEmulator;
+import co.blustor.gatekeepersdk.emulator.GKEmulatedCard;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class GKBluetoothCardTest {
+    private static final long LATENCY_MILLIS = 25;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private GKCardEmulator emulator;
+    private GKEmulatedCard card;
+
+    @Before
+    public void setUp() throws Exception {
+        emulator = new GKCardEmulator();
+        emulator.setLatencyMillis(LATENCY_MILLIS);
+        card = new GKEmulatedCard(emulator, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        card.disconnect();
+    }
+
+    @Test
+    public void disconnectDeletesDataQueuedByTheFullDuplexReader() throws Exception {
+        File cacheDir = temporaryFolder.newFolder();
+        emulator.putFile("/data/file", new byte[256 * 1024]);
+        card = new GKEmulatedCard(emulator, cacheDir);
+        card.setFullDuplexEnabled(true);
+        card.connect();
+
+        // leave the download unread until the reader spills it
+        card.getStream("/data/file");
+        for (int i = 0; i < 200 && cacheDir.list().length == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(cacheDir.list().length, is(1));
+        card.disconnect();
+
+        assertThat(cacheDir.list().length, is(0));
+    }
+
+    @Test
+    public void actionsOnTheThreadHoldingAStreamAreRejected() throws Exception {
+        emulator.putFile("/data/file", new byte[16]);
+        GKCard.DataStream stream = card.getStream("/data/file");
+
+        try {
+            card.list("/data");
+            fail("Expected the action to be rejected while the stream is open");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        stream.close();
+
+        assertThat(card.list("/data").getStatus(), is(226));
+    }
+
+    @Test
+    public void waitingForTheCardCanBeInterrupted() throws Exception {
+        emulator.putFile("/data/file", new byte[16]);
+        GKCard.DataStream stream = card.getStream("/data/file");
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    card.list("/data");
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        waiter.start();
+
+        waiter.interrupt();
+        waiter.join(1000);
+
+        assertThat(waiter.isAlive(), is(false));
+        assertThat(failure.get(), is(instanceOf(InterruptedIOException.class)));
+        stream.close();
+    }
+
+    @Test
+    public void batchRunsCommandsInOrder() throws IOException {
+        emulator.putFile("/data/file", new byte[1]);
+        List<Command> commands = new ArrayList<>();
+        commands.add(Command.createPath("/data/a"));
+        commands.add(Command.delete("/data/file"));
+        commands.add(Command.deletePath("/data/a"));
+
+        List<Response> responses = card.batch(commands);
+
+        assertThat(responses.size(), is(3));
+        assertThat(responses.get(0).getStatus(), is(257));
+        assertThat(responses.get(1).getStatus(), is(250));
+        assertThat(responses.get(2).getStatus(), is(250));
+        assertThat(emulator.isDirectory("/data/a"), is(false));
+    }
+
+    @Test
+    public void pipelinedBatchesPayAboutOneRoundTrip() throws IOException {
+        List<Command> serialCommands = new ArrayList<>();
+        List<Command> pipelinedCommands = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            emulator.putFile("/data/serial" + i, new byte[1]);
+            emulator.putFile("/data/pipelined" + i, new byte[1]);
+            serialCommands.add(Command.delete("/data/serial" + i));
+            pipelinedCommands.add(Command.delete("/data/pipelined" + i));
+        }
+        card.connect();
+
+        card.setPipeliningEnabled(false);
+        long serialStart = System.nanoTime();
+        card.batch(serialCommands);
+        long serialNanos = System.nanoTime() - serialStart;
+
+        card.setPipeliningEnabled(true);
+        long pipelinedStart = System.nanoTime();
+        List<Response> responses = card.batch(pipelinedCommands);
+        long pipelinedNanos = System.nanoTime() - pipelinedStart;
+
+        for (Response response : responses) {
+            assertThat(response.getStatus(), is(250));
+        }
+        assertThat(pipelinedNanos * 3, is(lessThan(serialNanos)));
+    }
+
+    @Test
+    public void batchFallsBackToSerialModeWhenTheCardRejectsPipelinedCommands() throws IOException {
+        emulator.setPipeliningSupported(false);
+        List<Command> commands = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            emulator.putFile("/data/file" + i, new byte[1]);
+            commands.add(Command.delete("/data/file" + i));
+        }
+
+        List<Response> responses = card.batch(commands);
+
+        for (int i = 0; i < commands.size(); i++) {
+            assertThat(responses.get(i).getStatus(), is(250));
+            assertThat(emulator.getFile("/data/file" + i), is(nullValue()));
+        }
+        assertThat(card.isPipeliningEnabled(), is(false));
+        assertThat(emulator.getRejectedCommandCount(), is(3L));
+    }
+
+    @Test
+    public void idleTimeoutClosesTheConnectionAndTheNextCommandReconnects() throws Exception {
+        card.setIdleTimeout(50);
+        card.createPath("/data");
+        GKCardEmulator.Connection firstConnection = card.getConnection();
+
+        Thread.sleep(200);
+
+        assertThat(card.getConnectionState(), is(GKCard.ConnectionState.DISCONNECTED));
+        assertThat(firstConnection.isOpen(), is(false));
+        assertThat(card.deletePath("/data").getStatus(), is(250));
+        assertThat(card.getConnectCount(), is(2L));
+    }
+
+    @Test
+    public void keepAliveProbesAnIdleConnection() throws Exception {
+        card.setKeepAliveInterval(20);
+        card.connect();
+        long commandsBefore = emulator.getCommandCount();
+
+        Thread.sleep(250);
+
+        assertThat(emulator.getCommandCount(), is(greaterThan(commandsBefore + 1)));
+        assertThat(card.getConnectCount(), is(1L));
+        assertThat(card.getConnectionState(), is(GKCard.ConnectionState.CONNECTED));
+    }
+
+    @Test
+    public void keepAliveReconnectsWhenTheLinkDies() throws Exception {
+        card.setKeepAliveInterval(20);
+        card.connect();
+        GKCardEmulator.Connection firstConnection = card.getConnection();
+
+        firstConnection.getDownlink().close();
+        Thread.sleep(250);
+
+        assertThat(card.getConnectCount(), is(2L));
+        assertThat(card.getConnection().isOpen(), is(true));
+        assertThat(card.createPath("/data").getStatus(), is(257));
+        assertThat(card.getConnectCount(), is(2L));
+    }
+
+    @Test
+    public void connectNegotiatesTheLargestPayloadBothSidesAccept() throws IOException {
+        emulator.setMaximumPayloadSize(4096);
+        card.setRequestedPayloadSize(8192);
+        card.setPayloadSizer(new PayloadSizer.Fixed(8192));
+        byte[] data = new byte[64 * 1024];
+        new Random(1).nextBytes(data);
+        card.createPath("/data");
+
+        card.put("/data/file", new ByteArrayInputStream(data));
+
+        assertThat(card.getMaximumPayloadSize(), is(4096));
+        assertThat(emulator.getFile("/data/file"), is(equalTo(data)));
+        assertThat(card.getConnection().getUplink().getPacketCount(), is(lessThan(32L)));
+    }
+
+    @Test
+    public void cardsThatCannotNegotiateKeepTheDefaultPayloadSize() throws IOException {
+        emulator.setOptionsSupported(false);
+
+        card.connect();
+        long commandsAfterFirstConnect = emulator.getCommandCount();
+        card.disconnect();
+        card.connect();
+
+        assertThat(card.getMaximumPayloadSize(), is(GKMultiplexer.MAXIMUM_PAYLOAD_SIZE));
+        assertThat(emulator.getCommandCount(), is(commandsAfterFirstConnect));
+    }
+
+    @Test
+    public void cardsThatIgnoreThePayloadSizeAreNotAskedAgain() throws IOException {
+        emulator.setOptionsIgnored(true);
+        card.setChecksumEnabled(false);
+        card.setRequestedPayloadSize(8192);
+
+        card.connect();
+        long commandsAfterFirstConnect = emulator.getCommandCount();
+        card.disconnect();
+        card.connect();
+
+        assertThat(card.getMaximumPayloadSize(), is(GKMultiplexer.MAXIMUM_PAYLOAD_SIZE));
+        assertThat(emulator.getCommandCount(), is(commandsAfterFirstConnect));
+    }
+
+    @Test
+    public void connectTurnsOnChecksumsUnlessAskedNotTo() throws IOException {
+        card.connect();
+        boolean checksumActive = card.isChecksumActive();
+        card.disconnect();
+        card.setChecksumEnabled(false);
+        card.connect();
+
+        assertThat(checksumActive, is(true));
+        assertThat(card.isChecksumActive(), is(false));
+    }
+
+    @Test
+    public void cardsThatIgnoreTheChecksumOptionAreNotAskedAgain() throws IOException {
+        emulator.setOptionsIgnored(true);
+
+        card.connect();
+        long commandsAfterFirstConnect = emulator.getCommandCount();
+        card.disconnect();
+        card.connect();
+
+        assertThat(card.isChecksumActive(), is(false));
+        assertThat(emulator.getCommandCount(), is(commandsAfterFirstConnect));
+    }
+
+    @Test
+    public void connectRecordsTheConnectionSetupTime() throws IOException {
+        card.connect();
+        card.createPath("/data");
+
+        assertThat(card.getConnectCount(), is(1L));
+        assertThat(card.getLastConnectNanos(), is(greaterThan(0L)));
+        assertThat(card.getTotalConnectNanos(), is(card.getLastConnectNanos()));
+    }
+
+    @Test
+    public void currentDataTransferSizeIsZeroWhenNotConnected() {
+        assertThat(card.getCurrentDataTransferSize(), is(0L));
+    }
+
+    @Test
+    public void eachConnectionCountsItsOwnTraffic() throws IOException {
+        card.createPath("/data");
+        card.put("/data/file", new ByteArrayInputStream(new byte[1000]));
+        GKConnectionStatistics first = card.getConnectionStatistics();
+        long commandsSent = first.getCommandsSent();
+        card.disconnect();
+
+        card.createPath("/other");
+
+        // option negotiation, MKD, STOR and the 1000 bytes of the upload in two packets
+        assertThat(commandsSent, is(greaterThan(2L)));
+        assertThat(first.getBytesSent(), is(greaterThan(1000L)));
+        assertThat(first.getPacketsSent(), is(greaterThan(commandsSent + 1)));
+        assertThat(first.getPacketsReceived(), is(greaterThan(0L)));
+        assertThat(first.getErrorCount(), is(0L));
+        assertThat(first.getCommandsSent(), is(commandsSent));
+        assertThat(card.getConnectionStatistics().getBytesSent(), is(lessThan(1000L)));
+    }
+
+    @Test
+    public void aSlowMonitorDoesNotHoldUpCommands() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<GKCard.ConnectionState> states = new CopyOnWriteArrayList<>();
+        card.addMonitor(new GKCard.Monitor() {
+            @Override
+            public void onStateChanged(GKCard.ConnectionState state) {
+                awaitQuietly(release);
+                states.add(state);
+            }
+        });
+
+        Response response = card.createPath("/data");
+
+        assertThat(response.getStatus(), is(257));
+        assertThat(card.getConnectionState(), is(GKCard.ConnectionState.CONNECTED));
+        assertThat(states.isEmpty(), is(true));
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!states.contains(GKCard.ConnectionState.CONNECTED) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(states, hasItem(GKCard.ConnectionState.CONNECTING));
+        assertThat(states.get(states.size() - 1), is(GKCard.ConnectionState.CONNECTED));
+    }
+
+    @Test
+    public void monitorsThatFallBehindSkipTransferringFlaps() {
+        final List<Runnable> deliveries = new ArrayList<>();
+        final List<GKCard.ConnectionState> states = new ArrayList<>();
+        card.setMonitorExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                deliveries.add(runnable);
+            }
+        });
+        card.addMonitor(new GKCard.Monitor() {
+            @Override
+            public void onStateChanged(GKCard.ConnectionState state) {
+                states.add(state);
+            }
+        });
+
+        card.onConnectionChanged(GKCard.ConnectionState.CONNECTING);
+        card.onConnectionChanged(GKCard.ConnectionState.CONNECTED);
+        card.onConnectionChanged(GKCard.ConnectionState.TRANSFERRING);
+        card.onConnectionChanged(GKCard.ConnectionState.CONNECTED);
+        card.onConnectionChanged(GKCard.ConnectionState.TRANSFERRING);
+        deliveries.remove(0).run();
+        card.onConnectionChanged(GKCard.ConnectionState.CONNECTED);
+        card.onConnectionChanged(GKCard.ConnectionState.TRANSFERRING);
+        card.onConnectionChanged(GKCard.ConnectionState.CONNECTED);
+
+        assertThat(deliveries.size(), is(1));
+        assertThat(states, is(equalTo(Arrays.asList(GKCard.ConnectionState.CONNECTING, GKCard.ConnectionState.TRANSFERRING))));
+        card.onConnectionChanged(GKCard.ConnectionState.DISCONNECTED);
+        deliveries.remove(0).run();
+        assertThat(states, is(equalTo(Arrays.asList(GKCard.ConnectionState.CONNECTING, GKCard.ConnectionState.TRANSFERRING,
+                GKCard.ConnectionState.CONNECTED, GKCard.ConnectionState.DISCONNECTED))));
+    }
+
+    @Test
+    public void aMonitorAddedTwiceIsCalledOnce() {
+        final List<GKCard.ConnectionState> states = new ArrayList<>();
+        GKCard.Monitor monitor = new GKCard.Monitor() {
+            @Override
+            public void onStateChanged(GKCard.ConnectionState state) {
+                states.add(state);
+            }
+        };
+        card.setMonitorExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+        card.addMonitor(monitor);
+        card.addMonitor(monitor);
+
+        card.onConnectionChanged(GKCard.ConnectionState.CONNECTING);
+        card.removeMonitor(monitor);
+        card.onConnectionChanged(GKCard.ConnectionState.DISCONNECTED);
+
+        assertThat(states, is(equalTo(Arrays.asList(GKCard.ConnectionState.CONNECTING))));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package co.blustor.gatekeepersdk.devices;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GKBluetoothDeviceCacheTest {
+    private static final String CARD_NAME = "CYBERGATE";
+    private static final String CARD_ADDRESS = "00:11:22:33:44:55";
+
+    private BluetoothAdapter adapter;
+    private BluetoothDevice card;
+    private BluetoothDevice otherDevice;
+    private Context context;
+    private GKBluetoothDeviceCache cache;
+
+    @Before
+    public void setUp() {
+        adapter = mock(BluetoothAdapter.class);
+        card = mockDevice(CARD_NAME, CARD_ADDRESS);
+        otherDevice = mockDevice("headset", "66:77:88:99:AA:BB");
+        when(adapter.isEnabled()).thenReturn(true);
+        when(adapter.getBondedDevices()).thenReturn(new HashSet<>(Arrays.asList(otherDevice, card)));
+        when(adapter.getRemoteDevice(CARD_ADDRESS)).thenReturn(card);
+        context = mock(Context.class);
+        when(context.getApplicationContext()).thenReturn(context);
+        cache = new GKBluetoothDeviceCache(adapter);
+        cache.register(context);
+    }
+
+    @Test
+    public void registerListensForBondStateChanges() {
+        verify(context).registerReceiver(eq(cache.getReceiver()), any(IntentFilter.class));
+    }
+
+    @Test
+    public void getDeviceSearchesTheBondedDevicesOnlyOnce() {
+        assertThat(cache.getDevice(CARD_NAME), is(sameInstance(card)));
+        assertThat(cache.getDevice(CARD_NAME), is(sameInstance(card)));
+
+        assertThat(cache.getScanCount(), is(1L));
+        verify(adapter).getBondedDevices();
+    }
+
+    @Test
+    public void getDeviceReturnsNullWhenNoPairedDeviceHasTheName() {
+        assertThat(cache.getDevice("unknown"), is(nullValue()));
+    }
+
+    @Test
+    public void getDeviceReturnsNullWhenBluetoothIsDisabled() {
+        when(adapter.isEnabled()).thenReturn(false);
+
+        assertThat(cache.getDevice(CARD_NAME), is(nullValue()));
+        verify(adapter, never()).getBondedDevices();
+    }
+
+    @Test
+    public void unbondingTheCardForcesANewSearch() {
+        cache.getDevice(CARD_NAME);
+
+        cache.getReceiver().onReceive(null, bondStateIntent(card, BluetoothDevice.BOND_NONE));
+        cache.getDevice(CARD_NAME);
+
+        assertThat(cache.getScanCount(), is(2L));
+    }
+
+    @Test
+    public void otherDevicesBondingDoNotInvalidateTheCard() {
+        cache.getDevice(CARD_NAME);
+
+        cache.getReceiver().onReceive(null, bondStateIntent(otherDevice, BluetoothDevice.BOND_NONE));
+        cache.getDevice(CARD_NAME);
+
+        assertThat(cache.getScanCount(), is(1L));
+    }
+
+    @Test
+    public void adapterRestartsResolveTheCardByAddress() {
+        cache.getDevice(CARD_NAME);
+        Intent intent = mock(Intent.class);
+        when(intent.getAction()).thenReturn(BluetoothAdapter.ACTION_STATE_CHANGED);
+
+        cache.getReceiver().onReceive(null, intent);
+
+        assertThat(cache.getDevice(CARD_NAME), is(sameInstance(card)));
+        assertThat(cache.getScanCount(), is(1L));
+        verify(adapter).getRemoteDevice(CARD_ADDRESS);
+    }
+
+    @Test
+    public void unregisteredCachesCheckTheBondStateBeforeUse() {
+        cache.unregister(context);
+        verify(context).unregisterReceiver(cache.getReceiver());
+        cache.getDevice(CARD_NAME);
+        when(card.getBondState()).thenReturn(BluetoothDevice.BOND_NONE);
+        when(adapter.getBondedDevices()).thenReturn(Collections.singleton(otherDevice));
+
+        assertThat(cache.getDevice(CARD_NAME), is(nullValue()));
+        assertThat(cache.getScanCount(), is(2L));
+    }
+
+    private BluetoothDevice mockDevice(String name, String address) {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        when(device.getName()).thenReturn(name);
+        when(device.getAddress()).thenReturn(address);
+        when(device.getBondState()).thenReturn(BluetoothDevice.BOND_BONDED);
+        return device;
+    }
+
+    private Intent bondStateIntent(BluetoothDevice device, int bondState) {
+        Intent intent = mock(Intent.class);
+        when(intent.getAction()).thenReturn(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        when(intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE)).thenReturn(device);
+        when(intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE)).thenReturn(bondState);
+        return intent;
+    }
+}
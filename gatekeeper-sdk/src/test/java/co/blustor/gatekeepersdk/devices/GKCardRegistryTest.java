@@ -0,0 +1,201 @@
+package co.blustor.gatekeepersdk.devices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.blustor.gatekeepersdk.devices.GKCard.Response;
+import co.blustor.gatekeepersdk.emulator.GKCardEmulator;
+import co.blustor.gatekeepersdk.emulator.GKEmulatedCard;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class GKCardRegistryTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private GKCardRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new GKCardRegistry();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        registry.shutdown();
+    }
+
+    @Test
+    public void transfersRunInParallelOnSeveralEmulatedCards() throws Exception {
+        int cardCount = 4;
+        byte[] data = new byte[64 * 1024];
+        new Random(1).nextBytes(data);
+        List<GKCardEmulator> emulators = new ArrayList<>();
+        List<Future<Response>> puts = new ArrayList<>();
+        for (int i = 0; i < cardCount; i++) {
+            GKCardEmulator emulator = new GKCardEmulator();
+            emulator.setUploadIdleTimeoutMillis(20);
+            emulator.setBytesPerSecond(1024 * 1024);
+            emulators.add(emulator);
+            GKAsyncCard card = registry.register("card" + i, new GKEmulatedCard(emulator, temporaryFolder.newFolder()));
+            card.createPath("/data", null);
+            puts.add(card.put("/data/file.bin", new ByteArrayInputStream(data), null));
+        }
+
+        List<Future<Response>> gets = new ArrayList<>();
+        for (int i = 0; i < cardCount; i++) {
+            assertThat(puts.get(i).get(5, TimeUnit.SECONDS).getStatus(), is(226));
+            gets.add(registry.getCard("card" + i).get("/data/file.bin", null));
+        }
+
+        for (int i = 0; i < cardCount; i++) {
+            Response response = gets.get(i).get(5, TimeUnit.SECONDS);
+            assertThat(emulators.get(i).getFile("/data/file.bin"), is(equalTo(data)));
+            assertThat(Files.readAllBytes(response.getDataFile().toPath()), is(equalTo(data)));
+        }
+        assertThat(registry.getCompletedActionCount(), is((long) cardCount * 3));
+        assertThat(registry.getBytesSent(), is(greaterThanOrEqualTo((long) cardCount * data.length)));
+        assertThat(registry.getBytesReceived(), is(greaterThanOrEqualTo((long) cardCount * data.length)));
+    }
+
+    @Test
+    public void limitedRegistryRunsOneActionAtATimeAcrossCards() throws Exception {
+        registry = new GKCardRegistry(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maximumRunning = new AtomicInteger();
+        GKAsyncCard.Action<Void> action = new GKAsyncCard.Action<Void>() {
+            @Override
+            public Void run(GKCard card) throws IOException {
+                int now = running.incrementAndGet();
+                maximumRunning.set(Math.max(maximumRunning.get(), now));
+                sleep(5);
+                running.decrementAndGet();
+                return null;
+            }
+        };
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            GKAsyncCard card = registry.register("card" + i, mock(GKCard.class));
+            futures.add(card.submit(action));
+            futures.add(card.submit(action));
+        }
+
+        for (Future<Void> future : futures) {
+            future.get(1, TimeUnit.SECONDS);
+        }
+
+        assertThat(maximumRunning.get(), is(1));
+        assertThat(registry.getCompletedActionCount(), is(6L));
+    }
+
+    @Test
+    public void cardsTakeTurnsWhenActionsAreLimited() throws Exception {
+        registry = new GKCardRegistry(1);
+        final List<String> order = new ArrayList<>();
+        GKAsyncCard first = registry.register("first", mock(GKCard.class));
+        GKAsyncCard second = registry.register("second", mock(GKCard.class));
+
+        // each action holds the only turn until the other card is waiting for it
+        List<Future<Void>> futures = new ArrayList<>();
+        futures.add(first.submit(record(order, "first 1", 1)));
+        futures.add(first.submit(record(order, "first 2", 1)));
+        futures.add(first.submit(record(order, "first 3", 0)));
+        futures.add(second.submit(record(order, "second 1", 1)));
+        futures.add(second.submit(record(order, "second 2", 1)));
+        for (Future<Void> future : futures) {
+            future.get(1, TimeUnit.SECONDS);
+        }
+
+        assertThat(order, is(equalTo(Arrays.asList("first 1", "second 1", "first 2", "second 2", "first 3"))));
+        assertThat(registry.getWaitingActionCount(), is(0));
+    }
+
+    @Test
+    public void failedActionsAreCounted() throws Exception {
+        GKAsyncCard card = registry.register("card", mock(GKCard.class));
+
+        Future<Void> future = card.submit(new GKAsyncCard.Action<Void>() {
+            @Override
+            public Void run(GKCard card) throws IOException {
+                throw new IOException("Link lost");
+            }
+        });
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Expected the action to fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(IOException.class)));
+        }
+        assertThat(registry.getFailedActionCount(), is(1L));
+        assertThat(registry.getCompletedActionCount(), is(0L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void registeringANameTwiceIsRejected() {
+        registry.register("card", mock(GKCard.class));
+        registry.register("card", mock(GKCard.class));
+    }
+
+    @Test
+    public void unregisterDisconnectsTheCard() throws Exception {
+        GKCard card = mock(GKCard.class);
+        registry.register("card", card);
+
+        assertThat(registry.unregister("card"), is(true));
+
+        verify(card, timeout(1000)).disconnect();
+        assertThat(registry.getCard("card"), is(nullValue()));
+        assertThat(registry.getCardNames().isEmpty(), is(true));
+        assertThat(registry.unregister("card"), is(false));
+    }
+
+    // An action that records its name once the given number of actions are waiting for a turn.
+    private GKAsyncCard.Action<Void> record(final List<String> order, final String name, final int waitingActions) {
+        return new GKAsyncCard.Action<Void>() {
+            @Override
+            public Void run(GKCard card) throws IOException {
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+                while (registry.getWaitingActionCount() < waitingActions && System.nanoTime() < deadline) {
+                    sleep(1);
+                }
+                synchronized (order) {
+                    order.add(name);
+                }
+                return null;
+            }
+        };
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package co.blustor.gatekeepersdk.devices;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import co.blustor.gatekeepersdk.devices.GKCard.Response;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class GKCardTest {
+    @Test
+    public void responseReadsTheStatusCodeAndMessage() {
+        Response response = new Response("226 Transfer complete".getBytes());
+
+        assertThat(response.getStatus(), is(226));
+        assertThat(response.getMessage(), is(equalTo("Transfer complete")));
+        assertThat(response.getStatusMessage(), is(equalTo("226 Transfer complete")));
+    }
+
+    @Test
+    public void responseMessageStartsAfterTheFirstWhitespace() {
+        Response response = new Response("550\tNo  such file ".getBytes());
+
+        assertThat(response.getStatus(), is(550));
+        assertThat(response.getMessage(), is(equalTo("No  such file ")));
+    }
+
+    @Test
+    public void responseWithoutAMessageHasANullMessage() {
+        Response response = new Response("200".getBytes());
+
+        assertThat(response.getStatus(), is(200));
+        assertThat(response.getMessage(), is(nullValue()));
+    }
+
+    @Test
+    public void responseWithAnEmptyMessageHasAnEmptyMessage() {
+        Response response = new Response("200 ".getBytes());
+
+        assertThat(response.getMessage(), is(equalTo("")));
+    }
+
+    @Test
+    public void responseDecodesTheMessageOnce() {
+        Response response = new Response("250 OK".getBytes());
+
+        assertThat(response.getMessage(), is(sameInstance(response.getMessage())));
+    }
+
+    @Test
+    public void responseKeepsTheDataFile() {
+        File dataFile = new File("data");
+
+        Response response = new Response("226 Done".getBytes(), dataFile);
+
+        assertThat(response.getDataFile(), is(sameInstance(dataFile)));
+    }
+
+    @Test
+    public void responseAcceptsStatusCodesIntegerParseIntAccepts() {
+        assertThat(new Response("+12 odd".getBytes()).getStatus(), is(12));
+        assertThat(new Response("-1 odd".getBytes()).getStatus(), is(-1));
+        assertThat(new Response("1234567890 long".getBytes()).getStatus(), is(1234567890));
+    }
+
+    @Test
+    public void responseIsUnsupportedForUnimplementedCommandsAndOptions() {
+        assertThat(new Response(500, "").isUnsupported(), is(true));
+        assertThat(new Response(501, "").isUnsupported(), is(true));
+        assertThat(new Response(502, "").isUnsupported(), is(true));
+        assertThat(new Response(504, "").isUnsupported(), is(true));
+        assertThat(new Response(503, "").isUnsupported(), is(false));
+        assertThat(new Response(550, "").isUnsupported(), is(false));
+        assertThat(new Response(226, "").isUnsupported(), is(false));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void responseRejectsDataWithoutAStatusCode() {
+        new Response("OK then".getBytes());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void responseRejectsEmptyData() {
+        new Response(new byte[0]);
+    }
+}
@@ -0,0 +1,949 @@
+package co.blustor.gatekeepersdk.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import co.blustor.gatekeepersdk.data.CorruptPacketException;
+import co.blustor.gatekeepersdk.data.DataPacket;
+import co.blustor.gatekeepersdk.data.GKMultiplexer;
+import co.blustor.gatekeepersdk.utils.GKLog;
+
+/**
+ * GKCardEmulator is an in-memory stand-in for a GateKeeper Card. It speaks the same framed
+ * protocol as the card firmware and keeps its files in memory, so that {@code GKCard}
+ * implementations can be tested and benchmarked without hardware.
+ * <p>
+ * Every {@link #connect()} opens a new session over a pair of {@link LoopbackPipe}s shaped
+ * by the configured latency, bandwidth and packet loss. All sessions share one filesystem.
+ * Intended for testing and benchmarking.
+ *
+ * @since 0.21.0
+ */
+public class GKCardEmulator {
+    public static final String TAG = GKCardEmulator.class.getCanonicalName();
+
+    private static final int LINK_CAPACITY = 64 * 1024;
+    private static final long DEFAULT_UPLOAD_IDLE_TIMEOUT_MILLIS = 100;
+    private static final String ROOT = "/";
+    // files are listed as modified one minute apart, starting at 2016-01-01 00:00 UTC
+    private static final long FIRST_MODIFICATION_MILLIS = 1451606400000L;
+    private static final long MODIFICATION_INTERVAL_MILLIS = 60 * 1000;
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final Map<String, byte[]> mFiles = new TreeMap<>();
+    private final Map<String, Long> mModificationTimes = new HashMap<>();
+    private long mModificationCount;
+    private final List<Connection> mConnections = new CopyOnWriteArrayList<>();
+    private final AtomicLong mCommandCount = new AtomicLong();
+    private final AtomicLong mRejectedCommandCount = new AtomicLong();
+
+    private volatile long mLatencyMillis;
+    private volatile long mBytesPerSecond;
+    private volatile double mPacketLossRate;
+    private volatile double mBitErrorRate;
+    private volatile long mPacketOverheadMicros;
+    private volatile int mMaximumPayloadSize = GKMultiplexer.MAXIMUM_PAYLOAD_SIZE;
+    private volatile boolean mOptionsSupported = true;
+    private volatile boolean mOptionsIgnored;
+    private volatile boolean mChecksumSupported = true;
+    private volatile boolean mCompressionSupported = true;
+    private volatile long mUploadIdleTimeoutMillis = DEFAULT_UPLOAD_IDLE_TIMEOUT_MILLIS;
+    private volatile boolean mPipeliningSupported = true;
+    private volatile boolean mRestartSupported = true;
+    private final AtomicLong mUploadFailureBytes = new AtomicLong(-1);
+    private final AtomicLong mDownloadFailureBytes = new AtomicLong(-1);
+    private final AtomicLong mDownloadCorruptionBytes = new AtomicLong(-1);
+    private volatile Random mRandom = new Random();
+
+    /**
+     * Create a {@code GKCardEmulator} with an empty filesystem and an unshaped link.
+     *
+     * @since 0.21.0
+     */
+    public GKCardEmulator() {
+        mFiles.put(ROOT, null);
+    }
+
+    /**
+     * Open a new session with the emulated card.
+     *
+     * @return the {@code Connection} to the new session
+     * @since 0.21.0
+     */
+    public Connection connect() {
+        Connection connection = new Connection();
+        mConnections.add(connection);
+        Thread thread = new Thread(new Session(connection), "GKCardEmulator-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+        return connection;
+    }
+
+    /**
+     * @param latencyMillis the one-way delay added to every packet, in both directions
+     * @since 0.21.0
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+        configureConnections();
+    }
+
+    /**
+     * @param bytesPerSecond the link bandwidth in each direction, or {@code 0} for no limit
+     * @since 0.21.0
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        configureConnections();
+    }
+
+    /**
+     * @param packetLossRate the probability, from {@code 0} to {@code 1}, that a packet must
+     *                       be retransmitted
+     * @since 0.21.0
+     */
+    public void setPacketLossRate(double packetLossRate) {
+        mPacketLossRate = packetLossRate;
+        configureConnections();
+    }
+
+    /**
+     * @param bitErrorRate the probability, from {@code 0} to {@code 1}, that any one bit is
+     *                     corrupted, which causes the packet holding it to be retransmitted
+     * @since 0.21.0
+     */
+    public void setBitErrorRate(double bitErrorRate) {
+        mBitErrorRate = bitErrorRate;
+        configureConnections();
+    }
+
+    /**
+     * @param packetOverheadMicros the link time every packet costs regardless of its size, in
+     *                             both directions
+     * @since 0.21.0
+     */
+    public void setPacketOverheadMicros(long packetOverheadMicros) {
+        mPacketOverheadMicros = packetOverheadMicros;
+        configureConnections();
+    }
+
+    /**
+     * @param random the source of randomness used to decide which packets are lost, for
+     *               reproducible runs
+     * @since 0.21.0
+     */
+    public void setRandom(Random random) {
+        mRandom = random;
+        configureConnections();
+    }
+
+    /**
+     * The protocol does not mark the end of an upload, so the card finishes a {@code STOR}
+     * once the data channel has been idle for this long.
+     *
+     * @param timeoutMillis how long the data channel must be idle to end an upload
+     * @since 0.21.0
+     */
+    public void setUploadIdleTimeoutMillis(long timeoutMillis) {
+        mUploadIdleTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Emulate firmware that rejects, with status 503, any command received while its
+     * response to an earlier command is still in flight.
+     *
+     * @param supported {@code false} to reject pipelined commands
+     * @since 0.21.0
+     */
+    public void setPipeliningSupported(boolean supported) {
+        mPipeliningSupported = supported;
+    }
+
+    /**
+     * The largest payload the card agrees to when a client negotiates with {@code OPTS PKT}.
+     * Applies to sessions that negotiate after it is set.
+     *
+     * @param maximumPayloadSize the largest payload size to accept
+     * @since 0.21.0
+     */
+    public void setMaximumPayloadSize(int maximumPayloadSize) {
+        mMaximumPayloadSize = maximumPayloadSize;
+    }
+
+    /**
+     * Emulate firmware that does not understand the {@code OPTS} command, so every option
+     * keeps its default.
+     *
+     * @param supported {@code false} to reply to {@code OPTS} with status 500
+     * @since 0.21.0
+     */
+    public void setOptionsSupported(boolean supported) {
+        mOptionsSupported = supported;
+    }
+
+    /**
+     * Emulate firmware that acknowledges every {@code OPTS} command with a bare
+     * {@code 200 OK} but keeps every option at its default.
+     *
+     * @param ignored {@code true} to acknowledge options without applying them
+     * @since 0.21.0
+     */
+    public void setOptionsIgnored(boolean ignored) {
+        mOptionsIgnored = ignored;
+    }
+
+    /**
+     * Emulate firmware that cannot checksum its packets, so {@code OPTS CRC16} is refused and
+     * both checksum bytes stay {@code 0}.
+     *
+     * @param supported {@code false} to reply to {@code OPTS CRC16} with status 501
+     * @since 0.21.0
+     */
+    public void setChecksumSupported(boolean supported) {
+        mChecksumSupported = supported;
+    }
+
+    /**
+     * Emulate firmware that cannot compress its data channel, so {@code OPTS MODE Z} is
+     * refused and {@code MODE Z} replied to with status 504.
+     *
+     * @param supported {@code false} to refuse compressed mode
+     * @since 0.21.0
+     */
+    public void setCompressionSupported(boolean supported) {
+        mCompressionSupported = supported;
+    }
+
+    /**
+     * Emulate firmware that does not understand the {@code REST} command, so uploads cannot be
+     * resumed.
+     *
+     * @param supported {@code false} to reply to {@code REST} with status 500
+     * @since 0.21.0
+     */
+    public void setRestartSupported(boolean supported) {
+        mRestartSupported = supported;
+    }
+
+    /**
+     * Drop the session once uploads have received the given number of further bytes, as if
+     * the link had failed. The bytes of the failed upload received so far are kept, as the
+     * firmware writes them to flash as they arrive. The link fails once.
+     *
+     * @param bytes the number of bytes to receive before failing
+     * @since 0.21.0
+     */
+    public void failUploadAfter(long bytes) {
+        mUploadFailureBytes.set(bytes);
+    }
+
+    /**
+     * Stop sending once downloads have sent the given number of further bytes and close the
+     * card's end of the link, as if it had failed. Bytes already sent still arrive. The link
+     * fails once.
+     *
+     * @param bytes the number of bytes to send before failing
+     * @since 0.21.0
+     */
+    public void failDownloadAfter(long bytes) {
+        mDownloadFailureBytes.set(bytes);
+    }
+
+    /**
+     * Flip a bit in the payload of the data packet that takes downloads past the given number
+     * of further bytes, after its checksum has been computed, as if the link had corrupted it
+     * without noticing. One packet is corrupted.
+     *
+     * @param bytes the number of bytes to send before corrupting a packet
+     * @since 0.21.0
+     */
+    public void corruptDownloadAfter(long bytes) {
+        mDownloadCorruptionBytes.set(bytes);
+    }
+
+    /**
+     * @return the number of commands received across all sessions
+     * @since 0.21.0
+     */
+    public long getCommandCount() {
+        return mCommandCount.get();
+    }
+
+    /**
+     * @return the number of commands rejected because they were pipelined
+     * @since 0.21.0
+     */
+    public long getRejectedCommandCount() {
+        return mRejectedCommandCount.get();
+    }
+
+    /**
+     * Store a file in the emulated filesystem, creating its parent directories.
+     *
+     * @param cardPath the path of the file
+     * @param data     the contents of the file
+     * @since 0.21.0
+     */
+    public void putFile(String cardPath, byte[] data) {
+        String path = normalize(cardPath);
+        synchronized (mFiles) {
+            String parent = parentOf(path);
+            while (!mFiles.containsKey(parent)) {
+                mFiles.put(parent, null);
+                parent = parentOf(parent);
+            }
+            storeFile(path, data.clone());
+        }
+    }
+
+    /**
+     * @param cardPath the path of the file
+     * @return the contents of the file, or {@code null} if there is no such file
+     * @since 0.21.0
+     */
+    public byte[] getFile(String cardPath) {
+        synchronized (mFiles) {
+            byte[] data = mFiles.get(normalize(cardPath));
+            return data == null ? null : data.clone();
+        }
+    }
+
+    /**
+     * @param cardPath the path of the directory
+     * @return whether the directory exists
+     * @since 0.21.0
+     */
+    public boolean isDirectory(String cardPath) {
+        String path = normalize(cardPath);
+        synchronized (mFiles) {
+            return mFiles.containsKey(path) && mFiles.get(path) == null;
+        }
+    }
+
+    // Callers hold the lock on mFiles.
+    private void storeFile(String path, byte[] data) {
+        mFiles.put(path, data);
+        mModificationTimes.put(path, FIRST_MODIFICATION_MILLIS + ++mModificationCount * MODIFICATION_INTERVAL_MILLIS);
+    }
+
+    private void configureConnections() {
+        for (Connection connection : mConnections) {
+            connection.configure();
+        }
+    }
+
+    private static String normalize(String cardPath) {
+        String path = cardPath.trim().replaceAll("/+", "/");
+        if (!path.startsWith(ROOT)) {
+            path = ROOT + path;
+        }
+        if (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private static String parentOf(String path) {
+        int index = path.lastIndexOf('/');
+        return index <= 0 ? ROOT : path.substring(0, index);
+    }
+
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static boolean isChild(String parent, String path) {
+        if (path.equals(ROOT) || path.equals(parent)) {
+            return false;
+        }
+        return parentOf(path).equals(parent);
+    }
+
+    private static boolean isDescendant(String ancestor, String path) {
+        String prefix = ancestor.equals(ROOT) ? ROOT : ancestor + "/";
+        return !path.equals(ancestor) && path.startsWith(prefix);
+    }
+
+    /**
+     * Connection holds the client ends of a session with the emulated card.
+     *
+     * @since 0.21.0
+     */
+    public class Connection {
+        private final LoopbackPipe mToCard = new LoopbackPipe(LINK_CAPACITY);
+        private final LoopbackPipe mToClient = new LoopbackPipe(LINK_CAPACITY);
+        private volatile boolean mOpen = true;
+
+        private Connection() {
+            configure();
+        }
+
+        /**
+         * @return the stream of packets sent by the card
+         */
+        public InputStream getInputStream() {
+            return mToClient.getInputStream();
+        }
+
+        /**
+         * @return the stream of packets sent to the card
+         */
+        public OutputStream getOutputStream() {
+            return mToCard.getOutputStream();
+        }
+
+        /**
+         * @return whether the session is still open
+         */
+        public boolean isOpen() {
+            return mOpen;
+        }
+
+        /**
+         * End the session.
+         */
+        public void close() {
+            mOpen = false;
+            mToCard.close();
+            mToClient.close();
+            mConnections.remove(this);
+        }
+
+        /**
+         * @return the link from the client to the card
+         */
+        public LoopbackPipe getUplink() {
+            return mToCard;
+        }
+
+        /**
+         * @return the link from the card to the client
+         */
+        public LoopbackPipe getDownlink() {
+            return mToClient;
+        }
+
+        private void configure() {
+            for (LoopbackPipe pipe : new LoopbackPipe[]{mToCard, mToClient}) {
+                pipe.setLatencyMillis(mLatencyMillis);
+                pipe.setBytesPerSecond(mBytesPerSecond);
+                pipe.setLossRate(mPacketLossRate);
+                pipe.setBitErrorRate(mBitErrorRate);
+                pipe.setPacketOverheadMicros(mPacketOverheadMicros);
+                pipe.setRandom(mRandom);
+            }
+        }
+    }
+
+    private class Session implements Runnable {
+        private final Connection mConnection;
+        private final InputStream mInputStream;
+        private final OutputStream mOutputStream;
+        private final DataPacket.Decoder mDecoder = new DataPacket.Decoder(GKMultiplexer.MAXIMUM_PAYLOAD_SIZE);
+        private final DataPacket.Encoder mEncoder = new DataPacket.Encoder(GKMultiplexer.MAXIMUM_PAYLOAD_SIZE);
+        private final ByteArrayOutputStream mLine = new ByteArrayOutputStream();
+        private String mPendingCommand;
+        private String mRenameFrom;
+        private long mRestartOffset;
+        private int mPayloadSize = GKMultiplexer.MAXIMUM_PAYLOAD_SIZE;
+        // the level agreed with OPTS MODE Z, and whether the data channel is compressed with it
+        private int mCompressionLevel = GKMultiplexer.COMPRESSION_OFF;
+        private boolean mCompressed;
+
+        Session(Connection connection) {
+            mConnection = connection;
+            mInputStream = connection.mToCard.getInputStream();
+            mOutputStream = connection.mToClient.getOutputStream();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    String command = mPendingCommand != null ? mPendingCommand : readCommand();
+                    mPendingCommand = null;
+                    mCommandCount.incrementAndGet();
+                    if (!mPipeliningSupported && mConnection.mToClient.hasDataInFlight()) {
+                        mRejectedCommandCount.incrementAndGet();
+                        reply(503, "Bad sequence of commands");
+                        continue;
+                    }
+                    handle(command);
+                }
+            } catch (EOFException e) {
+                // the client closed the session
+            } catch (IOException e) {
+                if (mConnection.isOpen()) {
+                    GKLog.e(TAG, "Session failed", e);
+                }
+            } finally {
+                mConnection.close();
+            }
+        }
+
+        private String readCommand() throws IOException {
+            DataPacket packet = mDecoder.decode(mInputStream);
+            while (packet.getChannel() != GKMultiplexer.COMMAND_CHANNEL) {
+                packet = mDecoder.decode(mInputStream);
+            }
+            return readCommandLine(packet);
+        }
+
+        private String readCommandLine(DataPacket packet) throws IOException {
+            mLine.reset();
+            while (true) {
+                mLine.write(packet.getPayloadBuffer(), 0, packet.getPayloadLength());
+                String line = new String(mLine.toByteArray(), StandardCharsets.US_ASCII);
+                int end = line.indexOf("\r\n");
+                if (end != -1) {
+                    return line.substring(0, end);
+                }
+                packet = mDecoder.decode(mInputStream);
+            }
+        }
+
+        private void handle(String command) throws IOException {
+            String[] parts = command.split(" ", 2);
+            String method = parts[0];
+            String argument = parts.length > 1 ? parts[1] : "";
+            if (!method.equals("RNTO")) {
+                mRenameFrom = null;
+            }
+            long restartOffset = mRestartOffset;
+            mRestartOffset = 0;
+            switch (method) {
+                case "LIST":
+                    list(argument);
+                    break;
+                case "RETR":
+                    retrieve(argument, restartOffset);
+                    break;
+                case "STOR":
+                    store(argument, restartOffset);
+                    break;
+                case "DELE":
+                    delete(argument);
+                    break;
+                case "MKD":
+                    makeDirectory(argument);
+                    break;
+                case "RMD":
+                    removeDirectory(argument);
+                    break;
+                case "SRFT":
+                    finalizeFile(argument);
+                    break;
+                case "RNFR":
+                    renameFrom(argument);
+                    break;
+                case "RNTO":
+                    renameTo(argument);
+                    break;
+                case "NOOP":
+                    reply(200, "OK");
+                    break;
+                case "REST":
+                    restart(argument);
+                    break;
+                case "OPTS":
+                    options(argument);
+                    break;
+                case "MODE":
+                    mode(argument);
+                    break;
+                default:
+                    reply(500, "Unknown command");
+            }
+        }
+
+        private void list(String argument) throws IOException {
+            String path = argument.endsWith("*") ? argument.substring(0, argument.length() - 1) : argument;
+            path = normalize(path);
+            StringBuilder listing = new StringBuilder();
+            SimpleDateFormat dateFormat = new SimpleDateFormat("MMM d HH:mm", Locale.US);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            synchronized (mFiles) {
+                if (!isDirectory(path)) {
+                    reply(550, "No such directory");
+                    return;
+                }
+                for (Map.Entry<String, byte[]> entry : mFiles.entrySet()) {
+                    if (isChild(path, entry.getKey())) {
+                        byte[] data = entry.getValue();
+                        Long modified = mModificationTimes.get(entry.getKey());
+                        listing.append(data == null ? "drwxr-xr-x" : "-rw-r--r--")
+                                .append(" 1 root root ")
+                                .append(data == null ? 0 : data.length)
+                                .append(' ')
+                                .append(dateFormat.format(new Date(modified == null ? FIRST_MODIFICATION_MILLIS : modified)))
+                                .append(' ')
+                                .append(nameOf(entry.getKey()))
+                                .append("\r\n");
+                    }
+                }
+            }
+            sendData(listing.toString().getBytes(StandardCharsets.UTF_8), 0);
+        }
+
+        private void retrieve(String argument, long offset) throws IOException {
+            byte[] data = getFile(argument);
+            if (data == null) {
+                reply(550, "No such file");
+                return;
+            }
+            if (offset > data.length) {
+                reply(550, "Restart offset beyond end of file");
+                return;
+            }
+            sendData(data, (int) offset);
+        }
+
+        private void store(String argument, long offset) throws IOException {
+            String path = normalize(argument);
+            if (!isDirectory(parentOf(path)) || isDirectory(path)) {
+                reply(550, "Cannot store file");
+                return;
+            }
+            byte[] existing = getFile(path);
+            if (offset > 0 && (existing == null || existing.length < offset)) {
+                reply(550, "Restart offset beyond end of file");
+                return;
+            }
+            reply(150, "Ready to receive");
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            if (offset > 0) {
+                data.write(existing, 0, (int) offset);
+            }
+            Inflater inflater = mCompressed ? new Inflater() : null;
+            try {
+                if (!receive(path, data, inflater)) {
+                    return;
+                }
+            } finally {
+                if (inflater != null) {
+                    inflater.end();
+                }
+            }
+            synchronized (mFiles) {
+                storeFile(path, data.toByteArray());
+            }
+            reply(226, "Transfer complete");
+        }
+
+        // Returns false when the upload was refused and a reply already sent.
+        private boolean receive(String path, ByteArrayOutputStream data, Inflater inflater) throws IOException {
+            long received = 0;
+            while (mConnection.mToCard.awaitData(mUploadIdleTimeoutMillis)) {
+                DataPacket packet;
+                try {
+                    packet = mDecoder.decode(mInputStream);
+                } catch (CorruptPacketException e) {
+                    // the packet boundaries can no longer be trusted, so skip the rest of the upload
+                    discardUpload();
+                    reply(426, "Checksum mismatch, transfer aborted");
+                    return false;
+                }
+                if (packet.getChannel() != GKMultiplexer.DATA_CHANNEL) {
+                    mPendingCommand = readCommandLine(packet);
+                    break;
+                }
+                if (inflater == null) {
+                    data.write(packet.getPayloadBuffer(), 0, packet.getPayloadLength());
+                } else if (!inflate(inflater, packet.getPayloadBuffer(), packet.getPayloadLength(), data)) {
+                    discardUpload();
+                    reply(451, "Compressed data is corrupt, transfer aborted");
+                    return false;
+                }
+                received += packet.getPayloadLength();
+                if (mUploadFailureBytes.get() >= 0 && mUploadFailureBytes.addAndGet(-packet.getPayloadLength()) <= 0) {
+                    mUploadFailureBytes.set(-1);
+                    synchronized (mFiles) {
+                        storeFile(path, data.toByteArray());
+                    }
+                    mConnection.close();
+                    throw new EOFException("Upload failed after " + received + " bytes");
+                }
+            }
+            if (inflater != null && !inflater.finished()) {
+                reply(451, "Compressed data is incomplete, transfer aborted");
+                return false;
+            }
+            return true;
+        }
+
+        private void options(String argument) throws IOException {
+            if (!mOptionsSupported) {
+                reply(500, "Unknown command");
+                return;
+            }
+            if (mOptionsIgnored) {
+                reply(200, "OK");
+                return;
+            }
+            String[] parts = argument.trim().split(" ");
+            if (parts.length == 2 && parts[0].equalsIgnoreCase("PKT")) {
+                int requested;
+                try {
+                    requested = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    requested = 0;
+                }
+                if (requested <= 0) {
+                    reply(501, "Invalid packet size");
+                    return;
+                }
+                mPayloadSize = Math.min(requested, mMaximumPayloadSize);
+                reply(200, "PKT " + mPayloadSize);
+                return;
+            }
+            if (parts.length == 2 && parts[0].equalsIgnoreCase("CRC16") && mChecksumSupported) {
+                boolean enabled = parts[1].equalsIgnoreCase("ON");
+                if (!enabled && !parts[1].equalsIgnoreCase("OFF")) {
+                    reply(501, "Invalid checksum mode");
+                    return;
+                }
+                // the reply is the last packet sent in the old mode
+                reply(200, "CRC16 " + (enabled ? "ON" : "OFF"));
+                mEncoder.setChecksumEnabled(enabled);
+                mDecoder.setChecksumEnabled(enabled);
+                return;
+            }
+            if (parts.length == 4 && parts[0].equalsIgnoreCase("MODE") && parts[1].equalsIgnoreCase("Z")
+                    && parts[2].equalsIgnoreCase("LEVEL") && mCompressionSupported) {
+                int level;
+                try {
+                    level = Integer.parseInt(parts[3]);
+                } catch (NumberFormatException e) {
+                    level = GKMultiplexer.COMPRESSION_OFF;
+                }
+                if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+                    reply(501, "Invalid compression level");
+                    return;
+                }
+                mCompressionLevel = level;
+                reply(200, "MODE Z LEVEL " + level);
+                return;
+            }
+            reply(501, "Unknown option");
+        }
+
+        private void mode(String argument) throws IOException {
+            String mode = argument.trim();
+            if (mode.equalsIgnoreCase("S")) {
+                mCompressed = false;
+                reply(200, "MODE S");
+            } else if (mode.equalsIgnoreCase("Z") && mCompressionSupported && mCompressionLevel != GKMultiplexer.COMPRESSION_OFF) {
+                mCompressed = true;
+                reply(200, "MODE Z");
+            } else {
+                reply(504, "Mode not supported");
+            }
+        }
+
+        private void restart(String argument) throws IOException {
+            if (!mRestartSupported) {
+                reply(500, "Unknown command");
+                return;
+            }
+            long offset;
+            try {
+                offset = Long.parseLong(argument.trim());
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+            if (offset < 0) {
+                reply(501, "Invalid restart offset");
+                return;
+            }
+            mRestartOffset = offset;
+            reply(350, "Restarting at " + offset);
+        }
+
+        private void delete(String argument) throws IOException {
+            String path = normalize(argument);
+            synchronized (mFiles) {
+                if (mFiles.get(path) == null) {
+                    reply(550, "No such file");
+                    return;
+                }
+                mFiles.remove(path);
+                mModificationTimes.remove(path);
+            }
+            reply(250, "File deleted");
+        }
+
+        private void makeDirectory(String argument) throws IOException {
+            String path = normalize(argument);
+            synchronized (mFiles) {
+                if (mFiles.containsKey(path) || !isDirectory(parentOf(path))) {
+                    reply(550, "Cannot create directory");
+                    return;
+                }
+                mFiles.put(path, null);
+            }
+            reply(257, "\"" + path + "\" created");
+        }
+
+        private void removeDirectory(String argument) throws IOException {
+            String path = normalize(argument);
+            synchronized (mFiles) {
+                if (path.equals(ROOT) || !isDirectory(path) || hasChildren(path)) {
+                    reply(550, "Cannot remove directory");
+                    return;
+                }
+                mFiles.remove(path);
+                mModificationTimes.remove(path);
+            }
+            reply(250, "Directory removed");
+        }
+
+        private void finalizeFile(String argument) throws IOException {
+            String[] parts = argument.split(" ", 2);
+            String path = normalize(parts.length > 1 ? parts[1] : parts[0]);
+            if (getFile(path) == null) {
+                reply(550, "No such file");
+                return;
+            }
+            reply(213, "File finalized:" + path);
+        }
+
+        private void renameFrom(String argument) throws IOException {
+            String path = normalize(argument);
+            synchronized (mFiles) {
+                if (path.equals(ROOT) || !mFiles.containsKey(path)) {
+                    reply(550, "No such file or directory");
+                    return;
+                }
+            }
+            mRenameFrom = path;
+            reply(350, "Ready for RNTO");
+        }
+
+        private void renameTo(String argument) throws IOException {
+            String from = mRenameFrom;
+            mRenameFrom = null;
+            if (from == null) {
+                reply(503, "Bad sequence of commands");
+                return;
+            }
+            String to = normalize(argument);
+            synchronized (mFiles) {
+                if (mFiles.containsKey(to) || !isDirectory(parentOf(to)) || isDescendant(from, to) || !mFiles.containsKey(from)) {
+                    reply(550, "Cannot rename");
+                    return;
+                }
+                List<String> moved = new ArrayList<>();
+                for (String path : mFiles.keySet()) {
+                    if (path.equals(from) || isDescendant(from, path)) {
+                        moved.add(path);
+                    }
+                }
+                for (String path : moved) {
+                    String movedPath = to + path.substring(from.length());
+                    mFiles.put(movedPath, mFiles.remove(path));
+                    mModificationTimes.put(movedPath, mModificationTimes.remove(path));
+                }
+            }
+            reply(250, "Rename successful");
+        }
+
+        private boolean hasChildren(String path) {
+            for (String key : mFiles.keySet()) {
+                if (isChild(path, key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void discardUpload() throws IOException {
+            byte[] buffer = new byte[GKMultiplexer.MAXIMUM_PAYLOAD_SIZE];
+            while (mConnection.mToCard.awaitData(mUploadIdleTimeoutMillis)) {
+                if (mInputStream.read(buffer) == -1) {
+                    return;
+                }
+            }
+        }
+
+        private void sendData(byte[] data, int offset) throws IOException {
+            reply(150, "Opening data connection");
+            if (mCompressed) {
+                data = deflate(data, offset);
+                offset = 0;
+            }
+            while (offset < data.length) {
+                int length = Math.min(mPayloadSize, data.length - offset);
+                int packetLength = mEncoder.encode(data, offset, length, GKMultiplexer.DATA_CHANNEL);
+                if (length > 0 && mDownloadCorruptionBytes.get() >= 0 && mDownloadCorruptionBytes.addAndGet(-length) <= 0) {
+                    mDownloadCorruptionBytes.set(-1);
+                    mEncoder.getBuffer()[DataPacket.HEADER_SIZE + length / 2] ^= 0x10;
+                }
+                mOutputStream.write(mEncoder.getBuffer(), 0, packetLength);
+                offset += length;
+                if (mDownloadFailureBytes.get() >= 0 && mDownloadFailureBytes.addAndGet(-length) <= 0) {
+                    mDownloadFailureBytes.set(-1);
+                    // the client reads what was sent, then sees the link end and disconnects
+                    mOutputStream.close();
+                    return;
+                }
+            }
+            reply(226, "Transfer complete");
+        }
+
+        private byte[] deflate(byte[] data, int offset) {
+            Deflater deflater = new Deflater(mCompressionLevel);
+            try {
+                deflater.setInput(data, offset, data.length - offset);
+                deflater.finish();
+                ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+                byte[] buffer = new byte[GKMultiplexer.MAXIMUM_PAYLOAD_SIZE];
+                while (!deflater.finished()) {
+                    deflated.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return deflated.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        // Returns false when the compressed data is corrupt.
+        private boolean inflate(Inflater inflater, byte[] payload, int length, ByteArrayOutputStream data) {
+            byte[] buffer = new byte[GKMultiplexer.MAXIMUM_PAYLOAD_SIZE];
+            inflater.setInput(payload, 0, length);
+            try {
+                int count;
+                while ((count = inflater.inflate(buffer)) > 0) {
+                    data.write(buffer, 0, count);
+                }
+                return true;
+            } catch (DataFormatException e) {
+                return false;
+            }
+        }
+
+        private void reply(int status, String message) throws IOException {
+            byte[] line = (status + " " + message + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            mEncoder.write(mOutputStream, line, 0, line.length, GKMultiplexer.COMMAND_CHANNEL);
+        }
+    }
+}
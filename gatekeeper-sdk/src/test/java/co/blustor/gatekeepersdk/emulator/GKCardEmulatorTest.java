@@ -0,0 +1,487 @@
+package co.blustor.gatekeepersdk.emulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import co.blustor.gatekeepersdk.data.GKFile;
+import co.blustor.gatekeepersdk.data.GKTransferProgress;
+import co.blustor.gatekeepersdk.devices.GKCard.Response;
+import co.blustor.gatekeepersdk.services.GKFileActions;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class GKCardEmulatorTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private GKCardEmulator emulator;
+    private GKEmulatedCard card;
+
+    @Before
+    public void setUp() throws Exception {
+        emulator = new GKCardEmulator();
+        emulator.setUploadIdleTimeoutMillis(20);
+        card = new GKEmulatedCard(emulator, temporaryFolder.getRoot());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        card.disconnect();
+    }
+
+    @Test
+    public void putStoresDataThatGetReturns() throws IOException {
+        byte[] data = randomBytes(100 * 1024);
+        card.createPath("/data");
+
+        Response putResponse = card.put("/data/file.bin", new ByteArrayInputStream(data));
+        Response getResponse = card.get("/data/file.bin");
+
+        assertThat(putResponse.getStatus(), is(226));
+        assertThat(emulator.getFile("/data/file.bin"), is(equalTo(data)));
+        assertThat(getResponse.getStatus(), is(226));
+        assertThat(Files.readAllBytes(getResponse.getDataFile().toPath()), is(equalTo(data)));
+    }
+
+    @Test
+    public void putFileFinalizesTheUploadedFile() throws IOException {
+        emulator.putFile("/data/existing", new byte[0]);
+        GKFileActions fileActions = new GKFileActions(card);
+
+        GKFileActions.PutFileResult result = fileActions.putFile(new ByteArrayInputStream(new byte[10]), "/data/new");
+
+        assertThat(result.getStatus(), is(GKFileActions.Status.SUCCESS));
+        assertThat(result.getFile().getCardPath(), is(equalTo("/data/new")));
+    }
+
+    @Test
+    public void putAtAnOffsetKeepsTheBytesBeforeIt() throws IOException {
+        emulator.putFile("/data/file", new byte[]{1, 2, 3, 4});
+
+        Response response = card.put("/data/file", new ByteArrayInputStream(new byte[]{9, 9}), 2);
+
+        assertThat(response.getStatus(), is(226));
+        assertThat(emulator.getFile("/data/file"), is(equalTo(new byte[]{1, 2, 9, 9})));
+        assertThat(card.put("/data/file", new ByteArrayInputStream(new byte[1]), 5).getStatus(), is(550));
+    }
+
+    @Test
+    public void putFileResumableResumesFromTheLastCommittedChunk() throws IOException {
+        byte[] data = randomBytes(4000);
+        card.createPath("/data");
+        GKFileActions fileActions = new GKFileActions(card);
+        fileActions.setUploadChunkSize(1024);
+        emulator.failUploadAfter(1500);
+
+        GKFileActions.PutFileResult result = fileActions.putFileResumable(new ByteArrayInputStream(data), "/data/file.bin");
+
+        assertThat(result.getStatus(), is(GKFileActions.Status.SUCCESS));
+        assertThat(result.getFile().getCardPath(), is(equalTo("/data/file.bin")));
+        assertThat(emulator.getFile("/data/file.bin"), is(equalTo(data)));
+        assertThat(card.getConnectCount(), is(2L));
+    }
+
+    @Test
+    public void putFileResumableSendsInOnePieceWhenTheCardCannotResume() throws IOException {
+        byte[] data = randomBytes(4000);
+        card.createPath("/data");
+        emulator.setRestartSupported(false);
+        GKFileActions fileActions = new GKFileActions(card);
+        fileActions.setUploadChunkSize(1024);
+
+        GKFileActions.PutFileResult result = fileActions.putFileResumable(new ByteArrayInputStream(data), "/data/file.bin");
+
+        assertThat(result.getStatus(), is(GKFileActions.Status.SUCCESS));
+        assertThat(emulator.getFile("/data/file.bin"), is(equalTo(data)));
+    }
+
+    @Test
+    public void getResumesAnInterruptedDownload() throws IOException {
+        byte[] data = randomBytes(16 * 1024);
+        emulator.putFile("/data/file", data);
+        emulator.failDownloadAfter(8 * 1024);
+        File localFile = temporaryFolder.newFile();
+
+        try {
+            card.get("/data/file", localFile);
+            fail("Expected the download to be interrupted");
+        } catch (IOException e) {
+            // the partial download is kept for the next attempt
+        }
+        Response response = card.get("/data/file", localFile);
+
+        assertThat(response.getStatus(), is(226));
+        assertThat(Files.readAllBytes(localFile.toPath()), is(equalTo(data)));
+        assertThat(card.getTransferStatistics().getResumedDownloadCount(), is(1L));
+        assertThat(card.getTransferStatistics().getResumedDownloadBytes(), is(8 * 1024L));
+    }
+
+    @Test
+    public void getStartsOverWhenThePartialDownloadCannotBeResumed() throws IOException {
+        emulator.putFile("/data/file", randomBytes(16 * 1024));
+        emulator.failDownloadAfter(8 * 1024);
+        File localFile = temporaryFolder.newFile();
+        try {
+            card.get("/data/file", localFile);
+            fail("Expected the download to be interrupted");
+        } catch (IOException e) {
+            // the partial download is kept for the next attempt
+        }
+        byte[] data = randomBytes(4 * 1024);
+        emulator.putFile("/data/file", data);
+
+        Response response = card.get("/data/file", localFile);
+
+        assertThat(response.getStatus(), is(226));
+        assertThat(Files.readAllBytes(localFile.toPath()), is(equalTo(data)));
+        assertThat(card.getTransferStatistics().getResumedDownloadCount(), is(0L));
+    }
+
+    @Test
+    public void getStartsOverWhenTheFileWasReplacedWithOneOfTheSameSize() throws IOException {
+        emulator.putFile("/data/file", randomBytes(16 * 1024));
+        emulator.failDownloadAfter(8 * 1024);
+        File localFile = temporaryFolder.newFile();
+        try {
+            card.get("/data/file", localFile);
+            fail("Expected the download to be interrupted");
+        } catch (IOException e) {
+            // the partial download is kept for the next attempt
+        }
+        byte[] data = randomBytes(16 * 1024);
+        emulator.putFile("/data/file", data);
+
+        Response response = card.get("/data/file", localFile);
+
+        assertThat(response.getStatus(), is(226));
+        assertThat(Files.readAllBytes(localFile.toPath()), is(equalTo(data)));
+        assertThat(card.getTransferStatistics().getResumedDownloadCount(), is(0L));
+    }
+
+    @Test
+    public void getStartsOverWhenTheCardRejectsTheRestartOffset() throws IOException {
+        byte[] data = randomBytes(16 * 1024);
+        emulator.putFile("/data/file", data);
+        emulator.failDownloadAfter(8 * 1024);
+        File localFile = temporaryFolder.newFile();
+        try {
+            card.get("/data/file", localFile);
+            fail("Expected the download to be interrupted");
+        } catch (IOException e) {
+            // the partial download is kept for the next attempt
+        }
+        emulator.setRestartSupported(false);
+
+        Response response = card.get("/data/file", localFile);
+
+        assertThat(response.getStatus(), is(226));
+        assertThat(Files.readAllBytes(localFile.toPath()), is(equalTo(data)));
+        assertThat(card.getTransferStatistics().getResumedDownloadCount(), is(0L));
+    }
+
+    @Test
+    public void getDoesNotKeepAPartialDownloadOfAMissingFile() throws IOException {
+        File localFile = temporaryFolder.newFile();
+
+        Response response = card.get("/data/missing", localFile);
+
+        assertThat(response.getStatus(), is(550));
+        assertThat(temporaryFolder.getRoot().list(), is(equalTo(new String[]{localFile.getName()})));
+    }
+
+    @Test
+    public void listFilesReturnsTheEntriesOfADirectory() throws IOException {
+        emulator.putFile("/data/a.txt", new byte[3]);
+        emulator.putFile("/data/sub/b.txt", new byte[5]);
+        GKFileActions fileActions = new GKFileActions(card);
+
+        List<GKFile> files = fileActions.listFiles("/data").getFiles();
+
+        assertThat(files.size(), is(2));
+        assertThat(files.get(0).getName(), is(equalTo("a.txt")));
+        assertThat(files.get(0).getFileSize(), is(3));
+        assertThat(files.get(1).getName(), is(equalTo("sub")));
+        assertThat(files.get(1).isDirectory(), is(true));
+    }
+
+    @Test
+    public void pathCommandsFollowTheFilesystem() throws IOException {
+        assertThat(card.createPath("/missing/child").getStatus(), is(550));
+        assertThat(card.createPath("/data").getStatus(), is(257));
+        assertThat(card.get("/data/nothing").getStatus(), is(550));
+        emulator.putFile("/data/file", new byte[1]);
+        assertThat(card.deletePath("/data").getStatus(), is(550));
+        assertThat(card.delete("/data/file").getStatus(), is(250));
+        assertThat(card.deletePath("/data").getStatus(), is(250));
+        assertThat(emulator.isDirectory("/data"), is(false));
+    }
+
+    @Test
+    public void renameMovesAFile() throws IOException {
+        emulator.putFile("/data/old", new byte[]{1, 2});
+
+        Response response = card.rename("/data/old", "/data/new");
+
+        assertThat(response.getStatus(), is(250));
+        assertThat(emulator.getFile("/data/old"), is(nullValue()));
+        assertThat(emulator.getFile("/data/new"), is(equalTo(new byte[]{1, 2})));
+        assertThat(card.rename("/data/old", "/data/other").getStatus(), is(550));
+    }
+
+    @Test
+    public void latencyDelaysEachCommandByARoundTrip() throws IOException {
+        emulator.setLatencyMillis(20);
+        card.connect();
+
+        long start = System.nanoTime();
+        card.createPath("/data");
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+        assertThat(elapsedMillis, is(greaterThanOrEqualTo(40L)));
+    }
+
+    @Test
+    public void bandwidthLimitsDownloads() throws IOException {
+        emulator.putFile("/data/file", new byte[16 * 1024]);
+        emulator.setBytesPerSecond(64 * 1024);
+
+        long start = System.nanoTime();
+        card.get("/data/file");
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+        assertThat(elapsedMillis, is(greaterThanOrEqualTo(250L)));
+    }
+
+    @Test
+    public void packetLossDelaysTransfersWithoutCorruptingThem() throws IOException {
+        byte[] data = randomBytes(32 * 1024);
+        emulator.putFile("/data/file", data);
+        emulator.setRandom(new Random(1));
+        emulator.setPacketLossRate(0.1);
+
+        Response response = card.get("/data/file");
+
+        assertThat(Files.readAllBytes(response.getDataFile().toPath()), is(equalTo(data)));
+        assertThat(card.getConnection().getDownlink().getRetransmitCount(), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void getReadsACorruptDownloadAgain() throws IOException {
+        byte[] data = randomBytes(16 * 1024);
+        emulator.putFile("/data/file", data);
+        emulator.corruptDownloadAfter(8 * 1024);
+
+        Response response = card.get("/data/file");
+
+        assertThat(response.getStatus(), is(226));
+        assertThat(Files.readAllBytes(response.getDataFile().toPath()), is(equalTo(data)));
+        assertThat(card.getTransferStatistics().getCorruptPacketCount(), is(1L));
+        assertThat(card.getTransferStatistics().getRetriedTransferCount(), is(1L));
+    }
+
+    @Test
+    public void getResumesACorruptDownloadFromTheLastVerifiedPacket() throws IOException {
+        byte[] data = randomBytes(16 * 1024);
+        emulator.putFile("/data/file", data);
+        emulator.corruptDownloadAfter(8 * 1024);
+        File localFile = temporaryFolder.newFile();
+
+        Response response = card.get("/data/file", localFile);
+
+        assertThat(response.getStatus(), is(226));
+        assertThat(Files.readAllBytes(localFile.toPath()), is(equalTo(data)));
+        assertThat(card.getTransferStatistics().getRetriedTransferCount(), is(1L));
+        assertThat(card.getTransferStatistics().getResumedDownloadBytes(), is(8 * 1024L - 512));
+    }
+
+    @Test
+    public void corruptionGoesUnnoticedWhenTheCardCannotChecksum() throws IOException {
+        byte[] data = randomBytes(16 * 1024);
+        emulator.putFile("/data/file", data);
+        emulator.setChecksumSupported(false);
+        emulator.corruptDownloadAfter(8 * 1024);
+
+        Response response = card.get("/data/file");
+
+        assertThat(card.isChecksumActive(), is(false));
+        assertThat(response.getStatus(), is(226));
+        assertThat(Files.readAllBytes(response.getDataFile().toPath()), is(not(equalTo(data))));
+        assertThat(card.getTransferStatistics().getCorruptPacketCount(), is(0L));
+    }
+
+    @Test
+    public void fullDuplexTransfersMatchHalfDuplexTransfers() throws IOException {
+        byte[] data = randomBytes(64 * 1024);
+        card.setFullDuplexEnabled(true);
+        card.createPath("/data");
+
+        Response putResponse = card.put("/data/file.bin", new ByteArrayInputStream(data));
+        Response getResponse = card.get("/data/file.bin");
+
+        assertThat(card.isFullDuplexActive(), is(true));
+        assertThat(putResponse.getStatus(), is(226));
+        assertThat(emulator.getFile("/data/file.bin"), is(equalTo(data)));
+        assertThat(getResponse.getStatus(), is(226));
+        assertThat(Files.readAllBytes(getResponse.getDataFile().toPath()), is(equalTo(data)));
+    }
+
+    @Test
+    public void fullDuplexReadsACorruptDownloadAgain() throws IOException {
+        byte[] data = randomBytes(16 * 1024);
+        emulator.putFile("/data/file", data);
+        emulator.corruptDownloadAfter(8 * 1024);
+        card.setFullDuplexEnabled(true);
+
+        Response response = card.get("/data/file");
+
+        assertThat(response.getStatus(), is(226));
+        assertThat(Files.readAllBytes(response.getDataFile().toPath()), is(equalTo(data)));
+        assertThat(card.getTransferStatistics().getRetriedTransferCount(), is(1L));
+    }
+
+    @Test
+    public void getFileReportsProgressAgainstTheListedFileSize() throws IOException {
+        final byte[] data = randomBytes(32 * 1024);
+        emulator.putFile("/data/file", data);
+        GKFileActions fileActions = new GKFileActions(card);
+        fileActions.setProgressInterval(0);
+        GKFile file = fileActions.listFiles("/data").getFiles().get(0);
+        final List<Long> reportedBytes = new ArrayList<>();
+
+        GKFileActions.GetFileResult result = fileActions.getFile(file, temporaryFolder.newFile(), new GKTransferProgress.Listener() {
+            @Override
+            public void onProgress(GKTransferProgress progress) {
+                assertThat(progress.getTotalBytes(), is((long) data.length));
+                reportedBytes.add(progress.getBytesTransferred());
+            }
+        });
+
+        assertThat(result.getStatus(), is(GKFileActions.Status.SUCCESS));
+        // a report for every packet and one when the download ends
+        assertThat(reportedBytes.size(), is(data.length / 512 + 1));
+        assertThat(reportedBytes.get(0), is(512L));
+        assertThat(reportedBytes.get(reportedBytes.size() - 1), is((long) data.length));
+    }
+
+    @Test
+    public void putFileReportsTheBytesSent() throws IOException {
+        byte[] data = randomBytes(1000);
+        card.createPath("/data");
+        GKFileActions fileActions = new GKFileActions(card);
+        GKTransferProgress.Listener listener = new GKTransferProgress.Listener() {
+            @Override
+            public void onProgress(GKTransferProgress progress) {
+                if (progress.isFinished()) {
+                    assertThat(progress.getBytesTransferred(), is(1000L));
+                    assertThat(progress.getEstimatedMillisRemaining(), is(0L));
+                }
+            }
+        };
+
+        GKFileActions.PutFileResult result = fileActions.putFile(new ByteArrayInputStream(data), "/data/file", data.length, listener);
+
+        assertThat(result.getStatus(), is(GKFileActions.Status.SUCCESS));
+        assertThat(emulator.getFile("/data/file"), is(equalTo(data)));
+    }
+
+    @Test
+    public void compressedTransfersMatchUncompressedTransfers() throws IOException {
+        byte[] data = textBytes(64 * 1024);
+        card.setCompressionLevel(6);
+        card.createPath("/data");
+
+        Response putResponse = card.put("/data/file.txt", new ByteArrayInputStream(data));
+        Response getResponse = card.get("/data/file.txt");
+        List<GKFile> files = new GKFileActions(card).listFiles("/data").getFiles();
+
+        assertThat(card.isCompressionActive(), is(true));
+        assertThat(putResponse.getStatus(), is(226));
+        assertThat(emulator.getFile("/data/file.txt"), is(equalTo(data)));
+        assertThat(getResponse.getStatus(), is(226));
+        assertThat(Files.readAllBytes(getResponse.getDataFile().toPath()), is(equalTo(data)));
+        assertThat(files.get(0).getFileSize(), is(data.length));
+    }
+
+    @Test
+    public void compressedDownloadsReportTheCompressionRatio() throws IOException {
+        byte[] data = textBytes(32 * 1024);
+        emulator.putFile("/data/file.txt", data);
+        card.setCompressionLevel(6);
+        GKTransferProgress progress = new GKTransferProgress(data.length, null);
+
+        Response response = card.get("/data/file.txt", temporaryFolder.newFile(), progress);
+
+        assertThat(response.getStatus(), is(226));
+        assertThat(progress.getBytesTransferred(), is((long) data.length));
+        assertThat(progress.getLinkBytesTransferred(), is(lessThan((long) data.length)));
+        assertThat(progress.getCompressionRatio(), is(greaterThan(2.0)));
+        assertThat(card.getConnectionStatistics().getBytesReceived(), is(lessThan((long) data.length)));
+    }
+
+    @Test
+    public void compressedUploadsSendIncompressibleDataAsIs() throws IOException {
+        byte[] data = randomBytes(16 * 1024);
+        card.setCompressionLevel(6);
+        card.createPath("/data");
+        GKTransferProgress progress = new GKTransferProgress(data.length, null);
+
+        Response response = card.put("/data/file.bin", new ByteArrayInputStream(data), progress);
+
+        assertThat(response.getStatus(), is(226));
+        assertThat(emulator.getFile("/data/file.bin"), is(equalTo(data)));
+        assertThat(progress.getLinkBytesTransferred(), is((long) data.length));
+        assertThat(progress.getCompressionRatio(), is(1.0));
+    }
+
+    @Test
+    public void compressionIsNotUsedWhenTheCardCannotCompress() throws IOException {
+        byte[] data = textBytes(16 * 1024);
+        emulator.setCompressionSupported(false);
+        card.setCompressionLevel(6);
+        card.createPath("/data");
+
+        Response putResponse = card.put("/data/file.txt", new ByteArrayInputStream(data));
+        Response getResponse = card.get("/data/file.txt");
+
+        assertThat(card.isCompressionActive(), is(false));
+        assertThat(putResponse.getStatus(), is(226));
+        assertThat(emulator.getFile("/data/file.txt"), is(equalTo(data)));
+        assertThat(Files.readAllBytes(getResponse.getDataFile().toPath()), is(equalTo(data)));
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private byte[] textBytes(int size) {
+        Random random = new Random(size);
+        String[] words = {"gatekeeper", "card", "file", "packet", "channel", "data", "the", "a", "of"};
+        StringBuilder text = new StringBuilder();
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]).append(random.nextInt(8) == 0 ? "\n" : " ");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+}
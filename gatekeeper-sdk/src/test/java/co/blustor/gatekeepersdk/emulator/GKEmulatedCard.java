@@ -0,0 +1,73 @@
+package co.blustor.gatekeepersdk.emulator;
+
+import java.io.File;
+
+import co.blustor.gatekeepersdk.data.GKMultiplexer;
+import co.blustor.gatekeepersdk.devices.GKBluetoothCard;
+
+/**
+ * GKEmulatedCard is a {@code GKBluetoothCard} that connects to a {@link GKCardEmulator}
+ * instead of a paired GateKeeper Card. Everything above the transport, including the
+ * {@code GKMultiplexer}, is the production code path. Intended for testing and benchmarking.
+ *
+ * @since 0.21.0
+ */
+public class GKEmulatedCard extends GKBluetoothCard {
+    public static final String TAG = GKEmulatedCard.class.getCanonicalName();
+
+    private static final String DEVICE_ADDRESS = "00:00:00:00:00:00";
+
+    private final GKCardEmulator mEmulator;
+    private GKCardEmulator.Connection mConnection;
+
+    /**
+     * Create a {@code GKEmulatedCard} to connect with the given emulator.
+     *
+     * @param emulator     the {@code GKCardEmulator} to connect to
+     * @param dataCacheDir a {@code File} that contains the location to create temporary files to store response data.
+     * @since 0.21.0
+     */
+    public GKEmulatedCard(GKCardEmulator emulator, File dataCacheDir) {
+        super(TAG, dataCacheDir);
+        mEmulator = emulator;
+    }
+
+    /**
+     * @return the {@code GKCardEmulator} this card connects to
+     * @since 0.21.0
+     */
+    public GKCardEmulator getEmulator() {
+        return mEmulator;
+    }
+
+    /**
+     * @return the current session with the emulator, or {@code null} before the first connect
+     * @since 0.21.0
+     */
+    public GKCardEmulator.Connection getConnection() {
+        return mConnection;
+    }
+
+    @Override
+    public String findDeviceAddress() {
+        return DEVICE_ADDRESS;
+    }
+
+    @Override
+    protected GKMultiplexer openConnection() {
+        mConnection = mEmulator.connect();
+        return new GKMultiplexer(mConnection.getInputStream(), mConnection.getOutputStream());
+    }
+
+    @Override
+    protected boolean isConnectionOpen() {
+        return mConnection != null && mConnection.isOpen();
+    }
+
+    @Override
+    protected void closeConnection() {
+        if (mConnection != null) {
+            mConnection.close();
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package co.blustor.gatekeepersdk.emulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * LoopbackPipe is one direction of an in-memory link. Bytes written to its output stream
+ * become readable from its input stream once the configured latency and bandwidth allow,
+ * and writers block while {@code capacity} bytes are waiting to be read, like a socket.
+ * <p>
+ * Each write is treated as one packet. A lost packet is retransmitted after a timeout, as
+ * the Bluetooth link layer would, so loss shows up as delay rather than missing data. Packets
+ * are lost at a fixed rate, or in proportion to their size when a bit error rate is set.
+ * <p>
+ * Unlike {@code PipedInputStream}, readers and writers are woken as soon as data or space
+ * is available. Intended for testing and benchmarking.
+ *
+ * @since 0.21.0
+ */
+public class LoopbackPipe {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long DEFAULT_RETRANSMIT_MILLIS = 40;
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+    private final int mCapacity;
+    private final InputStream mInputStream = new PipeInputStream();
+    private final OutputStream mOutputStream = new PipeOutputStream();
+
+    private Random mRandom = new Random();
+    private long mLatencyNanos;
+    private long mBytesPerSecond;
+    private double mLossRate;
+    private double mBitErrorRate;
+    private long mPacketOverheadNanos;
+    private long mRetransmitNanos = DEFAULT_RETRANSMIT_MILLIS * NANOS_PER_MILLI;
+
+    private int mBufferedBytes;
+    private long mLinkFreeNanos;
+    private long mLastDeliveryNanos;
+    private long mPacketCount;
+    private long mRetransmitCount;
+    private boolean mWriterClosed;
+    private boolean mReaderClosed;
+
+    /**
+     * @param capacity the number of unread bytes at which writers block
+     */
+    public LoopbackPipe(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mCapacity = capacity;
+        mLinkFreeNanos = System.nanoTime();
+        mLastDeliveryNanos = mLinkFreeNanos;
+    }
+
+    /**
+     * @return the stream that reads bytes as they arrive
+     */
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * @return the stream that sends bytes through the pipe
+     */
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * @param latencyMillis the one-way delay added to every packet
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        synchronized (mLock) {
+            mLatencyNanos = latencyMillis * NANOS_PER_MILLI;
+        }
+    }
+
+    /**
+     * @param bytesPerSecond the rate at which packets are serialized onto the link, or
+     *                       {@code 0} for no limit
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        synchronized (mLock) {
+            mBytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    /**
+     * @param lossRate the probability, from {@code 0} to {@code 1}, that a packet must be
+     *                 retransmitted
+     */
+    public void setLossRate(double lossRate) {
+        if (lossRate < 0 || lossRate >= 1) {
+            throw new IllegalArgumentException("Loss rate must be at least 0 and below 1");
+        }
+        synchronized (mLock) {
+            mLossRate = lossRate;
+        }
+    }
+
+    /**
+     * @param bitErrorRate the probability, from {@code 0} to {@code 1}, that any one bit is
+     *                     corrupted, which causes the packet holding it to be retransmitted
+     */
+    public void setBitErrorRate(double bitErrorRate) {
+        if (bitErrorRate < 0 || bitErrorRate >= 1) {
+            throw new IllegalArgumentException("Bit error rate must be at least 0 and below 1");
+        }
+        synchronized (mLock) {
+            mBitErrorRate = bitErrorRate;
+        }
+    }
+
+    /**
+     * @param packetOverheadMicros the link time every packet costs regardless of its size
+     */
+    public void setPacketOverheadMicros(long packetOverheadMicros) {
+        synchronized (mLock) {
+            mPacketOverheadNanos = packetOverheadMicros * 1000L;
+        }
+    }
+
+    /**
+     * @param retransmitMillis the delay added to a packet each time it is lost
+     */
+    public void setRetransmitMillis(long retransmitMillis) {
+        synchronized (mLock) {
+            mRetransmitNanos = retransmitMillis * NANOS_PER_MILLI;
+        }
+    }
+
+    /**
+     * @param random the source of randomness used to decide which packets are lost
+     */
+    public void setRandom(Random random) {
+        synchronized (mLock) {
+            mRandom = random;
+        }
+    }
+
+    /**
+     * @return the number of packets written to the pipe
+     */
+    public long getPacketCount() {
+        synchronized (mLock) {
+            return mPacketCount;
+        }
+    }
+
+    /**
+     * @return the number of times a packet has been lost and retransmitted
+     */
+    public long getRetransmitCount() {
+        synchronized (mLock) {
+            return mRetransmitCount;
+        }
+    }
+
+    /**
+     * @return whether bytes have been written that have not arrived yet
+     */
+    public boolean hasDataInFlight() {
+        synchronized (mLock) {
+            return mLastDeliveryNanos - System.nanoTime() > 0;
+        }
+    }
+
+    /**
+     * Wait until bytes can be read or the writer has closed the pipe. Bytes that are still in
+     * flight are always waited for; the timeout only applies while nothing has been written.
+     *
+     * @param timeoutMillis how long to wait for something to be written
+     * @return {@code false} if nothing was written before the timeout elapsed
+     * @throws InterruptedIOException when the waiting thread is interrupted
+     */
+    public boolean awaitData(long timeoutMillis) throws InterruptedIOException {
+        long deadline = System.nanoTime() + timeoutMillis * NANOS_PER_MILLI;
+        synchronized (mLock) {
+            while (true) {
+                Segment head = mSegments.peekFirst();
+                long now = System.nanoTime();
+                if (mWriterClosed || mReaderClosed || (head != null && head.isDelivered(now))) {
+                    return true;
+                }
+                long waitNanos = head != null ? head.mDeliveryNanos - now : deadline - now;
+                if (head == null && waitNanos <= 0) {
+                    return false;
+                }
+                await(waitNanos);
+            }
+        }
+    }
+
+    /**
+     * Close both ends of the pipe. Blocked readers and writers are woken.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mWriterClosed = true;
+            mReaderClosed = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private void write(byte[] data, int offset, int length) throws IOException {
+        synchronized (mLock) {
+            while (length > 0) {
+                if (mReaderClosed || mWriterClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                int room = mCapacity - mBufferedBytes;
+                if (room <= 0) {
+                    await(0);
+                    continue;
+                }
+                int count = Math.min(room, length);
+                byte[] bytes = new byte[count];
+                System.arraycopy(data, offset, bytes, 0, count);
+                mSegments.addLast(new Segment(bytes, scheduleDelivery(count)));
+                mBufferedBytes += count;
+                offset += count;
+                length -= count;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private long scheduleDelivery(int length) {
+        long now = System.nanoTime();
+        long start = mLinkFreeNanos - now > 0 ? mLinkFreeNanos : now;
+        long transmitNanos = mPacketOverheadNanos;
+        if (mBytesPerSecond > 0) {
+            transmitNanos += length * NANOS_PER_SECOND / mBytesPerSecond;
+        }
+        mLinkFreeNanos = start + transmitNanos;
+        double lossRate = 1 - (1 - mLossRate) * Math.pow(1 - mBitErrorRate, 8.0 * length);
+        while (lossRate > 0 && mRandom.nextDouble() < lossRate) {
+            // the retransmitted packet occupies the link again
+            mRetransmitCount++;
+            mLinkFreeNanos += mRetransmitNanos + transmitNanos;
+        }
+        long delivery = mLinkFreeNanos + mLatencyNanos;
+        mPacketCount++;
+        // packets arrive in order, so a retransmitted packet holds up the ones behind it
+        if (delivery - mLastDeliveryNanos < 0) {
+            delivery = mLastDeliveryNanos;
+        }
+        mLastDeliveryNanos = delivery;
+        return delivery;
+    }
+
+    private int read(byte[] buffer, int offset, int length) throws IOException {
+        synchronized (mLock) {
+            while (true) {
+                if (mReaderClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                Segment head = mSegments.peekFirst();
+                if (head == null) {
+                    if (mWriterClosed) {
+                        return -1;
+                    }
+                    await(0);
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (!head.isDelivered(now)) {
+                    await(head.mDeliveryNanos - now);
+                    continue;
+                }
+                int count = 0;
+                while (head != null && head.isDelivered(now) && count < length) {
+                    int n = Math.min(length - count, head.remaining());
+                    System.arraycopy(head.mBytes, head.mPosition, buffer, offset + count, n);
+                    head.mPosition += n;
+                    count += n;
+                    if (head.remaining() == 0) {
+                        mSegments.removeFirst();
+                        head = mSegments.peekFirst();
+                    }
+                }
+                mBufferedBytes -= count;
+                mLock.notifyAll();
+                return count;
+            }
+        }
+    }
+
+    private int available() {
+        synchronized (mLock) {
+            long now = System.nanoTime();
+            int count = 0;
+            for (Segment segment : mSegments) {
+                if (!segment.isDelivered(now)) {
+                    break;
+                }
+                count += segment.remaining();
+            }
+            return count;
+        }
+    }
+
+    // Called with mLock held. A waitNanos of 0 waits until notified.
+    private void await(long waitNanos) throws InterruptedIOException {
+        try {
+            if (waitNanos <= 0) {
+                mLock.wait();
+            } else {
+                mLock.wait(waitNanos / NANOS_PER_MILLI, (int) (waitNanos % NANOS_PER_MILLI));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on the pipe");
+        }
+    }
+
+    private static class Segment {
+        private final byte[] mBytes;
+        private final long mDeliveryNanos;
+        private int mPosition;
+
+        Segment(byte[] bytes, long deliveryNanos) {
+            mBytes = bytes;
+            mDeliveryNanos = deliveryNanos;
+        }
+
+        boolean isDelivered(long now) {
+            return now - mDeliveryNanos >= 0;
+        }
+
+        int remaining() {
+            return mBytes.length - mPosition;
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        private final byte[] mSingleByte = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int count = read(mSingleByte, 0, 1);
+            return count == -1 ? -1 : mSingleByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            return LoopbackPipe.this.read(buffer, offset, length);
+        }
+
+        @Override
+        public int available() {
+            return LoopbackPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            synchronized (mLock) {
+                mReaderClosed = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            LoopbackPipe.this.write(data, offset, length);
+        }
+
+        @Override
+        public void close() {
+            synchronized (mLock) {
+                mWriterClosed = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package co.blustor.gatekeepersdk.emulator;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class LoopbackPipeTest {
+    @Test
+    public void readsReturnWrittenBytesInOrder() throws IOException {
+        LoopbackPipe pipe = new LoopbackPipe(16);
+        pipe.getOutputStream().write(new byte[]{1, 2, 3});
+        pipe.getOutputStream().write(new byte[]{4});
+        byte[] buffer = new byte[8];
+
+        int count = pipe.getInputStream().read(buffer, 0, buffer.length);
+
+        assertThat(count, is(4));
+        assertThat(buffer[3], is((byte) 4));
+    }
+
+    @Test
+    public void readsEndOnceTheWriterClosesAndTheDataIsDrained() throws IOException {
+        LoopbackPipe pipe = new LoopbackPipe(16);
+        pipe.getOutputStream().write(7);
+        pipe.getOutputStream().close();
+
+        assertThat(pipe.getInputStream().read(), is(7));
+        assertThat(pipe.getInputStream().read(), is(-1));
+    }
+
+    @Test
+    public void writersBlockUntilTheReaderMakesRoom() throws Exception {
+        final LoopbackPipe pipe = new LoopbackPipe(4);
+        final AtomicLong blockedNanos = new AtomicLong();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    pipe.getOutputStream().write(new byte[8]);
+                    blockedNanos.set(System.nanoTime() - start);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+
+        Thread.sleep(50);
+        InputStream inputStream = pipe.getInputStream();
+        for (int i = 0; i < 8; i++) {
+            inputStream.read();
+        }
+        writer.join();
+
+        assertThat(blockedNanos.get(), is(greaterThanOrEqualTo(50000000L)));
+    }
+
+    @Test
+    public void latencyDelaysDeliveryWithoutBlockingTheWriter() throws IOException {
+        LoopbackPipe pipe = new LoopbackPipe(16);
+        pipe.setLatencyMillis(30);
+        OutputStream outputStream = pipe.getOutputStream();
+
+        long start = System.nanoTime();
+        outputStream.write(1);
+        long writeNanos = System.nanoTime() - start;
+        assertThat(pipe.getInputStream().available(), is(0));
+        assertThat(pipe.hasDataInFlight(), is(true));
+        pipe.getInputStream().read();
+        long readNanos = System.nanoTime() - start;
+
+        assertThat(writeNanos, is(lessThan(10000000L)));
+        assertThat(readNanos, is(greaterThanOrEqualTo(30000000L)));
+    }
+
+    @Test
+    public void awaitDataTimesOutOnlyWhileNothingIsWritten() throws IOException {
+        LoopbackPipe pipe = new LoopbackPipe(16);
+
+        assertThat(pipe.awaitData(10), is(false));
+
+        pipe.setLatencyMillis(30);
+        pipe.getOutputStream().write(1);
+        assertThat(pipe.awaitData(1), is(true));
+    }
+
+    @Test
+    public void bitErrorsLoseLargerPacketsMoreOften() throws IOException {
+        long smallPacketLosses = countRetransmits(64);
+        long largePacketLosses = countRetransmits(2048);
+
+        assertThat(largePacketLosses, is(greaterThan(smallPacketLosses * 4)));
+    }
+
+    private long countRetransmits(int packetSize) throws IOException {
+        LoopbackPipe pipe = new LoopbackPipe(1024 * 1024);
+        pipe.setRandom(new Random(1));
+        pipe.setRetransmitMillis(0);
+        pipe.setBitErrorRate(0.00001);
+        for (int i = 0; i < 200; i++) {
+            pipe.getOutputStream().write(new byte[packetSize]);
+        }
+        return pipe.getRetransmitCount();
+    }
+}
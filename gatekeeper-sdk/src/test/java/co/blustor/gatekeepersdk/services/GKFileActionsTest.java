@@ -3,6 +3,7 @@ package co.blustor.gatekeepersdk.services;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -16,8 +17,14 @@ import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -117,6 +124,72 @@ public class GKFileActionsTest {
         assertThat(result.getFile().getCardPath(), is(equalTo(cardPath)));
     }
 
+    @Test
+    public void putFileResumableDoesNotFinalizeAFileWithTheWrongSize() throws IOException {
+        String cardPath = "/card/path/test.txt";
+        when(card.put(eq(cardPath), any(InputStream.class), anyLong())).thenReturn(new GKCard.Response(226, ""));
+        File dataFile = TestFileUtil.buildTempFile();
+        TestFileUtil.writeToFile(dataFile, "-rw-rw-rw- 1 root root 3 Nov 26 2015 test.txt\r\n");
+        when(card.list("/card/path")).thenReturn(new GKCard.Response(226, "", dataFile));
+
+        GKFileActions.PutFileResult result = fileActions.putFileResumable(new ByteArrayInputStream(new byte[5]), cardPath);
+
+        assertThat(result.getStatus(), is(GKFileActions.Status.INCOMPLETE));
+        verify(card, never()).finalize(anyString());
+    }
+
+    @Test
+    public void putFileResumableGivesUpAfterTheRetryLimit() throws IOException {
+        String cardPath = "/card/path/test.txt";
+        IOException failure = new IOException("Not Connected");
+        when(card.put(eq(cardPath), any(InputStream.class), anyLong())).thenThrow(failure);
+        fileActions.setUploadRetryLimit(2);
+        fileActions.setUploadRetryDelay(0);
+
+        try {
+            fileActions.putFileResumable(new ByteArrayInputStream(new byte[5]), cardPath);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertThat(e, is(failure));
+        }
+        verify(card, times(3)).put(eq(cardPath), any(InputStream.class), eq(0L));
+    }
+
+    @Test
+    public void putFileResumableWaitsLongerBeforeEachRetry() throws IOException {
+        String cardPath = "/card/path/test.txt";
+        when(card.put(eq(cardPath), any(InputStream.class), anyLong())).thenThrow(new IOException("Not Connected"));
+        fileActions.setUploadRetryLimit(2);
+        fileActions.setUploadRetryDelay(50);
+
+        long start = System.nanoTime();
+        try {
+            fileActions.putFileResumable(new ByteArrayInputStream(new byte[5]), cardPath);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+            assertThat(elapsedMillis >= 150, is(true));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setUploadRetryLimitRejectsNegativeLimits() {
+        fileActions.setUploadRetryLimit(-1);
+    }
+
+    @Test
+    public void putFileResumableSendsInOnePieceWhenTheCardRejectsTheOffset() throws IOException {
+        String cardPath = "/card/path/test.txt";
+        when(card.put(eq(cardPath), any(InputStream.class), anyLong())).thenReturn(new GKCard.Response(504, "Not implemented for that parameter"));
+        when(card.put(eq(cardPath), any(InputStream.class))).thenReturn(new GKCard.Response(226, ""));
+        when(card.finalize(cardPath)).thenReturn(new GKCard.Response(213, "1:" + cardPath));
+
+        GKFileActions.PutFileResult result = fileActions.putFileResumable(new ByteArrayInputStream(new byte[5]), cardPath);
+
+        assertThat(result.getStatus(), is(GKFileActions.Status.SUCCESS));
+        verify(card).put(eq(cardPath), any(InputStream.class));
+    }
+
     @Test
     public void renameFileRenamesTheFileRelativeToItsCurrentCardPath() throws IOException {
         String fileLocation = "/test/ing/";
@@ -145,4 +218,96 @@ public class GKFileActionsTest {
 
         assertThat(result.getStatus(), is(equalTo(GKFileActions.Status.NOT_FOUND)));
     }
+
+    @Test
+    public void listFilesAsksTheCardEachTimeWithoutAListingCache() throws IOException {
+        when(card.list("/apps")).thenReturn(new GKCard.Response(226, ""));
+
+        fileActions.listFiles("/apps");
+        fileActions.listFiles("/apps");
+
+        verify(card, times(2)).list("/apps");
+        assertThat(fileActions.getListingCacheHitCount(), is(0L));
+    }
+
+    @Test
+    public void listFilesAnswersRepeatedListingsFromTheListingCache() throws IOException {
+        fileActions.setListingCache(8, 60000);
+        when(card.list(anyString())).thenReturn(new GKCard.Response(226, ""));
+
+        GKFileActions.ListFilesResult first = fileActions.listFiles("/apps");
+        GKFileActions.ListFilesResult second = fileActions.listFiles("/apps/");
+
+        assertThat(second, is(first));
+        verify(card, times(1)).list(anyString());
+        assertThat(fileActions.getListingCacheHitCount(), is(1L));
+        assertThat(fileActions.getListingCacheMissCount(), is(1L));
+    }
+
+    @Test
+    public void listFilesDoesNotCacheFailedListings() throws IOException {
+        fileActions.setListingCache(8, 60000);
+        when(card.list("/apps")).thenReturn(new GKCard.Response(530, ""));
+
+        fileActions.listFiles("/apps");
+        fileActions.listFiles("/apps");
+
+        verify(card, times(2)).list("/apps");
+    }
+
+    @Test
+    public void changesThroughFileActionsInvalidateTheListingCache() throws IOException {
+        fileActions.setListingCache(8, 60000);
+        when(card.list(anyString())).thenReturn(new GKCard.Response(226, ""));
+        when(card.put(anyString(), any(InputStream.class))).thenReturn(new GKCard.Response(226, ""));
+        when(card.finalize(anyString())).thenReturn(new GKCard.Response(213, ""));
+        when(card.createPath(anyString())).thenReturn(new GKCard.Response(257, ""));
+        when(card.delete(anyString())).thenReturn(new GKCard.Response(250, ""));
+        when(card.rename(anyString(), anyString())).thenReturn(new GKCard.Response(250, ""));
+        GKFile file = new GKFile("file.txt", GKFile.Type.FILE);
+        file.setCardPath("/apps/file.txt");
+
+        fileActions.listFiles("/apps");
+        fileActions.putFile(new ByteArrayInputStream(new byte[1]), "/apps/file.txt");
+        fileActions.listFiles("/apps");
+        fileActions.makeDirectory("/apps/dir");
+        fileActions.listFiles("/apps");
+        fileActions.deleteFile(file);
+        fileActions.listFiles("/apps");
+        fileActions.renameFile(file, "other.txt");
+        fileActions.listFiles("/apps");
+
+        verify(card, times(5)).list("/apps");
+        assertThat(fileActions.getListingCacheHitCount(), is(0L));
+    }
+
+    @Test
+    public void deletingADirectoryInvalidatesTheListingsBeneathIt() throws IOException {
+        fileActions.setListingCache(8, 60000);
+        when(card.list(anyString())).thenReturn(new GKCard.Response(226, ""));
+        when(card.deletePath(anyString())).thenReturn(new GKCard.Response(250, ""));
+        GKFile directory = new GKFile("apps", GKFile.Type.DIRECTORY);
+        directory.setCardPath("/data/apps");
+
+        fileActions.listFiles("/data/apps/logs");
+        fileActions.listFiles("/data/other");
+        fileActions.deleteFile(directory);
+        fileActions.listFiles("/data/apps/logs");
+        fileActions.listFiles("/data/other");
+
+        verify(card, times(2)).list("/data/apps/logs");
+        verify(card, times(1)).list("/data/other");
+    }
+
+    @Test
+    public void invalidateListingCacheDiscardsEveryListing() throws IOException {
+        fileActions.setListingCache(8, 60000);
+        when(card.list("/apps")).thenReturn(new GKCard.Response(226, ""));
+
+        fileActions.listFiles("/apps");
+        fileActions.invalidateListingCache();
+        fileActions.listFiles("/apps");
+
+        verify(card, times(2)).list("/apps");
+    }
 }
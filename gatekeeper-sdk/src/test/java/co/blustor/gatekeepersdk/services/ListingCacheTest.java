@@ -0,0 +1,66 @@
+package co.blustor.gatekeepersdk.services;
+
+import org.junit.Test;
+
+import co.blustor.gatekeepersdk.devices.GKCard;
+import co.blustor.gatekeepersdk.services.GKFileActions.ListFilesResult;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class ListingCacheTest {
+    @Test
+    public void leastRecentlyUsedListingIsDiscardedWhenFull() {
+        ListingCache cache = new ListingCache(2, 60000);
+        ListFilesResult result = listing();
+
+        cache.put("/a", result, cache.getGeneration());
+        cache.put("/b", result, cache.getGeneration());
+        cache.get("/a");
+        cache.put("/c", result, cache.getGeneration());
+
+        assertThat(cache.size(), is(2));
+        assertThat(cache.get("/a"), is(result));
+        assertThat(cache.get("/b"), is(nullValue()));
+        assertThat(cache.get("/c"), is(result));
+    }
+
+    @Test
+    public void listingsExpireAfterTheirTimeToLive() throws InterruptedException {
+        ListingCache cache = new ListingCache(2, 10);
+        cache.put("/a", listing(), cache.getGeneration());
+
+        Thread.sleep(20);
+
+        assertThat(cache.get("/a"), is(nullValue()));
+        assertThat(cache.size(), is(0));
+        assertThat(cache.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void listingsRetrievedBeforeAnInvalidationAreNotStored() {
+        ListingCache cache = new ListingCache(2, 60000);
+        long generation = cache.getGeneration();
+
+        cache.invalidate("/a/file.txt");
+        cache.put("/a", listing(), generation);
+
+        assertThat(cache.get("/a"), is(nullValue()));
+    }
+
+    @Test
+    public void invalidatingTheRootDiscardsEveryListing() {
+        ListingCache cache = new ListingCache(4, 60000);
+        cache.put("/", listing(), cache.getGeneration());
+        cache.put("/a/b", listing(), cache.getGeneration());
+
+        cache.invalidate("/");
+
+        assertThat(cache.size(), is(0));
+    }
+
+    private ListFilesResult listing() {
+        return new ListFilesResult(new GKCard.Response(226, ""), "/");
+    }
+}
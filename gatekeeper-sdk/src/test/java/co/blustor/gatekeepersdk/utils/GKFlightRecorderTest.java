@@ -0,0 +1,55 @@
+package co.blustor.gatekeepersdk.utils;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class GKFlightRecorderTest {
+    @Test
+    public void dumpListsEventsOldestFirst() {
+        GKFlightRecorder recorder = new GKFlightRecorder(4);
+
+        recorder.record("Card", "LIST", "/apps");
+        recorder.record("Card", "response", null, 226);
+
+        List<String> lines = recorder.dump();
+        assertThat(lines.size(), is(2));
+        assertThat(lines.get(0), endsWith(" Card LIST /apps"));
+        assertThat(lines.get(1), endsWith(" Card response 226"));
+    }
+
+    @Test
+    public void oldestEventsAreDiscardedWhenFull() {
+        GKFlightRecorder recorder = new GKFlightRecorder(3);
+
+        for (int i = 0; i < 5; i++) {
+            recorder.record("Card", "event", null, i);
+        }
+
+        List<String> lines = recorder.dump();
+        assertThat(recorder.size(), is(3));
+        assertThat(recorder.getRecordedCount(), is(5L));
+        assertThat(lines.get(0), endsWith(" event 2"));
+        assertThat(lines.get(2), endsWith(" event 4"));
+    }
+
+    @Test
+    public void clearDiscardsEveryEvent() {
+        GKFlightRecorder recorder = new GKFlightRecorder(3);
+        recorder.record("Card", "event", "detail");
+
+        recorder.clear();
+
+        assertThat(recorder.size(), is(0));
+        assertThat(recorder.dump().isEmpty(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new GKFlightRecorder(0);
+    }
+}
@@ -0,0 +1,95 @@
+package co.blustor.gatekeepersdk.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class GKLogTest {
+    private List<String> messages;
+
+    @Before
+    public void setUp() throws Exception {
+        messages = new ArrayList<>();
+        GKLog.setLogger(new GKLog.Logger() {
+            @Override
+            public void log(int level, String tag, String message, Throwable throwable) {
+                messages.add(level + " " + tag + " " + message);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        GKLog.setLogger(null);
+        GKLog.setLevel(GKLog.INFO);
+    }
+
+    @Test
+    public void messagesBelowTheLevelAreDropped() {
+        GKLog.setLevel(GKLog.INFO);
+
+        GKLog.v("Tag", "verbose");
+        GKLog.d("Tag", "debug");
+        GKLog.i("Tag", "info");
+        GKLog.w("Tag", "warn");
+        GKLog.e("Tag", "error");
+
+        assertThat(messages, is(equalTo(Arrays.asList(
+                GKLog.INFO + " Tag info",
+                GKLog.WARN + " Tag warn",
+                GKLog.ERROR + " Tag error"))));
+    }
+
+    @Test
+    public void silentLevelLogsNothing() {
+        GKLog.setLevel(GKLog.SILENT);
+
+        GKLog.e("Tag", "error", new RuntimeException());
+
+        assertThat(messages.isEmpty(), is(true));
+        assertThat(GKLog.isLoggable(GKLog.ERROR), is(false));
+    }
+
+    @Test
+    public void valuesAreJoinedToLoggedMessages() {
+        GKLog.setLevel(GKLog.DEBUG);
+
+        GKLog.d("Tag", "count = ", 42L);
+        GKLog.d("Tag", "path = ", "/apps");
+        GKLog.i("Tag", "state = ", "CONNECTED");
+
+        assertThat(messages, is(equalTo(Arrays.asList(
+                GKLog.DEBUG + " Tag count = 42",
+                GKLog.DEBUG + " Tag path = /apps",
+                GKLog.INFO + " Tag state = CONNECTED"))));
+    }
+
+    @Test
+    public void messagesAreNotBuiltWhenNotLogged() {
+        final int[] builds = new int[1];
+        GKLog.Message message = new GKLog.Message() {
+            @Override
+            public String build() {
+                builds[0]++;
+                return "built";
+            }
+        };
+
+        GKLog.setLevel(GKLog.INFO);
+        GKLog.d("Tag", message);
+        assertThat(builds[0], is(0));
+
+        GKLog.setLevel(GKLog.DEBUG);
+        GKLog.d("Tag", message);
+        assertThat(builds[0], is(1));
+        assertThat(messages, is(equalTo(Arrays.asList(GKLog.DEBUG + " Tag built"))));
+    }
+}